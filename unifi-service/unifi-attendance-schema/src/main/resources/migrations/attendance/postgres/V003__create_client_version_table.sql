@@ -0,0 +1,100 @@
+-- Bumped whenever anything the attendance matcher indexes changes, so it only reloads affected clients
+
+CREATE SEQUENCE attendance.client_version_seq;
+
+CREATE TABLE attendance.client_version(
+  client_id  CITEXT NOT NULL,
+  version    BIGINT NOT NULL,
+
+  PRIMARY KEY (client_id)
+);
+
+INSERT INTO attendance.client_version (client_id, version)
+  SELECT client_id, nextval('attendance.client_version_seq') FROM attendance.client_config;
+
+-- Statement-level, so a bulk import bumps each client it touches once rather than once per row
+CREATE FUNCTION attendance.bump_changed_client_versions() RETURNS TRIGGER AS $$
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    INSERT INTO attendance.client_version (client_id, version)
+      SELECT client_id, nextval('attendance.client_version_seq')
+      FROM (SELECT DISTINCT client_id FROM new_rows) changed
+      ON CONFLICT (client_id) DO UPDATE SET version = EXCLUDED.version;
+  ELSIF TG_OP = 'UPDATE' THEN
+    INSERT INTO attendance.client_version (client_id, version)
+      SELECT client_id, nextval('attendance.client_version_seq')
+      FROM (SELECT client_id FROM old_rows UNION SELECT client_id FROM new_rows) changed
+      ON CONFLICT (client_id) DO UPDATE SET version = EXCLUDED.version;
+  ELSE
+    INSERT INTO attendance.client_version (client_id, version)
+      SELECT client_id, nextval('attendance.client_version_seq')
+      FROM (SELECT DISTINCT client_id FROM old_rows) changed
+      ON CONFLICT (client_id) DO UPDATE SET version = EXCLUDED.version;
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bump_client_version_on_insert AFTER INSERT ON attendance.schedule
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_update AFTER UPDATE ON attendance.schedule
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_delete AFTER DELETE ON attendance.schedule
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+
+CREATE TRIGGER bump_client_version_on_insert AFTER INSERT ON attendance.block
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_update AFTER UPDATE ON attendance.block
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_delete AFTER DELETE ON attendance.block
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+
+CREATE TRIGGER bump_client_version_on_insert AFTER INSERT ON attendance.block_time
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_update AFTER UPDATE ON attendance.block_time
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_delete AFTER DELETE ON attendance.block_time
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+
+CREATE TRIGGER bump_client_version_on_insert AFTER INSERT ON attendance.block_zone
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_update AFTER UPDATE ON attendance.block_zone
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_delete AFTER DELETE ON attendance.block_zone
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+
+CREATE TRIGGER bump_client_version_on_insert AFTER INSERT ON attendance.assignment
+  REFERENCING NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_update AFTER UPDATE ON attendance.assignment
+  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+CREATE TRIGGER bump_client_version_on_delete AFTER DELETE ON attendance.assignment
+  REFERENCING OLD TABLE AS old_rows
+  FOR EACH STATEMENT EXECUTE PROCEDURE attendance.bump_changed_client_versions();
+
+-- Block times are local to the site, so a time zone change moves every block in it. Transition tables can't be
+-- combined with a column list, but sites are few and rarely updated, so this one stays per row.
+CREATE FUNCTION attendance.bump_site_client_version() RETURNS TRIGGER AS $$
+BEGIN
+  INSERT INTO attendance.client_version (client_id, version)
+    VALUES (NEW.client_id, nextval('attendance.client_version_seq'))
+    ON CONFLICT (client_id) DO UPDATE SET version = EXCLUDED.version;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bump_attendance_client_version AFTER UPDATE OF time_zone ON core.site
+  FOR EACH ROW EXECUTE PROCEDURE attendance.bump_site_client_version();
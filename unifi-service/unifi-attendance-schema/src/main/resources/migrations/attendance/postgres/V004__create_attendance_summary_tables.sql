@@ -0,0 +1,30 @@
+-- Blocks whose zone has been processed past the end of the detection window; attendance for these is final
+-- unless overridden or detected late
+
+CREATE TABLE attendance.finalised_block(
+  client_id       CITEXT NOT NULL,
+  schedule_id     CITEXT NOT NULL,
+  block_id        CITEXT NOT NULL,
+  finalised_time  TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+
+  PRIMARY KEY (client_id, schedule_id, block_id),
+  CONSTRAINT fk_finalised_block_to_block
+    FOREIGN KEY (client_id, schedule_id, block_id)
+    REFERENCES attendance.block
+);
+
+-- Attendance status counts over finalised blocks, per contact and schedule
+
+CREATE TABLE attendance.contact_schedule_summary(
+  client_id          CITEXT NOT NULL,
+  client_reference   CITEXT NOT NULL,
+  schedule_id        CITEXT NOT NULL,
+  present_count      INTEGER NOT NULL DEFAULT 0,
+  absent_count       INTEGER NOT NULL DEFAULT 0,
+  auth_absent_count  INTEGER NOT NULL DEFAULT 0,
+
+  PRIMARY KEY (client_id, client_reference, schedule_id),
+  CONSTRAINT fk_contact_schedule_summary_to_assignment
+    FOREIGN KEY (client_id, client_reference, schedule_id)
+    REFERENCES attendance.assignment
+);
@@ -0,0 +1,30 @@
+-- Attendance recomputation from stored detections, checkpointed per day so interrupted jobs can resume
+
+CREATE TABLE attendance.recompute_job(
+  job_id          SERIAL NOT NULL,
+  client_id       CITEXT NOT NULL,
+  start_date      DATE NOT NULL,
+  end_date        DATE NOT NULL,
+  created_time    TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  completed_time  TIMESTAMP WITH TIME ZONE NULL,
+
+  PRIMARY KEY (job_id),
+  CONSTRAINT fk_recompute_job_to_client_config
+    FOREIGN KEY (client_id)
+    REFERENCES attendance.client_config,
+  CHECK (start_date <= end_date)
+);
+
+CREATE INDEX recompute_job_incomplete_idx ON attendance.recompute_job (job_id) WHERE completed_time IS NULL;
+
+CREATE TABLE attendance.recompute_job_day(
+  job_id            INTEGER NOT NULL,
+  day               DATE NOT NULL,
+  attendance_count  INTEGER NOT NULL,
+  completed_time    TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+
+  PRIMARY KEY (job_id, day),
+  CONSTRAINT fk_recompute_job_day_to_recompute_job
+    FOREIGN KEY (job_id)
+    REFERENCES attendance.recompute_job
+);
@@ -1,13 +1,16 @@
 package id.unifi.service.attendance;
 
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.Timer;
 import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
 import static id.unifi.service.attendance.db.Keys.BLOCK_ZONE__FK_BLOCK_ZONE_TO_BLOCK;
 import id.unifi.service.attendance.db.Tables;
 import static id.unifi.service.attendance.db.Tables.BLOCK;
 import static id.unifi.service.attendance.db.Tables.BLOCK_TIME;
 import static id.unifi.service.attendance.db.Tables.BLOCK_ZONE;
+import static id.unifi.service.attendance.db.Tables.CLIENT_VERSION;
 import static id.unifi.service.attendance.db.Tables.PROCESSING_STATE;
-import id.unifi.service.attendance.types.pk.AssignmentPK;
 import id.unifi.service.attendance.types.pk.AttendancePK;
 import id.unifi.service.common.detection.DetectionMatch;
 import id.unifi.service.common.types.pk.ZonePK;
@@ -16,39 +19,71 @@ import static id.unifi.service.core.db.Tables.ANTENNA;
 import static id.unifi.service.core.db.Tables.SITE;
 import id.unifi.service.dbcommon.Database;
 import id.unifi.service.dbcommon.DatabaseProvider;
-import static java.util.Comparator.naturalOrder;
 import static java.util.stream.Collectors.*;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
 import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.select;
+import static org.jooq.impl.DSL.trueCondition;
+import static org.jooq.impl.DSL.val;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import static java.time.ZoneOffset.UTC;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
+/**
+ * Matches detections to the schedule blocks their holders are expected to attend.
+ *
+ * The index is kept per client. Each refresh reloads only the clients whose {@code attendance.client_version}
+ * has moved since they were last loaded, and blocks that ended more than {@link #BLOCK_RETENTION} ago are left
+ * out, so detections older than that (e.g. from a long replay) no longer produce attendance.
+ */
 public class AttendanceMatcher {
     private static final Logger log = LoggerFactory.getLogger(AttendanceMatcher.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.attendance";
 
     public static final Duration DETECTION_BEFORE_BLOCK_START = Duration.ofMinutes(15);
     public static final Duration DETECTION_AFTER_BLOCK_END = Duration.ofMinutes(15);
+    public static final Duration BLOCK_RETENTION = Duration.ofDays(14);
     private static final Duration ASSIGNMENT_REFRESH_RATE = Duration.ofMinutes(1);
+    private static final Duration FULL_REFRESH_INTERVAL = Duration.ofHours(1);
+
+    // Block times are local; no site is further than this from UTC, so the SQL filter can be conservative
+    private static final Duration MAX_UTC_OFFSET = Duration.ofDays(1);
 
     private final Database db;
     private final ScheduledExecutorService refreshScheduler;
+    private final Timer refreshTimer;
+    private final Map<String, ClientAssignments> clients;
 
-    private volatile Assignments assignments;
-    private long lastRefreshMillis;
+    private long lastFullRefreshMillis;
+    private volatile int holderCount;
+    private volatile int zoneCount;
+    private volatile int blockCount;
 
-    public AttendanceMatcher(DatabaseProvider dbProvider) {
+    public AttendanceMatcher(DatabaseProvider dbProvider, MetricRegistry registry) {
         this.db = dbProvider.bySchema(CORE, ATTENDANCE);
+        this.clients = new ConcurrentHashMap<>();
+        this.refreshTimer = registry.timer(name(METRIC_NAME_PREFIX, "matcher", "refresh"));
+        registry.gauge(name(METRIC_NAME_PREFIX, "matcher", "clients"), () -> clients::size);
+        registry.gauge(name(METRIC_NAME_PREFIX, "matcher", "holders"), () -> () -> holderCount);
+        registry.gauge(name(METRIC_NAME_PREFIX, "matcher", "zones"), () -> () -> zoneCount);
+        registry.gauge(name(METRIC_NAME_PREFIX, "matcher", "blocks"), () -> () -> blockCount);
         refreshAssignments();
         refreshScheduler = Executors.newSingleThreadScheduledExecutor();
     }
@@ -61,97 +96,162 @@ public class AttendanceMatcher {
                 TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Reloads changed clients without waiting for the next scheduled refresh.
+     */
+    public void refreshNow() {
+        refreshScheduler.execute(this::refreshAssignments);
+    }
+
     public Stream<AttendancePK> match(DetectionMatch match) {
         if (!match.clientReference.isPresent()) return Stream.empty();
         var clientReference = match.clientReference.orElseThrow();
 
-        var blocks = assignments.zoneBlocks.get(match.zone);
+        var assignments = clients.get(match.zone.clientId);
+        var blocks = assignments == null ? null : assignments.zoneBlocks.get(match.zone);
         if (blocks == null) {
             log.trace("No blocks in {}", match.zone);
             return Stream.empty();
         }
 
-        var detection = match.detection;
-        var detectionStartTime = detection.detectionTime.minus(blocks.maxBlockDuration);
-        var subMap = blocks.blocks.subMap(detectionStartTime, true, detection.detectionTime, true);
-        return subMap.values().stream()
-                .filter(b -> assignments.contactSchedules.contains(new AssignmentPK(match.zone.clientId, clientReference, b.scheduleId)) &&
-                        !detection.detectionTime.isBefore(b.detectionStartTime) &&
-                        detection.detectionTime.isBefore(b.detectionEndTime))
-                .map(b -> new AttendancePK(match.zone.clientId, clientReference, b.scheduleId, b.blockId));
+        var holderId = assignments.holderIds.get(clientReference);
+        if (holderId == null) return Stream.empty();
+        int holder = holderId;
+
+        var attendances = new ArrayList<AttendancePK>(1);
+        blocks.forEachContaining(match.detection.detectionTime, b -> {
+            if (b.contacts.get(holder))
+                attendances.add(new AttendancePK(match.zone.clientId, clientReference, b.scheduleId, b.blockId));
+        });
+        return attendances.stream();
     }
 
     private void refreshAssignments() {
-        this.assignments = db.execute(sql -> {
-            var timerStart = System.currentTimeMillis();
-
-            var neverProcessedAntennae = sql
-                    .selectFrom(ANTENNA.leftAntiJoin(PROCESSING_STATE)
-                            .using(ANTENNA.CLIENT_ID, ANTENNA.READER_SN, ANTENNA.PORT_NUMBER))
-                    .fetch();
-            for (var antenna : neverProcessedAntennae) {
-                sql.insertInto(PROCESSING_STATE)
-                        .set(PROCESSING_STATE.CLIENT_ID, antenna.get(ANTENNA.CLIENT_ID))
-                        .set(PROCESSING_STATE.READER_SN, antenna.get(ANTENNA.READER_SN))
-                        .set(PROCESSING_STATE.PORT_NUMBER, antenna.get(ANTENNA.PORT_NUMBER))
-                        .set(PROCESSING_STATE.PROCESSED_UP_TO, Instant.EPOCH)
-                        .onConflictDoNothing()
-                        .execute();
-                log.info("Added initial processing state for\n{}", antenna);
-            }
-
-            var contactSchedules = sql
-                    .selectFrom(Tables.ASSIGNMENT)
-                    .stream()
-                    .map(r -> new AssignmentPK(r.getClientId(), r.getClientReference(), r.getScheduleId()))
-                    .collect(toSet());
-
-            var rawBlocksByZone = sql
-                    .select(BLOCK.CLIENT_ID, BLOCK.SCHEDULE_ID, BLOCK.BLOCK_ID,
-                            BLOCK_ZONE.SITE_ID, BLOCK_ZONE.ZONE_ID,
-                            field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.START_TIME, SITE.TIME_ZONE),
-                            field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.END_TIME, SITE.TIME_ZONE))
-                    .from(BLOCK.join(BLOCK_TIME).onKey().join(BLOCK_ZONE).onKey(BLOCK_ZONE__FK_BLOCK_ZONE_TO_BLOCK)
-                            .join(SITE).on(
-                                    SITE.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID),
-                                    SITE.SITE_ID.eq(BLOCK_ZONE.SITE_ID)))
-                    .stream()
-                    .collect(groupingBy(r -> new ZonePK(r.value1(), r.value4(), r.value5()),
-                            mapping(r -> new Block(r.value6().minus(DETECTION_BEFORE_BLOCK_START),
-                                            r.value7().plus(DETECTION_AFTER_BLOCK_END),
-                                            r.value2(),
-                                            r.value3()),
-                                    toMap(b -> b.detectionStartTime, Function.identity(), (a, b) -> a, TreeMap::new))));
-            var zoneBlocks = rawBlocksByZone.entrySet().stream()
-                    .collect(toUnmodifiableMap(Map.Entry::getKey, e -> new ZoneBlocks(e.getValue())));
-
-            lastRefreshMillis = System.currentTimeMillis();
-            log.info("Refreshed attendance assignments in {} ms: {} schedule assignments, {} zones",
-                    lastRefreshMillis - timerStart, contactSchedules.size(), zoneBlocks.size());
-            return new Assignments(contactSchedules, zoneBlocks);
-        });
+        try (var ignored = refreshTimer.time()) {
+            db.execute(sql -> {
+                var timerStart = System.currentTimeMillis();
+                addInitialProcessingStates(sql);
+
+                var versions = sql.selectFrom(CLIENT_VERSION).fetchMap(CLIENT_VERSION.CLIENT_ID, CLIENT_VERSION.VERSION);
+                clients.keySet().retainAll(versions.keySet());
+
+                // Reload everything now and then, to drop blocks that have aged out of the window
+                var fullRefresh = timerStart - lastFullRefreshMillis >= FULL_REFRESH_INTERVAL.toMillis();
+                var changedClientIds = fullRefresh
+                        ? versions.keySet()
+                        : versions.entrySet().stream()
+                        .filter(e -> {
+                            var loaded = clients.get(e.getKey());
+                            return loaded == null || loaded.version != e.getValue();
+                        })
+                        .map(Map.Entry::getKey)
+                        .collect(toSet());
+                if (!changedClientIds.isEmpty()) {
+                    clients.putAll(loadClients(sql, versions, changedClientIds, fullRefresh));
+                }
+                if (fullRefresh) lastFullRefreshMillis = timerStart;
+
+                updateIndexSizes();
+                log.info("Refreshed attendance assignments for {} of {} clients in {} ms ({}): " +
+                                "{} holders, {} zones, {} blocks",
+                        changedClientIds.size(), versions.size(), System.currentTimeMillis() - timerStart,
+                        fullRefresh ? "full" : "incremental", holderCount, zoneCount, blockCount);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // Keep matching against the previous index; the next refresh will retry
+            log.error("Failed to refresh attendance assignments", e);
+        }
     }
 
-    private static class Assignments {
-        final Set<AssignmentPK> contactSchedules;
-        final Map<ZonePK, ZoneBlocks> zoneBlocks;
+    private static void addInitialProcessingStates(DSLContext sql) {
+        var added = sql.insertInto(PROCESSING_STATE,
+                PROCESSING_STATE.CLIENT_ID,
+                PROCESSING_STATE.READER_SN,
+                PROCESSING_STATE.PORT_NUMBER,
+                PROCESSING_STATE.PROCESSED_UP_TO)
+                .select(select(ANTENNA.CLIENT_ID, ANTENNA.READER_SN, ANTENNA.PORT_NUMBER, val(Instant.EPOCH))
+                        .from(ANTENNA.leftAntiJoin(PROCESSING_STATE)
+                                .using(ANTENNA.CLIENT_ID, ANTENNA.READER_SN, ANTENNA.PORT_NUMBER)))
+                .onConflictDoNothing()
+                .execute();
+        if (added > 0) log.info("Added initial processing state for {} antennae", added);
+    }
 
-        Assignments(Set<AssignmentPK> contactSchedules, Map<ZonePK, ZoneBlocks> zoneBlocks) {
-            this.contactSchedules = contactSchedules;
-            this.zoneBlocks = zoneBlocks;
+    private static Map<String, ClientAssignments> loadClients(DSLContext sql,
+                                                              Map<String, Long> versions,
+                                                              Collection<String> clientIds,
+                                                              boolean allClients) {
+        Condition assignmentClients = allClients ? trueCondition() : Tables.ASSIGNMENT.CLIENT_ID.in(clientIds);
+        Condition blockClients = allClients ? trueCondition() : BLOCK.CLIENT_ID.in(clientIds);
+
+        // Holders are interned to small integers per client so each schedule's contacts fit in a bitmap
+        var holderIds = new HashMap<String, Map<String, Integer>>();
+        var scheduleContacts = new HashMap<String, Map<String, BitSet>>();
+        for (var assignment : sql.selectFrom(Tables.ASSIGNMENT).where(assignmentClients).fetch()) {
+            var clientHolderIds = holderIds.computeIfAbsent(assignment.getClientId(), c -> new HashMap<>());
+            var holderId = clientHolderIds.computeIfAbsent(assignment.getClientReference(), r -> clientHolderIds.size());
+            scheduleContacts.computeIfAbsent(assignment.getClientId(), c -> new HashMap<>())
+                    .computeIfAbsent(assignment.getScheduleId(), s -> new BitSet())
+                    .set(holderId);
+        }
+
+        var cutoff = Instant.now().minus(BLOCK_RETENTION);
+        var localCutoff = LocalDateTime.ofInstant(cutoff.minus(MAX_UTC_OFFSET), UTC);
+        var blockRows = sql
+                .select(BLOCK.CLIENT_ID, BLOCK.SCHEDULE_ID, BLOCK.BLOCK_ID,
+                        BLOCK_ZONE.SITE_ID, BLOCK_ZONE.ZONE_ID,
+                        field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.START_TIME, SITE.TIME_ZONE),
+                        field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.END_TIME, SITE.TIME_ZONE))
+                .from(BLOCK.join(BLOCK_TIME).onKey().join(BLOCK_ZONE).onKey(BLOCK_ZONE__FK_BLOCK_ZONE_TO_BLOCK)
+                        .join(SITE).on(
+                                SITE.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID),
+                                SITE.SITE_ID.eq(BLOCK_ZONE.SITE_ID)))
+                .where(blockClients)
+                .and(BLOCK_TIME.END_TIME.ge(localCutoff))
+                .fetch();
+
+        var rawBlocksByZone = new HashMap<String, Map<ZonePK, List<Block>>>();
+        for (var r : blockRows) {
+            if (!r.value7().isAfter(cutoff)) continue;
+            var contacts = scheduleContacts.getOrDefault(r.value1(), Map.of()).get(r.value2());
+            if (contacts == null) continue; // nobody is assigned to attend
+            rawBlocksByZone.computeIfAbsent(r.value1(), c -> new HashMap<>())
+                    .computeIfAbsent(new ZonePK(r.value1(), r.value4(), r.value5()), z -> new ArrayList<>())
+                    .add(new Block(r.value6().minus(DETECTION_BEFORE_BLOCK_START),
+                            r.value7().plus(DETECTION_AFTER_BLOCK_END),
+                            r.value2(),
+                            r.value3(),
+                            contacts));
         }
+
+        return clientIds.stream().collect(toMap(Function.identity(), clientId -> new ClientAssignments(
+                versions.get(clientId),
+                Map.copyOf(holderIds.getOrDefault(clientId, Map.of())),
+                rawBlocksByZone.getOrDefault(clientId, Map.of()).entrySet().stream()
+                        .collect(toUnmodifiableMap(Map.Entry::getKey, e -> new IntervalTree<>(e.getValue(),
+                                b -> b.detectionStartTime, b -> b.detectionEndTime))))));
     }
 
-    private static class ZoneBlocks {
-        final NavigableMap<Instant, Block> blocks;
-        final Duration maxBlockDuration;
+    private void updateIndexSizes() {
+        var assignments = clients.values();
+        holderCount = assignments.stream().mapToInt(a -> a.holderIds.size()).sum();
+        zoneCount = assignments.stream().mapToInt(a -> a.zoneBlocks.size()).sum();
+        blockCount = assignments.stream()
+                .flatMap(a -> a.zoneBlocks.values().stream())
+                .mapToInt(IntervalTree::size)
+                .sum();
+    }
 
-        private ZoneBlocks(NavigableMap<Instant, Block> blocks) {
-            this.blocks = blocks;
-            this.maxBlockDuration = blocks.values().stream()
-                    .map(b -> Duration.between(b.detectionStartTime, b.detectionEndTime))
-                    .max(naturalOrder())
-                    .orElse(Duration.ZERO);
+    private static class ClientAssignments {
+        final long version;
+        final Map<String, Integer> holderIds;
+        final Map<ZonePK, IntervalTree<Block>> zoneBlocks;
+
+        ClientAssignments(long version, Map<String, Integer> holderIds, Map<ZonePK, IntervalTree<Block>> zoneBlocks) {
+            this.version = version;
+            this.holderIds = holderIds;
+            this.zoneBlocks = zoneBlocks;
         }
     }
 
@@ -160,12 +260,18 @@ public class AttendanceMatcher {
         final Instant detectionEndTime;
         final String scheduleId;
         final String blockId;
+        final BitSet contacts;
 
-        Block(Instant detectionStartTime, Instant detectionEndTime, String scheduleId, String blockId) {
+        Block(Instant detectionStartTime,
+              Instant detectionEndTime,
+              String scheduleId,
+              String blockId,
+              BitSet contacts) {
             this.detectionStartTime = detectionStartTime;
             this.detectionEndTime = detectionEndTime;
             this.scheduleId = scheduleId;
             this.blockId = blockId;
+            this.contacts = contacts;
         }
 
         public String toString() {
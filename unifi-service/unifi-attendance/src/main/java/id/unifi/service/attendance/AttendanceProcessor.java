@@ -1,7 +1,7 @@
 package id.unifi.service.attendance;
 
-import com.google.common.collect.Iterables;
-import com.rabbitmq.client.Channel;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
 import com.rabbitmq.client.Connection;
 import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
 import static id.unifi.service.attendance.db.Keys.ATTENDANCE_PKEY;
@@ -10,6 +10,7 @@ import static id.unifi.service.attendance.db.Tables.ATTENDANCE_;
 import static id.unifi.service.attendance.db.Tables.PROCESSING_STATE;
 import id.unifi.service.common.detection.DetectionMatch;
 import id.unifi.service.common.detection.DetectionMatchMqConsumer;
+import id.unifi.service.common.mq.AckTracker;
 import id.unifi.service.common.mq.MqUtils;
 import static id.unifi.service.common.mq.MqUtils.DETECTION_MATCH_TYPE;
 import id.unifi.service.common.mq.Tagged;
@@ -18,6 +19,7 @@ import id.unifi.service.common.util.BatchBuffer;
 import static id.unifi.service.core.db.Core.CORE;
 import id.unifi.service.dbcommon.Database;
 import id.unifi.service.dbcommon.DatabaseProvider;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toSet;
 import org.jooq.Query;
@@ -28,20 +30,49 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BinaryOperator;
+import java.util.stream.IntStream;
 
+/**
+ * Records attendance from detection matches.
+ *
+ * Detections are sharded by antenna across {@link #SHARDS} flush workers. Attendance is committed per batch, but
+ * the per-antenna {@code processing_state} watermarks are only kept in memory and written every
+ * {@link #WATERMARK_PERSIST_RATE}; a delivery is acked once both its attendance and its watermark are durable.
+ */
 public class AttendanceProcessor implements DetectionMatchMqConsumer {
     private static final Logger log = LoggerFactory.getLogger(AttendanceProcessor.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.attendance";
     private static final String PROCESSING_QUEUE_NAME = "attendance.detection.processing";
 
     private static final int BUFFER_SIZE = 10_000;
     private static final Duration BATCH_CREATION_TIMEOUT = Duration.ofSeconds(1);
+    private static final int SHARDS = 4;
+    private static final Duration WATERMARK_PERSIST_RATE = Duration.ofSeconds(10);
+    private static final BinaryOperator<Instant> LATER = BinaryOperator.maxBy(Comparator.naturalOrder());
 
     private final Database db;
     private final AttendanceMatcher attendanceMatcher;
+    private final RecordedAttendanceCache recordedAttendance;
+    private final MetricRegistry registry;
+    private final ScheduledExecutorService watermarkScheduler;
+    private final AtomicReferenceArray<Instant> shardProcessingSince;
+
+    private final Object watermarkLock = new Object();
+    private Map<AntennaPK, Instant> dirtyWatermarks;
+    private List<Long> undurableDeliveryTags;
+
+    private AckTracker acks;
+    private BatchBuffer<Tagged<DetectionMatch>> processingBuffer;
 
     private static final Query insertAttendanceQuery = DSL.insertInto(ATTENDANCE_,
             ATTENDANCE_.CLIENT_ID, ATTENDANCE_.CLIENT_REFERENCE, ATTENDANCE_.SCHEDULE_ID, ATTENDANCE_.BLOCK_ID)
@@ -55,9 +86,15 @@ public class AttendanceProcessor implements DetectionMatchMqConsumer {
             .set(PROCESSING_STATE.PROCESSED_UP_TO, (Instant) null)
             .where(PROCESSING_STATE.PROCESSED_UP_TO.lt((Instant) null));
 
-    public AttendanceProcessor(DatabaseProvider dbProvider, AttendanceMatcher attendanceMatcher) {
+    public AttendanceProcessor(DatabaseProvider dbProvider, AttendanceMatcher attendanceMatcher, MetricRegistry registry) {
         this.db = dbProvider.bySchema(CORE, ATTENDANCE);
         this.attendanceMatcher = attendanceMatcher;
+        this.recordedAttendance = new RecordedAttendanceCache(dbProvider, registry);
+        this.registry = registry;
+        this.watermarkScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.shardProcessingSince = new AtomicReferenceArray<>(SHARDS);
+        this.dirtyWatermarks = new HashMap<>();
+        this.undurableDeliveryTags = new ArrayList<>();
     }
 
     public void start(Connection connection, String exchangeName) throws IOException {
@@ -65,69 +102,163 @@ public class AttendanceProcessor implements DetectionMatchMqConsumer {
         channel.queueDeclare(PROCESSING_QUEUE_NAME, true, false, false, null);
         channel.queueBind(PROCESSING_QUEUE_NAME, exchangeName, "");
 
-        var processingBuffer = BatchBuffer.<Tagged<DetectionMatch>>create(
-                "attendance-processor", BUFFER_SIZE, BATCH_CREATION_TIMEOUT,
-                detections -> processAttendance(channel, detections));
+        // Keeping each antenna on one shard means its detections are processed in order and its watermark only moves forward
+        acks = new AckTracker(channel);
+        processingBuffer = BatchBuffer.<Tagged<DetectionMatch>>builder(
+                "attendance-processor", BUFFER_SIZE, BATCH_CREATION_TIMEOUT)
+                .flushers(SHARDS)
+                .orderingKey(AttendanceProcessor::antennaOf)
+                .failureHandler(acks::requeueAll)
+                .metrics(registry, METRIC_NAME_PREFIX)
+                .build(this::processAttendance);
+
+        for (int i = 0; i < SHARDS; i++) {
+            var shard = i;
+            var shardMetricName = name(METRIC_NAME_PREFIX, "attendance-processor", "shard", Integer.toString(shard));
+            registry.gauge(name(shardMetricName, "lag-millis"), () -> () -> shardLagMillis(shard));
+            registry.gauge(name(shardMetricName, "queue-length"), () -> () -> processingBuffer.size(shard));
+        }
+        registry.gauge(name(METRIC_NAME_PREFIX, "attendance-processor", "unacked"), () -> acks::inFlightCount);
 
-        var consumer = MqUtils.unmarshallingConsumer(DETECTION_MATCH_TYPE, channel, processingBuffer::put);
+        var consumer = MqUtils.unmarshallingConsumer(DETECTION_MATCH_TYPE, channel, detection -> {
+            acks.delivered(detection.deliveryTag);
+            processingBuffer.put(detection);
+        });
         channel.basicConsume(PROCESSING_QUEUE_NAME, consumer);
 
+        watermarkScheduler.scheduleAtFixedRate(this::persistWatermarks,
+                WATERMARK_PERSIST_RATE.toMillis(), WATERMARK_PERSIST_RATE.toMillis(), TimeUnit.MILLISECONDS);
         attendanceMatcher.start();
+        recordedAttendance.start();
     }
 
-    private void processAttendance(Channel channel, List<Tagged<DetectionMatch>> detections) {
+    /**
+     * Number of detections received but not yet acknowledged.
+     */
+    public int backlog() {
+        return acks == null ? 0 : acks.inFlightCount();
+    }
+
+    /**
+     * Age of the oldest detection the shard is processing or has queued, so a stalled shard's lag keeps growing.
+     */
+    private long shardLagMillis(int shard) {
+        var oldest = shardProcessingSince.get(shard);
+        var queued = processingBuffer.peek(shard);
+        if (queued != null && (oldest == null || queued.payload.detection.detectionTime.isBefore(oldest))) {
+            oldest = queued.payload.detection.detectionTime;
+        }
+        return oldest == null ? 0 : Math.max(0, Duration.between(oldest, Instant.now()).toMillis());
+    }
+
+    private static AntennaPK antennaOf(Tagged<DetectionMatch> match) {
+        var detection = match.payload.detection;
+        return new AntennaPK(detection.detectable.clientId, detection.readerSn, detection.portNumber);
+    }
+
+    private void processAttendance(List<Tagged<DetectionMatch>> detections) {
         if (detections.isEmpty()) return;
 
+        var shard = processingBuffer.laneOf(detections.get(0));
+        shardProcessingSince.set(shard, detections.stream()
+                .map(d -> d.payload.detection.detectionTime)
+                .min(Comparator.naturalOrder())
+                .get());
+        try {
+            recordAttendance(detections);
+        } finally {
+            shardProcessingSince.set(shard, null);
+        }
+    }
+
+    private void recordAttendance(List<Tagged<DetectionMatch>> detections) {
         log.debug("Processing {} detections", detections.size());
-        var attendances = detections.stream()
+        var attendances = recordedAttendance.unrecorded(detections.stream()
                 .map(d -> d.payload)
                 .flatMap(attendanceMatcher::match)
-                .collect(toSet());
+                .collect(toSet()));
 
         var newProcessingStates = detections.stream()
-                .map(d -> d.payload.detection)
                 .collect(toMap(
-                        d -> new AntennaPK(d.detectable.clientId, d.readerSn, d.portNumber),
-                        d -> d.detectionTime,
-                        BinaryOperator.maxBy(Comparator.<Instant>naturalOrder())));
+                        AttendanceProcessor::antennaOf,
+                        d -> d.payload.detection.detectionTime,
+                        LATER));
 
-        if (!detections.isEmpty()) {
+        if (!attendances.isEmpty()) {
             db.execute(sql -> {
-                if (!attendances.isEmpty()) {
-                    var batch = sql.batch(insertAttendanceQuery);
-                    for (var attendance : attendances) {
-                        batch.bind(attendance.clientId, attendance.clientReference, attendance.scheduleId, attendance.blockId);
-                    }
-
-                    var attendanceRowsInserted = batch.execute();
-                    var newAttendanceRows = Arrays.stream(attendanceRowsInserted).sum();
-                    if (newAttendanceRows > 0) {
-                        log.debug("Persisting: {}", attendances);
-                        log.debug("Attendance persisted: {}, of which new: {}",
-                                attendanceRowsInserted.length, newAttendanceRows);
-                    }
+                var attendanceList = List.copyOf(attendances);
+                var batch = sql.batch(insertAttendanceQuery);
+                for (var attendance : attendanceList) {
+                    batch.bind(attendance.clientId, attendance.clientReference, attendance.scheduleId, attendance.blockId);
                 }
 
+                var attendanceRowsInserted = batch.execute();
+                var newAttendances = IntStream.range(0, attendanceList.size())
+                        .filter(i -> attendanceRowsInserted[i] > 0)
+                        .mapToObj(attendanceList::get)
+                        .collect(toList());
+                if (!newAttendances.isEmpty()) {
+                    log.debug("Persisting: {}", attendances);
+                    log.debug("Attendance persisted: {}, of which new: {}",
+                            attendanceRowsInserted.length, newAttendances.size());
+                    AttendanceSummary.recordAttendance(sql, newAttendances);
+                }
+                return null;
+            });
+            recordedAttendance.markRecorded(attendances);
+        }
+
+        synchronized (watermarkLock) {
+            newProcessingStates.forEach((antenna, processedUpTo) ->
+                    dirtyWatermarks.merge(antenna, processedUpTo, LATER));
+            for (var detection : detections) undurableDeliveryTags.add(detection.deliveryTag);
+        }
+    }
+
+    private void persistWatermarks() {
+        Map<AntennaPK, Instant> watermarks;
+        List<Long> deliveryTags;
+        synchronized (watermarkLock) {
+            if (undurableDeliveryTags.isEmpty()) return;
+            watermarks = dirtyWatermarks;
+            deliveryTags = undurableDeliveryTags;
+            dirtyWatermarks = new HashMap<>();
+            undurableDeliveryTags = new ArrayList<>();
+        }
+
+        try {
+            db.execute(sql -> {
                 var stateBatch = sql.batch(insertProcessingStateQuery);
-                for (var entry : newProcessingStates.entrySet()) {
+                for (var entry : watermarks.entrySet()) {
                     var antenna = entry.getKey();
                     var processedUpTo = entry.getValue();
                     stateBatch.bind(antenna.clientId, antenna.readerSn, antenna.portNumber,
                             processedUpTo, processedUpTo, processedUpTo);
                 }
-                var stateRowsInserted = stateBatch.execute();
-                var updatedStateRows = Arrays.stream(stateRowsInserted).sum();
-                if (updatedStateRows > 0) {
-                    log.debug("New processing state: {}", newProcessingStates);
-                }
+                stateBatch.execute();
                 return null;
             });
-
-            try {
-                channel.basicAck(Iterables.getLast(detections).deliveryTag, true);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            log.debug("New processing state: {}", watermarks);
+            acks.processed(deliveryTags.stream().mapToLong(Long::longValue).toArray());
+        } catch (IOException e) {
+            log.error("Failed to acknowledge {} deliveries", deliveryTags.size(), e);
+        } catch (RuntimeException e) {
+            // Put everything back to be retried with the next persist
+            log.error("Failed to persist processing state", e);
+            synchronized (watermarkLock) {
+                watermarks.forEach((antenna, processedUpTo) ->
+                        dirtyWatermarks.merge(antenna, processedUpTo, LATER));
+                undurableDeliveryTags.addAll(deliveryTags);
             }
+            return;
+        }
+
+        // Advanced watermarks may have closed the detection window of some blocks
+        try {
+            var finalisedCount = db.execute(AttendanceSummary::finaliseBlocks);
+            if (finalisedCount > 0) log.info("Finalised attendance for {} blocks", finalisedCount);
+        } catch (RuntimeException e) {
+            log.error("Failed to finalise blocks", e);
         }
     }
 }
@@ -0,0 +1,323 @@
+package id.unifi.service.attendance;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.Timer;
+import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
+import static id.unifi.service.attendance.db.Tables.ASSIGNMENT;
+import static id.unifi.service.attendance.db.Tables.ATTENDANCE_;
+import static id.unifi.service.attendance.db.Tables.BLOCK_TIME;
+import static id.unifi.service.attendance.db.Tables.BLOCK_ZONE;
+import static id.unifi.service.attendance.db.Tables.RECOMPUTE_JOB;
+import static id.unifi.service.attendance.db.Tables.RECOMPUTE_JOB_DAY;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.ANTENNA;
+import static id.unifi.service.core.db.Tables.RFID_DETECTION;
+import static id.unifi.service.core.db.Tables.SITE;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static java.util.stream.Collectors.toList;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import static java.time.ZoneOffset.UTC;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recomputes {@code attendance.attendance} for past blocks from detections stored in {@code core.rfid_detection},
+ * for when blocks, zones or detectable assignments have been corrected after the fact.
+ *
+ * A job covers a client and a range of days, which are recomputed in parallel, each in one transaction that
+ * replaces the attendance of that day's closed blocks with a set-based join of detections against block detection
+ * windows. Completed days are checkpointed with that transaction, so unfinished jobs resume on startup without
+ * redoing them. Work pauses while live attendance processing has a backlog.
+ *
+ * Detections archived out of {@code core.rfid_detection} can't be joined against, so days whose detection windows may
+ * reach back before the archive cutoff are refused rather than recomputed as having no attendance.
+ */
+public class AttendanceRecomputer {
+    private static final Logger log = LoggerFactory.getLogger(AttendanceRecomputer.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.attendance";
+
+    public static final int MAX_DAYS = 366;
+    private static final int PARALLELISM = 4;
+    private static final int MAX_LIVE_BACKLOG = 5_000;
+    private static final Duration THROTTLE_PAUSE = Duration.ofSeconds(1);
+
+    // Block times are local; no site is further than this from UTC, so the archive cutoff can be checked per UTC day
+    private static final Duration MAX_UTC_OFFSET = Duration.ofDays(1);
+
+    // Local block times at the site's time zone are instants, comparable with detection times whatever the session's
+    private static final Field<Instant> DETECTION_START_TIME = field(
+            "({0} AT TIME ZONE {1}) - {2} * interval '1 second'", Instant.class,
+            BLOCK_TIME.START_TIME, SITE.TIME_ZONE, AttendanceMatcher.DETECTION_BEFORE_BLOCK_START.toSeconds());
+    private static final Field<Instant> DETECTION_END_TIME = field(
+            "({0} AT TIME ZONE {1}) + {2} * interval '1 second'", Instant.class,
+            BLOCK_TIME.END_TIME, SITE.TIME_ZONE, AttendanceMatcher.DETECTION_AFTER_BLOCK_END.toSeconds());
+
+    private static final id.unifi.service.core.db.tables.Assignment DETECTABLE_ASSIGNMENT =
+            id.unifi.service.core.db.Tables.ASSIGNMENT;
+    private static final Table<Record> BLOCK_WITH_SITE = BLOCK_TIME
+            .join(BLOCK_ZONE).on(
+                    BLOCK_ZONE.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                    BLOCK_ZONE.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                    BLOCK_ZONE.BLOCK_ID.eq(BLOCK_TIME.BLOCK_ID))
+            .join(SITE).on(
+                    SITE.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID),
+                    SITE.SITE_ID.eq(BLOCK_ZONE.SITE_ID));
+
+    private final Database db;
+    private final AttendanceProcessor attendanceProcessor;
+    private final @Nullable Integer detectionArchiveAfterDays;
+    private final ExecutorService dayExecutor;
+    private final Timer dayTimer;
+    private final Meter throttled;
+
+    /**
+     * @param detectionArchiveAfterDays age in days after which detections are archived, or null if they never are
+     */
+    public AttendanceRecomputer(DatabaseProvider dbProvider,
+                                AttendanceProcessor attendanceProcessor,
+                                @Nullable Integer detectionArchiveAfterDays,
+                                MetricRegistry registry) {
+        this.db = dbProvider.bySchema(CORE, ATTENDANCE);
+        this.attendanceProcessor = attendanceProcessor;
+        this.detectionArchiveAfterDays = detectionArchiveAfterDays;
+        this.dayExecutor = Executors.newFixedThreadPool(PARALLELISM);
+        this.dayTimer = registry.timer(name(METRIC_NAME_PREFIX, "recompute", "day"));
+        this.throttled = registry.meter(name(METRIC_NAME_PREFIX, "recompute", "throttled"));
+    }
+
+    /**
+     * Resumes jobs left unfinished by a previous run.
+     */
+    public void start() {
+        var jobs = db.execute(sql -> sql.selectFrom(RECOMPUTE_JOB)
+                .where(RECOMPUTE_JOB.COMPLETED_TIME.isNull())
+                .orderBy(RECOMPUTE_JOB.JOB_ID)
+                .fetch());
+        for (var job : jobs) {
+            log.info("Resuming attendance recomputation job {} for {}", job.getJobId(), job.getClientId());
+            run(job.getJobId(), job.getClientId(), job.getStartDate(), job.getEndDate());
+        }
+    }
+
+    /**
+     * Starts recomputing attendance for blocks starting on the given days, inclusive.
+     *
+     * @return ID of the new job
+     */
+    public int recompute(String clientId, LocalDate startDate, LocalDate endDate) {
+        var jobId = db.execute(sql -> sql.insertInto(RECOMPUTE_JOB)
+                .set(RECOMPUTE_JOB.CLIENT_ID, clientId)
+                .set(RECOMPUTE_JOB.START_DATE, startDate)
+                .set(RECOMPUTE_JOB.END_DATE, endDate)
+                .returning(RECOMPUTE_JOB.JOB_ID)
+                .fetchOne()
+                .getJobId());
+        log.info("Recomputing attendance for {} from {} to {} as job {}", clientId, startDate, endDate, jobId);
+        run(jobId, clientId, startDate, endDate);
+        return jobId;
+    }
+
+    /**
+     * Earliest day whose blocks can be recomputed, as all their detections are still live; null if every day can be.
+     */
+    public @Nullable LocalDate earliestDay() {
+        if (detectionArchiveAfterDays == null) return null;
+        var archivedBefore = LocalDate.now(UTC).minusDays(detectionArchiveAfterDays).atStartOfDay();
+        return archivedBefore.plus(MAX_UTC_OFFSET)
+                .plus(AttendanceMatcher.DETECTION_BEFORE_BLOCK_START)
+                .toLocalDate()
+                .plusDays(1);
+    }
+
+    public @Nullable JobProgress getProgress(String clientId, int jobId) {
+        return db.execute(sql -> {
+            var job = sql.selectFrom(RECOMPUTE_JOB)
+                    .where(RECOMPUTE_JOB.CLIENT_ID.eq(clientId))
+                    .and(RECOMPUTE_JOB.JOB_ID.eq(jobId))
+                    .fetchOne();
+            if (job == null) return null;
+
+            var days = sql.select(count(), coalesce(sum(RECOMPUTE_JOB_DAY.ATTENDANCE_COUNT), BigDecimal.ZERO))
+                    .from(RECOMPUTE_JOB_DAY)
+                    .where(RECOMPUTE_JOB_DAY.JOB_ID.eq(jobId))
+                    .fetchOne();
+            return new JobProgress(jobId, job.getStartDate(), job.getEndDate(),
+                    (int) (job.getEndDate().toEpochDay() - job.getStartDate().toEpochDay()) + 1,
+                    days.value1(), days.value2().intValue(), job.getCompletedTime());
+        });
+    }
+
+    private void run(int jobId, String clientId, LocalDate startDate, LocalDate endDate) {
+        var completedDays = Set.copyOf(db.execute(sql -> sql.select(RECOMPUTE_JOB_DAY.DAY)
+                .from(RECOMPUTE_JOB_DAY)
+                .where(RECOMPUTE_JOB_DAY.JOB_ID.eq(jobId))
+                .fetch(RECOMPUTE_JOB_DAY.DAY)));
+        // Days archived since the job started would be wiped, so they're left as they are
+        var earliestDay = earliestDay();
+        if (earliestDay != null && startDate.isBefore(earliestDay)) {
+            log.warn("Skipping days of attendance recomputation job {} before {}, as their detections are archived",
+                    jobId, earliestDay);
+        }
+
+        var failures = new AtomicInteger();
+        var days = startDate.datesUntil(endDate.plusDays(1))
+                .filter(day -> earliestDay == null || !day.isBefore(earliestDay))
+                .filter(day -> !completedDays.contains(day))
+                .map(day -> CompletableFuture.runAsync(() -> {
+                    try {
+                        recomputeDay(jobId, clientId, day);
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                        log.error("Failed to recompute attendance for {} on {} in job {}", clientId, day, jobId, e);
+                    }
+                }, dayExecutor))
+                .collect(toList());
+
+        CompletableFuture.allOf(days.toArray(CompletableFuture[]::new)).thenRunAsync(() -> {
+            if (failures.get() > 0) {
+                log.warn("Attendance recomputation job {} left {} days undone; it will resume on restart",
+                        jobId, failures.get());
+                return;
+            }
+            try {
+                db.execute(sql -> {
+                    AttendanceSummary.recompute(sql, clientId, null, null);
+                    return sql.update(RECOMPUTE_JOB)
+                            .set(RECOMPUTE_JOB.COMPLETED_TIME, Instant.now())
+                            .where(RECOMPUTE_JOB.JOB_ID.eq(jobId))
+                            .execute();
+                });
+                log.info("Completed attendance recomputation job {} for {}", jobId, clientId);
+            } catch (RuntimeException e) {
+                log.error("Failed to complete attendance recomputation job {}", jobId, e);
+            }
+        }, dayExecutor);
+    }
+
+    private void recomputeDay(int jobId, String clientId, LocalDate day) {
+        awaitLiveBacklog();
+        try (var ignored = dayTimer.time()) {
+            var count = db.execute(sql -> {
+                var dayBlocks = BLOCK_TIME.CLIENT_ID.eq(clientId)
+                        .and(BLOCK_TIME.START_TIME.ge(day.atStartOfDay()))
+                        .and(BLOCK_TIME.START_TIME.lt(day.plusDays(1).atStartOfDay()))
+                        // Blocks still open are left to live processing
+                        .and(DETECTION_END_TIME.lt(Instant.now()));
+
+                var bounds = sql.select(min(DETECTION_START_TIME), max(DETECTION_END_TIME))
+                        .from(BLOCK_WITH_SITE)
+                        .where(dayBlocks)
+                        .fetchOne();
+                var removed = sql.deleteFrom(ATTENDANCE_)
+                        .where(row(ATTENDANCE_.CLIENT_ID, ATTENDANCE_.SCHEDULE_ID, ATTENDANCE_.BLOCK_ID).in(
+                                select(BLOCK_TIME.CLIENT_ID, BLOCK_TIME.SCHEDULE_ID, BLOCK_TIME.BLOCK_ID)
+                                        .from(BLOCK_WITH_SITE)
+                                        .where(dayBlocks)))
+                        .execute();
+                var inserted = bounds.value1() == null
+                        ? 0
+                        : insertAttendance(sql, dayBlocks, bounds.value1(), bounds.value2());
+
+                sql.insertInto(RECOMPUTE_JOB_DAY)
+                        .set(RECOMPUTE_JOB_DAY.JOB_ID, jobId)
+                        .set(RECOMPUTE_JOB_DAY.DAY, day)
+                        .set(RECOMPUTE_JOB_DAY.ATTENDANCE_COUNT, inserted)
+                        .execute();
+                log.debug("Recomputed attendance for {} on {}: {} removed, {} inserted",
+                        clientId, day, removed, inserted);
+                return inserted;
+            });
+            log.info("Recomputed attendance for {} on {} in job {}: {} attendances", clientId, day, jobId, count);
+        }
+    }
+
+    private static int insertAttendance(DSLContext sql,
+                                        Condition dayBlocks,
+                                        Instant detectionsFrom,
+                                        Instant detectionsTo) {
+        return sql.insertInto(ATTENDANCE_,
+                ATTENDANCE_.CLIENT_ID, ATTENDANCE_.CLIENT_REFERENCE, ATTENDANCE_.SCHEDULE_ID, ATTENDANCE_.BLOCK_ID)
+                .select(selectDistinct(BLOCK_TIME.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE,
+                        BLOCK_TIME.SCHEDULE_ID, BLOCK_TIME.BLOCK_ID)
+                        .from(BLOCK_WITH_SITE
+                                .join(ANTENNA).on(
+                                        ANTENNA.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID),
+                                        ANTENNA.SITE_ID.eq(BLOCK_ZONE.SITE_ID),
+                                        ANTENNA.ZONE_ID.eq(BLOCK_ZONE.ZONE_ID))
+                                .join(RFID_DETECTION).on(
+                                        RFID_DETECTION.CLIENT_ID.eq(ANTENNA.CLIENT_ID),
+                                        RFID_DETECTION.READER_SN.eq(ANTENNA.READER_SN),
+                                        RFID_DETECTION.PORT_NUMBER.eq(ANTENNA.PORT_NUMBER),
+                                        RFID_DETECTION.DETECTION_TIME.between(DETECTION_START_TIME, DETECTION_END_TIME))
+                                .join(DETECTABLE_ASSIGNMENT).on(
+                                        DETECTABLE_ASSIGNMENT.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID),
+                                        DETECTABLE_ASSIGNMENT.DETECTABLE_ID.eq(RFID_DETECTION.DETECTABLE_ID),
+                                        DETECTABLE_ASSIGNMENT.DETECTABLE_TYPE.eq(RFID_DETECTION.DETECTABLE_TYPE))
+                                .join(ASSIGNMENT).on(
+                                        ASSIGNMENT.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                                        ASSIGNMENT.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                                        ASSIGNMENT.CLIENT_REFERENCE.eq(DETECTABLE_ASSIGNMENT.CLIENT_REFERENCE)))
+                        .where(dayBlocks)
+                        // Lets the BRIN index on detection time narrow the scan before the join
+                        .and(RFID_DETECTION.DETECTION_TIME.between(detectionsFrom, detectionsTo)))
+                .onConflictDoNothing()
+                .execute();
+    }
+
+    private void awaitLiveBacklog() {
+        while (attendanceProcessor.backlog() > MAX_LIVE_BACKLOG) {
+            throttled.mark();
+            try {
+                Thread.sleep(THROTTLE_PAUSE.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static class JobProgress {
+        public final int jobId;
+        public final LocalDate startDate;
+        public final LocalDate endDate;
+        public final int dayCount;
+        public final int completedDayCount;
+        public final int attendanceCount;
+        public final @Nullable Instant completedTime;
+
+        public JobProgress(int jobId,
+                           LocalDate startDate,
+                           LocalDate endDate,
+                           int dayCount,
+                           int completedDayCount,
+                           int attendanceCount,
+                           @Nullable Instant completedTime) {
+            this.jobId = jobId;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.dayCount = dayCount;
+            this.completedDayCount = completedDayCount;
+            this.attendanceCount = attendanceCount;
+            this.completedTime = completedTime;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package id.unifi.service.attendance;
+
+import static id.unifi.service.attendance.OverriddenStatus.ABSENT;
+import static id.unifi.service.attendance.OverriddenStatus.AUTH_ABSENT;
+import static id.unifi.service.attendance.OverriddenStatus.PRESENT;
+import static id.unifi.service.attendance.db.Keys.CONTACT_SCHEDULE_SUMMARY_PKEY;
+import static id.unifi.service.attendance.db.Tables.ASSIGNMENT;
+import static id.unifi.service.attendance.db.Tables.ATTENDANCE_;
+import static id.unifi.service.attendance.db.Tables.ATTENDANCE_OVERRIDE;
+import static id.unifi.service.attendance.db.Tables.BLOCK;
+import static id.unifi.service.attendance.db.Tables.BLOCK_TIME;
+import static id.unifi.service.attendance.db.Tables.BLOCK_ZONE;
+import static id.unifi.service.attendance.db.Tables.CONTACT_SCHEDULE_SUMMARY;
+import static id.unifi.service.attendance.db.Tables.FINALISED_BLOCK;
+import static id.unifi.service.attendance.db.Tables.PROCESSING_STATE;
+import id.unifi.service.attendance.types.pk.AttendancePK;
+import id.unifi.service.attendance.types.pk.BlockPK;
+import static id.unifi.service.core.db.Tables.ANTENNA;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record6;
+import org.jooq.Row3;
+import org.jooq.Row4;
+import org.jooq.Select;
+import org.jooq.Table;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Maintains {@code contact_schedule_summary}, the per contact and schedule attendance counts over finalised blocks.
+ *
+ * A block is finalised once every antenna in its zone has been processed past its detection window; from then on
+ * a contact without attendance counts as absent. Finalisation adds the block's statuses to the counts, attendance
+ * recorded late moves a contact from absent to present, and anything else (overrides, new assignments, imports)
+ * recomputes the affected rows. Finalisation locks the blocks it finalises, so it waits for, and is waited on by,
+ * concurrent attendance and override inserts, which hold key-share locks on the same blocks.
+ */
+public final class AttendanceSummary {
+    private static final Logger log = LoggerFactory.getLogger(AttendanceSummary.class);
+
+    private static final Field<LocalDateTime> BLOCK_DETECTION_END_TIME = field("{0} + {1} * interval '1 second'",
+            LocalDateTime.class, BLOCK_TIME.END_TIME, AttendanceMatcher.DETECTION_AFTER_BLOCK_END.toSeconds());
+
+    private AttendanceSummary() {}
+
+    /**
+     * Finalises every block whose zone has been processed past the end of its detection window.
+     *
+     * @return number of blocks finalised
+     */
+    public static int finaliseBlocks(DSLContext sql) {
+        var zoneProcessedUpTo = select(min(coalesce(PROCESSING_STATE.PROCESSED_UP_TO,
+                val(Instant.EPOCH, PROCESSING_STATE.PROCESSED_UP_TO))))
+                .from(ANTENNA.leftJoin(PROCESSING_STATE).on(
+                        PROCESSING_STATE.CLIENT_ID.eq(ANTENNA.CLIENT_ID),
+                        PROCESSING_STATE.READER_SN.eq(ANTENNA.READER_SN),
+                        PROCESSING_STATE.PORT_NUMBER.eq(ANTENNA.PORT_NUMBER)))
+                .where(ANTENNA.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID))
+                .and(ANTENNA.SITE_ID.eq(BLOCK_ZONE.SITE_ID))
+                .and(ANTENNA.ZONE_ID.eq(BLOCK_ZONE.ZONE_ID));
+
+        var readyBlocks = sql.select(BLOCK_TIME.CLIENT_ID, BLOCK_TIME.SCHEDULE_ID, BLOCK_TIME.BLOCK_ID)
+                .from(BLOCK_TIME.join(BLOCK_ZONE).on(
+                        BLOCK_ZONE.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                        BLOCK_ZONE.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                        BLOCK_ZONE.BLOCK_ID.eq(BLOCK_TIME.BLOCK_ID)))
+                .whereNotExists(selectOne().from(FINALISED_BLOCK).where(
+                        FINALISED_BLOCK.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                        FINALISED_BLOCK.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                        FINALISED_BLOCK.BLOCK_ID.eq(BLOCK_TIME.BLOCK_ID)))
+                .and(condition("{0} <= ({1})", BLOCK_DETECTION_END_TIME, zoneProcessedUpTo))
+                .fetch(r -> new BlockPK(r.value1(), r.value2(), r.value3()));
+        if (readyBlocks.isEmpty()) return 0;
+
+        // Waits for attendance and overrides still being written for these blocks
+        sql.select(BLOCK.BLOCK_ID)
+                .from(BLOCK)
+                .where(row(BLOCK.CLIENT_ID, BLOCK.SCHEDULE_ID, BLOCK.BLOCK_ID).in(blockRows(readyBlocks)))
+                .forUpdate()
+                .execute();
+
+        var insert = sql.insertInto(FINALISED_BLOCK,
+                FINALISED_BLOCK.CLIENT_ID, FINALISED_BLOCK.SCHEDULE_ID, FINALISED_BLOCK.BLOCK_ID);
+        for (var block : readyBlocks) insert = insert.values(block.clientId, block.scheduleId, block.blockId);
+        var finalised = insert.onConflictDoNothing()
+                .returning()
+                .fetch(r -> new BlockPK(r.getClientId(), r.getScheduleId(), r.getBlockId()));
+        if (finalised.isEmpty()) return 0;
+
+        var blocks = values(blockRows(finalised)).as("b", "client_id", "schedule_id", "block_id");
+        var statuses = statuses(blocks,
+                field(name("b", "client_id"), String.class),
+                field(name("b", "schedule_id"), String.class),
+                field(name("b", "block_id"), String.class),
+                trueCondition());
+        sql.insertInto(CONTACT_SCHEDULE_SUMMARY,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_ID,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE,
+                CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID,
+                CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT)
+                .select(counts(statuses))
+                .onConflict(CONTACT_SCHEDULE_SUMMARY_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT,
+                        CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT.plus(excluded(CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT)))
+                .set(CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT,
+                        CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT.plus(excluded(CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT)))
+                .set(CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT,
+                        CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT.plus(excluded(CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT)))
+                .execute();
+
+        log.debug("Finalised blocks: {}", finalised);
+        return finalised.size();
+    }
+
+    /**
+     * Accounts for newly inserted attendance. Only attendance for finalised, non-overridden blocks changes the counts.
+     *
+     * @param newAttendances attendance rows actually inserted, in the same transaction
+     */
+    public static void recordAttendance(DSLContext sql, Collection<AttendancePK> newAttendances) {
+        if (newAttendances.isEmpty()) return;
+
+        var rows = newAttendances.stream()
+                .map(a -> row(a.clientId, a.clientReference, a.scheduleId, a.blockId))
+                .collect(toList());
+        @SuppressWarnings("unchecked")
+        var attendances = values(rows.toArray(new Row4[0]))
+                .as("a", "client_id", "client_reference", "schedule_id", "block_id");
+        var aClientId = field(name("a", "client_id"), String.class);
+        var aClientReference = field(name("a", "client_reference"), String.class);
+        var aScheduleId = field(name("a", "schedule_id"), String.class);
+        var aBlockId = field(name("a", "block_id"), String.class);
+
+        sql.insertInto(CONTACT_SCHEDULE_SUMMARY,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_ID,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE,
+                CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID,
+                CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT)
+                .select(select(aClientId, aClientReference, aScheduleId, count(), count().neg(), inline(0))
+                        .from(attendances.join(FINALISED_BLOCK).on(
+                                FINALISED_BLOCK.CLIENT_ID.eq(aClientId),
+                                FINALISED_BLOCK.SCHEDULE_ID.eq(aScheduleId),
+                                FINALISED_BLOCK.BLOCK_ID.eq(aBlockId)))
+                        .whereNotExists(selectOne().from(ATTENDANCE_OVERRIDE).where(
+                                ATTENDANCE_OVERRIDE.CLIENT_ID.eq(aClientId),
+                                ATTENDANCE_OVERRIDE.CLIENT_REFERENCE.eq(aClientReference),
+                                ATTENDANCE_OVERRIDE.SCHEDULE_ID.eq(aScheduleId),
+                                ATTENDANCE_OVERRIDE.BLOCK_ID.eq(aBlockId)))
+                        .groupBy(aClientId, aClientReference, aScheduleId))
+                .onConflict(CONTACT_SCHEDULE_SUMMARY_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT,
+                        CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT.plus(excluded(CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT)))
+                .set(CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT,
+                        CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT.plus(excluded(CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT)))
+                .execute();
+    }
+
+    /**
+     * Rebuilds summary rows from attendance, overrides and finalised blocks.
+     *
+     * @param clientReference restricts to one contact; {@code null} for all
+     * @param scheduleId restricts to one schedule; {@code null} for all
+     */
+    public static void recompute(DSLContext sql,
+                                 String clientId,
+                                 @Nullable String clientReference,
+                                 @Nullable String scheduleId) {
+        sql.deleteFrom(CONTACT_SCHEDULE_SUMMARY)
+                .where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))
+                .and(clientReference == null ? trueCondition() : CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE.eq(clientReference))
+                .and(scheduleId == null ? trueCondition() : CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID.eq(scheduleId))
+                .execute();
+        sql.insertInto(CONTACT_SCHEDULE_SUMMARY,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_ID,
+                CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE,
+                CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID,
+                CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT,
+                CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT)
+                .select(counts(finalisedStatuses(clientId, clientReference, scheduleId)))
+                .execute();
+    }
+
+    /**
+     * Compares a client's summary rows against a full recomputation.
+     */
+    public static List<SummaryMismatch> check(DSLContext sql, String clientId) {
+        var expected = new HashMap<List<String>, SummaryCounts>();
+        for (var r : sql.fetch(counts(finalisedStatuses(clientId, null, null)))) {
+            expected.put(List.of(r.value2(), r.value3()), new SummaryCounts(r.value4(), r.value5(), r.value6()));
+        }
+
+        var mismatches = new ArrayList<SummaryMismatch>();
+        for (var r : sql.selectFrom(CONTACT_SCHEDULE_SUMMARY).where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))) {
+            var stored = new SummaryCounts(r.getPresentCount(), r.getAbsentCount(), r.getAuthAbsentCount());
+            var computed = expected.remove(List.of(r.getClientReference(), r.getScheduleId()));
+            if (!stored.equals(computed)) {
+                mismatches.add(new SummaryMismatch(r.getClientReference(), r.getScheduleId(), computed, stored));
+            }
+        }
+        expected.forEach((key, computed) ->
+                mismatches.add(new SummaryMismatch(key.get(0), key.get(1), computed, null)));
+        return mismatches;
+    }
+
+    private static Table<?> finalisedStatuses(String clientId,
+                                              @Nullable String clientReference,
+                                              @Nullable String scheduleId) {
+        return statuses(FINALISED_BLOCK, FINALISED_BLOCK.CLIENT_ID, FINALISED_BLOCK.SCHEDULE_ID, FINALISED_BLOCK.BLOCK_ID,
+                ASSIGNMENT.CLIENT_ID.eq(clientId)
+                        .and(clientReference == null ? trueCondition() : ASSIGNMENT.CLIENT_REFERENCE.eq(clientReference))
+                        .and(scheduleId == null ? trueCondition() : ASSIGNMENT.SCHEDULE_ID.eq(scheduleId)));
+    }
+
+    /**
+     * Effective status of every assigned contact in each of the given blocks: the latest override if any, otherwise
+     * present if attendance was recorded and absent if not.
+     */
+    private static Table<?> statuses(Table<?> blocks,
+                                     Field<String> blockClientId,
+                                     Field<String> blockScheduleId,
+                                     Field<String> blockId,
+                                     Condition assignmentCondition) {
+        var overriddenStatus = select(ATTENDANCE_OVERRIDE.STATUS)
+                .from(ATTENDANCE_OVERRIDE)
+                .where(ATTENDANCE_OVERRIDE.CLIENT_ID.eq(ASSIGNMENT.CLIENT_ID))
+                .and(ATTENDANCE_OVERRIDE.CLIENT_REFERENCE.eq(ASSIGNMENT.CLIENT_REFERENCE))
+                .and(ATTENDANCE_OVERRIDE.SCHEDULE_ID.eq(ASSIGNMENT.SCHEDULE_ID))
+                .and(ATTENDANCE_OVERRIDE.BLOCK_ID.eq(blockId))
+                .orderBy(ATTENDANCE_OVERRIDE.OVERRIDE_TIME.desc())
+                .limit(1)
+                .asField();
+        var status = coalesce(overriddenStatus,
+                when(ATTENDANCE_.BLOCK_ID.isNotNull(), inline(PRESENT.toString())).otherwise(inline(ABSENT.toString())));
+
+        return select(ASSIGNMENT.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE, ASSIGNMENT.SCHEDULE_ID, status.as("status"))
+                .from(ASSIGNMENT
+                        .join(blocks).on(blockClientId.eq(ASSIGNMENT.CLIENT_ID), blockScheduleId.eq(ASSIGNMENT.SCHEDULE_ID))
+                        .leftJoin(ATTENDANCE_).on(
+                                ATTENDANCE_.CLIENT_ID.eq(ASSIGNMENT.CLIENT_ID),
+                                ATTENDANCE_.CLIENT_REFERENCE.eq(ASSIGNMENT.CLIENT_REFERENCE),
+                                ATTENDANCE_.SCHEDULE_ID.eq(ASSIGNMENT.SCHEDULE_ID),
+                                ATTENDANCE_.BLOCK_ID.eq(blockId)))
+                .where(assignmentCondition)
+                .asTable("s");
+    }
+
+    private static Select<Record6<String, String, String, Integer, Integer, Integer>> counts(Table<?> statuses) {
+        var clientId = field(name("s", "client_id"), String.class);
+        var clientReference = field(name("s", "client_reference"), String.class);
+        var scheduleId = field(name("s", "schedule_id"), String.class);
+        var status = field(name("s", "status"), String.class);
+        return select(clientId, clientReference, scheduleId,
+                count().filterWhere(status.eq(PRESENT.toString())),
+                count().filterWhere(status.eq(ABSENT.toString())),
+                count().filterWhere(status.eq(AUTH_ABSENT.toString())))
+                .from(statuses)
+                .groupBy(clientId, clientReference, scheduleId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Row3<String, String, String>[] blockRows(List<BlockPK> blocks) {
+        return blocks.stream()
+                .map(b -> row(b.clientId, b.scheduleId, b.blockId))
+                .toArray(Row3[]::new);
+    }
+
+    private static <T> Field<T> excluded(Field<T> field) {
+        return field(name("excluded", field.getName()), field.getType());
+    }
+
+    public static class SummaryCounts {
+        public final int presentCount;
+        public final int absentCount;
+        public final int authAbsentCount;
+
+        public SummaryCounts(int presentCount, int absentCount, int authAbsentCount) {
+            this.presentCount = presentCount;
+            this.absentCount = absentCount;
+            this.authAbsentCount = authAbsentCount;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (SummaryCounts) o;
+            return presentCount == that.presentCount &&
+                    absentCount == that.absentCount &&
+                    authAbsentCount == that.authAbsentCount;
+        }
+
+        public int hashCode() {
+            return Objects.hash(presentCount, absentCount, authAbsentCount);
+        }
+    }
+
+    public static class SummaryMismatch {
+        public final String clientReference;
+        public final String scheduleId;
+        public final @Nullable SummaryCounts expected;
+        public final @Nullable SummaryCounts stored;
+
+        public SummaryMismatch(String clientReference,
+                               String scheduleId,
+                               @Nullable SummaryCounts expected,
+                               @Nullable SummaryCounts stored) {
+            this.clientReference = clientReference;
+            this.scheduleId = scheduleId;
+            this.expected = expected;
+            this.stored = stored;
+        }
+    }
+}
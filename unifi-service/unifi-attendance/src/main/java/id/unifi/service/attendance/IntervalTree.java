@@ -0,0 +1,114 @@
+package id.unifi.service.attendance;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import static java.util.stream.Collectors.toUnmodifiableList;
+
+/**
+ * Immutable centered interval tree over half-open {@code [start, end)} intervals.
+ *
+ * A stabbing query visits one node per level and only touches intervals that contain the point, so its cost
+ * depends on the tree depth and the number of matches rather than on the longest interval.
+ */
+final class IntervalTree<T> {
+    private final Node<T> root;
+    private final int size;
+
+    IntervalTree(Collection<T> items, Function<T, Instant> start, Function<T, Instant> end) {
+        var intervals = new ArrayList<Interval<T>>(items.size());
+        for (var item : items) {
+            var interval = new Interval<>(item, start.apply(item), end.apply(item));
+            // Empty intervals contain no point, and would never be split off by a center
+            if (interval.end.isAfter(interval.start)) intervals.add(interval);
+        }
+        intervals.sort(Comparator.comparing(i -> i.start));
+        this.root = build(intervals);
+        this.size = items.size();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEachContaining(Instant point, Consumer<? super T> action) {
+        var node = root;
+        while (node != null) {
+            if (point.compareTo(node.center) < 0) {
+                // Every interval here ends after the center, so only the start matters
+                for (int i = 0; i < node.starts.length && node.starts[i].compareTo(point) <= 0; i++) {
+                    action.accept(node.byStart.get(i));
+                }
+                node = node.left;
+            } else {
+                // Every interval here starts at or before the center, so only the end matters
+                for (int i = 0; i < node.ends.length && node.ends[i].compareTo(point) > 0; i++) {
+                    action.accept(node.byEnd.get(i));
+                }
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * @param intervals sorted by start
+     */
+    private static <T> Node<T> build(List<Interval<T>> intervals) {
+        if (intervals.isEmpty()) return null;
+
+        // The median start is contained by its own interval, so every node holds at least one
+        var center = intervals.get(intervals.size() / 2).start;
+        var left = new ArrayList<Interval<T>>();
+        var right = new ArrayList<Interval<T>>();
+        var overlapping = new ArrayList<Interval<T>>();
+        for (var interval : intervals) {
+            if (interval.end.compareTo(center) <= 0) {
+                left.add(interval);
+            } else if (interval.start.compareTo(center) > 0) {
+                right.add(interval);
+            } else {
+                overlapping.add(interval);
+            }
+        }
+
+        var byEnd = new ArrayList<>(overlapping);
+        byEnd.sort(Comparator.comparing((Interval<T> i) -> i.end).reversed());
+        return new Node<>(center, overlapping, byEnd, build(left), build(right));
+    }
+
+    private static class Interval<T> {
+        final T item;
+        final Instant start;
+        final Instant end;
+
+        Interval(T item, Instant start, Instant end) {
+            this.item = item;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Node<T> {
+        final Instant center;
+        final Instant[] starts;
+        final List<T> byStart;
+        final Instant[] ends;
+        final List<T> byEnd;
+        final Node<T> left;
+        final Node<T> right;
+
+        Node(Instant center, List<Interval<T>> byStart, List<Interval<T>> byEnd, Node<T> left, Node<T> right) {
+            this.center = center;
+            this.starts = byStart.stream().map(i -> i.start).toArray(Instant[]::new);
+            this.byStart = byStart.stream().map(i -> i.item).collect(toUnmodifiableList());
+            this.ends = byEnd.stream().map(i -> i.end).toArray(Instant[]::new);
+            this.byEnd = byEnd.stream().map(i -> i.item).collect(toUnmodifiableList());
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
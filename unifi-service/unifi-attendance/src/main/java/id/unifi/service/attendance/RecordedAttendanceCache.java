@@ -0,0 +1,159 @@
+package id.unifi.service.attendance;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.RatioGauge;
+import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
+import static id.unifi.service.attendance.db.Tables.ATTENDANCE_;
+import static id.unifi.service.attendance.db.Tables.BLOCK_TIME;
+import static id.unifi.service.attendance.db.Tables.BLOCK_ZONE;
+import id.unifi.service.attendance.types.pk.AttendancePK;
+import id.unifi.service.attendance.types.pk.BlockPK;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.SITE;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static org.jooq.impl.DSL.field;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import static java.time.ZoneOffset.UTC;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Remembers which attendances of currently active blocks are already in {@code attendance.attendance}, so
+ * repeated detections of a holder during a block don't each cost a database write.
+ *
+ * Only blocks whose detection window is open are tracked; the set is reloaded every minute, which both warms
+ * newly started blocks and evicts ended ones. Attendances outside tracked blocks, or beyond the entry limit, are
+ * simply reported as unrecorded and left for the database to deduplicate.
+ */
+public class RecordedAttendanceCache {
+    private static final Logger log = LoggerFactory.getLogger(RecordedAttendanceCache.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.attendance";
+
+    private static final Duration REFRESH_RATE = Duration.ofMinutes(1);
+    private static final int MAX_ENTRIES = 1_000_000;
+
+    // Block times are local; no site is further than this from UTC, so the SQL filter can be conservative
+    private static final Duration MAX_UTC_OFFSET = Duration.ofDays(1);
+
+    private final Database db;
+    private final ScheduledExecutorService refreshScheduler;
+    private final Meter hits;
+    private final Meter misses;
+    private final AtomicInteger entryCount;
+
+    private volatile Map<BlockPK, Set<String>> recorded;
+
+    public RecordedAttendanceCache(DatabaseProvider dbProvider, MetricRegistry registry) {
+        this.db = dbProvider.bySchema(CORE, ATTENDANCE);
+        this.refreshScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.entryCount = new AtomicInteger();
+        this.recorded = Map.of();
+
+        var metricName = name(METRIC_NAME_PREFIX, "recorded-attendance-cache");
+        this.hits = registry.meter(name(metricName, "rows-avoided"));
+        this.misses = registry.meter(name(metricName, "misses"));
+        registry.gauge(name(metricName, "entries"), () -> entryCount::get);
+        registry.gauge(name(metricName, "hit-ratio"), () -> new RatioGauge() {
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getFiveMinuteRate(), hits.getFiveMinuteRate() + misses.getFiveMinuteRate());
+            }
+        });
+    }
+
+    public void start() {
+        refreshScheduler.scheduleAtFixedRate(this::refresh, 0, REFRESH_RATE.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return attendances not known to be recorded already
+     */
+    public Set<AttendancePK> unrecorded(Collection<AttendancePK> attendances) {
+        var blocks = recorded;
+        var unrecorded = attendances.stream()
+                .filter(a -> {
+                    var holders = blocks.get(new BlockPK(a.clientId, a.scheduleId, a.blockId));
+                    return holders == null || !holders.contains(a.clientReference);
+                })
+                .collect(toSet());
+        hits.mark(attendances.size() - unrecorded.size());
+        misses.mark(unrecorded.size());
+        return unrecorded;
+    }
+
+    /**
+     * Notes attendances as recorded. Must only be called once they are committed.
+     */
+    public void markRecorded(Collection<AttendancePK> attendances) {
+        var blocks = recorded;
+        for (var attendance : attendances) {
+            var holders = blocks.get(new BlockPK(attendance.clientId, attendance.scheduleId, attendance.blockId));
+            if (holders == null || entryCount.get() >= MAX_ENTRIES) continue;
+            if (holders.add(attendance.clientReference)) entryCount.incrementAndGet();
+        }
+    }
+
+    private void refresh() {
+        try {
+            var now = Instant.now();
+            var localNow = LocalDateTime.ofInstant(now, UTC);
+            var detectionStartTime = field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.START_TIME, SITE.TIME_ZONE);
+            var detectionEndTime = field("{0} AT TIME ZONE {1}", Instant.class, BLOCK_TIME.END_TIME, SITE.TIME_ZONE);
+
+            // Blocks about to open are included so attendances recorded before the next refresh are remembered
+            var windowStart = now.plus(REFRESH_RATE).plus(AttendanceMatcher.DETECTION_BEFORE_BLOCK_START);
+            var windowEnd = now.minus(AttendanceMatcher.DETECTION_AFTER_BLOCK_END);
+            var rows = db.execute(sql -> sql
+                    .select(BLOCK_TIME.CLIENT_ID, BLOCK_TIME.SCHEDULE_ID, BLOCK_TIME.BLOCK_ID,
+                            detectionStartTime, detectionEndTime, ATTENDANCE_.CLIENT_REFERENCE)
+                    .from(BLOCK_TIME
+                            .join(BLOCK_ZONE).on(
+                                    BLOCK_ZONE.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                                    BLOCK_ZONE.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                                    BLOCK_ZONE.BLOCK_ID.eq(BLOCK_TIME.BLOCK_ID))
+                            .join(SITE).on(
+                                    SITE.CLIENT_ID.eq(BLOCK_ZONE.CLIENT_ID),
+                                    SITE.SITE_ID.eq(BLOCK_ZONE.SITE_ID))
+                            .leftJoin(ATTENDANCE_).on(
+                                    ATTENDANCE_.CLIENT_ID.eq(BLOCK_TIME.CLIENT_ID),
+                                    ATTENDANCE_.SCHEDULE_ID.eq(BLOCK_TIME.SCHEDULE_ID),
+                                    ATTENDANCE_.BLOCK_ID.eq(BLOCK_TIME.BLOCK_ID)))
+                    .where(BLOCK_TIME.START_TIME.le(localNow.plus(MAX_UTC_OFFSET).plus(REFRESH_RATE)
+                            .plus(AttendanceMatcher.DETECTION_BEFORE_BLOCK_START)))
+                    .and(BLOCK_TIME.END_TIME.gt(localNow.minus(MAX_UTC_OFFSET)
+                            .minus(AttendanceMatcher.DETECTION_AFTER_BLOCK_END)))
+                    .fetch());
+
+            var blocks = new HashMap<BlockPK, Set<String>>();
+            var entries = 0;
+            for (var r : rows) {
+                if (r.value4().isAfter(windowStart) || !r.value5().isAfter(windowEnd)) continue;
+                var holders = blocks.computeIfAbsent(new BlockPK(r.value1(), r.value2(), r.value3()),
+                        b -> ConcurrentHashMap.newKeySet());
+                if (r.value6() != null && entries < MAX_ENTRIES && holders.add(r.value6())) entries++;
+            }
+            if (entries >= MAX_ENTRIES) log.warn("Recorded attendance cache is full at {} entries", entries);
+
+            recorded = blocks;
+            entryCount.set(entries);
+            log.debug("Refreshed recorded attendance cache: {} active blocks, {} attendances", blocks.size(), entries);
+        } catch (RuntimeException e) {
+            log.error("Failed to refresh recorded attendance cache", e);
+        }
+    }
+}
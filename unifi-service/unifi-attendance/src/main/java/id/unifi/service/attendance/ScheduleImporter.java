@@ -0,0 +1,564 @@
+package id.unifi.service.attendance;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.opencsv.CSVReader;
+import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
+import static id.unifi.service.core.db.Core.CORE;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.jooq.DSLContext;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Bulk loads schedules, blocks, contacts and their assignments for a client.
+ *
+ * Rows are validated as they are read and streamed with {@code COPY} into temporary staging tables; references
+ * between rows and to existing data are then checked set-wise and everything is upserted in the same transaction.
+ * Unless invalid rows are to be skipped, any error leaves the client's data untouched.
+ */
+public class ScheduleImporter {
+    private static final Logger log = LoggerFactory.getLogger(ScheduleImporter.class);
+
+    private static final int MAX_ID_LENGTH = 64;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ObjectMapper metadataMapper = new ObjectMapper();
+    private static final List<DateTimeFormatter> TIME_FORMATS = List.of(
+            DateTimeFormatter.ISO_LOCAL_DATE_TIME,
+            DateTimeFormatter.ofPattern("dd/MM/yy HH:mm"));
+
+    private static final List<String> CREATE_STAGING_TABLES = List.of(
+            "CREATE TEMPORARY TABLE import_schedule(" +
+            "  row_number INTEGER NOT NULL, schedule_id CITEXT NOT NULL, name VARCHAR(64) NOT NULL" +
+            ") ON COMMIT DROP",
+            "CREATE TEMPORARY TABLE import_block(" +
+            "  row_number INTEGER NOT NULL, schedule_id CITEXT NOT NULL, block_id CITEXT NOT NULL," +
+            "  name VARCHAR(64) NOT NULL, start_time TIMESTAMP NOT NULL, end_time TIMESTAMP NOT NULL," +
+            "  site_id CITEXT NOT NULL, zone_id CITEXT NOT NULL" +
+            ") ON COMMIT DROP",
+            "CREATE TEMPORARY TABLE import_contact(" +
+            "  row_number INTEGER NOT NULL, client_reference CITEXT NOT NULL, name VARCHAR(64) NOT NULL, metadata JSONB" +
+            ") ON COMMIT DROP",
+            "CREATE TEMPORARY TABLE import_assignment(" +
+            "  row_number INTEGER NOT NULL, client_reference CITEXT NOT NULL, schedule_id CITEXT NOT NULL" +
+            ") ON COMMIT DROP");
+
+    private static final String UNKNOWN_SCHEDULE = "" +
+            "NOT EXISTS (SELECT 1 FROM import_schedule s WHERE s.schedule_id = t.schedule_id) " +
+            "AND NOT EXISTS (SELECT 1 FROM attendance.schedule s WHERE s.client_id = ? AND s.schedule_id = t.schedule_id)";
+
+    private final Database db;
+
+    public ScheduleImporter(DatabaseProvider dbProvider) {
+        this.db = dbProvider.bySchema(CORE, ATTENDANCE);
+    }
+
+    public ImportResult importSchedules(String clientId,
+                                        RowSource<ScheduleRow> schedules,
+                                        RowSource<BlockRow> blocks,
+                                        RowSource<ContactRow> contacts,
+                                        boolean skipInvalid) {
+        return db.execute(sql -> {
+            var errors = new ArrayList<RowError>();
+            var assignments = new ArrayList<StagedRow>();
+
+            CREATE_STAGING_TABLES.forEach(sql::execute);
+            sql.connectionResult(connection -> {
+                var copyApi = connection.unwrap(PGConnection.class).getCopyAPI();
+                copy(copyApi.copyIn("COPY import_schedule FROM STDIN"), "schedules", schedules, errors,
+                        ScheduleImporter::validateSchedule);
+                copy(copyApi.copyIn("COPY import_block FROM STDIN"), "blocks", blocks, errors,
+                        ScheduleImporter::validateBlock);
+                copy(copyApi.copyIn("COPY import_contact FROM STDIN"), "contacts", contacts, errors,
+                        (rowNumber, c) -> validateContact(rowNumber, c, assignments));
+                copy(copyApi.copyIn("COPY import_assignment FROM STDIN"), "contacts", RowSource.staged(assignments),
+                        errors, (rowNumber, a) -> a);
+                return null;
+            });
+
+            checkReferences(sql, clientId, errors);
+            errors.sort((a, b) -> a.entity.equals(b.entity)
+                    ? Integer.compare(a.rowNumber, b.rowNumber)
+                    : a.entity.compareTo(b.entity));
+            if (!errors.isEmpty() && !skipInvalid) {
+                log.info("Rejected schedule import for {} with {} invalid rows", clientId, errors.size());
+                return new ImportResult(false, 0, 0, 0, 0, errors);
+            }
+
+            var scheduleCount = sql.execute("" +
+                    "INSERT INTO attendance.schedule (client_id, schedule_id, name) " +
+                    "SELECT ?, schedule_id, name FROM import_schedule " +
+                    "ON CONFLICT (client_id, schedule_id) DO UPDATE SET name = excluded.name", clientId);
+            var blockCount = sql.execute("" +
+                    "INSERT INTO attendance.block (client_id, schedule_id, block_id, name) " +
+                    "SELECT ?, schedule_id, block_id, name FROM import_block " +
+                    "ON CONFLICT (client_id, schedule_id, block_id) DO UPDATE SET name = excluded.name", clientId);
+            sql.execute("" +
+                    "INSERT INTO attendance.block_time (client_id, schedule_id, block_id, start_time, end_time) " +
+                    "SELECT ?, schedule_id, block_id, start_time, end_time FROM import_block " +
+                    "ON CONFLICT (client_id, schedule_id, block_id) " +
+                    "DO UPDATE SET start_time = excluded.start_time, end_time = excluded.end_time", clientId);
+            sql.execute("" +
+                    "INSERT INTO attendance.block_zone (client_id, schedule_id, block_id, site_id, zone_id) " +
+                    "SELECT ?, schedule_id, block_id, site_id, zone_id FROM import_block " +
+                    "ON CONFLICT (client_id, schedule_id, block_id) " +
+                    "DO UPDATE SET site_id = excluded.site_id, zone_id = excluded.zone_id", clientId);
+            var contactCount = sql.execute("" +
+                    "INSERT INTO core.holder (client_id, client_reference, holder_type, name) " +
+                    "SELECT ?, client_reference, 'contact', name FROM import_contact " +
+                    "ON CONFLICT (client_id, client_reference) DO UPDATE SET name = excluded.name", clientId);
+            sql.execute("" +
+                    "INSERT INTO core.contact (client_id, client_reference, holder_type) " +
+                    "SELECT ?, client_reference, 'contact' FROM import_contact " +
+                    "ON CONFLICT DO NOTHING", clientId);
+            sql.execute("" +
+                    "INSERT INTO core.holder_metadata (client_id, client_reference, metadata) " +
+                    "SELECT ?, client_reference, metadata FROM import_contact WHERE metadata IS NOT NULL " +
+                    "ON CONFLICT (client_id, client_reference) DO UPDATE SET metadata = excluded.metadata", clientId);
+            var assignmentCount = sql.execute("" +
+                    "INSERT INTO attendance.assignment (client_id, client_reference, schedule_id) " +
+                    "SELECT DISTINCT ?, client_reference, schedule_id FROM import_assignment " +
+                    "ON CONFLICT DO NOTHING", clientId);
+
+            AttendanceSummary.recompute(sql, clientId, null, null);
+
+            log.info("Imported for {}: {} schedules, {} blocks, {} contacts, {} new assignments; skipped {} invalid rows",
+                    clientId, scheduleCount, blockCount, contactCount, assignmentCount, errors.size());
+            return new ImportResult(true, scheduleCount, blockCount, contactCount, assignmentCount, errors);
+        });
+    }
+
+    private static void checkReferences(DSLContext sql, String clientId, List<RowError> errors) {
+        reject(sql, errors, "schedules", "import_schedule", "Duplicate schedule ID",
+                duplicateOf("import_schedule", "schedule_id"));
+
+        reject(sql, errors, "blocks", "import_block", "Duplicate block ID",
+                duplicateOf("import_block", "schedule_id, block_id"));
+        reject(sql, errors, "blocks", "import_block", "Unknown schedule", UNKNOWN_SCHEDULE, clientId);
+        reject(sql, errors, "blocks", "import_block", "Unknown zone",
+                "NOT EXISTS (SELECT 1 FROM core.zone z " +
+                        "WHERE z.client_id = ? AND z.site_id = t.site_id AND z.zone_id = t.zone_id)", clientId);
+
+        reject(sql, errors, "contacts", "import_contact", "Duplicate client reference",
+                duplicateOf("import_contact", "client_reference"));
+        reject(sql, errors, "contacts", "import_contact", "Client reference belongs to a non-contact holder",
+                "EXISTS (SELECT 1 FROM core.holder h WHERE h.client_id = ? " +
+                        "AND h.client_reference = t.client_reference AND h.holder_type <> 'contact')", clientId);
+
+        // Assignments of rejected contacts go silently with them
+        sql.execute("DELETE FROM import_assignment t " +
+                "WHERE NOT EXISTS (SELECT 1 FROM import_contact c WHERE c.client_reference = t.client_reference)");
+        reject(sql, errors, "contacts", "import_assignment", "Unknown schedule", UNKNOWN_SCHEDULE, clientId);
+    }
+
+    private static String duplicateOf(String table, String key) {
+        return "t.row_number IN (SELECT row_number FROM (SELECT row_number, " +
+                "row_number() OVER (PARTITION BY " + key + " ORDER BY row_number) AS n FROM " + table + ") d " +
+                "WHERE n > 1)";
+    }
+
+    private static void reject(DSLContext sql,
+                               List<RowError> errors,
+                               String entity,
+                               String table,
+                               String message,
+                               String condition,
+                               Object... bindings) {
+        sql.fetch("DELETE FROM " + table + " t WHERE " + condition + " RETURNING row_number", bindings)
+                .forEach(r -> errors.add(new RowError(entity, r.get(0, Integer.class), message)));
+    }
+
+    private static <T> void copy(CopyIn copyIn,
+                                 String entity,
+                                 RowSource<T> source,
+                                 List<RowError> errors,
+                                 RowValidator<T> validator) throws SQLException {
+        var buffer = new ByteArrayOutputStream(COPY_BUFFER_SIZE);
+        try {
+            source.forEach(entity, errors, (rowNumber, row) -> {
+                String[] cells;
+                try {
+                    cells = validator.validate(rowNumber, row);
+                } catch (IllegalArgumentException e) {
+                    errors.add(new RowError(entity, rowNumber, e.getMessage()));
+                    return;
+                }
+                writeCopyRow(buffer, rowNumber, cells);
+                if (buffer.size() >= COPY_BUFFER_SIZE) flush(copyIn, buffer);
+            });
+            flush(copyIn, buffer);
+            copyIn.endCopy();
+        } catch (UncheckedSqlException e) {
+            throw e.getCause();
+        } finally {
+            if (copyIn.isActive()) copyIn.cancelCopy();
+        }
+    }
+
+    private static void flush(CopyIn copyIn, ByteArrayOutputStream buffer) {
+        if (buffer.size() == 0) return;
+        try {
+            copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+        } catch (SQLException e) {
+            throw new UncheckedSqlException(e);
+        }
+        buffer.reset();
+    }
+
+    private static void writeCopyRow(ByteArrayOutputStream buffer, int rowNumber, String[] cells) {
+        var line = new StringBuilder().append(rowNumber);
+        for (var cell : cells) {
+            line.append('\t');
+            if (cell == null) {
+                line.append("\\N");
+                continue;
+            }
+            for (var i = 0; i < cell.length(); i++) {
+                var c = cell.charAt(i);
+                switch (c) {
+                    case '\\': line.append("\\\\"); break;
+                    case '\t': line.append("\\t"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    default: line.append(c);
+                }
+            }
+        }
+        line.append('\n');
+        var bytes = line.toString().getBytes(UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private static String[] validateSchedule(int rowNumber, ScheduleRow schedule) {
+        return new String[]{
+                requireId("schedule ID", schedule.scheduleId),
+                requireName(schedule.name, schedule.scheduleId)};
+    }
+
+    private static String[] validateBlock(int rowNumber, BlockRow block) {
+        if (block.startTime == null || block.endTime == null)
+            throw new IllegalArgumentException("Missing start or end time");
+        if (!block.endTime.isAfter(block.startTime))
+            throw new IllegalArgumentException("End time must be after start time");
+        var blockId = block.blockId == null || block.blockId.trim().isEmpty() ? UUID.randomUUID().toString() : block.blockId;
+        return new String[]{
+                requireId("schedule ID", block.scheduleId),
+                requireId("block ID", blockId),
+                requireName(block.name, blockId),
+                block.startTime.toString(),
+                block.endTime.toString(),
+                requireId("site ID", block.siteId),
+                requireId("zone ID", block.zoneId)};
+    }
+
+    private static String[] validateContact(int rowNumber, ContactRow contact, List<StagedRow> assignments) {
+        var clientReference = requireId("client reference", contact.clientReference);
+        var name = requireName(contact.name, clientReference);
+        String metadata;
+        try {
+            metadata = contact.metadata == null ? null : metadataMapper.writeValueAsString(contact.metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unserializable metadata");
+        }
+
+        var scheduleIds = contact.scheduleIds == null ? List.<String>of() : contact.scheduleIds;
+        var contactAssignments = new ArrayList<StagedRow>(scheduleIds.size());
+        for (var scheduleId : scheduleIds) {
+            contactAssignments.add(new StagedRow(rowNumber, clientReference, requireId("schedule ID", scheduleId)));
+        }
+        assignments.addAll(contactAssignments);
+        return new String[]{clientReference, name, metadata};
+    }
+
+    private static String requireId(String description, @Nullable String id) {
+        if (id == null || id.trim().isEmpty()) throw new IllegalArgumentException("Missing " + description);
+        if (id.length() > MAX_ID_LENGTH) throw new IllegalArgumentException("Too long " + description);
+        return id.trim();
+    }
+
+    private static String requireName(@Nullable String name, String defaultName) {
+        var value = name == null || name.trim().isEmpty() ? defaultName : name.trim();
+        if (value.length() > MAX_ID_LENGTH) throw new IllegalArgumentException("Too long name");
+        return value;
+    }
+
+    static LocalDateTime parseTime(String value) {
+        for (var format : TIME_FORMATS) {
+            try {
+                return LocalDateTime.parse(value.trim(), format);
+            } catch (DateTimeParseException ignored) {}
+        }
+        throw new IllegalArgumentException("Unrecognised time: " + value);
+    }
+
+    @FunctionalInterface
+    private interface RowValidator<T> {
+        String[] validate(int rowNumber, T row);
+    }
+
+    @FunctionalInterface
+    private interface RowConsumer<T> {
+        void accept(int rowNumber, T row);
+    }
+
+    private static class StagedRow {
+        final int rowNumber;
+        final String[] cells;
+
+        StagedRow(int rowNumber, String... cells) {
+            this.rowNumber = rowNumber;
+            this.cells = cells;
+        }
+    }
+
+    private static class UncheckedSqlException extends RuntimeException {
+        UncheckedSqlException(SQLException cause) {
+            super(cause);
+        }
+
+        public SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    /**
+     * Rows to import, read one at a time. Rows that can't be read are reported as errors rather than passed on.
+     */
+    public static abstract class RowSource<T> {
+        abstract void forEach(String entity, List<RowError> errors, RowConsumer<T> consumer);
+
+        public static <T> RowSource<T> empty() {
+            return of(List.of());
+        }
+
+        /**
+         * Rows given in full, numbered from 1.
+         */
+        public static <T> RowSource<T> of(List<T> rows) {
+            return new RowSource<>() {
+                void forEach(String entity, List<RowError> errors, RowConsumer<T> consumer) {
+                    for (var i = 0; i < rows.size(); i++) {
+                        var row = rows.get(i);
+                        if (row == null) {
+                            errors.add(new RowError(entity, i + 1, "Empty row"));
+                        } else {
+                            consumer.accept(i + 1, row);
+                        }
+                    }
+                }
+            };
+        }
+
+        private static RowSource<String[]> staged(List<StagedRow> rows) {
+            return new RowSource<>() {
+                void forEach(String entity, List<RowError> errors, RowConsumer<String[]> consumer) {
+                    for (var row : rows) consumer.accept(row.rowNumber, row.cells);
+                }
+            };
+        }
+
+        /**
+         * Rows parsed from a CSV file with a header line, numbered by line.
+         */
+        public static <T> RowSource<T> csv(byte[] csv, Function<CsvRow, T> parser) {
+            return csv(new ByteArrayInputStream(csv), parser);
+        }
+
+        /**
+         * Rows parsed from a CSV stream with a header line, numbered by line. The stream is read once, as rows are
+         * copied in, and closed afterwards.
+         */
+        public static <T> RowSource<T> csv(InputStream csv, Function<CsvRow, T> parser) {
+            return new RowSource<>() {
+                void forEach(String entity, List<RowError> errors, RowConsumer<T> consumer) {
+                    try (var reader = new CSVReader(new InputStreamReader(csv, UTF_8))) {
+                        var header = reader.readNext();
+                        if (header == null) return;
+                        var columns = new HashMap<String, Integer>();
+                        for (var i = 0; i < header.length; i++) columns.put(header[i].trim().toLowerCase(), i);
+
+                        String[] cells;
+                        for (var rowNumber = 2; (cells = reader.readNext()) != null; rowNumber++) {
+                            if (cells.length == 1 && cells[0].trim().isEmpty()) continue;
+                            T row;
+                            try {
+                                row = parser.apply(new CsvRow(columns, cells));
+                            } catch (IllegalArgumentException e) {
+                                errors.add(new RowError(entity, rowNumber, e.getMessage()));
+                                continue;
+                            }
+                            consumer.accept(rowNumber, row);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    public static class CsvRow {
+        private final Map<String, Integer> columns;
+        private final String[] cells;
+
+        CsvRow(Map<String, Integer> columns, String[] cells) {
+            this.columns = columns;
+            this.cells = cells;
+        }
+
+        public String get(String column) {
+            var value = getOptional(column);
+            if (value == null) throw new IllegalArgumentException("Missing " + column);
+            return value;
+        }
+
+        public @Nullable String getOptional(String column) {
+            var index = columns.get(column);
+            if (index == null || index >= cells.length || cells[index].trim().isEmpty()) return null;
+            return cells[index];
+        }
+    }
+
+    public static class ScheduleRow {
+        public final String scheduleId;
+        public final String name;
+
+        public ScheduleRow(String scheduleId, String name) {
+            this.scheduleId = scheduleId;
+            this.name = name;
+        }
+
+        public static ScheduleRow fromCsv(CsvRow row) {
+            return new ScheduleRow(row.get("schedule_id"), row.getOptional("name"));
+        }
+    }
+
+    public static class BlockRow {
+        public final String scheduleId;
+        public final @Nullable String blockId;
+        public final @Nullable String name;
+        public final LocalDateTime startTime;
+        public final LocalDateTime endTime;
+        public final String siteId;
+        public final String zoneId;
+
+        public BlockRow(String scheduleId,
+                        @Nullable String blockId,
+                        @Nullable String name,
+                        LocalDateTime startTime,
+                        LocalDateTime endTime,
+                        String siteId,
+                        String zoneId) {
+            this.scheduleId = scheduleId;
+            this.blockId = blockId;
+            this.name = name;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.siteId = siteId;
+            this.zoneId = zoneId;
+        }
+
+        public static BlockRow fromCsv(CsvRow row) {
+            return new BlockRow(
+                    row.get("schedule_id"),
+                    row.getOptional("block_id"),
+                    row.getOptional("name"),
+                    parseTime(row.get("start_time")),
+                    parseTime(row.get("end_time")),
+                    row.get("site_id"),
+                    row.get("zone_id"));
+        }
+    }
+
+    public static class ContactRow {
+        public final String clientReference;
+        public final @Nullable String name;
+        public final @Nullable Map<String, Object> metadata;
+        public final @Nullable List<String> scheduleIds;
+
+        public ContactRow(String clientReference,
+                          @Nullable String name,
+                          @Nullable Map<String, Object> metadata,
+                          @Nullable List<String> scheduleIds) {
+            this.clientReference = clientReference;
+            this.name = name;
+            this.metadata = metadata;
+            this.scheduleIds = scheduleIds;
+        }
+
+        @SuppressWarnings("unchecked")
+        public static ContactRow fromCsv(CsvRow row) {
+            var metadataJson = row.getOptional("metadata");
+            Map<String, Object> metadata;
+            try {
+                metadata = metadataJson == null ? null : metadataMapper.readValue(metadataJson, Map.class);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Metadata is not a JSON object");
+            }
+            var scheduleIds = row.getOptional("schedule_id");
+            return new ContactRow(
+                    row.get("client_reference"),
+                    row.getOptional("name"),
+                    metadata,
+                    scheduleIds == null ? null : Arrays.asList(scheduleIds.split(",")));
+        }
+    }
+
+    public static class RowError {
+        public final String entity;
+        public final int rowNumber;
+        public final String message;
+
+        public RowError(String entity, int rowNumber, String message) {
+            this.entity = entity;
+            this.rowNumber = rowNumber;
+            this.message = message;
+        }
+    }
+
+    public static class ImportResult {
+        public final boolean imported;
+        public final int scheduleCount;
+        public final int blockCount;
+        public final int contactCount;
+        public final int assignmentCount;
+        public final List<RowError> errors;
+
+        public ImportResult(boolean imported,
+                            int scheduleCount,
+                            int blockCount,
+                            int contactCount,
+                            int assignmentCount,
+                            List<RowError> errors) {
+            this.imported = imported;
+            this.scheduleCount = scheduleCount;
+            this.blockCount = blockCount;
+            this.contactCount = contactCount;
+            this.assignmentCount = assignmentCount;
+            this.errors = errors;
+        }
+    }
+}
@@ -1,16 +1,32 @@
 package id.unifi.service.attendance.services;
 
 import id.unifi.service.attendance.AttendanceMatcher;
+import id.unifi.service.attendance.AttendanceRecomputer;
+import id.unifi.service.attendance.AttendanceRecomputer.JobProgress;
+import id.unifi.service.attendance.AttendanceSummary;
 import id.unifi.service.attendance.OverriddenStatus;
+import id.unifi.service.attendance.ScheduleImporter;
+import id.unifi.service.attendance.ScheduleImporter.BlockRow;
+import id.unifi.service.attendance.ScheduleImporter.ContactRow;
+import id.unifi.service.attendance.ScheduleImporter.CsvRow;
+import id.unifi.service.attendance.ScheduleImporter.ImportResult;
+import id.unifi.service.attendance.ScheduleImporter.RowSource;
+import id.unifi.service.attendance.ScheduleImporter.ScheduleRow;
 import static id.unifi.service.attendance.OverriddenStatus.ABSENT;
 import static id.unifi.service.attendance.OverriddenStatus.AUTH_ABSENT;
 import static id.unifi.service.attendance.OverriddenStatus.PRESENT;
 import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
 import id.unifi.service.attendance.db.Keys;
 import static id.unifi.service.attendance.db.Tables.*;
+import static id.unifi.service.common.api.Validation.v;
+import static id.unifi.service.common.api.Validation.validateAll;
 import id.unifi.service.common.api.annotations.ApiOperation;
 import id.unifi.service.common.api.annotations.ApiService;
+import id.unifi.service.common.api.annotations.HttpMatch;
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+import id.unifi.service.common.api.errors.ValidationFailure.Issue;
 import id.unifi.service.common.api.errors.Unauthorized;
+import static id.unifi.service.common.api.http.HttpUtils.isMultipart;
 import id.unifi.service.common.operator.OperatorSessionData;
 import id.unifi.service.common.types.pk.OperatorPK;
 import static id.unifi.service.core.db.Core.CORE;
@@ -27,6 +43,7 @@ import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
+import static org.eclipse.jetty.http.HttpMethod.POST;
 import org.jooq.*;
 import org.jooq.impl.DSL;
 import static org.jooq.impl.DSL.*;
@@ -34,12 +51,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -100,10 +125,25 @@ public class ScheduleService {
     private static final Field<BigDecimal> ATTENDANCE_RATIO =
             field("{0}::decimal / {1}", BigDecimal.class, count().filterWhere(IS_PRESENT_OR_AUTH_ABSENT), count());
 
+    private static final Field<Integer> SUMMARY_PRESENT_OR_AUTH_ABSENT =
+            CONTACT_SCHEDULE_SUMMARY.PRESENT_COUNT.plus(CONTACT_SCHEDULE_SUMMARY.AUTH_ABSENT_COUNT);
+    private static final Field<Integer> SUMMARY_ABSENT = CONTACT_SCHEDULE_SUMMARY.ABSENT_COUNT;
+    private static final Field<Integer> SUMMARY_TOTAL = SUMMARY_PRESENT_OR_AUTH_ABSENT.plus(SUMMARY_ABSENT);
+    private static final Field<BigDecimal> SUMMARY_ATTENDANCE_RATIO =
+            field("{0}::decimal / {1}", BigDecimal.class, SUMMARY_PRESENT_OR_AUTH_ABSENT, SUMMARY_TOTAL);
+
     private final Database db;
+    private final AttendanceMatcher attendanceMatcher;
+    private final AttendanceRecomputer attendanceRecomputer;
+    private final ScheduleImporter importer;
 
-    public ScheduleService(DatabaseProvider dbProvider) {
+    public ScheduleService(DatabaseProvider dbProvider,
+                           AttendanceMatcher attendanceMatcher,
+                           AttendanceRecomputer attendanceRecomputer) {
         this.db = dbProvider.bySchema(CORE, ATTENDANCE);
+        this.attendanceMatcher = attendanceMatcher;
+        this.attendanceRecomputer = attendanceRecomputer;
+        this.importer = new ScheduleImporter(dbProvider);
     }
 
     @ApiOperation
@@ -132,14 +172,13 @@ public class ScheduleService {
     @ApiOperation
     public List<ScheduleStat> listScheduleStats(OperatorSessionData session, String clientId) {
         authorize(session, clientId);
-        return db.execute(sql -> fetchScheduleStats(sql, clientId, trueCondition(), trueCondition()));
+        return db.execute(sql -> fetchScheduleStats(sql, clientId, null));
     }
 
     @ApiOperation
     public @Nullable ScheduleStat getSchedule(OperatorSessionData session, String clientId, String scheduleId) {
         authorize(session, clientId);
-        var stats = db.execute(sql -> fetchScheduleStats(
-                sql, clientId, SCHEDULE.SCHEDULE_ID.eq(scheduleId), SCHEDULE_ID.eq(scheduleId)));
+        var stats = db.execute(sql -> fetchScheduleStats(sql, clientId, scheduleId));
         return stats.stream().findFirst().orElse(null);
     }
 
@@ -161,21 +200,11 @@ public class ScheduleService {
                     .collect(toMap(Record2::value1, Record2::value2));
 
             var attendance = sql
-                    .with(FULL_ATTENDANCE, ZONE_PROCESSING_STATE)
-                    .select(ASSIGNMENT.CLIENT_REFERENCE,
-                            count().filterWhere(IS_PRESENT_OR_AUTH_ABSENT),
-                            count().filterWhere(IS_ABSENT))
-                    .from(ASSIGNMENT)
-                    .join(BLOCK_WITH_TIME_AND_ZONE)
-                    .using(CLIENT_ID, SCHEDULE_ID)
-                    .join(ZONE_PROCESSING_STATE)
-                    .using(CLIENT_ID, SITE_ID, ZONE_ID)
-                    .leftJoin(FULL_ATTENDANCE)
-                    .using(CLIENT_ID, CLIENT_REFERENCE, SCHEDULE_ID, BLOCK_ID)
-                    .where(ASSIGNMENT.CLIENT_ID.eq(clientId))
-                    .and(ASSIGNMENT.SCHEDULE_ID.eq(scheduleId))
-                    .and(ZONE_PROCESSED)
-                    .groupBy(ASSIGNMENT.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE, ASSIGNMENT.SCHEDULE_ID)
+                    .select(CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE, SUMMARY_PRESENT_OR_AUTH_ABSENT, SUMMARY_ABSENT)
+                    .from(CONTACT_SCHEDULE_SUMMARY)
+                    .where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))
+                    .and(CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID.eq(scheduleId))
+                    .and(SUMMARY_TOTAL.gt(0))
                     .fetch(r -> new ContactAttendance(r.value1(), names.get(r.value1()), r.value2(), r.value3()));
             return new ContactAttendanceInfo(blockCount, attendance);
         });
@@ -188,12 +217,16 @@ public class ScheduleService {
                               String scheduleId) {
         var operator = authorize(session, clientId);
 
-        db.execute(sql -> sql.insertInto(ASSIGNMENT)
-                .set(ASSIGNMENT.CLIENT_ID, operator.clientId)
-                .set(ASSIGNMENT.CLIENT_REFERENCE, clientReference)
-                .set(ASSIGNMENT.SCHEDULE_ID, scheduleId)
-                .onConflictDoNothing()
-                .execute());
+        db.execute(sql -> {
+            var inserted = sql.insertInto(ASSIGNMENT)
+                    .set(ASSIGNMENT.CLIENT_ID, operator.clientId)
+                    .set(ASSIGNMENT.CLIENT_REFERENCE, clientReference)
+                    .set(ASSIGNMENT.SCHEDULE_ID, scheduleId)
+                    .onConflictDoNothing()
+                    .execute();
+            if (inserted > 0) AttendanceSummary.recompute(sql, operator.clientId, clientReference, scheduleId);
+            return null;
+        });
     }
 
     @ApiOperation
@@ -258,23 +291,15 @@ public class ScheduleService {
                     .collect(toMap(HolderRecord::getClientReference, HolderRecord::getName));
 
             var attendance = sql
-                    .with(FULL_ATTENDANCE, ZONE_PROCESSING_STATE)
-                    .select(ASSIGNMENT.CLIENT_REFERENCE,
-                            ASSIGNMENT.SCHEDULE_ID,
-                            count().filterWhere(IS_PRESENT_OR_AUTH_ABSENT),
-                            count().filterWhere(IS_ABSENT))
-                    .from(ASSIGNMENT)
-                    .join(BLOCK_WITH_TIME_AND_ZONE)
-                    .using(CLIENT_ID, SCHEDULE_ID)
-                    .join(ZONE_PROCESSING_STATE)
-                    .using(CLIENT_ID, SITE_ID, ZONE_ID)
-                    .leftJoin(FULL_ATTENDANCE)
-                    .using(CLIENT_ID, CLIENT_REFERENCE, SCHEDULE_ID, BLOCK_ID)
-                    .where(CLIENT_ID.eq(clientId))
-                    .and(ZONE_PROCESSED)
-                    .groupBy(CLIENT_REFERENCE, SCHEDULE_ID)
+                    .select(CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE,
+                            CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID,
+                            SUMMARY_PRESENT_OR_AUTH_ABSENT,
+                            SUMMARY_ABSENT)
+                    .from(CONTACT_SCHEDULE_SUMMARY)
+                    .where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))
+                    .and(SUMMARY_TOTAL.gt(0))
                     .stream()
-                    .collect(groupingBy(r -> r.get(ASSIGNMENT.CLIENT_REFERENCE),
+                    .collect(groupingBy(r -> r.get(CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE),
                             mapping(r -> new ScheduleAttendance(r.value2(), r.value3(), r.value4()), toList())))
                     .entrySet().stream()
                     .map(e -> new ContactScheduleAttendance(e.getKey(), contactNames.get(e.getKey()), e.getValue()))
@@ -294,7 +319,9 @@ public class ScheduleService {
                                                              @Nullable LocalDateTime endTime) {
         authorize(session, clientId);
         return db.execute(sql -> {
-            var attendance = sql
+            var attendance = startTime == null && endTime == null
+                    ? fetchLowAttendanceSummary(sql, clientId, metadataKey, metadataValue, attendanceThreshold)
+                    : sql
                     .with(FULL_ATTENDANCE, ZONE_PROCESSING_STATE)
                     .select(ASSIGNMENT.CLIENT_REFERENCE,
                             ASSIGNMENT.SCHEDULE_ID,
@@ -347,10 +374,127 @@ public class ScheduleService {
                     .set(ATTENDANCE_OVERRIDE.STATUS, status.toString())
                     .set(ATTENDANCE_OVERRIDE.OPERATOR, operator.username)
                     .execute();
+            AttendanceSummary.recompute(sql, operator.clientId, clientReference, scheduleId);
             return null;
         });
     }
 
+    /**
+     * Loads schedules, blocks and contacts with their assignments, given either as CSV files or as row lists.
+     * Existing rows with the same IDs are updated. Unless {@code skipInvalid} is set, nothing is loaded if any
+     * row is invalid; either way, the invalid rows are reported.
+     *
+     * Over HTTP, the CSV files can instead be uploaded as parts of a multipart body named like the CSV parameters.
+     * Those are streamed into the import rather than decoded into memory first, so use them for large files.
+     */
+    @ApiOperation
+    @HttpMatch(path = "clients/:clientId/schedules/import", method = POST)
+    public ImportResult importSchedules(OperatorSessionData session,
+                                        String clientId,
+                                        @Nullable byte[] schedulesCsv,
+                                        @Nullable byte[] blocksCsv,
+                                        @Nullable byte[] contactsCsv,
+                                        @Nullable List<ScheduleRow> schedules,
+                                        @Nullable List<BlockRow> blocks,
+                                        @Nullable List<ContactRow> contacts,
+                                        @Nullable Boolean skipInvalid,
+                                        @Nullable HttpServletRequest request) throws IOException, ServletException {
+        authorize(session, clientId);
+        var parts = request != null && isMultipart(request) ? request.getParts() : List.<Part>of();
+        try {
+            var result = importer.importSchedules(clientId,
+                    rowSource(parts, "schedulesCsv", schedulesCsv, ScheduleRow::fromCsv, schedules),
+                    rowSource(parts, "blocksCsv", blocksCsv, BlockRow::fromCsv, blocks),
+                    rowSource(parts, "contactsCsv", contactsCsv, ContactRow::fromCsv, contacts),
+                    Boolean.TRUE.equals(skipInvalid));
+            if (result.imported) attendanceMatcher.refreshNow();
+            return result;
+        } finally {
+            for (var part : parts) part.delete();
+        }
+    }
+
+    /**
+     * Starts recomputing attendance from stored detections for blocks starting between the given dates, inclusive.
+     * Blocks whose detection window hasn't closed yet are skipped. Days whose detections may have been archived can't
+     * be recomputed.
+     *
+     * @return ID of the recomputation job
+     */
+    @ApiOperation
+    public int recomputeAttendance(OperatorSessionData session,
+                                   String clientId,
+                                   LocalDate startDate,
+                                   LocalDate endDate) {
+        authorize(session, clientId);
+        validateAll(
+                v("endDate", endDate.isBefore(startDate) ? Issue.BAD_FORMAT : null),
+                v("endDate", ChronoUnit.DAYS.between(startDate, endDate) >= AttendanceRecomputer.MAX_DAYS
+                        ? Issue.TOO_LONG
+                        : null));
+        var earliestDay = attendanceRecomputer.earliestDay();
+        if (earliestDay != null && startDate.isBefore(earliestDay))
+            throw new InvalidParameterFormat("startDate", "Detections before " + earliestDay + " are archived");
+        return attendanceRecomputer.recompute(clientId, startDate, endDate);
+    }
+
+    @ApiOperation
+    public @Nullable JobProgress getAttendanceRecomputation(OperatorSessionData session, String clientId, int jobId) {
+        authorize(session, clientId);
+        return attendanceRecomputer.getProgress(clientId, jobId);
+    }
+
+    /**
+     * Compares the attendance summary with attendance recomputed from scratch, optionally replacing it.
+     */
+    @ApiOperation
+    public List<AttendanceSummary.SummaryMismatch> checkAttendanceSummary(OperatorSessionData session,
+                                                                          String clientId,
+                                                                          @Nullable Boolean repair) {
+        authorize(session, clientId);
+        return db.execute(sql -> {
+            var mismatches = AttendanceSummary.check(sql, clientId);
+            if (!mismatches.isEmpty()) {
+                log.warn("Attendance summary for {} has {} mismatched rows", clientId, mismatches.size());
+                if (Boolean.TRUE.equals(repair)) AttendanceSummary.recompute(sql, clientId, null, null);
+            }
+            return mismatches;
+        });
+    }
+
+    private static List<ContactScheduleSummaryAttendance> fetchLowAttendanceSummary(DSLContext sql,
+                                                                                    String clientId,
+                                                                                    String metadataKey,
+                                                                                    String metadataValue,
+                                                                                    BigDecimal attendanceThreshold) {
+        return sql
+                .select(CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE,
+                        CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID,
+                        SUMMARY_PRESENT_OR_AUTH_ABSENT,
+                        SUMMARY_ABSENT)
+                .from(CONTACT_SCHEDULE_SUMMARY)
+                .join(HOLDER_METADATA).on(
+                        HOLDER_METADATA.CLIENT_ID.eq(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID),
+                        HOLDER_METADATA.CLIENT_REFERENCE.eq(CONTACT_SCHEDULE_SUMMARY.CLIENT_REFERENCE))
+                .where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))
+                .and(metadataKeyEquals(metadataKey, metadataValue))
+                .and(SUMMARY_TOTAL.gt(0))
+                .and(SUMMARY_ATTENDANCE_RATIO.lt(attendanceThreshold))
+                .fetch(r -> new ContactScheduleSummaryAttendance(r.value1(), r.value2(), r.value3(), r.value4()));
+    }
+
+    private static <T> RowSource<T> rowSource(Collection<Part> parts,
+                                              String csvName,
+                                              @Nullable byte[] csv,
+                                              Function<CsvRow, T> parser,
+                                              @Nullable List<T> rows) throws IOException {
+        for (var part : parts) {
+            if (part.getName().equals(csvName)) return RowSource.csv(part.getInputStream(), parser);
+        }
+        if (csv != null) return RowSource.csv(csv, parser);
+        return rows == null ? RowSource.empty() : RowSource.of(rows);
+    }
+
     private static Condition between(@Nullable LocalDateTime startTime, @Nullable LocalDateTime endTime) {
         var startCond = startTime == null ? null : BLOCK_TIME.START_TIME.greaterOrEqual(startTime);
         var endCond = endTime == null ? null : BLOCK_TIME.START_TIME.lessOrEqual(endTime);
@@ -363,58 +507,48 @@ public class ScheduleService {
 
     private static List<ScheduleStat> fetchScheduleStats(DSLContext sql,
                                                          String clientId,
-                                                         Condition scheduleCondition,
-                                                         Condition condition) {
+                                                         @Nullable String scheduleId) {
         var blockSummary = sql
-                .with(ZONE_PROCESSING_STATE)
                 .select(SCHEDULE.SCHEDULE_ID,
                         count(BLOCK.BLOCK_ID),
                         min(BLOCK_TIME.START_TIME),
                         max(BLOCK_TIME.END_TIME),
-                        count().filterWhere(ZONE_PROCESSED))
+                        count(FINALISED_BLOCK.BLOCK_ID))
                 .from(SCHEDULE)
                 .leftJoin(BLOCK_WITH_TIME_AND_ZONE).using(CLIENT_ID, SCHEDULE_ID)
-                .leftJoin(ZONE_PROCESSING_STATE)
-                .using(CLIENT_ID, SITE_ID, ZONE_ID)
+                .leftJoin(FINALISED_BLOCK).using(CLIENT_ID, SCHEDULE_ID, BLOCK_ID)
                 .where(CLIENT_ID.eq(clientId))
-                .and(scheduleCondition)
+                .and(scheduleId == null ? trueCondition() : SCHEDULE.SCHEDULE_ID.eq(scheduleId))
                 .groupBy(Keys.SCHEDULE_PKEY.getFieldsArray())
                 .stream()
                 .collect(toMap(r -> r.get(SCHEDULE.SCHEDULE_ID), identity()));
         var scheduleAttendance = sql
-                .with(FULL_ATTENDANCE, ZONE_PROCESSING_STATE)
-                .select(SCHEDULE_ID, count())
-                .from(FULL_ATTENDANCE)
-                .join(BLOCK_WITH_TIME_AND_ZONE)
-                .using(CLIENT_ID, SCHEDULE_ID, BLOCK_ID)
-                .join(ZONE_PROCESSING_STATE)
-                .using(CLIENT_ID, SITE_ID, ZONE_ID)
-                .where(FULL_ATTENDANCE.field(CLIENT_ID).eq(clientId))
-                .and(condition)
-                .and(ZONE_PROCESSED) // so that overall attendance doesn't go over 100%; TODO: elaborate
-                .and(IS_PRESENT_OR_AUTH_ABSENT)
-                .groupBy(SCHEDULE_ID)
+                .select(CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID, sum(SUMMARY_PRESENT_OR_AUTH_ABSENT))
+                .from(CONTACT_SCHEDULE_SUMMARY)
+                .where(CONTACT_SCHEDULE_SUMMARY.CLIENT_ID.eq(clientId))
+                .and(scheduleId == null ? trueCondition() : CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID.eq(scheduleId))
+                .groupBy(CONTACT_SCHEDULE_SUMMARY.SCHEDULE_ID)
                 .stream()
-                .collect(toMap(r -> r.get(SCHEDULE_ID), Record2::value2));
+                .collect(toMap(Record2::value1, r -> r.value2().intValue()));
         return sql
                 .select(SCHEDULE.SCHEDULE_ID, SCHEDULE.NAME, count(ASSIGNMENT.CLIENT_REFERENCE))
                 .from(SCHEDULE)
                 .leftJoin(ASSIGNMENT).onKey(Keys.ASSIGNMENT__FK_ASSIGNMENT_TO_SCHEDULE)
                 .where(SCHEDULE.CLIENT_ID.eq(clientId))
-                .and(scheduleCondition)
+                .and(scheduleId == null ? trueCondition() : SCHEDULE.SCHEDULE_ID.eq(scheduleId))
                 .groupBy(Keys.SCHEDULE_PKEY.getFieldsArray())
                 .fetch(r -> {
-                    var scheduleId = r.get(SCHEDULE.SCHEDULE_ID);
+                    var id = r.get(SCHEDULE.SCHEDULE_ID);
                     var scheduleName = r.get(SCHEDULE.NAME);
-                    var stats = blockSummary.get(scheduleId);
+                    var stats = blockSummary.get(id);
                     return new ScheduleStat(
-                            scheduleId,
+                            id,
                             scheduleName,
                             stats.value3(),
                             stats.value4(),
                             r.value3(),
                             stats.value2(),
-                            Optional.ofNullable(scheduleAttendance.get(r.get(ASSIGNMENT.SCHEDULE_ID))).orElse(0),
+                            Optional.ofNullable(scheduleAttendance.get(id)).orElse(0),
                             stats.value5());
                 });
     }
@@ -0,0 +1,36 @@
+package id.unifi.service.attendance.types.pk;
+
+import java.util.Objects;
+
+public final class BlockPK {
+    public final String clientId;
+    public final String scheduleId;
+    public final String blockId;
+
+    public BlockPK(String clientId, String scheduleId, String blockId) {
+        this.clientId = clientId;
+        this.scheduleId = scheduleId;
+        this.blockId = blockId;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        var that = (BlockPK) o;
+        return Objects.equals(clientId, that.clientId) &&
+                Objects.equals(scheduleId, that.scheduleId) &&
+                Objects.equals(blockId, that.blockId);
+    }
+
+    public int hashCode() {
+        return Objects.hash(clientId, scheduleId, blockId);
+    }
+
+    public String toString() {
+        return "BlockPK{" +
+                "clientId='" + clientId + '\'' +
+                ", scheduleId='" + scheduleId + '\'' +
+                ", blockId='" + blockId + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,82 @@
+package id.unifi.service.attendance;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class IntervalTreeTest {
+    private static final Instant EPOCH = Instant.parse("2018-01-01T00:00:00Z");
+
+    @Test
+    public void emptyTreeContainsNothing() {
+        var tree = tree(List.of());
+        assertEquals(Set.of(), containing(tree, 0));
+        assertEquals(0, tree.size());
+    }
+
+    @Test
+    public void intervalsAreHalfOpen() {
+        var tree = tree(List.of(new int[] { 10, 20 }, new int[] { 20, 30 }));
+
+        assertEquals(Set.of(), containing(tree, 9));
+        assertEquals(Set.of(0), containing(tree, 10));
+        assertEquals(Set.of(0), containing(tree, 19));
+        assertEquals(Set.of(1), containing(tree, 20));
+        assertEquals(Set.of(), containing(tree, 30));
+    }
+
+    @Test
+    public void ignoresEmptyIntervals() {
+        var tree = tree(List.of(new int[] { 5, 5 }, new int[] { 5, 5 }, new int[] { 0, 10 }));
+
+        assertEquals(Set.of(2), containing(tree, 5));
+        assertEquals(3, tree.size());
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        var random = new Random(42);
+        var intervals = new ArrayList<int[]>();
+        for (int i = 0; i < 500; i++) {
+            var start = random.nextInt(1_000);
+            // Mostly short blocks with the odd very long one, like shifts and day passes
+            var length = random.nextInt(10) == 0 ? random.nextInt(1_000) : random.nextInt(30);
+            intervals.add(new int[] { start, start + length });
+        }
+        var tree = tree(intervals);
+
+        for (int point = -1; point <= 2_000; point++) {
+            var expected = new HashSet<Integer>();
+            for (int i = 0; i < intervals.size(); i++) {
+                if (intervals.get(i)[0] <= point && point < intervals.get(i)[1]) expected.add(i);
+            }
+            assertEquals(expected, containing(tree, point), "Point " + point);
+        }
+    }
+
+    /**
+     * Builds a tree of interval indices, with bounds given as seconds from an arbitrary epoch.
+     */
+    private static IntervalTree<Integer> tree(List<int[]> intervals) {
+        var indices = new ArrayList<Integer>();
+        for (int i = 0; i < intervals.size(); i++) indices.add(i);
+        return new IntervalTree<>(indices, i -> at(intervals.get(i)[0]), i -> at(intervals.get(i)[1]));
+    }
+
+    private static Set<Integer> containing(IntervalTree<Integer> tree, int point) {
+        var found = new HashSet<Integer>();
+        tree.forEachContaining(at(point), i -> assertTrue(found.add(i), "Visited twice: " + i));
+        return found;
+    }
+
+    private static Instant at(int seconds) {
+        return EPOCH.plusSeconds(seconds);
+    }
+}
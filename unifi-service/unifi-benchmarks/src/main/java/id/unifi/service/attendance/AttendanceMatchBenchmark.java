@@ -0,0 +1,218 @@
+package id.unifi.service.attendance;
+
+import static id.unifi.service.attendance.AttendanceMatcher.DETECTION_AFTER_BLOCK_END;
+import static id.unifi.service.attendance.AttendanceMatcher.DETECTION_BEFORE_BLOCK_START;
+import id.unifi.service.attendance.types.pk.AssignmentPK;
+import id.unifi.service.attendance.types.pk.AttendancePK;
+import static java.util.stream.Collectors.toList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches detections against a university timetable the way {@link AttendanceMatcher} does, with a per-zone
+ * interval tree and schedule contact bitmaps, and the way it used to, with a range scan as wide as the longest block
+ * in the zone and an assignment set lookup per candidate.
+ *
+ * Detections are of students in their own lectures. With {@code allDayExams}, every room also holds one exam
+ * lasting a whole day, which widens the range scan for all of that room's detections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AttendanceMatchBenchmark {
+    private static final String CLIENT_ID = "university";
+    private static final Instant TERM_START = Instant.parse("2018-10-01T00:00:00Z");
+    private static final int WEEKS = 3;
+    private static final int ZONES = 400;
+    private static final int STUDENTS = 30_000;
+    private static final int MODULES = 3_000;
+    private static final int MODULES_PER_STUDENT = 8;
+    private static final int LECTURES_PER_WEEK = 3;
+    private static final int QUERIES = 4_096;
+
+    @Param({"false", "true"})
+    public boolean allDayExams;
+
+    private Map<String, Integer> holderIds;
+    private List<IntervalTree<Block>> zoneTrees;
+    private Set<AssignmentPK> contactSchedules;
+    private List<NavigableMap<Instant, List<Block>>> zoneScans;
+    private List<Duration> maxBlockDurations;
+
+    private int[] queryZones;
+    private String[] queryHolders;
+    private Instant[] queryTimes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+
+        holderIds = new HashMap<>();
+        contactSchedules = new HashSet<>();
+        var contacts = new BitSet[MODULES];
+        for (int m = 0; m < MODULES; m++) contacts[m] = new BitSet();
+        for (int s = 0; s < STUDENTS; s++) {
+            var reference = "student-" + s;
+            holderIds.put(reference, s);
+            for (int i = 0; i < MODULES_PER_STUDENT; i++) {
+                var module = random.nextInt(MODULES);
+                contacts[module].set(s);
+                contactSchedules.add(new AssignmentPK(CLIENT_ID, reference, scheduleId(module)));
+            }
+        }
+
+        var zoneBlocks = new ArrayList<List<Block>>(ZONES);
+        for (int z = 0; z < ZONES; z++) zoneBlocks.add(new ArrayList<>());
+        for (int m = 0; m < MODULES; m++) {
+            for (int w = 0; w < WEEKS; w++) {
+                for (int l = 0; l < LECTURES_PER_WEEK; l++) {
+                    var start = TERM_START.plus(Duration.ofDays(w * 7 + random.nextInt(5)))
+                            .plus(Duration.ofHours(9 + random.nextInt(8)));
+                    var end = start.plus(Duration.ofHours(1 + random.nextInt(2)));
+                    zoneBlocks.get(random.nextInt(ZONES)).add(block(start, end, m, "lecture-" + w + "-" + l, contacts));
+                }
+            }
+        }
+        if (allDayExams) {
+            for (int z = 0; z < ZONES; z++) {
+                var start = TERM_START.plus(Duration.ofDays(random.nextInt(WEEKS * 7))).plus(Duration.ofHours(8));
+                var module = random.nextInt(MODULES);
+                zoneBlocks.get(z).add(block(start, start.plus(Duration.ofHours(10)), module, "exam", contacts));
+            }
+        }
+
+        zoneTrees = zoneBlocks.stream()
+                .map(blocks -> new IntervalTree<>(blocks, b -> b.detectionStartTime, b -> b.detectionEndTime))
+                .collect(toList());
+        zoneScans = new ArrayList<>(ZONES);
+        maxBlockDurations = new ArrayList<>(ZONES);
+        for (var blocks : zoneBlocks) {
+            var byStart = new TreeMap<Instant, List<Block>>();
+            var maxBlockDuration = Duration.ZERO;
+            for (var block : blocks) {
+                byStart.computeIfAbsent(block.detectionStartTime, t -> new ArrayList<>()).add(block);
+                var duration = Duration.between(block.detectionStartTime, block.detectionEndTime);
+                if (duration.compareTo(maxBlockDuration) > 0) maxBlockDuration = duration;
+            }
+            zoneScans.add(byStart);
+            maxBlockDurations.add(maxBlockDuration);
+        }
+
+        queryZones = new int[QUERIES];
+        queryHolders = new String[QUERIES];
+        queryTimes = new Instant[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            int zone;
+            do {
+                zone = random.nextInt(ZONES);
+            } while (zoneBlocks.get(zone).isEmpty());
+            var blocks = zoneBlocks.get(zone);
+            var block = blocks.get(random.nextInt(blocks.size()));
+            var holder = block.contacts.nextSetBit(random.nextInt(STUDENTS));
+            if (holder < 0) holder = block.contacts.nextSetBit(0);
+            var length = Duration.between(block.detectionStartTime, block.detectionEndTime).getSeconds();
+
+            queryZones[q] = zone;
+            queryHolders[q] = "student-" + (holder < 0 ? random.nextInt(STUDENTS) : holder);
+            queryTimes[q] = block.detectionStartTime.plusSeconds((long) (random.nextDouble() * length));
+        }
+    }
+
+    @Benchmark
+    public List<AttendancePK> intervalTree() {
+        var q = nextQuery();
+        var clientReference = queryHolders[q];
+        var holderId = holderIds.get(clientReference);
+        if (holderId == null) return List.of();
+        int holder = holderId;
+
+        var attendances = new ArrayList<AttendancePK>(1);
+        zoneTrees.get(queryZones[q]).forEachContaining(queryTimes[q], b -> {
+            if (b.contacts.get(holder))
+                attendances.add(new AttendancePK(CLIENT_ID, clientReference, b.scheduleId, b.blockId));
+        });
+        return attendances;
+    }
+
+    @Benchmark
+    public List<AttendancePK> rangeScan() {
+        var q = nextQuery();
+        var clientReference = queryHolders[q];
+        var zone = queryZones[q];
+        var time = queryTimes[q];
+
+        var attendances = new ArrayList<AttendancePK>(1);
+        var candidates = zoneScans.get(zone).subMap(time.minus(maxBlockDurations.get(zone)), true, time, true);
+        for (var blocks : candidates.values()) {
+            for (var b : blocks) {
+                if (contactSchedules.contains(new AssignmentPK(CLIENT_ID, clientReference, b.scheduleId)) &&
+                        !time.isBefore(b.detectionStartTime) &&
+                        time.isBefore(b.detectionEndTime)) {
+                    attendances.add(new AttendancePK(CLIENT_ID, clientReference, b.scheduleId, b.blockId));
+                }
+            }
+        }
+        return attendances;
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    private static Block block(Instant start, Instant end, int module, String blockId, BitSet[] contacts) {
+        return new Block(start.minus(DETECTION_BEFORE_BLOCK_START), end.plus(DETECTION_AFTER_BLOCK_END),
+                scheduleId(module), blockId, contacts[module]);
+    }
+
+    private static String scheduleId(int module) {
+        return "module-" + module;
+    }
+
+    private static class Block {
+        final Instant detectionStartTime;
+        final Instant detectionEndTime;
+        final String scheduleId;
+        final String blockId;
+        final BitSet contacts;
+
+        Block(Instant detectionStartTime,
+              Instant detectionEndTime,
+              String scheduleId,
+              String blockId,
+              BitSet contacts) {
+            this.detectionStartTime = detectionStartTime;
+            this.detectionEndTime = detectionEndTime;
+            this.scheduleId = scheduleId;
+            this.blockId = blockId;
+            this.contacts = contacts;
+        }
+    }
+}
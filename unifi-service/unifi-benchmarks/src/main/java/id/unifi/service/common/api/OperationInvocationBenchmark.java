@@ -0,0 +1,108 @@
+package id.unifi.service.common.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
+import id.unifi.service.common.api.benchmarkservice.AgentService;
+import id.unifi.service.common.detection.DetectableType;
+import id.unifi.service.common.detection.SiteDetectionReport;
+import id.unifi.service.common.detection.SiteRfidDetection;
+import id.unifi.service.common.types.client.ClientDetectable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds an operation's parameters from a request payload and invokes it, through the registry's method handle with
+ * each parameter's precomputed reader, and as before, through {@code Method.invoke} with each parameter's type
+ * resolved and read through the mapper on every call.
+ *
+ * Operations are shaped like an agent's detection report and a single holder lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OperationInvocationBenchmark {
+    private static final Protocol PROTOCOL = Protocol.JSON;
+    private static final int REPORTS = 2;
+    private static final int DETECTIONS_PER_REPORT = 25;
+
+    @Param({"bench.agent.report-detections", "bench.agent.get-holder"})
+    public String messageType;
+
+    private ObjectMapper mapper;
+    private ServiceRegistry registry;
+    private ServiceRegistry.Operation operation;
+    private AgentService service;
+    private JsonNode payload;
+
+    @Setup
+    public void setUp() {
+        mapper = getObjectMapper(PROTOCOL);
+        service = new AgentService();
+        registry = new ServiceRegistry(Map.of("bench", "id.unifi.service.common.api.benchmarkservice"),
+                new ComponentHolder(Map.of(AgentService.class, service)));
+        operation = registry.getOperation(messageType);
+
+        var reports = new ArrayList<SiteDetectionReport>(REPORTS);
+        var time = Instant.parse("2018-10-01T09:00:00Z");
+        for (int r = 0; r < REPORTS; r++) {
+            var detections = new ArrayList<SiteRfidDetection>(DETECTIONS_PER_REPORT);
+            for (int d = 0; d < DETECTIONS_PER_REPORT; d++) {
+                detections.add(new SiteRfidDetection(time.plusMillis(d * 100), 1 + d % 4,
+                        new ClientDetectable(String.format("E200%020d", r * 1000 + d), DetectableType.UHF_EPC),
+                        Optional.of(BigDecimal.valueOf(-55 - d % 20)), 1 + d % 3));
+            }
+            reports.add(new SiteDetectionReport("37017090614", detections));
+        }
+        payload = mapper.valueToTree(Map.of(
+                "reports", reports,
+                "clientReference", "holder-1234",
+                "siteId", "main-campus"));
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Exception {
+        var params = operation.params;
+        var args = new Object[params.size()];
+        for (int i = 0; i < args.length; i++) {
+            var param = params.get(i);
+            var node = payload.get(param.name);
+            args[i] = node == null || node.isNull() ? null : param.reader(PROTOCOL).readValue(node);
+        }
+        return registry.invokeRpc(operation, args);
+    }
+
+    @Benchmark
+    public Object reflection() throws Exception {
+        var args = operation.params.stream().map(param -> {
+            var node = payload.get(param.name);
+            if (node == null || node.isNull()) return null;
+            try {
+                return mapper.readValue(mapper.treeAsTokens(node), mapper.constructType(param.type));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).toArray();
+        return operation.method.invoke(service, args);
+    }
+}
@@ -0,0 +1,121 @@
+package id.unifi.service.common.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to send one topic update to every subscriber of the topic, as a {@link SharedPayload} encoded once per
+ * protocol with correlation IDs spliced in, and as before, with a full encoding of the message per subscriber.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SubscriptionFanOutBenchmark {
+    private static final Message.Version VERSION = new Message.Version(1, 0, 0);
+    private static final String MESSAGE_TYPE = "core.site.subscribe-detections-result";
+    private static final int DETECTIONS_PER_UPDATE = 20;
+
+    @Param({"JSON", "MSGPACK"})
+    public Protocol protocol;
+
+    @Param({"1", "10", "100", "1000"})
+    public int subscribers;
+
+    private ObjectMapper mapper;
+    private List<Map<String, Object>> update;
+    private byte[][] correlationIds;
+    private CountingChannel channel;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+        mapper = getObjectMapper(protocol);
+
+        update = new ArrayList<>(DETECTIONS_PER_UPDATE);
+        var time = Instant.parse("2018-10-01T09:00:00Z");
+        for (int i = 0; i < DETECTIONS_PER_UPDATE; i++) {
+            update.add(Map.of(
+                    "clientReference", "holder-" + random.nextInt(10_000),
+                    "zoneId", "zone-" + random.nextInt(50),
+                    "detectionTime", time.plusMillis(i * 250).toString()));
+        }
+
+        correlationIds = new byte[subscribers][];
+        for (int s = 0; s < subscribers; s++) {
+            correlationIds[s] = new byte[16];
+            random.nextBytes(correlationIds[s]);
+        }
+        channel = new CountingChannel();
+    }
+
+    @Benchmark
+    public long sharedFrame() {
+        var payload = SharedPayload.of(update);
+        for (var correlationId : correlationIds) {
+            var frame = payload.frame(mapper, protocol, VERSION, VERSION, MESSAGE_TYPE, correlationId.length);
+            if (!frame.send(channel, correlationId, payload.overflowPolicy)) {
+                encodeAndSend(payload.value, correlationId);
+            }
+        }
+        return channel.bytes;
+    }
+
+    @Benchmark
+    public long encodePerSubscriber() {
+        for (var correlationId : correlationIds) {
+            encodeAndSend(update, correlationId);
+        }
+        return channel.bytes;
+    }
+
+    private void encodeAndSend(Object payload, byte[] correlationId) {
+        var message = new Message(VERSION, VERSION, correlationId, MESSAGE_TYPE, mapper.valueToTree(payload));
+        try {
+            if (protocol.isBinary()) {
+                channel.send(ByteBuffer.wrap(mapper.writeValueAsBytes(message)));
+            } else {
+                channel.send(mapper.writeValueAsString(message));
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stands in for the sessions' outbound queues, counting what's sent so the encoding can't be optimised away.
+     */
+    private static class CountingChannel implements Channel {
+        long bytes;
+
+        public void send(ByteBuffer payload) {
+            bytes += payload.remaining();
+        }
+
+        public void send(String payload) {
+            bytes += payload.length();
+        }
+    }
+}
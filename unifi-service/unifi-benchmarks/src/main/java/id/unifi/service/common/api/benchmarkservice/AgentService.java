@@ -0,0 +1,23 @@
+package id.unifi.service.common.api.benchmarkservice;
+
+import id.unifi.service.common.api.annotations.ApiOperation;
+import id.unifi.service.common.api.annotations.ApiService;
+import id.unifi.service.common.detection.SiteDetectionReport;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+@ApiService("agent")
+public class AgentService {
+    @ApiOperation
+    public int reportDetections(List<SiteDetectionReport> reports) {
+        var count = 0;
+        for (var report : reports) count += report.detections.size();
+        return count;
+    }
+
+    @ApiOperation
+    public String getHolder(String clientReference, @Nullable String siteId) {
+        return siteId == null ? clientReference : siteId + "/" + clientReference;
+    }
+}
@@ -0,0 +1,132 @@
+package id.unifi.service.common.subscriptions;
+
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes messages to a topic's subscribers from several threads while another thread keeps subscribing and
+ * unsubscribing on the same topic, through {@link InMemorySubscriptionManager}'s copy-on-write registry and through
+ * a multimap that distribution copies under the writers' lock.
+ *
+ * Both check each subscriber's session before delivering, so they differ only in how they find the subscribers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SubscriptionRegistryBenchmark {
+    private static final SubscriptionType<Integer> TYPE = new SubscriptionType<>() {};
+    private static final Topic<Integer> TOPIC = new Topic<>(TYPE, "site");
+    private static final byte[] CHURN_CORRELATION_ID = { -1 };
+
+    @Param({"10", "100", "1000"})
+    public int subscribers;
+
+    private InMemorySubscriptionManager manager;
+    private Session churnSession;
+
+    private SetMultimap<Topic<?>, SubscriptionHandler<?>> multimap;
+    private Object multimapMonitor;
+    private SubscriptionHandler<Integer> churnHandler;
+
+    @Setup
+    public void setUp() {
+        manager = new InMemorySubscriptionManager();
+        multimap = MultimapBuilder.hashKeys().hashSetValues().build();
+        multimapMonitor = new Object();
+
+        for (int s = 0; s < subscribers; s++) {
+            var session = session();
+            var handler = new SubscriptionHandler<Integer>(session, new byte[] { (byte) s, (byte) (s >> 8) }, m -> {});
+            manager.addSession(session);
+            manager.addSubscription(TOPIC, handler);
+            multimap.put(TOPIC, handler);
+        }
+
+        churnSession = session();
+        manager.addSession(churnSession);
+        churnHandler = new SubscriptionHandler<>(churnSession, CHURN_CORRELATION_ID, m -> {});
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(3)
+    public void distribute() {
+        manager.distributeMessage(TOPIC, 1);
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(1)
+    public void churn() {
+        manager.addSubscription(TOPIC, churnHandler);
+        manager.removeSubscription(churnSession, CHURN_CORRELATION_ID);
+    }
+
+    @Benchmark
+    @Group("lockedMultimap")
+    @GroupThreads(3)
+    public void distributeLocked() {
+        List<SubscriptionHandler<?>> handlers;
+        synchronized (multimapMonitor) {
+            handlers = List.copyOf(multimap.get(TOPIC));
+        }
+        for (var handler : handlers) {
+            if (handler.getSession().isOpen()) ((SubscriptionHandler<Integer>) handler).accept(1);
+        }
+    }
+
+    @Benchmark
+    @Group("lockedMultimap")
+    @GroupThreads(1)
+    public void churnLocked() {
+        synchronized (multimapMonitor) {
+            multimap.put(TOPIC, churnHandler);
+        }
+        synchronized (multimapMonitor) {
+            multimap.remove(TOPIC, churnHandler);
+        }
+    }
+
+    private static Session session() {
+        var address = new InetSocketAddress("127.0.0.1", 1234);
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getRemoteAddress":
+                            return address;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "benchmark-session";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -1,8 +1,20 @@
 package id.unifi.service.common.api;
 
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 
 public interface Channel {
     void send(ByteBuffer payload);
     void send(String payload);
+
+    /**
+     * Sends a message that may be dropped or coalesced with others sharing its key if the receiver falls behind.
+     */
+    default void send(ByteBuffer payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+        send(payload);
+    }
+
+    default void send(String payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+        send(payload);
+    }
 }
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.exc.InvalidFormatException;
 import com.fasterxml.jackson.databind.node.BinaryNode;
 import com.fasterxml.jackson.databind.node.TextNode;
@@ -33,7 +34,6 @@ import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
@@ -196,9 +196,12 @@ public class Dispatcher<S> {
             var sessionData = httpSessionDataCreator.apply(request);
 
             var queryParams = getQueryParameters(request.getQueryString());
-            var bodyJson = protocol.isBinary()
-                    ? mapper.readTree(request.getInputStream())
-                    : mapper.readTree(request.getReader());
+            JsonNode bodyJson = null;
+            if (!isMultipart(request)) {
+                bodyJson = protocol.isBinary()
+                        ? mapper.readTree(request.getInputStream())
+                        : mapper.readTree(request.getReader());
+            }
 
             var paramGetter = paramGetter(mapper, operationMatch.pathParams, queryParams, bodyJson);
             processRequest(sessionData, context, channel, mapper, protocol, paramGetter, operationMatch.operation);
@@ -281,7 +284,7 @@ public class Dispatcher<S> {
 
         accessManager.ensureAuthorized(message.messageType, sessionData);
 
-        var params = getParams(mapper, operation, session, null, sessionData, message.payload::get);
+        var params = getParams(mapper, protocol, operation, session, null, sessionData, message.payload::get);
 
         switch (operation.invocationType) {
             case RPC:
@@ -318,6 +321,25 @@ public class Dispatcher<S> {
                         sendPayload(returnChannel, mapper, protocol, response);
                     }
 
+                    public void acceptShared(String messageType, SharedPayload<?> payload) {
+                        var frame = payload.frame(mapper, protocol, CURRENT_PROTOCOL_VERSION,
+                                message.releaseVersion, messageType, message.correlationId.length);
+                        if (frame.send(returnChannel, message.correlationId, payload.overflowPolicy)) return;
+
+                        var response = new Message(
+                                CURRENT_PROTOCOL_VERSION,
+                                message.releaseVersion,
+                                message.correlationId,
+                                messageType,
+                                mapper.valueToTree(payload.value));
+                        sendPayload(returnChannel, mapper, protocol, response, payload.overflowPolicy,
+                                ByteBuffer.wrap(message.correlationId));
+                    }
+
+                    public void acceptError(AbstractMarshallableError error) {
+                        sendPayload(returnChannel, mapper, protocol, errorMessage(mapper, message, error));
+                    }
+
                     public Session getSession() {
                         return session;
                     }
@@ -344,7 +366,7 @@ public class Dispatcher<S> {
                                 Function<String, JsonNode> getParam,
                                 ServiceRegistry.Operation operation) {
         accessManager.ensureAuthorized(operation.messageType, sessionData);
-        var params = getParams(mapper, operation, null, asyncContext, sessionData, getParam);
+        var params = getParams(mapper, protocol, operation, null, asyncContext, sessionData, getParam);
         var result = serviceRegistry.invokeRpc(operation, params);
         if (stream(params).noneMatch(p -> p instanceof AsyncContext)) {
             // Process response unless a non-null context was passed in, in which case application logic handles this
@@ -355,63 +377,84 @@ public class Dispatcher<S> {
     }
 
     private Object[] getParams(ObjectMapper mapper,
+                               Protocol protocol,
                                ServiceRegistry.Operation operation,
                                @Nullable Session session,
                                @Nullable AsyncContext asyncContext,
                                S sessionData,
                                Function<String, JsonNode> getParam) {
-        return operation.params.entrySet().stream().map(entry -> {
-            var type = entry.getValue().type;
-            var nullable = entry.getValue().nullable;
+        var params = operation.params;
+        var values = new Object[params.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getParam(mapper, protocol, operation, params.get(i), session, asyncContext, sessionData,
+                    getParam);
+        }
+        return values;
+    }
 
-            if (type == Session.class) {
-                if (session != null) return session;
-                throw new AssertionError("Unexpected null session. Trying to expose a subscription call via HTTP?");
-            }
+    private Object getParam(ObjectMapper mapper,
+                            Protocol protocol,
+                            ServiceRegistry.Operation operation,
+                            ServiceRegistry.Param param,
+                            @Nullable Session session,
+                            @Nullable AsyncContext asyncContext,
+                            S sessionData,
+                            Function<String, JsonNode> getParam) {
+        var type = param.type;
+        var nullable = param.nullable;
+
+        if (type == Session.class) {
+            if (session != null) return session;
+            throw new AssertionError("Unexpected null session. Trying to expose a subscription call via HTTP?");
+        }
 
-            if (type == AsyncContext.class) {
-                if (asyncContext == null && !nullable) throw new NotFound("operation");
-                return asyncContext;
-            }
+        if (type == AsyncContext.class) {
+            if (asyncContext == null && !nullable) throw new NotFound("operation");
+            return asyncContext;
+        }
 
-            if (type == AccessChecker.class) {
-                // TODO: Capture operator in session; reading mutable session data several times (here and in
-                // service impl) may yield different operators -> potential vulnerability
-                return (AccessChecker) () -> accessManager.ensureAuthorized(operation.messageType, sessionData, true);
-            }
+        if (type == HttpServletRequest.class) {
+            // Lets HTTP operations stream a multipart body, which isn't parsed into parameters
+            if (asyncContext == null && !nullable) throw new NotFound("operation");
+            return asyncContext != null ? asyncContext.getRequest() : null;
+        }
 
-            if (type == ObjectMapper.class) return mapper;
-            if (type == sessionDataType) return sessionData;
+        if (type == AccessChecker.class) {
+            // TODO: Capture operator in session; reading mutable session data several times (here and in
+            // service impl) may yield different operators -> potential vulnerability
+            return (AccessChecker) () -> accessManager.ensureAuthorized(operation.messageType, sessionData, true);
+        }
 
-            var name = entry.getKey();
-            try {
-                var paramNode = getParam.apply(name);
-                if (paramNode == null || paramNode.isNull()) {
-                    if (nullable) {
-                        return null;
-                    } else {
-                        throw new MissingParameter(name, type.getTypeName());
-                    }
+        if (type == ObjectMapper.class) return mapper;
+        if (type == sessionDataType) return sessionData;
+
+        var name = param.name;
+        try {
+            var paramNode = getParam.apply(name);
+            if (paramNode == null || paramNode.isNull()) {
+                if (nullable) {
+                    return null;
+                } else {
+                    throw new MissingParameter(name, type.getTypeName());
                 }
-                return readValue(mapper, type, paramNode);
-            } catch (JsonProcessingException e) {
-                throw new InvalidParameterFormat(name, e.getMessage());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
-        }).toArray();
+            return readValue(param.reader(protocol), paramNode);
+        } catch (JsonProcessingException e) {
+            throw new InvalidParameterFormat(name, e.getMessage());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private static <T> T readValue(ObjectMapper mapper, Type type, JsonNode paramNode) throws IOException {
-        var javaType = mapper.constructType(type);
+    private static Object readValue(ObjectReader reader, JsonNode paramNode) throws IOException {
         try {
-            return mapper.readValue(mapper.treeAsTokens(paramNode), javaType);
+            return reader.readValue(paramNode);
         } catch (InvalidFormatException e) {
             // For failed base-64 decoding try again with URL-safe Base64 variant
             // This is a hack that won't work on nested structures
             if (e.getTargetType() == byte[].class && paramNode.isTextual()) {
                 var binValue = ((TextNode) paramNode).getBinaryValue(Base64Variants.MODIFIED_FOR_URL);
-                return mapper.readValue(mapper.treeAsTokens(new BinaryNode(binValue)), javaType);
+                return reader.readValue(new BinaryNode(binValue));
             }
             throw e;
         }
@@ -438,6 +481,15 @@ public class Dispatcher<S> {
                                     ObjectMapper mapper,
                                     Protocol protocol,
                                     Object payload) {
+        sendPayload(channel, mapper, protocol, payload, OverflowPolicy.DISCONNECT, null);
+    }
+
+    private static void sendPayload(Channel channel,
+                                    ObjectMapper mapper,
+                                    Protocol protocol,
+                                    Object payload,
+                                    OverflowPolicy overflowPolicy,
+                                    @Nullable Object coalesceKey) {
         if (protocol.isBinary()) {
             byte[] binaryPayload;
             try {
@@ -448,7 +500,7 @@ public class Dispatcher<S> {
             if (log.isTraceEnabled()) {
                 log.trace("Sending marshalled message: {}", new HexEncoded(binaryPayload));
             }
-            channel.send(ByteBuffer.wrap(binaryPayload));
+            channel.send(ByteBuffer.wrap(binaryPayload), overflowPolicy, coalesceKey);
         } else {
             String stringPayload;
             try {
@@ -457,7 +509,7 @@ public class Dispatcher<S> {
                 throw new RuntimeException(e);
             }
             log.trace("Sending marshalled message: {}", stringPayload);
-            channel.send(stringPayload);
+            channel.send(stringPayload, overflowPolicy, coalesceKey);
         }
     }
 }
@@ -1,5 +1,6 @@
 package id.unifi.service.common.api;
 
+import com.codahale.metrics.MetricRegistry;
 import id.unifi.service.common.api.http.HttpApiServlet;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
@@ -10,6 +11,8 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.servlet.MultipartConfigElement;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -24,6 +27,8 @@ public class HttpServer {
     private final Dispatcher dispatcher;
     private final List<Protocol> protocols;
     private final long webSocketIdleTimeoutMillis;
+    private final OutboundQueue.Limits outboundLimits;
+    private final @Nullable MetricRegistry registry;
 
     public HttpServer(InetSocketAddress socketAddress,
                       String basePath,
@@ -37,10 +42,31 @@ public class HttpServer {
                       Dispatcher dispatcher,
                       List<Protocol> protocols,
                       long webSocketIdleTimeoutMillis) {
+        this(socketAddress, basePath, dispatcher, protocols, webSocketIdleTimeoutMillis, OutboundQueue.Limits.DEFAULT, null);
+    }
+
+    public HttpServer(InetSocketAddress socketAddress,
+                      String basePath,
+                      Dispatcher dispatcher,
+                      List<Protocol> protocols,
+                      OutboundQueue.Limits outboundLimits,
+                      @Nullable MetricRegistry registry) {
+        this(socketAddress, basePath, dispatcher, protocols, DEFAULT_WEB_SOCKET_IDLE_TIMEOUT_MILLIS, outboundLimits, registry);
+    }
+
+    public HttpServer(InetSocketAddress socketAddress,
+                      String basePath,
+                      Dispatcher dispatcher,
+                      List<Protocol> protocols,
+                      long webSocketIdleTimeoutMillis,
+                      OutboundQueue.Limits outboundLimits,
+                      @Nullable MetricRegistry registry) {
         this.basePath = basePath;
         this.dispatcher = dispatcher;
         this.protocols = protocols;
         this.webSocketIdleTimeoutMillis = webSocketIdleTimeoutMillis;
+        this.outboundLimits = outboundLimits;
+        this.registry = registry;
         this.server = new Server(socketAddress);
     }
 
@@ -54,7 +80,7 @@ public class HttpServer {
                 extensionFactory.unregister("permessage-deflate");
                 extensionFactory.unregister("x-webkit-deflate-frame");
                 extensionFactory.unregister("deflate-frame");
-                factory.setCreator(new WebSocketDelegate.Creator(dispatcher, basePath, protocols));
+                factory.setCreator(new WebSocketDelegate.Creator(dispatcher, basePath, protocols, outboundLimits, registry));
                 setHandler(withHttpSupport ? createHttpHandler(dispatcher, protocols) : null);
             }
         };
@@ -66,6 +92,9 @@ public class HttpServer {
     private static Handler createHttpHandler(Dispatcher<?> dispatcher, List<Protocol> protocols) {
         var handler = new ServletHandler();
         var servletHolder = new ServletHolder(new HttpApiServlet(dispatcher, protocols));
+        // Spool multipart uploads over 1 MiB to temporary files instead of holding them in memory
+        servletHolder.getRegistration().setMultipartConfig(
+                new MultipartConfigElement(System.getProperty("java.io.tmpdir"), -1, -1, 1 << 20));
         handler.addServletWithMapping(servletHolder, "/api/v1/*");
         return handler;
     }
@@ -1,5 +1,6 @@
 package id.unifi.service.common.api;
 
+import id.unifi.service.common.api.errors.AbstractMarshallableError;
 import org.eclipse.jetty.websocket.api.Session;
 
 import java.util.function.BiConsumer;
@@ -7,6 +8,18 @@ import java.util.function.BiConsumer;
 public interface MessageListener<T> extends BiConsumer<String, T> {
     void accept(String messageType, T payload);
 
+    /**
+     * Like {@link #accept}, for a payload that is also being sent to other listeners.
+     */
+    default void acceptShared(String messageType, SharedPayload<? extends T> payload) {
+        accept(messageType, payload.value);
+    }
+
+    /**
+     * Sends an error the way a failed request's error is sent, for operations that fail after they've returned.
+     */
+    void acceptError(AbstractMarshallableError error);
+
     Session getSession();
 
     byte[] getCorrelationId();
@@ -0,0 +1,234 @@
+package id.unifi.service.common.api;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues outbound messages of a WebSocket session and writes them one at a time, asynchronously, so that whoever
+ * produces a message never waits for a slow receiver.
+ *
+ * The queue is bounded by message count and size. When it overflows, queued messages are dropped oldest first
+ * according to their {@link OverflowPolicy}; if only messages that mustn't be dropped are left, the session is
+ * closed instead.
+ */
+public class OutboundQueue {
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.websocket";
+    private static final AtomicLong sessionCounter = new AtomicLong();
+
+    private final Session session;
+    private final Limits limits;
+    private final Deque<Entry> queue;
+    private final @Nullable MetricRegistry registry;
+    private final String metricName;
+    private final Meter drops;
+    private final WriteCallback writeCallback;
+
+    private long queuedBytes;
+    private boolean writing;
+    private boolean closed;
+    private @Nullable Thread writingThread;
+
+    public static class Limits {
+        public static final Limits DEFAULT = new Limits(10_000, 64 * 1024 * 1024);
+
+        public final int maxMessages;
+        public final long maxBytes;
+
+        public Limits(int maxMessages, long maxBytes) {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    public OutboundQueue(Session session, Limits limits, @Nullable MetricRegistry registry) {
+        this.session = session;
+        this.limits = limits;
+        this.queue = new ArrayDeque<>();
+        this.registry = registry;
+        this.metricName = name(METRIC_NAME_PREFIX, "session", Long.toString(sessionCounter.incrementAndGet()));
+
+        var metrics = registry != null ? registry : new MetricRegistry();
+        this.drops = metrics.meter(name(metricName, "drops"));
+        metrics.gauge(name(metricName, "queue-length"), () -> this::size);
+        metrics.gauge(name(metricName, "queued-bytes"), () -> this::queuedBytes);
+
+        this.writeCallback = new WriteCallback() {
+            public void writeFailed(Throwable t) {
+                log.debug("Write failed in {}", session, t);
+                writeDone();
+            }
+
+            public void writeSuccess() {
+                log.trace("Write succeeded in {}", session);
+                writeDone();
+            }
+        };
+    }
+
+    public void send(ByteBuffer payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+        enqueue(new Entry(payload, null, payload.remaining(), policy, coalesceKey));
+    }
+
+    public void send(String payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+        // UTF-8 length would be exact, but the string length is a close enough, and free, estimate
+        enqueue(new Entry(null, payload, payload.length(), policy, coalesceKey));
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Discards anything still queued and unregisters the metrics. Called once the session has closed.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+        }
+        if (registry != null) registry.removeMatching(MetricFilter.startsWith(metricName));
+    }
+
+    private void enqueue(Entry entry) {
+        var disconnect = false;
+        synchronized (this) {
+            if (closed) return;
+
+            if (entry.policy == OverflowPolicy.COALESCE_LATEST && entry.coalesceKey != null) {
+                var iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    var queued = iterator.next();
+                    if (queued.policy == OverflowPolicy.COALESCE_LATEST
+                            && Objects.equals(queued.coalesceKey, entry.coalesceKey)) {
+                        iterator.remove();
+                        queuedBytes -= queued.size;
+                        drops.mark();
+                        break;
+                    }
+                }
+            }
+
+            queue.addLast(entry);
+            queuedBytes += entry.size;
+
+            // A single message larger than the byte limit is let through on its own
+            while (queue.size() > 1 && (queue.size() > limits.maxMessages || queuedBytes > limits.maxBytes)) {
+                if (!dropOldest()) {
+                    disconnect = true;
+                    break;
+                }
+            }
+
+            if (disconnect) {
+                closed = true;
+                queue.clear();
+                queuedBytes = 0;
+            }
+        }
+
+        if (disconnect) {
+            log.info("Closing slow session {}", session);
+            session.close(StatusCode.POLICY_VIOLATION, "Outbound queue full");
+            return;
+        }
+
+        writeNext();
+    }
+
+    private boolean dropOldest() {
+        var iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            var queued = iterator.next();
+            if (queued.policy != OverflowPolicy.DISCONNECT) {
+                iterator.remove();
+                queuedBytes -= queued.size;
+                drops.mark();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeNext() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                if (writing || closed || queue.isEmpty()) return;
+                entry = queue.removeFirst();
+                queuedBytes -= entry.size;
+                writing = true;
+                writingThread = Thread.currentThread();
+            }
+
+            try {
+                var remote = session.getRemote();
+                if (entry.bytes != null) {
+                    remote.sendBytes(entry.bytes, writeCallback);
+                } else {
+                    remote.sendString(entry.text, writeCallback);
+                }
+            } catch (WebSocketException e) {
+                log.debug("Remote session closed, ignoring message send: {}", session);
+                close();
+                return;
+            }
+
+            synchronized (this) {
+                if (writingThread == Thread.currentThread()) writingThread = null;
+                // Still in progress; the write callback carries on from here
+                if (writing) return;
+            }
+        }
+    }
+
+    private void writeDone() {
+        boolean continueHere;
+        synchronized (this) {
+            writing = false;
+            // A write completing straight away on the writing thread is picked up by its loop, without recursion
+            continueHere = writingThread != Thread.currentThread();
+        }
+        if (continueHere) writeNext();
+    }
+
+    private static class Entry {
+        final @Nullable ByteBuffer bytes;
+        final @Nullable String text;
+        final long size;
+        final OverflowPolicy policy;
+        final @Nullable Object coalesceKey;
+
+        Entry(@Nullable ByteBuffer bytes,
+              @Nullable String text,
+              long size,
+              OverflowPolicy policy,
+              @Nullable Object coalesceKey) {
+            this.bytes = bytes;
+            this.text = text;
+            this.size = size;
+            this.policy = policy;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package id.unifi.service.common.api;
+
+/**
+ * What to do with outbound messages when a WebSocket session's outbound queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued messages of this kind to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace the queued message with the same key, e.g. of the same subscription, with the latest one, and
+     * otherwise drop the oldest.
+     */
+    COALESCE_LATEST,
+
+    /**
+     * Never drop; close the session if its queue can't be drained in time.
+     */
+    DISCONNECT
+}
@@ -1,10 +1,12 @@
 package id.unifi.service.common.api;
 
+import com.fasterxml.jackson.databind.ObjectReader;
 import static com.google.common.base.CaseFormat.LOWER_CAMEL;
 import static com.google.common.base.CaseFormat.LOWER_HYPHEN;
 import com.google.common.reflect.ClassPath;
 import static id.unifi.service.common.api.InvocationType.MULTI;
 import static id.unifi.service.common.api.InvocationType.RPC;
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
 import id.unifi.service.common.api.access.Access;
 import id.unifi.service.common.api.annotations.ApiOperation;
 import id.unifi.service.common.api.annotations.ApiService;
@@ -14,6 +16,7 @@ import id.unifi.service.common.api.http.HttpSpec;
 import static id.unifi.service.common.api.http.HttpUtils.decodePathSegments;
 import id.unifi.service.common.api.http.PathNode;
 import id.unifi.service.common.api.http.PathSegment;
+import static java.lang.invoke.MethodType.methodType;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
 import static java.util.Collections.unmodifiableMap;
@@ -26,21 +29,23 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 public class ServiceRegistry {
     private static final Logger log = LoggerFactory.getLogger(ServiceRegistry.class);
@@ -51,19 +56,21 @@ public class ServiceRegistry {
 
     public static class Operation {
         final Class<?> cls;
-        final Map<String, Param> params;
+        final List<Param> params;
         final InvocationType invocationType;
         public final String messageType;
         final String resultMessageType;
         final Type resultType;
         final Method method;
+        final MethodHandle invoker;
         final HttpSpec httpSpec;
         public final Access access;
         public final String description;
 
         private Operation(Class<?> cls,
                           Method method,
-                          Map<String, Param> params,
+                          MethodHandle invoker,
+                          List<Param> params,
                           InvocationType invocationType,
                           Type resultType,
                           String messageType,
@@ -73,6 +80,7 @@ public class ServiceRegistry {
                           String description) {
             this.cls = cls;
             this.method = method;
+            this.invoker = invoker;
             this.params = params;
             this.invocationType = invocationType;
             this.resultType = resultType;
@@ -85,12 +93,24 @@ public class ServiceRegistry {
     }
 
     static class Param {
+        final String name;
         final Type type;
         final boolean nullable;
+        private final Map<Protocol, ObjectReader> readers;
 
-        private Param(Type type, boolean nullable) {
+        private Param(String name, Type type, boolean nullable) {
+            this.name = name;
             this.type = type;
             this.nullable = nullable;
+            this.readers = new EnumMap<>(Protocol.class);
+            for (var protocol : Protocol.values()) {
+                var mapper = getObjectMapper(protocol);
+                readers.put(protocol, mapper.readerFor(mapper.constructType(type)));
+            }
+        }
+
+        ObjectReader reader(Protocol protocol) {
+            return readers.get(protocol);
         }
     }
 
@@ -110,32 +130,27 @@ public class ServiceRegistry {
 
         this.componentProvider = componentHolder;
         this.serviceInstances = createServiceInstances(services.values());
-        this.operations = preloadOperations(services);
+        this.operations = preloadOperations(services, serviceInstances);
         this.operationUrlPathTree = generateUrlPathTree(operations.values());
     }
 
     public Object invokeRpc(Operation operation, Object[] params) {
-        try {
-            return operation.method.invoke(serviceInstances.get(operation.cls), params);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException() instanceof RuntimeException
-                    ? (RuntimeException) e.getCause()
-                    : new RuntimeException(e);
-        }
+        return invoke(operation, params);
     }
 
     public void invokeMulti(Operation operation, Object[] params, MessageListener<?> listenerParam) {
-        var allParams = Stream.concat(stream(params), Stream.of(listenerParam)).toArray();
+        var allParams = Arrays.copyOf(params, params.length + 1);
+        allParams[params.length] = listenerParam;
+        invoke(operation, allParams);
+    }
+
+    private static Object invoke(Operation operation, Object[] params) {
         try {
-            operation.method.invoke(serviceInstances.get(operation.cls), allParams);
-        } catch (IllegalAccessException e) {
+            return (Object) operation.invoker.invokeExact(params);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException() instanceof RuntimeException
-                    ? (RuntimeException) e.getCause()
-                    : new RuntimeException(e);
         }
     }
 
@@ -206,7 +221,9 @@ public class ServiceRegistry {
                 }));
     }
 
-    private static Map<String, Operation> preloadOperations(Map<String, Map<Class<?>, ApiService>> services) {
+    private static Map<String, Operation> preloadOperations(Map<String, Map<Class<?>, ApiService>> services,
+                                                            Map<Class<?>, Object> serviceInstances) {
+        var lookup = MethodHandles.lookup();
         Map<String, Operation> operations = new HashMap<>();
         for (var module : services.entrySet()) {
             var moduleName = module.getKey();
@@ -236,7 +253,7 @@ public class ServiceRegistry {
 
                     var multiReturnType = getMultiResponseReturnType(returnType, methodParams);
                     var invocationType = multiReturnType == null ? RPC : MULTI;
-                    Map<String, Param> params;
+                    List<Param> params;
                     Type responseType;
                     String resultTypeName;
                     HttpSpec httpSpec;
@@ -274,8 +291,9 @@ public class ServiceRegistry {
                             throw new IllegalArgumentException();
                     }
 
+                    var invoker = createInvoker(lookup, method, serviceInstances.get(cls));
                     operations.put(messageType, new Operation(
-                            cls, method, params, invocationType, responseType, messageType, resultTypeName, httpSpec,
+                            cls, method, invoker, params, invocationType, responseType, messageType, resultTypeName, httpSpec,
                             access, description));
                 }
             }
@@ -296,16 +314,32 @@ public class ServiceRegistry {
         }
     }
 
-    private static Map<String, Param> preloadParams(Parameter[] methodParameters) {
-        Map<String, Param> params = new LinkedHashMap<>(methodParameters.length);
+    /**
+     * Creates a handle taking the operation's arguments as an array, bound to the service instance, so that each call
+     * is a plain method handle invocation rather than reflection.
+     */
+    private static MethodHandle createInvoker(MethodHandles.Lookup lookup, Method method, Object serviceInstance) {
+        try {
+            return lookup.unreflect(method)
+                    .bindTo(serviceInstance)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(methodType(Object.class, Object[].class));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Can't access operation method " + method, e);
+        }
+    }
+
+    private static List<Param> preloadParams(Parameter[] methodParameters) {
+        var params = new ArrayList<Param>(methodParameters.length);
         for (var parameter : methodParameters) {
             if (!parameter.isNamePresent()) {
                 throw new RuntimeException(
                         "Method parameter names not found. Java compiler must be called with -parameter.");
             }
-            params.put(parameter.getName(), new Param(parameter.getParameterizedType(), parameter.isAnnotationPresent(Nullable.class)));
+            params.add(new Param(parameter.getName(), parameter.getParameterizedType(),
+                    parameter.isAnnotationPresent(Nullable.class)));
         }
-        return params;
+        return List.copyOf(params);
     }
 
     private static Type getMultiResponseReturnType(Type methodReturnType, Parameter[] methodParameters) {
@@ -0,0 +1,146 @@
+package id.unifi.service.common.api;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A payload sent unchanged to many subscribers, e.g. one update of a subscription topic.
+ *
+ * The first subscriber to receive it with a given protocol encodes the whole message once, with a placeholder
+ * where the correlation ID goes; everyone else gets a copy of that frame with their own correlation ID spliced in.
+ *
+ * @param <T> payload type
+ */
+public final class SharedPayload<T> {
+    // Shorter placeholders could turn up elsewhere in the frame by chance
+    private static final int MIN_PLACEHOLDER_LENGTH = 8;
+
+    public final T value;
+    public final OverflowPolicy overflowPolicy;
+
+    private final ConcurrentMap<FrameKey, Frame> frames;
+
+    private SharedPayload(T value, OverflowPolicy overflowPolicy) {
+        this.value = value;
+        this.overflowPolicy = overflowPolicy;
+        this.frames = new ConcurrentHashMap<>();
+    }
+
+    public static <T> SharedPayload<T> of(T value) {
+        return of(value, OverflowPolicy.DROP_OLDEST);
+    }
+
+    public static <T> SharedPayload<T> of(T value, OverflowPolicy overflowPolicy) {
+        return new SharedPayload<>(value, overflowPolicy);
+    }
+
+    Frame frame(ObjectMapper mapper,
+                Protocol protocol,
+                Message.Version protocolVersion,
+                Message.Version releaseVersion,
+                String messageType,
+                int correlationIdLength) {
+        var key = new FrameKey(protocol, releaseVersion.toString(), messageType, correlationIdLength);
+        return frames.computeIfAbsent(key, k -> {
+            var placeholder = new byte[correlationIdLength];
+            ThreadLocalRandom.current().nextBytes(placeholder);
+            var message = new Message(protocolVersion, releaseVersion, placeholder, messageType, mapper.valueToTree(value));
+            try {
+                return protocol.isBinary()
+                        ? Frame.binary(mapper.writeValueAsBytes(message), placeholder)
+                        : Frame.text(mapper.writeValueAsString(message), placeholder);
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    static final class Frame {
+        private final byte[] bytes;
+        private final String text;
+        private final int offset;
+
+        private Frame(byte[] bytes, String text, int offset) {
+            this.bytes = bytes;
+            this.text = text;
+            this.offset = offset;
+        }
+
+        static Frame binary(byte[] bytes, byte[] placeholder) {
+            if (placeholder.length < MIN_PLACEHOLDER_LENGTH) return new Frame(bytes, null, -1);
+            return new Frame(bytes, null, indexOf(bytes, placeholder));
+        }
+
+        static Frame text(String text, byte[] placeholder) {
+            if (placeholder.length < MIN_PLACEHOLDER_LENGTH) return new Frame(null, text, -1);
+            // Jackson's default Base64 variant, as used for byte[] fields
+            return new Frame(null, text, text.indexOf(Base64Variants.getDefaultVariant().encode(placeholder)));
+        }
+
+        /**
+         * @return false if the placeholder couldn't be located and the message has to be encoded the usual way
+         */
+        boolean send(Channel channel, byte[] correlationId, OverflowPolicy policy) {
+            if (offset < 0) return false;
+            // Messages of one subscription coalesce with each other
+            var coalesceKey = ByteBuffer.wrap(correlationId);
+            if (bytes != null) {
+                var copy = Arrays.copyOf(bytes, bytes.length);
+                System.arraycopy(correlationId, 0, copy, offset, correlationId.length);
+                channel.send(ByteBuffer.wrap(copy), policy, coalesceKey);
+            } else {
+                var encodedId = Base64Variants.getDefaultVariant().encode(correlationId);
+                var message = new StringBuilder(text).replace(offset, offset + encodedId.length(), encodedId);
+                channel.send(message.toString(), policy, coalesceKey);
+            }
+            return true;
+        }
+
+        private static int indexOf(byte[] haystack, byte[] needle) {
+            outer:
+            for (int i = 0; i <= haystack.length - needle.length; i++) {
+                for (int j = 0; j < needle.length; j++) {
+                    if (haystack[i + j] != needle[j]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    private static final class FrameKey {
+        final Protocol protocol;
+        final String releaseVersion;
+        final String messageType;
+        final int correlationIdLength;
+
+        FrameKey(Protocol protocol, String releaseVersion, String messageType, int correlationIdLength) {
+            this.protocol = protocol;
+            this.releaseVersion = releaseVersion;
+            this.messageType = messageType;
+            this.correlationIdLength = correlationIdLength;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (FrameKey) o;
+            return correlationIdLength == that.correlationIdLength &&
+                    protocol == that.protocol &&
+                    Objects.equals(releaseVersion, that.releaseVersion) &&
+                    Objects.equals(messageType, that.messageType);
+        }
+
+        public int hashCode() {
+            return Objects.hash(protocol, releaseVersion, messageType, correlationIdLength);
+        }
+    }
+}
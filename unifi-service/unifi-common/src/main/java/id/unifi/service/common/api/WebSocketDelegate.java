@@ -1,13 +1,12 @@
 package id.unifi.service.common.api;
 
+import com.codahale.metrics.MetricRegistry;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toUnmodifiableMap;
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketException;
-import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
@@ -38,31 +37,51 @@ public class WebSocketDelegate {
 
     private final Dispatcher dispatcher;
     private final Protocol protocol;
+    private final OutboundQueue.Limits outboundLimits;
+    private final @Nullable MetricRegistry registry;
     private final CountDownLatch closeLatch;
     private Thread pingThread;
+    private volatile OutboundQueue outboundQueue;
     private volatile int closeCode;
     private volatile long nextPingMillis;
 
     public WebSocketDelegate(Dispatcher<?> dispatcher, Protocol protocol) {
+        this(dispatcher, protocol, OutboundQueue.Limits.DEFAULT, null);
+    }
+
+    public WebSocketDelegate(Dispatcher<?> dispatcher,
+                             Protocol protocol,
+                             OutboundQueue.Limits outboundLimits,
+                             @Nullable MetricRegistry registry) {
         this.dispatcher = dispatcher;
         this.protocol = protocol;
+        this.outboundLimits = outboundLimits;
+        this.registry = registry;
         this.closeLatch = new CountDownLatch(1);
     }
 
     public static class Creator implements WebSocketCreator {
         private final Dispatcher dispatcher;
         private final Map<String, Protocol> protocolByPath;
-
-        Creator(Dispatcher<?> dispatcher, String basePath, Collection<Protocol> protocols) {
+        private final OutboundQueue.Limits outboundLimits;
+        private final @Nullable MetricRegistry registry;
+
+        Creator(Dispatcher<?> dispatcher,
+                String basePath,
+                Collection<Protocol> protocols,
+                OutboundQueue.Limits outboundLimits,
+                @Nullable MetricRegistry registry) {
             this.dispatcher = dispatcher;
             this.protocolByPath = protocols.stream().collect(toUnmodifiableMap(p -> basePath + "/" + p, identity()));
+            this.outboundLimits = outboundLimits;
+            this.registry = registry;
         }
 
         public WebSocketDelegate createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse res) {
             var path = req.getHttpServletRequest().getPathInfo();
             var protocol = protocolByPath.get(path);
             if (protocol != null) {
-                return new WebSocketDelegate(dispatcher, protocol);
+                return new WebSocketDelegate(dispatcher, protocol, outboundLimits, registry);
             } else {
                 res.setStatusCode(HttpServletResponse.SC_NOT_FOUND);
                 return null;
@@ -78,6 +97,7 @@ public class WebSocketDelegate {
     @OnWebSocketConnect
     public void onConnect(Session session) {
         log.trace("Connected: {}", session);
+        outboundQueue = new OutboundQueue(session, outboundLimits, registry);
         pingThread = new Thread(() -> pingLoop(session));
         pingThread.start();
 
@@ -115,6 +135,7 @@ public class WebSocketDelegate {
         log.trace("Closed ({} {}): {}", code, reason, session);
         dispatcher.dropSession(session);
         if (pingThread != null) pingThread.interrupt();
+        if (outboundQueue != null) outboundQueue.close();
 
         closeCode = code;
         closeLatch.countDown();
@@ -143,39 +164,23 @@ public class WebSocketDelegate {
     private void dispatchMessage(Session session, MessageStream messageStream) {
         Channel returnChannel = new Channel() {
             public void send(ByteBuffer payload) {
-                send(payload, null);
+                send(payload, OverflowPolicy.DISCONNECT, null);
             }
 
             public void send(String payload) {
-                send(null, payload);
+                send(payload, OverflowPolicy.DISCONNECT, null);
             }
 
-            private void send(@Nullable ByteBuffer bytePayload, @Nullable String stringPayload) {
-                RemoteEndpoint remote;
-                try {
-                    remote = session.getRemote();
-                } catch (WebSocketException e) {
-                    log.debug("Remote session closed, ignoring message send: {}", session);
-                    return;
-                }
-
-                WriteCallback writeCallback = new WriteCallback() {
-                    public void writeFailed(Throwable t) {
-                        log.debug("Write failed for {} in {}", protocol, session, t);
-                    }
-
-                    public void writeSuccess() {
-                        log.trace("Write succeeded for {} in {}", protocol, session);
-                    }
-                };
+            public void send(ByteBuffer payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+                log.trace("Queueing {} message to {}", protocol, session);
+                updatePingTime();
+                outboundQueue.send(payload, policy, coalesceKey);
+            }
 
-                log.trace("Sending {} message to {}", protocol, session);
+            public void send(String payload, OverflowPolicy policy, @Nullable Object coalesceKey) {
+                log.trace("Queueing {} message to {}", protocol, session);
                 updatePingTime();
-                if (bytePayload != null) {
-                    remote.sendBytes(bytePayload, writeCallback);
-                } else {
-                    remote.sendString(stringPayload, writeCallback);
-                }
+                outboundQueue.send(payload, policy, coalesceKey);
             }
         };
 
@@ -58,7 +58,7 @@ public class HttpUtils {
         var contentTypeHeader = request.getHeader(CONTENT_TYPE);
         var acceptHeader = request.getHeader(ACCEPT);
 
-        if (contentTypeHeader != null) {
+        if (contentTypeHeader != null && !isMultipart(request)) {
             var protocol = protocolFromContentType(protocols, contentTypeHeader);
             if (protocol == null) throw new UnsupportedMediaType(contentTypeHeader);
             return protocol;
@@ -79,6 +79,20 @@ public class HttpUtils {
         throw new NotAcceptable();
     }
 
+    /**
+     * Whether the request body is a multipart upload, which operations read themselves rather than as parameters.
+     * The response protocol is then picked as if there were no request content type.
+     */
+    public static boolean isMultipart(HttpServletRequest request) {
+        var contentTypeHeader = request.getHeader(CONTENT_TYPE);
+        if (contentTypeHeader == null) return false;
+        try {
+            return MediaType.parse(contentTypeHeader).type().equals("multipart");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     public static Map<String, String[]> getQueryParameters(String queryString) {
         var queryParamsMultimap = new MultiMap<String>();
         if (queryString != null) UrlEncoded.decodeUtf8To(queryString, queryParamsMultimap);
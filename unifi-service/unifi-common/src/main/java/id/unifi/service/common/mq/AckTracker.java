@@ -0,0 +1,76 @@
+package id.unifi.service.common.mq;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Acknowledges deliveries on a channel once all deliveries up to a tag have been processed.
+ *
+ * Batches of deliveries may finish processing out of order when flushed concurrently; acking the last tag of a
+ * batch with {@code multiple=true} would then also ack earlier deliveries still in flight. This tracker only ever
+ * acks the longest contiguous processed prefix.
+ */
+public class AckTracker {
+    private final Channel channel;
+    private final TreeSet<Long> inFlight;
+    private final TreeSet<Long> processed;
+
+    public AckTracker(Channel channel) {
+        this.channel = channel;
+        this.inFlight = new TreeSet<>();
+        this.processed = new TreeSet<>();
+    }
+
+    public synchronized void delivered(long deliveryTag) {
+        inFlight.add(deliveryTag);
+    }
+
+    public void processed(long deliveryTag) throws IOException {
+        processed(new long[] { deliveryTag });
+    }
+
+    public synchronized void processed(long[] deliveryTags) throws IOException {
+        for (var tag : deliveryTags) {
+            if (inFlight.remove(tag)) processed.add(tag);
+        }
+        ackProcessedPrefix();
+    }
+
+    /**
+     * Hands deliveries that failed processing back to the broker for redelivery, so they no longer hold back acking
+     * of later deliveries.
+     */
+    public synchronized void requeue(long[] deliveryTags) throws IOException {
+        for (var tag : deliveryTags) {
+            if (inFlight.remove(tag)) channel.basicNack(tag, false, true);
+        }
+        ackProcessedPrefix();
+    }
+
+    /**
+     * Requeues a batch of deliveries; fits as a batch buffer failure handler.
+     */
+    public void requeueAll(List<? extends Tagged<?>> deliveries) {
+        try {
+            requeue(deliveries.stream().mapToLong(d -> d.deliveryTag).toArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void ackProcessedPrefix() throws IOException {
+        var ackable = inFlight.isEmpty() ? processed : processed.headSet(inFlight.first(), false);
+        if (ackable.isEmpty()) return;
+
+        channel.basicAck(ackable.last(), true);
+        ackable.clear();
+    }
+}
@@ -0,0 +1,237 @@
+package id.unifi.service.common.subscriptions;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import id.unifi.service.common.api.Protocol;
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription manager for running several core nodes side by side, with subscribers connected to any of them.
+ *
+ * Subscriptions are kept locally, as by {@link InMemorySubscriptionManager}. Messages of subscription types with a
+ * {@link SubscriptionType#brokerCodec() codec} are also published to the broker, keyed by topic, for the other
+ * nodes to deliver to their own subscribers. A node binds only the topics it has local subscribers for, and announces
+ * binding and unbinding to the others so that messages nobody else wants don't leave the node.
+ *
+ * Every broker message carries its sender's node ID and a sequence number; a node ignores its own messages, which
+ * it has already delivered locally, and any it has seen before. Messages of types with a {@link #setRelay relay}
+ * are handed to it rather than delivered directly, so that e.g. a {@link TopicBatcher} can number relayed batches in
+ * its own stream, which is what this node's subscribers resume from.
+ *
+ * A node that goes away without unbinding leaves its announced topics behind; that only costs the others some
+ * publishing that nobody consumes.
+ */
+public class BrokeredSubscriptionManager implements SubscriptionManager {
+    private static final Logger log = LoggerFactory.getLogger(BrokeredSubscriptionManager.class);
+    private static final ObjectMapper keyMapper = getObjectMapper(Protocol.JSON);
+    private static final String CONTROL_ROUTING_KEY = "control";
+
+    private static final byte MESSAGE = 0;
+    private static final byte BIND = 1;
+    private static final byte UNBIND = 2;
+    private static final byte SYNC = 3;
+
+    private final InMemorySubscriptionManager local;
+    private final SubscriptionBroker broker;
+    private final String nodeId;
+    private final AtomicLong sequence;
+    private final ConcurrentMap<String, Topic<?>> boundTopics;
+    private final ConcurrentMap<String, Set<String>> remoteNodesByRoutingKey;
+    private final ConcurrentMap<String, Long> lastSequenceByNode;
+    private final ConcurrentMap<SubscriptionType<?>, Relay<?>> relays;
+    private final Object bindingMonitor;
+
+    public BrokeredSubscriptionManager(SubscriptionBroker broker) {
+        this.local = new InMemorySubscriptionManager();
+        this.broker = broker;
+        this.nodeId = UUID.randomUUID().toString();
+        this.sequence = new AtomicLong();
+        this.boundTopics = new ConcurrentHashMap<>();
+        this.remoteNodesByRoutingKey = new ConcurrentHashMap<>();
+        this.lastSequenceByNode = new ConcurrentHashMap<>();
+        this.relays = new ConcurrentHashMap<>();
+        this.bindingMonitor = new Object();
+
+        log.info("Starting brokered subscriptions as node {}", nodeId);
+        broker.start(this::receive);
+        broker.bind(CONTROL_ROUTING_KEY);
+
+        // Ask nodes already running what they're bound to
+        publishControl(SYNC, "");
+    }
+
+    public <T> void addSubscription(Topic<T> topic, SubscriptionHandler<T> handler) {
+        local.addSubscription(topic, handler);
+
+        var routingKey = routingKey(topic);
+        if (routingKey == null) return;
+
+        synchronized (bindingMonitor) {
+            if (boundTopics.containsKey(routingKey) || local.subscriptionCount(topic) == 0) return;
+            broker.bind(routingKey);
+            boundTopics.put(routingKey, topic);
+            publishControl(BIND, routingKey);
+        }
+    }
+
+    public void removeSubscription(Session session, byte[] correlationId) {
+        local.removeSubscription(session, correlationId);
+        unbindUnused();
+    }
+
+    public <T> void distributeMessage(Topic<T> topic, T message) {
+        local.distributeMessage(topic, message);
+
+        var codec = topic.subscriptionType.brokerCodec();
+        if (codec == null) return;
+
+        var routingKey = routingKey(topic);
+        if (!remoteNodesByRoutingKey.containsKey(routingKey)) return;
+
+        publish(routingKey, MESSAGE, codec.encode(message));
+    }
+
+    public int subscriptionCount(Topic<?> topic) {
+        var count = local.subscriptionCount(topic);
+        var routingKey = routingKey(topic);
+        if (routingKey == null) return count;
+
+        // Other nodes are counted once each, however many subscribers they have
+        return count + remoteNodesByRoutingKey.getOrDefault(routingKey, Set.of()).size();
+    }
+
+    public void addSession(Session session) {
+        local.addSession(session);
+    }
+
+    public <T> void setRelay(SubscriptionType<T> type, Relay<T> relay) {
+        relays.putIfAbsent(type, relay);
+    }
+
+    public void removeSession(Session session) {
+        local.removeSession(session);
+        unbindUnused();
+    }
+
+    private void unbindUnused() {
+        synchronized (bindingMonitor) {
+            var iterator = boundTopics.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (local.subscriptionCount(entry.getValue()) > 0) continue;
+
+                iterator.remove();
+                broker.unbind(entry.getKey());
+                publishControl(UNBIND, entry.getKey());
+            }
+        }
+    }
+
+    private void receive(String routingKey, byte[] body) {
+        try (var in = new DataInputStream(new ByteArrayInputStream(body))) {
+            var kind = in.readByte();
+            var senderNodeId = in.readUTF();
+            var senderSequence = in.readLong();
+            var payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (senderNodeId.equals(nodeId) || !isFirstDelivery(senderNodeId, senderSequence)) return;
+
+            switch (kind) {
+                case MESSAGE:
+                    deliver(routingKey, payload);
+                    break;
+                case BIND:
+                    remoteNodesByRoutingKey
+                            .computeIfAbsent(new String(payload, UTF_8), k -> ConcurrentHashMap.newKeySet())
+                            .add(senderNodeId);
+                    break;
+                case UNBIND:
+                    remoteNodesByRoutingKey.computeIfPresent(new String(payload, UTF_8), (k, nodes) -> {
+                        nodes.remove(senderNodeId);
+                        return nodes.isEmpty() ? null : nodes;
+                    });
+                    break;
+                case SYNC:
+                    synchronized (bindingMonitor) {
+                        boundTopics.keySet().forEach(k -> publishControl(BIND, k));
+                    }
+                    break;
+                default:
+                    log.warn("Ignoring unknown subscription message kind {} from {}", kind, senderNodeId);
+            }
+        } catch (IOException e) {
+            log.error("Ignoring malformed subscription message for {}", routingKey, e);
+        }
+    }
+
+    private void deliver(String routingKey, byte[] body) throws IOException {
+        var topic = (Topic<Object>) boundTopics.get(routingKey);
+        if (topic == null) return; // Unbound since
+
+        var codec = (TopicCodec<Object>) topic.subscriptionType.brokerCodec();
+        if (codec == null) return;
+
+        var message = codec.decode(body);
+        var relay = (Relay<Object>) relays.get(topic.subscriptionType);
+        if (relay == null) {
+            local.distributeMessage(topic, message);
+        } else {
+            relay.relay(topic, message, m -> local.distributeMessage(topic, m));
+        }
+    }
+
+    private boolean isFirstDelivery(String senderNodeId, long senderSequence) {
+        var first = new boolean[1];
+        lastSequenceByNode.compute(senderNodeId, (n, last) -> {
+            if (last != null && senderSequence <= last) return last;
+            first[0] = true;
+            return senderSequence;
+        });
+        return first[0];
+    }
+
+    private void publishControl(byte kind, String routingKey) {
+        publish(CONTROL_ROUTING_KEY, kind, routingKey.getBytes(UTF_8));
+    }
+
+    // Sequence numbers must reach the broker in order, or receivers would take the late ones for duplicates
+    private synchronized void publish(String routingKey, byte kind, byte[] payload) {
+        var bytes = new ByteArrayOutputStream(payload.length + 64);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(nodeId);
+            out.writeLong(sequence.incrementAndGet());
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        broker.publish(routingKey, bytes.toByteArray());
+    }
+
+    private static @Nullable String routingKey(Topic<?> topic) {
+        if (topic.subscriptionType.brokerCodec() == null) return null;
+        try {
+            return topic.subscriptionType.getClass().getName() + ":" + keyMapper.writeValueAsString(topic.subtopic);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package id.unifi.service.common.subscriptions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Stand-in broker for running several nodes in one JVM. Nodes sharing an {@link Exchange} see each other's messages;
+ * each node receives on its own thread, in publication order, as it would from a real broker.
+ */
+public class InMemorySubscriptionBroker implements SubscriptionBroker {
+    private static final Logger log = LoggerFactory.getLogger(InMemorySubscriptionBroker.class);
+
+    private final Exchange exchange;
+    private final Set<String> routingKeys;
+    private final ExecutorService receiverExecutor;
+    private volatile BiConsumer<String, byte[]> receiver;
+
+    public static class Exchange {
+        private final Set<InMemorySubscriptionBroker> nodes = new CopyOnWriteArraySet<>();
+    }
+
+    public InMemorySubscriptionBroker(Exchange exchange) {
+        this.exchange = exchange;
+        this.routingKeys = ConcurrentHashMap.newKeySet();
+        this.receiverExecutor = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "in-memory-subscription-broker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(BiConsumer<String, byte[]> receiver) {
+        this.receiver = receiver;
+        exchange.nodes.add(this);
+    }
+
+    public void publish(String routingKey, byte[] body) {
+        for (var node : exchange.nodes) {
+            if (node.routingKeys.contains(routingKey)) node.deliver(routingKey, body.clone());
+        }
+    }
+
+    public void bind(String routingKey) {
+        routingKeys.add(routingKey);
+    }
+
+    public void unbind(String routingKey) {
+        routingKeys.remove(routingKey);
+    }
+
+    private void deliver(String routingKey, byte[] body) {
+        receiverExecutor.execute(() -> {
+            try {
+                receiver.accept(routingKey, body);
+            } catch (RuntimeException e) {
+                log.error("Failed to process subscription message for {}", routingKey, e);
+            }
+        });
+    }
+}
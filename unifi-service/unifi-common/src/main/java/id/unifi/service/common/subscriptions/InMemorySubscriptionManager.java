@@ -1,24 +1,33 @@
 package id.unifi.service.common.subscriptions;
 
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.SetMultimap;
 import id.unifi.service.common.api.errors.AlreadyExists;
 import org.eclipse.jetty.websocket.api.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps subscriptions in memory.
+ *
+ * Subscribing and unsubscribing take a lock; distribution doesn't. Each topic's handlers are kept in an array that's
+ * replaced, never modified, so distribution works on a snapshot and can't be disturbed by handlers coming and going
+ * while it's in progress. Handlers of sessions found closed during distribution are removed.
+ */
 public class InMemorySubscriptionManager implements SubscriptionManager {
     private static final Logger log = LoggerFactory.getLogger(InMemorySubscriptionManager.class);
+    private static final SubscriptionHandler<?>[] NO_HANDLERS = new SubscriptionHandler<?>[0];
 
     private final Map<Session, Set<SubscriptionHandler<?>>> handlersBySession;
     private final Map<ByteBuffer, SubscriptionHandler<?>> handlersByCorrelationId;
-    private final SetMultimap<Topic<?>, SubscriptionHandler<?>> handlersByTopic;
+    private final ConcurrentMap<Topic<?>, SubscriptionHandler<?>[]> handlersByTopic;
     private final Map<SubscriptionHandler<?>, Topic<?>> topicsByHandler;
     private final Object assignmentsMonitor;
 
@@ -26,7 +35,7 @@ public class InMemorySubscriptionManager implements SubscriptionManager {
         this.assignmentsMonitor = new Object();
         this.handlersBySession = new HashMap<>();
         this.handlersByCorrelationId = new HashMap<>();
-        this.handlersByTopic = MultimapBuilder.hashKeys().hashSetValues().build();
+        this.handlersByTopic = new ConcurrentHashMap<>();
         this.topicsByHandler = new HashMap<>();
     }
 
@@ -49,8 +58,13 @@ public class InMemorySubscriptionManager implements SubscriptionManager {
 
             sessionHandlers.add(handler);
             handlersByCorrelationId.put(handler.getCorrelationId(), handler);
-            handlersByTopic.put(topic, handler);
             topicsByHandler.put(handler, topic);
+            handlersByTopic.compute(topic, (t, handlers) -> {
+                if (handlers == null) return new SubscriptionHandler<?>[] { handler };
+                var extended = Arrays.copyOf(handlers, handlers.length + 1);
+                extended[handlers.length] = handler;
+                return extended;
+            });
         }
     }
 
@@ -69,14 +83,28 @@ public class InMemorySubscriptionManager implements SubscriptionManager {
             var sessionHandlers = handlersBySession.get(handler.getSession());
             if (sessionHandlers != null) sessionHandlers.remove(handler);
 
-            handlersByCorrelationId.remove(correlationIdBytes);
-            Topic<?> removedTopic = topicsByHandler.remove(handler);
-            if (removedTopic != null) handlersByTopic.remove(removedTopic, handler);
+            removeHandler(handler);
         }
     }
 
     public <T> void distributeMessage(Topic<T> topic, T message) {
-        handlersByTopic.get(topic).forEach(h -> ((SubscriptionHandler<T>) h).accept(message));
+        var handlers = handlersByTopic.getOrDefault(topic, NO_HANDLERS);
+        for (var handler : handlers) {
+            if (!handler.getSession().isOpen()) {
+                dropClosedHandler(handler);
+                continue;
+            }
+
+            try {
+                ((SubscriptionHandler<T>) handler).accept(message);
+            } catch (RuntimeException e) {
+                log.error("Failed to deliver message on {} to {}", topic, handler.getSession(), e);
+            }
+        }
+    }
+
+    public int subscriptionCount(Topic<?> topic) {
+        return handlersByTopic.getOrDefault(topic, NO_HANDLERS).length;
     }
 
     public void addSession(Session session) {
@@ -95,14 +123,32 @@ public class InMemorySubscriptionManager implements SubscriptionManager {
             if (removedHandlers == null)
                 throw new AssertionError("Handlers entry expected to exist for session: " + session.getRemoteAddress());
 
-            removedHandlers.forEach(handler -> {
-                handlersByCorrelationId.remove(handler.getCorrelationId());
-                Topic<?> topic = topicsByHandler.remove(handler);
-                handlersByTopic.remove(topic, handler);
-            });
+            removedHandlers.forEach(this::removeHandler);
         }
     }
 
+    private void dropClosedHandler(SubscriptionHandler<?> handler) {
+        // The session will be removed once its close is processed; this only stops sending to it in the meantime
+        synchronized (assignmentsMonitor) {
+            if (!topicsByHandler.containsKey(handler)) return;
+            log.debug("Dropping subscription of closed session {}", handler.getSession());
+            var sessionHandlers = handlersBySession.get(handler.getSession());
+            if (sessionHandlers != null) sessionHandlers.remove(handler);
+            removeHandler(handler);
+        }
+    }
+
+    private void removeHandler(SubscriptionHandler<?> handler) {
+        handlersByCorrelationId.remove(handler.getCorrelationId());
+        Topic<?> topic = topicsByHandler.remove(handler);
+        if (topic == null) return;
+
+        handlersByTopic.computeIfPresent(topic, (t, handlers) -> {
+            var remaining = Arrays.stream(handlers).filter(h -> !h.equals(handler)).toArray(SubscriptionHandler<?>[]::new);
+            return remaining.length > 0 ? remaining : null;
+        });
+    }
+
     private static ByteBuffer bytesWrapper(byte[] bytes) {
         return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
     }
@@ -0,0 +1,79 @@
+package id.unifi.service.common.subscriptions;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Broker on a RabbitMQ direct exchange. Each node consumes from its own exclusive queue, which is deleted when the
+ * node disconnects, and binds it to the exchange once per routing key.
+ */
+public class RabbitSubscriptionBroker implements SubscriptionBroker {
+    private static final Logger log = LoggerFactory.getLogger(RabbitSubscriptionBroker.class);
+    private static final String EXCHANGE_NAME = "core.subscriptions.topics";
+
+    private final Channel channel;
+    private final String queueName;
+
+    public RabbitSubscriptionBroker(Connection connection) {
+        try {
+            this.channel = connection.createChannel();
+            channel.exchangeDeclare(EXCHANGE_NAME, "direct");
+            this.queueName = channel.queueDeclare().getQueue();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void start(BiConsumer<String, byte[]> receiver) {
+        try {
+            channel.basicConsume(queueName, true, new DefaultConsumer(channel) {
+                public void handleDelivery(String consumerTag,
+                                           Envelope envelope,
+                                           AMQP.BasicProperties properties,
+                                           byte[] body) {
+                    try {
+                        receiver.accept(envelope.getRoutingKey(), body);
+                    } catch (RuntimeException e) {
+                        log.error("Failed to process subscription message for {}", envelope.getRoutingKey(), e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Channels aren't safe for concurrent use, hence synchronized
+    public synchronized void publish(String routingKey, byte[] body) {
+        try {
+            channel.basicPublish(EXCHANGE_NAME, routingKey, null, body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void bind(String routingKey) {
+        try {
+            channel.queueBind(queueName, EXCHANGE_NAME, routingKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void unbind(String routingKey) {
+        try {
+            channel.queueUnbind(queueName, EXCHANGE_NAME, routingKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
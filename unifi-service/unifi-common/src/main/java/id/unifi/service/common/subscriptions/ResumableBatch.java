@@ -0,0 +1,26 @@
+package id.unifi.service.common.subscriptions;
+
+import java.util.List;
+
+/**
+ * Batch of a topic stream as sent to resumable subscriptions.
+ *
+ * @param <T> item type
+ */
+public class ResumableBatch<T> {
+    /**
+     * To present when resubscribing to continue after this batch.
+     */
+    public final String resumeToken;
+    public final List<T> items;
+    /**
+     * Whether this is a snapshot of current state, to be merged with what the subscriber has, rather than new items.
+     */
+    public final boolean snapshot;
+
+    public ResumableBatch(String resumeToken, List<T> items, boolean snapshot) {
+        this.resumeToken = resumeToken;
+        this.items = items;
+        this.snapshot = snapshot;
+    }
+}
@@ -0,0 +1,36 @@
+package id.unifi.service.common.subscriptions;
+
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+
+import java.time.Instant;
+
+/**
+ * Position in a topic stream: the stream, which changes whenever the stream is recreated, the sequence number of the
+ * last batch received and when that batch was distributed.
+ */
+final class ResumeToken {
+    final String streamId;
+    final long sequence;
+    final Instant time;
+
+    ResumeToken(String streamId, long sequence, Instant time) {
+        this.streamId = streamId;
+        this.sequence = sequence;
+        this.time = time;
+    }
+
+    static ResumeToken parse(String token) {
+        var parts = token.split("\\.");
+        if (parts.length != 3 || parts[0].isEmpty())
+            throw new InvalidParameterFormat("resumeToken", "Malformed resume token");
+        try {
+            return new ResumeToken(parts[0], Long.parseLong(parts[1]), Instant.ofEpochMilli(Long.parseLong(parts[2])));
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterFormat("resumeToken", "Malformed resume token");
+        }
+    }
+
+    public String toString() {
+        return streamId + "." + sequence + "." + time.toEpochMilli();
+    }
+}
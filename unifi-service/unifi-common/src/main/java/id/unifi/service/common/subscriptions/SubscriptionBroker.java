@@ -0,0 +1,20 @@
+package id.unifi.service.common.subscriptions;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Message broker as seen by {@link BrokeredSubscriptionManager}: messages are published with a routing key and
+ * delivered to every node that has bound that key.
+ */
+public interface SubscriptionBroker {
+    /**
+     * Starts delivering messages for bound routing keys to the receiver, along with their routing key.
+     */
+    void start(BiConsumer<String, byte[]> receiver);
+
+    void publish(String routingKey, byte[] body);
+
+    void bind(String routingKey);
+
+    void unbind(String routingKey);
+}
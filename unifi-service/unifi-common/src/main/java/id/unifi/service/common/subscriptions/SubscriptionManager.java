@@ -2,14 +2,33 @@ package id.unifi.service.common.subscriptions;
 
 import org.eclipse.jetty.websocket.api.Session;
 
+import java.util.function.Consumer;
+
 public interface SubscriptionManager {
+    interface Relay<T> {
+        /**
+         * @param deliver delivers a message to this node's subscribers of the topic, without passing it on to other
+         *                nodes
+         */
+        void relay(Topic<T> topic, T message, Consumer<T> deliver);
+    }
+
     <T> void addSubscription(Topic<T> topic, SubscriptionHandler<T> handler);
 
     void removeSubscription(Session session, byte[] correlationId);
 
     <T> void distributeMessage(Topic<T> topic, T message);
 
+    int subscriptionCount(Topic<?> topic);
+
     void addSession(Session session);
 
     void removeSession(Session session);
+
+    /**
+     * Passes messages of a subscription type that arrive from other nodes through the relay on their way to local
+     * subscribers, e.g. to number them in this node's stream of the topic. The first relay set for a type stays.
+     * Managers confined to one node have no such messages and ignore this.
+     */
+    default <T> void setRelay(SubscriptionType<T> type, Relay<T> relay) {}
 }
@@ -1,3 +1,21 @@
 package id.unifi.service.common.subscriptions;
 
-public interface SubscriptionType<T> {}
+import id.unifi.service.common.api.OverflowPolicy;
+
+import javax.annotation.Nullable;
+
+public interface SubscriptionType<T> {
+    /**
+     * How messages of this type are shed when a subscriber can't keep up.
+     */
+    default OverflowPolicy overflowPolicy() {
+        return OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * How messages of this type are passed to subscribers on other nodes; null keeps them on the publishing node.
+     */
+    default @Nullable TopicCodec<T> brokerCodec() {
+        return null;
+    }
+}
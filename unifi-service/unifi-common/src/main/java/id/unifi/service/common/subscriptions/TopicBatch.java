@@ -0,0 +1,40 @@
+package id.unifi.service.common.subscriptions;
+
+import id.unifi.service.common.api.SharedPayload;
+
+import java.util.List;
+
+/**
+ * One batch of a {@link TopicBatcher} topic, numbered within the topic's stream.
+ *
+ * @param <T> item type
+ */
+public final class TopicBatch<T> {
+    final ResumeToken token;
+    public final SharedPayload<List<T>> payload;
+
+    private volatile SharedPayload<ResumableBatch<T>> resumable;
+
+    TopicBatch(ResumeToken token, SharedPayload<List<T>> payload) {
+        this.token = token;
+        this.payload = payload;
+    }
+
+    public String resumeToken() {
+        return token.toString();
+    }
+
+    /**
+     * The batch as sent to resumable subscriptions, shared between them like {@link #payload}.
+     */
+    public SharedPayload<ResumableBatch<T>> resumable() {
+        var resumable = this.resumable;
+        if (resumable == null) {
+            // Racing threads may each create one; either will do
+            resumable = SharedPayload.of(
+                    new ResumableBatch<>(resumeToken(), payload.value, false), payload.overflowPolicy);
+            this.resumable = resumable;
+        }
+        return resumable;
+    }
+}
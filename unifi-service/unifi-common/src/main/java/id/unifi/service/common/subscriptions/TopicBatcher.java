@@ -0,0 +1,272 @@
+package id.unifi.service.common.subscriptions;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.RatioGauge;
+import id.unifi.service.common.api.SharedPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces items published to list-valued topics, so that each subscription receives one message per window
+ * rather than one per item.
+ *
+ * Items are collected per topic and distributed every window, or as soon as a topic has a full batch, as a
+ * {@link SharedPayload} so that each batch is only encoded once per protocol however many subscribers it has. All
+ * distribution happens on a single thread, which keeps each topic's messages in order and keeps publishers from
+ * waiting on subscribers. Items for topics without subscribers are dropped straight away.
+ *
+ * Each topic's batches are numbered, and the most recent ones are kept in a replay ring so that a subscriber coming
+ * back after losing its connection can {@link #resume} from where it left off. A topic's stream, and its ring, is
+ * kept for a while after its last subscriber has gone, for that subscriber to come back to. Batches relayed from
+ * other nodes by a {@link BrokeredSubscriptionManager} are numbered into this node's stream like local ones, so a
+ * token from either resumes without gaps.
+ *
+ * @param <T> item type
+ */
+public class TopicBatcher<T> {
+    private static final Logger log = LoggerFactory.getLogger(TopicBatcher.class);
+
+    private final SubscriptionManager subscriptionManager;
+    private final int maxBatchSize;
+    private final int replayBatches;
+    private final Duration streamRetention;
+    private final ConcurrentMap<Topic<TopicBatch<T>>, PendingBatch<T>> pending;
+    private final ConcurrentMap<Topic<TopicBatch<T>>, TopicStream<T>> streams;
+    private final ScheduledExecutorService distributor;
+
+    private final Meter frames;
+    private final Histogram batchSizes;
+    private final Meter resumeHits;
+    private final Meter resumeMisses;
+
+    public interface ResumeHandler<T> {
+        /**
+         * Called with the topic's stream held still, so nothing is distributed between the handler catching up and
+         * subscribing.
+         *
+         * @param missed batches distributed since the resume token, or null if they aren't all held any more
+         * @param currentToken resume token for the stream's current position, to go with a snapshot
+         * @param since when the batch of the resume token was distributed, or null if there was no token
+         */
+        void resume(@Nullable List<TopicBatch<T>> missed, String currentToken, @Nullable Instant since);
+    }
+
+    public TopicBatcher(String name,
+                        SubscriptionManager subscriptionManager,
+                        Duration window,
+                        int maxBatchSize,
+                        int replayBatches,
+                        Duration streamRetention,
+                        MetricRegistry registry,
+                        String metricNamePrefix) {
+        this.subscriptionManager = subscriptionManager;
+        this.maxBatchSize = maxBatchSize;
+        this.replayBatches = replayBatches;
+        this.streamRetention = streamRetention;
+        this.pending = new ConcurrentHashMap<>();
+        this.streams = new ConcurrentHashMap<>();
+        this.distributor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "topic-batcher:" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        var metricName = name(metricNamePrefix, "topic-batcher", name);
+        this.frames = registry.meter(name(metricName, "frames"));
+        this.batchSizes = registry.histogram(name(metricName, "batch-size"));
+        this.resumeHits = registry.meter(name(metricName, "resume-hits"));
+        this.resumeMisses = registry.meter(name(metricName, "resume-misses"));
+        registry.gauge(name(metricName, "topics"), () -> pending::size);
+        registry.gauge(name(metricName, "replay-batches"),
+                () -> () -> streams.values().stream().mapToInt(TopicStream::ringSize).sum());
+        registry.register(name(metricName, "resume-hit-rate"), new RatioGauge() {
+            protected Ratio getRatio() {
+                return Ratio.of(resumeHits.getFifteenMinuteRate(),
+                        resumeHits.getFifteenMinuteRate() + resumeMisses.getFifteenMinuteRate());
+            }
+        });
+
+        distributor.scheduleAtFixedRate(this::distributeAll, window.toMillis(), window.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void publish(Topic<TopicBatch<T>> topic, T item) {
+        // Topics with a retained stream keep being recorded for subscribers to resume
+        if (subscriptionManager.subscriptionCount(topic) == 0 && !streams.containsKey(topic)) return;
+
+        while (true) {
+            var batch = pending.computeIfAbsent(topic, t -> new PendingBatch<>());
+            synchronized (batch) {
+                // Lost a race with the distributor retiring an idle topic
+                if (batch.retired) continue;
+
+                batch.items.add(item);
+                if (batch.items.size() >= maxBatchSize && !batch.distributionRequested) {
+                    batch.distributionRequested = true;
+                    distributor.execute(() -> distribute(topic, batch));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Catches a subscriber up on a topic and lets it subscribe, without gaps or repeats in between.
+     *
+     * @param resumeToken from the last batch the subscriber received, or null if it's new
+     */
+    public void resume(Topic<TopicBatch<T>> topic, @Nullable String resumeToken, ResumeHandler<T> handler) {
+        var token = resumeToken == null ? null : ResumeToken.parse(resumeToken);
+        while (true) {
+            var stream = streams.computeIfAbsent(topic, this::newStream);
+            synchronized (stream) {
+                // Lost a race with the distributor retiring an idle stream
+                if (stream.retired) continue;
+
+                var now = Instant.now();
+                stream.lastActivity = now;
+                var missed = token == null ? null : stream.batchesAfter(token);
+                if (token != null) {
+                    if (missed != null) resumeHits.mark(); else resumeMisses.mark();
+                }
+                handler.resume(missed, stream.currentToken(now).toString(), token == null ? null : token.time);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Numbers a batch published on another node in this node's stream of the topic, and delivers it locally.
+     */
+    private void relay(Topic<TopicBatch<T>> topic, TopicBatch<T> batch, Consumer<TopicBatch<T>> deliver) {
+        var stream = stream(topic);
+        synchronized (stream) {
+            deliver.accept(stream.append(batch.payload, Instant.now(), replayBatches));
+        }
+        batchSizes.update(batch.payload.value.size());
+    }
+
+    private void distributeAll() {
+        pending.forEach(this::distribute);
+        retireStreams();
+    }
+
+    private void distribute(Topic<TopicBatch<T>> topic, PendingBatch<T> batch) {
+        List<T> items;
+        synchronized (batch) {
+            batch.distributionRequested = false;
+            if (batch.items.isEmpty()) {
+                // Nothing published for a whole window; forget the topic until it's published to again
+                batch.retired = true;
+                pending.remove(topic, batch);
+                return;
+            }
+            items = batch.items;
+            batch.items = new ArrayList<>();
+        }
+
+        try {
+            var subscriptionCount = subscriptionManager.subscriptionCount(topic);
+            var policy = topic.subscriptionType.overflowPolicy();
+            var stream = stream(topic);
+            synchronized (stream) {
+                var now = Instant.now();
+                for (int start = 0; start < items.size(); start += maxBatchSize) {
+                    var chunk = List.copyOf(items.subList(start, Math.min(start + maxBatchSize, items.size())));
+                    var topicBatch = stream.append(SharedPayload.of(chunk, policy), now, replayBatches);
+                    subscriptionManager.distributeMessage(topic, topicBatch);
+                    batchSizes.update(chunk.size());
+                    frames.mark(subscriptionCount);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to distribute {} batched items to {}", items.size(), topic, e);
+        }
+    }
+
+    private TopicStream<T> stream(Topic<TopicBatch<T>> topic) {
+        while (true) {
+            var stream = streams.computeIfAbsent(topic, this::newStream);
+            synchronized (stream) {
+                if (!stream.retired) return stream;
+            }
+        }
+    }
+
+    private TopicStream<T> newStream(Topic<TopicBatch<T>> topic) {
+        subscriptionManager.setRelay(topic.subscriptionType, this::relay);
+        return new TopicStream<>();
+    }
+
+    private void retireStreams() {
+        var cutoff = Instant.now().minus(streamRetention);
+        streams.forEach((topic, stream) -> {
+            synchronized (stream) {
+                if (!stream.lastActivity.isBefore(cutoff) || subscriptionManager.subscriptionCount(topic) > 0) return;
+                stream.retired = true;
+                streams.remove(topic, stream);
+            }
+        });
+    }
+
+    private static class PendingBatch<T> {
+        List<T> items = new ArrayList<>();
+        boolean distributionRequested;
+        boolean retired;
+    }
+
+    private static class TopicStream<T> {
+        final String id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final Deque<TopicBatch<T>> ring = new ArrayDeque<>();
+        long lastSequence;
+        Instant lastActivity = Instant.now();
+        boolean retired;
+
+        TopicBatch<T> append(SharedPayload<List<T>> payload, Instant now, int ringSize) {
+            var batch = new TopicBatch<>(new ResumeToken(id, ++lastSequence, now), payload);
+            ring.addLast(batch);
+            while (ring.size() > ringSize) ring.removeFirst();
+            lastActivity = now;
+            return batch;
+        }
+
+        @Nullable List<TopicBatch<T>> batchesAfter(ResumeToken token) {
+            if (!token.streamId.equals(id) || token.sequence > lastSequence) return null;
+            if (token.sequence == lastSequence) return List.of();
+
+            var oldest = ring.peekFirst();
+            if (oldest == null || oldest.token.sequence > token.sequence + 1) return null;
+
+            var batches = new ArrayList<TopicBatch<T>>((int) (lastSequence - token.sequence));
+            for (var batch : ring) {
+                if (batch.token.sequence > token.sequence) batches.add(batch);
+            }
+            return batches;
+        }
+
+        ResumeToken currentToken(Instant now) {
+            return new ResumeToken(id, lastSequence, now);
+        }
+
+        synchronized int ringSize() {
+            return ring.size();
+        }
+    }
+}
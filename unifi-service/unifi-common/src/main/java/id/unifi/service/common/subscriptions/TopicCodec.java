@@ -0,0 +1,66 @@
+package id.unifi.service.common.subscriptions;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import id.unifi.service.common.api.OverflowPolicy;
+import id.unifi.service.common.api.SharedPayload;
+import id.unifi.service.common.mq.MqUtils;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes messages of a subscription type for passing between nodes.
+ *
+ * @param <T> message type
+ */
+public interface TopicCodec<T> {
+    byte[] encode(T message);
+
+    T decode(byte[] body) throws IOException;
+
+    static <T> TopicCodec<T> of(TypeReference<T> type) {
+        return new TopicCodec<>() {
+            public byte[] encode(T message) {
+                return MqUtils.marshal(message);
+            }
+
+            public T decode(byte[] body) throws IOException {
+                return MqUtils.unmarshal(body, type);
+            }
+        };
+    }
+
+    /**
+     * Codec for topic batches; each node re-wraps the items so they're still encoded once per protocol there.
+     */
+    static <T> TopicCodec<TopicBatch<T>> batch(TypeReference<List<T>> itemsType) {
+        return new TopicCodec<>() {
+            public byte[] encode(TopicBatch<T> message) {
+                var token = message.resumeToken().getBytes(UTF_8);
+                var items = MqUtils.marshal(message.payload.value);
+                return ByteBuffer.allocate(1 + 4 + token.length + items.length)
+                        .put((byte) message.payload.overflowPolicy.ordinal())
+                        .putInt(token.length)
+                        .put(token)
+                        .put(items)
+                        .array();
+            }
+
+            public TopicBatch<T> decode(byte[] body) throws IOException {
+                try {
+                    var buffer = ByteBuffer.wrap(body);
+                    var policy = OverflowPolicy.values()[buffer.get()];
+                    var token = new byte[buffer.getInt()];
+                    buffer.get(token);
+                    var items = MqUtils.unmarshal(Arrays.copyOfRange(body, buffer.position(), body.length), itemsType);
+                    return new TopicBatch<>(ResumeToken.parse(new String(token, UTF_8)), SharedPayload.of(items, policy));
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed topic batch", e);
+                }
+            }
+        };
+    }
+}
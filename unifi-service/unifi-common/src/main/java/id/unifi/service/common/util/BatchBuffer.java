@@ -1,63 +1,306 @@
 package id.unifi.service.common.util;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * Collects items until the buffer is full or a timeout occurs, then hands them off to the specified consumer.
+ * Collects items until a batch is full or the oldest item has waited for the timeout, then hands the batch off to
+ * the specified consumer.
+ *
+ * Items are kept in one or more lanes. Without an ordering key there is a single lane drained by all flush workers,
+ * so batches may be flushed concurrently and out of order. With an ordering key each flush worker owns a lane and
+ * items with equal keys always go to the same lane, so their relative order is preserved.
+ *
+ * A batch the consumer fails on is logged and passed to the failure handler, if any; the worker carries on with the
+ * next batch either way.
+ *
  * @param <E> element type
  */
 public class BatchBuffer<E> {
-    private final BlockingQueue<E> queue;
-    private final Thread consumerThread;
     private final Logger log;
+    private final Lane[] lanes;
+    private final List<Thread> workers;
+    private final int batchSize;
+    private final long timeoutNanos;
+    private final Consumer<List<E>> consumer;
+    private final @Nullable Consumer<List<E>> failureHandler;
+    private final @Nullable Function<? super E, ?> orderingKey;
+
+    private final Histogram batchSizes;
+    private final Timer flushLatency;
+    private final Timer putBlocked;
+    private final Meter failures;
 
     public static <E> BatchBuffer<E> create(String name, int size, Duration timeout, Consumer<List<E>> consumer) {
-        var buffer = new BatchBuffer<>(name, size, timeout, consumer);
-        buffer.start();
-        return buffer;
+        return builder(name, size, timeout).build(consumer);
+    }
+
+    public static <E> Builder<E> builder(String name, int size, Duration timeout) {
+        return new Builder<>(name, size, timeout);
     }
 
-    private BatchBuffer(String name, int size, Duration timeout, Consumer<List<E>> consumer) {
+    private BatchBuffer(Builder<E> builder, Consumer<List<E>> consumer) {
+        var name = builder.name;
         this.log = LoggerFactory.getLogger(BatchBuffer.class.getName() + ":" + name);
-        this.queue = new ArrayBlockingQueue<>(size);
-
-        this.consumerThread = new Thread(() -> {
-            List<E> buffer = new ArrayList<>(size);
-            while (true) {
-                try {
-                    Thread.sleep(timeout.toMillis());
-                } catch (InterruptedException ignored) {}
-
-                queue.drainTo(buffer, size);
-                consumer.accept(buffer);
-                buffer.clear();
-            }
-        }, "batch-buffer:" + name);
-        consumerThread.setDaemon(true);
+        this.batchSize = builder.size;
+        this.timeoutNanos = builder.timeout.toNanos();
+        this.consumer = consumer;
+        this.failureHandler = builder.failureHandler;
+        this.orderingKey = builder.orderingKey;
+
+        var registry = builder.registry != null ? builder.registry : new MetricRegistry();
+        var metricName = name(builder.metricNamePrefix, "batch-buffer", name);
+        this.batchSizes = registry.histogram(name(metricName, "batch-size"));
+        this.flushLatency = registry.timer(name(metricName, "flush-latency"));
+        this.putBlocked = registry.timer(name(metricName, "put-blocked"));
+        this.failures = registry.meter(name(metricName, "failures"));
+        registry.gauge(name(metricName, "queue-length"), () -> this::size);
+
+        var laneCount = orderingKey != null ? builder.flushers : 1;
+        this.lanes = new BatchBuffer.Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) lanes[i] = new Lane(builder.size);
+
+        this.workers = new ArrayList<>(builder.flushers);
+        for (int i = 0; i < builder.flushers; i++) {
+            var lane = lanes[i % laneCount];
+            var thread = new Thread(() -> runFlushLoop(lane), "batch-buffer:" + name + ":" + i);
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
     }
 
     private void start() {
-        consumerThread.start();
+        workers.forEach(Thread::start);
     }
 
     public void put(E e) throws InterruptedException {
-        queue.put(e);
+        var lane = lanes[laneOf(e)];
+        lane.lock.lockInterruptibly();
+        try {
+            if (lane.items.size() >= lane.capacity) {
+                log.trace("Buffer queue full");
+                var blockedStart = System.nanoTime();
+                while (lane.items.size() >= lane.capacity) lane.notFull.await();
+                putBlocked.update(System.nanoTime() - blockedStart, TimeUnit.NANOSECONDS);
+            }
+
+            lane.add(e);
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #put}, but gives up rather than waiting for room.
+     *
+     * @return whether the item was added
+     */
+    public boolean offer(E e) {
+        var lane = lanes[laneOf(e)];
+        lane.lock.lock();
+        try {
+            if (lane.items.size() >= lane.capacity) {
+                log.trace("Buffer queue full, not adding");
+                return false;
+            }
+            lane.add(e);
+            return true;
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * Index of the lane, and therefore of the flush worker when an ordering key is used, that the element goes to.
+     */
+    public int laneOf(E e) {
+        return orderingKey == null ? 0 : Math.floorMod(orderingKey.apply(e).hashCode(), lanes.length);
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public int size(int lane) {
+        var l = lanes[lane];
+        l.lock.lock();
+        try {
+            return l.items.size();
+        } finally {
+            l.lock.unlock();
+        }
+    }
+
+    /**
+     * Item that has been waiting in the lane the longest, if any.
+     */
+    public @Nullable E peek(int lane) {
+        var l = lanes[lane];
+        l.lock.lock();
+        try {
+            return l.items.peek();
+        } finally {
+            l.lock.unlock();
+        }
+    }
+
+    public int size() {
+        var total = 0;
+        for (int i = 0; i < lanes.length; i++) total += size(i);
+        return total;
+    }
+
+    private void runFlushLoop(Lane lane) {
+        List<E> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                lane.takeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
 
-        if (queue.remainingCapacity() == 0) {
-            synchronized (this) {
-                if (queue.remainingCapacity() == 0) {
-                    log.trace("Buffer queue full");
-                    consumerThread.interrupt();
+            batchSizes.update(batch.size());
+            try (var ignored = flushLatency.time()) {
+                consumer.accept(batch);
+            } catch (RuntimeException e) {
+                failures.mark();
+                log.error("Failed to flush batch of {}", batch.size(), e);
+                handleFailure(batch);
+            }
+            batch = new ArrayList<>(batchSize);
+        }
+        log.info("Flush worker interrupted, stopping");
+    }
+
+    private void handleFailure(List<E> batch) {
+        if (failureHandler == null) return;
+        try {
+            failureHandler.accept(batch);
+        } catch (RuntimeException e) {
+            log.error("Failure handler failed for batch of {}", batch.size(), e);
+        }
+    }
+
+    private class Lane {
+        final int capacity;
+        final ArrayDeque<E> items;
+        final ReentrantLock lock;
+        final Condition batchReady;
+        final Condition notFull;
+        long deadlineNanos;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+            this.items = new ArrayDeque<>(capacity);
+            this.lock = new ReentrantLock();
+            this.batchReady = lock.newCondition();
+            this.notFull = lock.newCondition();
+        }
+
+        /**
+         * Must hold the lock and have room for the item.
+         */
+        void add(E e) {
+            if (items.isEmpty()) deadlineNanos = System.nanoTime() + timeoutNanos;
+            items.add(e);
+
+            // Wake a flusher as soon as there's something to wait for or a full batch to take
+            if (items.size() == 1 || items.size() >= batchSize) batchReady.signal();
+        }
+
+        void takeBatch(List<E> batch) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    if (items.size() >= batchSize) break;
+                    if (items.isEmpty()) {
+                        batchReady.await();
+                    } else {
+                        var remainingNanos = deadlineNanos - System.nanoTime();
+                        if (remainingNanos <= 0) break;
+                        batchReady.awaitNanos(remainingNanos);
+                    }
                 }
+
+                for (int i = 0; i < batchSize && !items.isEmpty(); i++) batch.add(items.poll());
+
+                // Leftover items arrived after the ones just taken, so the current deadline is a safe upper bound
+                if (!items.isEmpty()) batchReady.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
             }
         }
     }
+
+    public static class Builder<E> {
+        private final String name;
+        private final int size;
+        private final Duration timeout;
+        private int flushers = 1;
+        private Function<? super E, ?> orderingKey;
+        private Consumer<List<E>> failureHandler;
+        private MetricRegistry registry;
+        private String metricNamePrefix = "id.unifi.service.common";
+
+        private Builder(String name, int size, Duration timeout) {
+            this.name = name;
+            this.size = size;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Number of threads flushing batches concurrently.
+         */
+        public Builder<E> flushers(int flushers) {
+            if (flushers < 1) throw new IllegalArgumentException("At least one flusher required, got " + flushers);
+            this.flushers = flushers;
+            return this;
+        }
+
+        /**
+         * Items with equal keys are flushed by the same worker, in the order they were put.
+         */
+        public Builder<E> orderingKey(Function<? super E, ?> orderingKey) {
+            this.orderingKey = orderingKey;
+            return this;
+        }
+
+        /**
+         * Called with each batch the consumer throws on, e.g. to have its items redelivered.
+         */
+        public Builder<E> failureHandler(Consumer<List<E>> failureHandler) {
+            this.failureHandler = failureHandler;
+            return this;
+        }
+
+        public Builder<E> metrics(MetricRegistry registry, String metricNamePrefix) {
+            this.registry = registry;
+            this.metricNamePrefix = metricNamePrefix;
+            return this;
+        }
+
+        public BatchBuffer<E> build(Consumer<List<E>> consumer) {
+            var buffer = new BatchBuffer<>(this, consumer);
+            buffer.start();
+            return buffer;
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package id.unifi.service.common.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OutboundQueueTest {
+    private List<String> sent;
+    private List<WriteCallback> pendingWrites;
+    private List<Integer> closeCodes;
+    private Session session;
+
+    @BeforeEach
+    public void setUp() {
+        sent = new ArrayList<>();
+        pendingWrites = new ArrayList<>();
+        closeCodes = new ArrayList<>();
+
+        // Writes never complete by themselves, so messages queue up behind the first one
+        var remote = (RemoteEndpoint) Proxy.newProxyInstance(RemoteEndpoint.class.getClassLoader(),
+                new Class<?>[] { RemoteEndpoint.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals("sendString"))
+                        throw new UnsupportedOperationException(method.getName());
+                    sent.add((String) args[0]);
+                    pendingWrites.add((WriteCallback) args[1]);
+                    return null;
+                });
+        session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRemote":
+                            return remote;
+                        case "close":
+                            closeCodes.add((Integer) args[0]);
+                            return null;
+                        case "toString":
+                            return "test-session";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void dropsOldestQueuedMessagesWhenFull() {
+        var queue = new OutboundQueue(session, new OutboundQueue.Limits(2, Long.MAX_VALUE), null);
+
+        for (var message : List.of("a", "b", "c", "d")) queue.send(message, OverflowPolicy.DROP_OLDEST, null);
+        assertEquals(List.of("a"), sent);
+        assertEquals(2, queue.size());
+
+        completeWrites();
+        assertEquals(List.of("a", "c", "d"), sent);
+        assertEquals(List.of(), closeCodes);
+    }
+
+    @Test
+    public void replacesQueuedMessageWithSameCoalesceKey() {
+        var queue = new OutboundQueue(session, new OutboundQueue.Limits(10, Long.MAX_VALUE), null);
+
+        queue.send("a", OverflowPolicy.DROP_OLDEST, null);
+        queue.send("x1", OverflowPolicy.COALESCE_LATEST, "x");
+        queue.send("y1", OverflowPolicy.COALESCE_LATEST, "y");
+        queue.send("x2", OverflowPolicy.COALESCE_LATEST, "x");
+        assertEquals(2, queue.size());
+
+        completeWrites();
+        assertEquals(List.of("a", "y1", "x2"), sent);
+    }
+
+    @Test
+    public void skipsUndroppableMessagesWhenDroppingOldest() {
+        var queue = new OutboundQueue(session, new OutboundQueue.Limits(2, Long.MAX_VALUE), null);
+
+        queue.send("a", OverflowPolicy.DROP_OLDEST, null);
+        queue.send("b", OverflowPolicy.DISCONNECT, null);
+        queue.send("c", OverflowPolicy.DROP_OLDEST, null);
+        queue.send("d", OverflowPolicy.DROP_OLDEST, null);
+
+        completeWrites();
+        assertEquals(List.of("a", "b", "d"), sent);
+        assertEquals(List.of(), closeCodes);
+    }
+
+    @Test
+    public void closesSessionWhenOnlyUndroppableMessagesAreQueued() {
+        var queue = new OutboundQueue(session, new OutboundQueue.Limits(2, Long.MAX_VALUE), null);
+
+        for (var message : List.of("a", "b", "c", "d")) queue.send(message, OverflowPolicy.DISCONNECT, null);
+        assertEquals(List.of(StatusCode.POLICY_VIOLATION), closeCodes);
+        assertEquals(0, queue.size());
+
+        queue.send("e", OverflowPolicy.DROP_OLDEST, null);
+        completeWrites();
+        assertEquals(List.of("a"), sent);
+    }
+
+    @Test
+    public void letsSingleOversizedMessageThrough() {
+        var queue = new OutboundQueue(session, new OutboundQueue.Limits(10, 3), null);
+
+        queue.send("a", OverflowPolicy.DROP_OLDEST, null);
+        queue.send("oversized", OverflowPolicy.DISCONNECT, null);
+        assertEquals(1, queue.size());
+
+        completeWrites();
+        assertEquals(List.of("a", "oversized"), sent);
+        assertEquals(List.of(), closeCodes);
+    }
+
+    private void completeWrites() {
+        while (!pendingWrites.isEmpty()) pendingWrites.remove(0).writeSuccess();
+    }
+}
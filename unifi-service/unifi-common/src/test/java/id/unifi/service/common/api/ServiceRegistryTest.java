@@ -0,0 +1,98 @@
+package id.unifi.service.common.api;
+
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
+import id.unifi.service.common.api.errors.AbstractMarshallableError;
+import id.unifi.service.common.api.errors.UnknownMessageType;
+import static java.util.stream.Collectors.toList;
+import org.eclipse.jetty.websocket.api.Session;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ServiceRegistryTest {
+    private static ServiceRegistry registry;
+
+    @BeforeAll
+    public static void setUp() {
+        registry = new ServiceRegistry(Map.of("test", "id.unifi.service.common.api.testservice"),
+                new ComponentHolder(Map.of()));
+    }
+
+    @Test
+    public void invokesRpcOperationWithArguments() {
+        var operation = registry.getOperation("test.echo.join");
+
+        assertEquals(InvocationType.RPC, operation.invocationType);
+        assertEquals("test.echo.join-result", operation.resultMessageType);
+        assertEquals(List.of("prefix", "numbers", "suffix"),
+                operation.params.stream().map(p -> p.name).collect(toList()));
+        assertEquals(List.of(false, false, true), operation.params.stream().map(p -> p.nullable).collect(toList()));
+
+        assertEquals("n:1,2", registry.invokeRpc(operation, new Object[] { "n:", List.of(1, 2), null }));
+        assertEquals("n:3!", registry.invokeRpc(operation, new Object[] { "n:", List.of(3), "!" }));
+    }
+
+    @Test
+    public void readsParamsAsTheirGenericType() throws IOException {
+        var numbers = registry.getOperation("test.echo.join").params.get(1);
+
+        assertEquals(List.of(1, 2), numbers.reader(Protocol.JSON).readValue("[1,2]"));
+        var msgpack = getObjectMapper(Protocol.MSGPACK).writeValueAsBytes(List.of(1, 2));
+        assertEquals(List.of(1, 2), numbers.reader(Protocol.MSGPACK).readValue(msgpack));
+    }
+
+    @Test
+    public void passesListenerToMultiResponseOperation() {
+        var operation = registry.getOperation("test.echo.stream-numbers");
+        var listener = new RecordingListener();
+
+        assertEquals(InvocationType.MULTI, operation.invocationType);
+        assertNull(operation.resultMessageType);
+        assertEquals(List.of("count"), operation.params.stream().map(p -> p.name).collect(toList()));
+
+        registry.invokeMulti(operation, new Object[] { 3 }, listener);
+        assertEquals(List.of(0, 1, 2), listener.payloads);
+    }
+
+    @Test
+    public void rethrowsUncheckedAndWrapsCheckedExceptions() {
+        var operation = registry.getOperation("test.echo.fail");
+
+        assertThrows(IllegalStateException.class, () -> registry.invokeRpc(operation, new Object[] { false }));
+        var wrapped = assertThrows(RuntimeException.class, () -> registry.invokeRpc(operation, new Object[] { true }));
+        assertTrue(wrapped.getCause() instanceof IOException);
+    }
+
+    @Test
+    public void rejectsUnknownMessageType() {
+        assertThrows(UnknownMessageType.class, () -> registry.getOperation("test.echo.missing"));
+    }
+
+    private static class RecordingListener implements MessageListener<Integer> {
+        final List<Integer> payloads = new ArrayList<>();
+
+        public void accept(String messageType, Integer payload) {
+            payloads.add(payload);
+        }
+
+        public void acceptError(AbstractMarshallableError error) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Session getSession() {
+            throw new UnsupportedOperationException();
+        }
+
+        public byte[] getCorrelationId() {
+            return new byte[0];
+        }
+    }
+}
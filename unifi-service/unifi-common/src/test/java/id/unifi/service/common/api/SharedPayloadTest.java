@@ -0,0 +1,99 @@
+package id.unifi.service.common.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static id.unifi.service.common.api.SerializationUtils.getObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class SharedPayloadTest {
+    private static final Message.Version VERSION = new Message.Version(1, 0, 0);
+    private static final String MESSAGE_TYPE = "core.detection.subscribe-detections-result";
+    private static final Map<String, Object> VALUE = Map.of("zoneId", "entrance", "count", 3);
+
+    @Test
+    public void splicesCorrelationIdsIntoSharedJsonFrame() throws IOException {
+        assertSplicesCorrelationIds(Protocol.JSON);
+    }
+
+    @Test
+    public void splicesCorrelationIdsIntoSharedMsgpackFrame() throws IOException {
+        assertSplicesCorrelationIds(Protocol.MSGPACK);
+    }
+
+    @Test
+    public void declinesShortCorrelationIds() {
+        var payload = SharedPayload.of(VALUE);
+        var channel = new RecordingChannel();
+
+        var frame = payload.frame(getObjectMapper(Protocol.JSON), Protocol.JSON, VERSION, VERSION, MESSAGE_TYPE, 4);
+
+        assertFalse(frame.send(channel, new byte[] { 1, 2, 3, 4 }, payload.overflowPolicy));
+        assertTrue(channel.messages.isEmpty());
+    }
+
+    private static void assertSplicesCorrelationIds(Protocol protocol) throws IOException {
+        var mapper = getObjectMapper(protocol);
+        var payload = SharedPayload.of(VALUE, OverflowPolicy.COALESCE_LATEST);
+        var channel = new RecordingChannel();
+        var firstId = correlationId(1);
+        var secondId = correlationId(2);
+
+        var frame = payload.frame(mapper, protocol, VERSION, VERSION, MESSAGE_TYPE, firstId.length);
+        assertSame(frame, payload.frame(mapper, protocol, VERSION, VERSION, MESSAGE_TYPE, secondId.length));
+        assertTrue(frame.send(channel, firstId, payload.overflowPolicy));
+        assertTrue(frame.send(channel, secondId, payload.overflowPolicy));
+
+        assertEquals(List.of(ByteBuffer.wrap(firstId), ByteBuffer.wrap(secondId)), channel.coalesceKeys);
+        assertEquals(2, channel.messages.size());
+        assertMessage(mapper, firstId, channel.messages.get(0));
+        assertMessage(mapper, secondId, channel.messages.get(1));
+    }
+
+    private static void assertMessage(ObjectMapper mapper, byte[] correlationId, Object sent) throws IOException {
+        var message = sent instanceof ByteBuffer
+                ? mapper.readValue(((ByteBuffer) sent).array(), Message.class)
+                : mapper.readValue((String) sent, Message.class);
+        assertArrayEquals(correlationId, message.correlationId);
+        assertEquals(MESSAGE_TYPE, message.messageType);
+        assertEquals(mapper.valueToTree(VALUE), message.payload);
+    }
+
+    private static byte[] correlationId(int seed) {
+        var id = new byte[16];
+        for (int i = 0; i < id.length; i++) id[i] = (byte) (seed * 31 + i);
+        return id;
+    }
+
+    private static class RecordingChannel implements Channel {
+        final List<Object> messages = new ArrayList<>();
+        final List<Object> coalesceKeys = new ArrayList<>();
+
+        public void send(ByteBuffer payload) {
+            messages.add(payload);
+        }
+
+        public void send(String payload) {
+            messages.add(payload);
+        }
+
+        public void send(ByteBuffer payload, OverflowPolicy policy, Object coalesceKey) {
+            coalesceKeys.add(coalesceKey);
+            send(payload);
+        }
+
+        public void send(String payload, OverflowPolicy policy, Object coalesceKey) {
+            coalesceKeys.add(coalesceKey);
+            send(payload);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package id.unifi.service.common.api.testservice;
+
+import id.unifi.service.common.api.MessageListener;
+import id.unifi.service.common.api.annotations.ApiOperation;
+import id.unifi.service.common.api.annotations.ApiService;
+import static java.util.stream.Collectors.joining;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+
+@ApiService("echo")
+public class EchoService {
+    @ApiOperation
+    public String join(String prefix, List<Integer> numbers, @Nullable String suffix) {
+        return prefix + numbers.stream().map(String::valueOf).collect(joining(",")) + (suffix == null ? "" : suffix);
+    }
+
+    @ApiOperation
+    public void streamNumbers(int count, MessageListener<Integer> listener) {
+        for (int i = 0; i < count; i++) listener.accept("test.echo.number", i);
+    }
+
+    @ApiOperation
+    public void fail(boolean checked) throws IOException {
+        if (checked) throw new IOException("Checked failure");
+        throw new IllegalStateException("Unchecked failure");
+    }
+}
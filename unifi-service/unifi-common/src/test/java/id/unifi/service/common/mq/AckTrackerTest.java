@@ -0,0 +1,72 @@
+package id.unifi.service.common.mq;
+
+import com.rabbitmq.client.Channel;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AckTrackerTest {
+    private List<String> calls;
+    private AckTracker tracker;
+
+    @BeforeEach
+    public void setUp() {
+        calls = new ArrayList<>();
+        var channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicAck":
+                            calls.add("ack " + args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : ""));
+                            return null;
+                        case "basicNack":
+                            calls.add("nack " + args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        tracker = new AckTracker(channel);
+    }
+
+    @Test
+    public void acksOnlyContiguousProcessedPrefix() throws IOException {
+        for (long tag = 1; tag <= 4; tag++) tracker.delivered(tag);
+
+        tracker.processed(new long[] { 2, 3 });
+        assertEquals(List.of(), calls);
+
+        tracker.processed(1);
+        assertEquals(List.of("ack 3+"), calls);
+
+        tracker.processed(4);
+        assertEquals(List.of("ack 3+", "ack 4+"), calls);
+        assertEquals(0, tracker.inFlightCount());
+    }
+
+    @Test
+    public void requeuedDeliveriesStopHoldingBackAcks() throws IOException {
+        for (long tag = 1; tag <= 3; tag++) tracker.delivered(tag);
+
+        tracker.processed(new long[] { 2, 3 });
+        tracker.requeue(new long[] { 1 });
+
+        assertEquals(List.of("nack 1", "ack 3+"), calls);
+        assertEquals(0, tracker.inFlightCount());
+    }
+
+    @Test
+    public void ignoresTagsNotInFlight() throws IOException {
+        tracker.delivered(1);
+
+        tracker.requeue(new long[] { 5 });
+        tracker.processed(7);
+
+        assertEquals(List.of(), calls);
+        assertEquals(1, tracker.inFlightCount());
+    }
+}
@@ -0,0 +1,207 @@
+package id.unifi.service.common.subscriptions;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.eclipse.jetty.websocket.api.Session;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs two nodes in one JVM over an {@link InMemorySubscriptionBroker.Exchange}.
+ */
+public class BrokeredSubscriptionManagerTest {
+    private static final TopicCodec<String> CODEC = TopicCodec.of(new TypeReference<String>() {});
+    private static final SubscriptionType<String> TYPE = new SubscriptionType<>() {
+        public TopicCodec<String> brokerCodec() {
+            return CODEC;
+        }
+    };
+    private static final Topic<String> TOPIC = new Topic<>(TYPE, "a");
+    private static final Topic<String> MARKER_TOPIC = new Topic<>(TYPE, "marker");
+
+    private InMemorySubscriptionBroker.Exchange exchange;
+
+    @BeforeEach
+    public void setUp() {
+        exchange = new InMemorySubscriptionBroker.Exchange();
+    }
+
+    @Test
+    public void deliversToRemoteNodeOnlyOnceBound() throws InterruptedException {
+        var a = node();
+        var b = node();
+        a.distributeMessage(TOPIC, "before");
+
+        var received = subscribe(b, TOPIC, 1);
+        awaitSubscriptionCount(a, TOPIC, 1);
+        a.distributeMessage(TOPIC, "after");
+
+        assertEquals("after", received.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll());
+    }
+
+    @Test
+    public void doesntEchoMessagesBackToPublishingNode() throws InterruptedException {
+        var a = node();
+        var b = node();
+        var receivedByA = subscribe(a, TOPIC, 1);
+        var receivedByB = subscribe(b, TOPIC, 1);
+        awaitSubscriptionCount(a, TOPIC, 2);
+        awaitSubscriptionCount(b, TOPIC, 2);
+
+        a.distributeMessage(TOPIC, "from a");
+        assertEquals("from a", receivedByB.poll(5, TimeUnit.SECONDS));
+
+        // A's own message reached its receiver before this one, so it'd have been delivered again by now
+        b.distributeMessage(TOPIC, "from b");
+        assertEquals(List.of("from a", "from b"), take(receivedByA, 2));
+        assertNull(receivedByA.poll());
+    }
+
+    @Test
+    public void ignoresRedeliveredMessages() throws InterruptedException {
+        var a = node(new RedeliveringBroker(new InMemorySubscriptionBroker(exchange)));
+        var b = node();
+        var received = subscribe(b, TOPIC, 1);
+        awaitSubscriptionCount(a, TOPIC, 1);
+
+        a.distributeMessage(TOPIC, "x");
+        a.distributeMessage(TOPIC, "y");
+        a.distributeMessage(TOPIC, "z");
+
+        assertEquals(List.of("x", "y", "z"), take(received, 3));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unbindsWhenLastSubscriberLeaves() throws InterruptedException {
+        var a = node();
+        var b = node();
+        var session = session();
+        b.addSession(session);
+        b.addSubscription(TOPIC, new SubscriptionHandler<>(session, new byte[] { 1 }, m -> {}));
+        b.addSubscription(TOPIC, new SubscriptionHandler<>(session, new byte[] { 2 }, m -> {}));
+        var markers = subscribe(a, MARKER_TOPIC, 3);
+        awaitSubscriptionCount(a, TOPIC, 1);
+        awaitSubscriptionCount(b, MARKER_TOPIC, 1);
+
+        b.removeSubscription(session, new byte[] { 1 });
+        // Anything B announced before the marker has been handled by the time A gets it
+        b.distributeMessage(MARKER_TOPIC, "marker");
+        assertEquals("marker", markers.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, a.subscriptionCount(TOPIC));
+
+        b.removeSubscription(session, new byte[] { 2 });
+        awaitSubscriptionCount(a, TOPIC, 0);
+        assertEquals(0, b.subscriptionCount(TOPIC));
+    }
+
+    @Test
+    public void lateJoiningNodeLearnsExistingBindings() throws InterruptedException {
+        var a = node();
+        var received = subscribe(a, TOPIC, 1);
+
+        var b = node();
+        awaitSubscriptionCount(b, TOPIC, 1);
+        b.distributeMessage(TOPIC, "x");
+
+        assertEquals("x", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    private BrokeredSubscriptionManager node() {
+        return node(new InMemorySubscriptionBroker(exchange));
+    }
+
+    private static BrokeredSubscriptionManager node(SubscriptionBroker broker) {
+        return new BrokeredSubscriptionManager(broker);
+    }
+
+    private static BlockingQueue<String> subscribe(SubscriptionManager manager, Topic<String> topic, int id) {
+        var session = session();
+        manager.addSession(session);
+        var received = new LinkedBlockingQueue<String>();
+        manager.addSubscription(topic, new SubscriptionHandler<>(session, new byte[] { (byte) id }, received::add));
+        return received;
+    }
+
+    private static List<String> take(BlockingQueue<String> queue, int count) throws InterruptedException {
+        var items = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            var item = queue.poll(5, TimeUnit.SECONDS);
+            if (item == null) fail("Got only " + items);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void awaitSubscriptionCount(SubscriptionManager manager, Topic<?> topic, int expected)
+            throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (manager.subscriptionCount(topic) != expected) {
+            if (System.nanoTime() > deadline) {
+                fail("Expected " + expected + " subscriptions, got " + manager.subscriptionCount(topic));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static Session session() {
+        var address = new InetSocketAddress("127.0.0.1", 1234);
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getRemoteAddress":
+                            return address;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "test-session";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Publishes everything twice, as a broker may after a connection recovery.
+     */
+    private static class RedeliveringBroker implements SubscriptionBroker {
+        private final SubscriptionBroker delegate;
+
+        RedeliveringBroker(SubscriptionBroker delegate) {
+            this.delegate = delegate;
+        }
+
+        public void start(BiConsumer<String, byte[]> receiver) {
+            delegate.start(receiver);
+        }
+
+        public void publish(String routingKey, byte[] body) {
+            delegate.publish(routingKey, body);
+            delegate.publish(routingKey, body);
+        }
+
+        public void bind(String routingKey) {
+            delegate.bind(routingKey);
+        }
+
+        public void unbind(String routingKey) {
+            delegate.unbind(routingKey);
+        }
+    }
+}
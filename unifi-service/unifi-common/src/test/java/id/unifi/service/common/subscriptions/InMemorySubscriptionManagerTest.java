@@ -0,0 +1,125 @@
+package id.unifi.service.common.subscriptions;
+
+import org.eclipse.jetty.websocket.api.Session;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class InMemorySubscriptionManagerTest {
+    private static final SubscriptionType<Integer> TYPE = new SubscriptionType<>() {};
+
+    @Test
+    public void distributesToSubscribersOfTopicUntilUnsubscribed() {
+        var manager = new InMemorySubscriptionManager();
+        var session = session(new AtomicBoolean(true));
+        manager.addSession(session);
+        var topic = new Topic<>(TYPE, "a");
+        var received = new ArrayList<Integer>();
+        manager.addSubscription(topic, new SubscriptionHandler<>(session, new byte[] { 1 }, received::add));
+
+        manager.distributeMessage(topic, 1);
+        manager.distributeMessage(new Topic<>(TYPE, "b"), 2);
+        manager.removeSubscription(session, new byte[] { 1 });
+        manager.distributeMessage(topic, 3);
+
+        assertEquals(List.of(1), received);
+        assertEquals(0, manager.subscriptionCount(topic));
+    }
+
+    @Test
+    public void dropsSubscriptionsOfClosedSessions() {
+        var manager = new InMemorySubscriptionManager();
+        var open = new AtomicBoolean(true);
+        var session = session(open);
+        manager.addSession(session);
+        var topic = new Topic<>(TYPE, "a");
+        var received = new ArrayList<Integer>();
+        manager.addSubscription(topic, new SubscriptionHandler<>(session, new byte[] { 1 }, received::add));
+
+        open.set(false);
+        manager.distributeMessage(topic, 1);
+
+        assertEquals(List.of(), received);
+        assertEquals(0, manager.subscriptionCount(topic));
+        manager.removeSession(session);
+    }
+
+    @Test
+    public void distributionIsUndisturbedBySubscriptionsComingAndGoing() throws InterruptedException {
+        var manager = new InMemorySubscriptionManager();
+        var topic = new Topic<>(TYPE, "a");
+        var messageCount = 20_000;
+
+        var stableSession = session(new AtomicBoolean(true));
+        manager.addSession(stableSession);
+        var received = Collections.synchronizedList(new ArrayList<Integer>());
+        manager.addSubscription(topic, new SubscriptionHandler<>(stableSession, new byte[] { 0 }, received::add));
+
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var churnersStarted = new CountDownLatch(4);
+        var done = new AtomicBoolean();
+        var churnersDone = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            var churnerId = (byte) t;
+            var session = session(new AtomicBoolean(true));
+            manager.addSession(session);
+            var thread = new Thread(() -> {
+                try {
+                    for (int i = 0; !done.get(); i++) {
+                        var correlationId = new byte[] { 1, churnerId, (byte) i };
+                        manager.addSubscription(topic, new SubscriptionHandler<>(session, correlationId, m -> {}));
+                        manager.removeSubscription(session, correlationId);
+                        if (i == 0) churnersStarted.countDown();
+                    }
+                    manager.removeSession(session);
+                } catch (Throwable e) {
+                    failures.add(e);
+                } finally {
+                    churnersDone.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        assertTrue(churnersStarted.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < messageCount; i++) manager.distributeMessage(topic, i);
+        done.set(true);
+        assertTrue(churnersDone.await(10, TimeUnit.SECONDS));
+
+        assertEquals(List.of(), List.copyOf(failures));
+        assertEquals(messageCount, received.size());
+        for (int i = 0; i < messageCount; i++) assertEquals(i, (int) received.get(i));
+        assertEquals(1, manager.subscriptionCount(topic));
+    }
+
+    private static Session session(AtomicBoolean open) {
+        var address = new InetSocketAddress("127.0.0.1", 1234);
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return open.get();
+                        case "getRemoteAddress":
+                            return address;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "test-session";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
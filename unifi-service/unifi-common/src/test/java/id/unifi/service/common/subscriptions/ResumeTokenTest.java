@@ -0,0 +1,27 @@
+package id.unifi.service.common.subscriptions;
+
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+public class ResumeTokenTest {
+    @Test
+    public void roundTripsThroughString() {
+        var token = ResumeToken.parse(new ResumeToken("5f3a", 42, Instant.ofEpochMilli(1_540_000_000_123L)).toString());
+
+        assertEquals("5f3a", token.streamId);
+        assertEquals(42, token.sequence);
+        assertEquals(Instant.ofEpochMilli(1_540_000_000_123L), token.time);
+    }
+
+    @Test
+    public void rejectsMalformedTokens() {
+        for (var token : List.of("", "5f3a", "5f3a.1", ".1.2", "5f3a.x.2", "5f3a.1.x", "5f3a.1.2.3")) {
+            assertThrows(InvalidParameterFormat.class, () -> ResumeToken.parse(token), token);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package id.unifi.service.common.subscriptions;
+
+import com.codahale.metrics.MetricRegistry;
+import id.unifi.service.common.api.SharedPayload;
+import org.eclipse.jetty.websocket.api.Session;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static java.util.stream.Collectors.toList;
+
+public class TopicBatcherTest {
+    private static final SubscriptionType<TopicBatch<Integer>> TYPE = new SubscriptionType<>() {};
+    private static final Topic<TopicBatch<Integer>> TOPIC = new Topic<>(TYPE, "a");
+
+    @Test
+    public void distributesFullBatchesInOrder() throws InterruptedException {
+        var manager = new RecordingSubscriptionManager();
+        var batcher = batcher(manager, 10);
+
+        var first = publishBatch(batcher, manager, 1, 2);
+        var second = publishBatch(batcher, manager, 3, 4);
+        assertEquals(List.of(1, 2), first.payload.value);
+        assertEquals(List.of(3, 4), second.payload.value);
+        assertEquals(first.token.sequence + 1, second.token.sequence);
+        assertEquals(first.token.streamId, second.token.streamId);
+    }
+
+    @Test
+    public void resumesWithBatchesMissedSinceToken() throws InterruptedException {
+        var manager = new RecordingSubscriptionManager();
+        var batcher = batcher(manager, 10);
+        var first = publishBatch(batcher, manager, 1, 2);
+        publishBatch(batcher, manager, 3, 4);
+        var third = publishBatch(batcher, manager, 5, 6);
+
+        var resumed = resume(batcher, first.resumeToken());
+
+        assertNotNull(resumed.missed);
+        assertEquals(List.of(List.of(3, 4), List.of(5, 6)),
+                resumed.missed.stream().map(b -> b.payload.value).collect(toList()));
+        assertEquals(third.token.sequence, ResumeToken.parse(resumed.currentToken).sequence);
+        assertNotNull(resumed.since);
+        assertEquals(first.token.time.toEpochMilli(), resumed.since.toEpochMilli());
+    }
+
+    @Test
+    public void cantResumeFromBatchesNoLongerHeld() throws InterruptedException {
+        var manager = new RecordingSubscriptionManager();
+        var batcher = batcher(manager, 1);
+        var first = publishBatch(batcher, manager, 1, 2);
+        publishBatch(batcher, manager, 3, 4);
+        var third = publishBatch(batcher, manager, 5, 6);
+
+        assertNull(resume(batcher, first.resumeToken()).missed);
+        assertEquals(List.of(), resume(batcher, third.resumeToken()).missed);
+        assertNull(resume(batcher, "0123abcd.1." + first.token.time.toEpochMilli()).missed);
+    }
+
+    @Test
+    public void newSubscriberGetsCurrentPositionOnly() {
+        var batcher = batcher(new RecordingSubscriptionManager(), 10);
+
+        var resumed = resume(batcher, null);
+
+        assertNull(resumed.missed);
+        assertNull(resumed.since);
+        assertEquals(0, ResumeToken.parse(resumed.currentToken).sequence);
+    }
+
+    @Test
+    public void numbersRelayedBatchesInLocalStream() throws InterruptedException {
+        var manager = new RecordingSubscriptionManager();
+        var batcher = batcher(manager, 10);
+        var local = publishBatch(batcher, manager, 1, 2);
+
+        var relayed = new ArrayList<TopicBatch<Integer>>();
+        var remote = new TopicBatch<>(new ResumeToken("0123abcd", 7, Instant.now()), SharedPayload.of(List.of(3)));
+        assertNotNull(manager.relay);
+        manager.relay.relay(TOPIC, remote, relayed::add);
+
+        assertEquals(1, relayed.size());
+        assertEquals(List.of(3), relayed.get(0).payload.value);
+        assertEquals(local.token.streamId, relayed.get(0).token.streamId);
+        assertEquals(local.token.sequence + 1, relayed.get(0).token.sequence);
+
+        var missed = resume(batcher, local.resumeToken()).missed;
+        assertNotNull(missed);
+        assertEquals(List.of(List.of(3)), missed.stream().map(b -> b.payload.value).collect(toList()));
+    }
+
+    private static TopicBatcher<Integer> batcher(SubscriptionManager manager, int replayBatches) {
+        // Distributed only as full batches, as the window never comes round
+        return new TopicBatcher<>("test", manager, Duration.ofHours(1), 2, replayBatches, Duration.ofHours(1),
+                new MetricRegistry(), "test");
+    }
+
+    private static TopicBatch<Integer> publishBatch(TopicBatcher<Integer> batcher,
+                                                   RecordingSubscriptionManager manager,
+                                                   int first,
+                                                   int second) throws InterruptedException {
+        batcher.publish(TOPIC, first);
+        batcher.publish(TOPIC, second);
+        return manager.next();
+    }
+
+    private static Resumed resume(TopicBatcher<Integer> batcher, @Nullable String token) {
+        var resumed = new Resumed();
+        batcher.resume(TOPIC, token, (missed, currentToken, since) -> {
+            resumed.missed = missed;
+            resumed.currentToken = currentToken;
+            resumed.since = since;
+        });
+        return resumed;
+    }
+
+    private static class Resumed {
+        @Nullable List<TopicBatch<Integer>> missed;
+        String currentToken;
+        @Nullable Instant since;
+    }
+
+    private static class RecordingSubscriptionManager implements SubscriptionManager {
+        final BlockingQueue<TopicBatch<Integer>> distributed = new LinkedBlockingQueue<>();
+        volatile @Nullable Relay<TopicBatch<Integer>> relay;
+
+        TopicBatch<Integer> next() throws InterruptedException {
+            var batch = distributed.poll(5, TimeUnit.SECONDS);
+            assertNotNull(batch);
+            return batch;
+        }
+
+        public <T> void addSubscription(Topic<T> topic, SubscriptionHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void removeSubscription(Session session, byte[] correlationId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> void distributeMessage(Topic<T> topic, T message) {
+            distributed.add((TopicBatch<Integer>) message);
+        }
+
+        public int subscriptionCount(Topic<?> topic) {
+            return 1;
+        }
+
+        public void addSession(Session session) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void removeSession(Session session) {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> void setRelay(SubscriptionType<T> type, Relay<T> relay) {
+            if (this.relay == null) this.relay = (Relay<TopicBatch<Integer>>) (Relay<?>) relay;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package id.unifi.service.common.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class BatchBufferTest {
+    private static final Duration LONG_TIMEOUT = Duration.ofMinutes(1);
+
+    @Test
+    public void flushesFullBatchWithoutWaitingForTimeout() throws InterruptedException {
+        var batches = new LinkedBlockingQueue<List<Integer>>();
+        var buffer = BatchBuffer.<Integer>create("full", 3, LONG_TIMEOUT, batches::add);
+
+        buffer.put(1);
+        buffer.put(2);
+        buffer.put(3);
+
+        assertEquals(List.of(1, 2, 3), batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushesPartialBatchAfterTimeout() throws InterruptedException {
+        var batches = new LinkedBlockingQueue<List<Integer>>();
+        var buffer = BatchBuffer.<Integer>create("partial", 100, Duration.ofMillis(50), batches::add);
+
+        buffer.put(1);
+
+        assertEquals(List.of(1), batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void peeksAtLongestWaitingItem() throws InterruptedException {
+        var buffer = BatchBuffer.<Integer>create("peek", 100, LONG_TIMEOUT, batch -> {});
+        assertNull(buffer.peek(0));
+
+        buffer.put(1);
+        buffer.put(2);
+
+        assertEquals(Integer.valueOf(1), buffer.peek(0));
+    }
+
+    @Test
+    public void offerGivesUpWhenFull() throws InterruptedException {
+        var flushing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var batches = new LinkedBlockingQueue<List<Integer>>();
+        var buffer = BatchBuffer.<Integer>create("offer", 2, Duration.ofMillis(10), batch -> {
+            flushing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(batch);
+        });
+
+        // The flusher holds on to the first batch while the queue fills up behind it
+        assertTrue(buffer.offer(1));
+        assertTrue(flushing.await(5, TimeUnit.SECONDS));
+        assertTrue(buffer.offer(2));
+        assertTrue(buffer.offer(3));
+        assertFalse(buffer.offer(4));
+        assertEquals(2, buffer.size());
+
+        release.countDown();
+        assertEquals(List.of(1), batches.poll(5, TimeUnit.SECONDS));
+        assertEquals(List.of(2, 3), batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsOrderOfItemsWithEqualKeys() throws InterruptedException {
+        var itemCount = 10_000;
+        var received = Collections.synchronizedList(new ArrayList<int[]>());
+        var done = new CountDownLatch(itemCount);
+        var buffer = BatchBuffer.<int[]>builder("ordered", 64, Duration.ofMillis(10))
+                .flushers(4)
+                .orderingKey(item -> item[0])
+                .build(batch -> batch.forEach(item -> {
+                    received.add(item);
+                    done.countDown();
+                }));
+
+        for (int i = 0; i < itemCount; i++) buffer.put(new int[] { i % 7, i });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        var lastByKey = new HashMap<Integer, Integer>();
+        synchronized (received) {
+            for (var item : received) {
+                var last = lastByKey.put(item[0], item[1]);
+                assertTrue(last == null || last < item[1], "Out of order for key " + item[0]);
+            }
+        }
+        assertEquals(itemCount, received.size());
+    }
+
+    @Test
+    public void workerSurvivesFailedBatch() throws InterruptedException {
+        var failed = new LinkedBlockingQueue<List<Integer>>();
+        var flushed = new LinkedBlockingQueue<List<Integer>>();
+        var buffer = BatchBuffer.<Integer>builder("failing", 1, LONG_TIMEOUT)
+                .failureHandler(failed::add)
+                .build(batch -> {
+                    if (batch.contains(1)) throw new IllegalStateException("Bad batch");
+                    flushed.add(batch);
+                });
+
+        buffer.put(1);
+        buffer.put(2);
+
+        assertEquals(List.of(1), failed.poll(5, TimeUnit.SECONDS));
+        assertEquals(List.of(2), flushed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void putDoesNotBlockForeverAfterFailedBatches() throws InterruptedException {
+        var capacity = 2;
+        var attempts = new CountDownLatch(capacity * 5);
+        var buffer = BatchBuffer.<Integer>create("always-failing", capacity, Duration.ofMillis(10), batch -> {
+            batch.forEach(item -> attempts.countDown());
+            throw new IllegalStateException("Always fails");
+        });
+
+        var putter = new Thread(() -> {
+            try {
+                for (int i = 0; i < capacity * 5; i++) buffer.put(i);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        putter.start();
+
+        assertTrue(attempts.await(10, TimeUnit.SECONDS));
+        putter.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(putter.isAlive());
+        assertEquals(0, buffer.size());
+    }
+}
@@ -0,0 +1,25 @@
+CREATE TABLE core.presence_hour (
+  client_id         CITEXT NOT NULL,
+  client_reference  CITEXT NOT NULL,
+  site_id           CITEXT NOT NULL,
+  zone_id           CITEXT NOT NULL,
+  hour              TIMESTAMP WITH TIME ZONE NOT NULL,
+  first_seen        TIMESTAMP WITH TIME ZONE NOT NULL,
+  last_seen         TIMESTAMP WITH TIME ZONE NOT NULL,
+  detection_count   INTEGER NOT NULL,
+
+  PRIMARY KEY (client_id, client_reference, site_id, zone_id, hour),
+  CONSTRAINT fk_presence_hour_to_holder
+    FOREIGN KEY (client_id, client_reference)
+    REFERENCES core.holder (client_id, client_reference),
+  CONSTRAINT fk_presence_hour_to_zone
+    FOREIGN KEY (client_id, site_id, zone_id)
+    REFERENCES core.zone,
+
+  CHECK (date_trunc('hour', hour) = hour),
+  CHECK (first_seen >= hour AND last_seen < hour + INTERVAL '1 hour'),
+  CHECK (last_seen >= first_seen),
+  CHECK (detection_count > 0)
+);
+
+CREATE INDEX ON core.presence_hour (client_id, site_id, zone_id, hour);
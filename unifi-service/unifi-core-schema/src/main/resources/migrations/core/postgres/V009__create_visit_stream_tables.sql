@@ -0,0 +1,26 @@
+CREATE TABLE core.visit_checkpoint (
+  client_id          CITEXT NOT NULL,
+  client_reference   CITEXT NOT NULL,
+  site_id            CITEXT NOT NULL,
+  visit_day          DATE NOT NULL,
+  start_time         TIMESTAMP WITH TIME ZONE NOT NULL,
+  end_time           TIMESTAMP WITH TIME ZONE NOT NULL,
+
+  PRIMARY KEY (client_id, client_reference, site_id),
+  CONSTRAINT fk_visit_checkpoint_to_site
+    FOREIGN KEY (client_id, site_id)
+    REFERENCES core.site,
+
+  CHECK (end_time >= start_time)
+);
+
+CREATE TABLE core.visit_late_day (
+  client_id          CITEXT NOT NULL,
+  site_id            CITEXT NOT NULL,
+  visit_day          DATE NOT NULL,
+
+  PRIMARY KEY (client_id, site_id, visit_day),
+  CONSTRAINT fk_visit_late_day_to_site
+    FOREIGN KEY (client_id, site_id)
+    REFERENCES core.site
+);
@@ -0,0 +1,4 @@
+-- Detections are appended in roughly time order, which BRIN handles at a fraction of the B-tree size, for the wide
+-- range scans of archiving; the B-tree stays for keyset reads, which fetch small windows in detection time order
+CREATE INDEX rfid_detection_detection_time_brin_idx ON core.rfid_detection
+  USING BRIN (detection_time) WITH (pages_per_range = 32);
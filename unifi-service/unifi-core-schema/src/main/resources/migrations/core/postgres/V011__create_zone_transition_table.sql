@@ -0,0 +1,24 @@
+CREATE TABLE core.zone_transition (
+  transition_id      BIGSERIAL NOT NULL,
+  client_id          CITEXT NOT NULL,
+  client_reference   CITEXT NOT NULL,
+  site_id            CITEXT NOT NULL,
+  zone_id            CITEXT NOT NULL,
+  transition_time    TIMESTAMP WITH TIME ZONE NOT NULL,
+  transition         VARCHAR(5) NOT NULL,
+
+  PRIMARY KEY (transition_id),
+  CONSTRAINT fk_zone_transition_to_holder
+    FOREIGN KEY (client_id, client_reference)
+    REFERENCES core.holder (client_id, client_reference),
+  CONSTRAINT fk_zone_transition_to_zone
+    FOREIGN KEY (client_id, site_id, zone_id)
+    REFERENCES core.zone,
+
+  CHECK (transition IN ('enter', 'exit'))
+);
+
+-- Transitions are paged through in transition_id (record) order per site
+CREATE INDEX ON core.zone_transition (client_id, site_id, transition_id);
+-- For narrow time ranges, where walking the site's transitions in ID order would read far more than it returns
+CREATE INDEX ON core.zone_transition (client_id, site_id, transition_time, transition_id);
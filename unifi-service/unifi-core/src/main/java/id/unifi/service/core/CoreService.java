@@ -8,10 +8,12 @@ import com.statemachinesystems.envy.Nullable;
 import com.statemachinesystems.envy.Prefix;
 import id.unifi.service.attendance.AttendanceMatcher;
 import id.unifi.service.attendance.AttendanceProcessor;
+import id.unifi.service.attendance.AttendanceRecomputer;
 import static id.unifi.service.attendance.db.Attendance.ATTENDANCE;
 import id.unifi.service.common.api.ComponentHolder;
 import id.unifi.service.common.api.Dispatcher;
 import id.unifi.service.common.api.HttpServer;
+import id.unifi.service.common.api.OutboundQueue;
 import id.unifi.service.common.api.access.AccessManager;
 import static id.unifi.service.common.api.Protocol.JSON;
 import static id.unifi.service.common.api.Protocol.MSGPACK;
@@ -26,20 +28,34 @@ import id.unifi.service.common.operator.OperatorSessionData;
 import id.unifi.service.common.operator.SessionTokenStore;
 import id.unifi.service.common.provider.EmailSenderProvider;
 import id.unifi.service.common.provider.LoggingEmailSender;
+import id.unifi.service.common.mq.MqUtils;
+import id.unifi.service.common.subscriptions.BrokeredSubscriptionManager;
 import id.unifi.service.common.subscriptions.InMemorySubscriptionManager;
+import id.unifi.service.common.subscriptions.RabbitSubscriptionBroker;
 import id.unifi.service.common.subscriptions.SubscriptionManager;
 import id.unifi.service.common.util.MetricUtils;
 import id.unifi.service.common.version.VersionInfo;
 import id.unifi.service.core.agents.IdentityService;
+import id.unifi.service.core.archive.DetectionArchive;
+import id.unifi.service.core.archive.DetectionArchiver;
+import id.unifi.service.core.archive.DetectionHistory;
 import static id.unifi.service.core.db.Core.CORE;
 import id.unifi.service.core.email.SmtpEmailSenderProvider;
 import id.unifi.service.core.permissions.DefaultAccessManager;
+import id.unifi.service.core.permissions.StaffAccess;
 import id.unifi.service.core.processing.DetectionMatcher;
 import id.unifi.service.core.processing.DetectionProcessor;
+import id.unifi.service.core.processing.DetectionReplayer;
 import id.unifi.service.core.processing.VisitProcessor;
 import id.unifi.service.core.processing.VisitProcessingScheduler;
 import id.unifi.service.core.processing.consumer.DetectionPersistence;
+import id.unifi.service.core.processing.consumer.PresenceAggregator;
+import id.unifi.service.core.processing.consumer.VisitStreamProcessor;
 import id.unifi.service.core.processing.listener.DetectionSubscriber;
+import id.unifi.service.core.processing.listener.DetectionThrottle;
+import id.unifi.service.core.processing.listener.LastKnownDetectionStore;
+import id.unifi.service.core.processing.listener.OccupancyEngine;
+import id.unifi.service.core.processing.listener.ZoneTransitionDetector;
 import id.unifi.service.core.sms.AwsSmsSenderProvider;
 import id.unifi.service.core.sms.LoggingSmsSenderProvider;
 import id.unifi.service.core.sms.SmsSenderProvider;
@@ -51,6 +67,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -89,6 +107,66 @@ public class CoreService {
 
         @Default("false")
         boolean permissionsEnabled();
+
+        @Nullable
+        String staffClientId();
+
+        @Nullable
+        String detectionArchiveDir();
+
+        @Default("90")
+        int detectionArchiveAfterDays();
+
+        @Default("5000")
+        int detectionReplayMaxRate();
+
+        @Default("100")
+        int detectionSubscriptionWindowMillis();
+
+        @Default("1000")
+        int detectionSubscriptionMaxBatchSize();
+
+        @Default("1000")
+        int detectionSubscriptionThrottleMillis();
+
+        @Nullable
+        String detectionSubscriptionClientThrottleMillis();
+
+        @Default("256")
+        int detectionSubscriptionReplayBatches();
+
+        @Default("300")
+        int detectionSubscriptionResumeRetentionSeconds();
+
+        @Default("86400")
+        int detectionLastKnownTtlSeconds();
+
+        @Default("100000")
+        int detectionLastKnownMaxPerClient();
+
+        @Nullable
+        String detectionLastKnownCheckpointFile();
+
+        @Default("300")
+        int occupancyDwellSeconds();
+
+        @Default("1000")
+        int occupancyDebounceMillis();
+
+        @Default("2")
+        int zoneTransitionEnterDetections();
+
+        @Default("60")
+        int zoneTransitionExitTimeoutSeconds();
+
+        @Default("false")
+        boolean brokeredSubscriptions();
+
+        @Default("10000")
+        int webSocketQueueMaxMessages();
+
+        @Default("67108864")
+        long webSocketQueueMaxBytes();
     }
 
     public static void main(String[] args) throws Exception {
@@ -113,22 +191,61 @@ public class CoreService {
         var dbProvider = new DatabaseProvider();
         dbProvider.bySchema(CORE, ATTENDANCE); // TODO: Migrate in a more normal way
 
-        var subscriptionManager = new InMemorySubscriptionManager();
-        var detectionSubscriber = new DetectionSubscriber(subscriptionManager);
-        var detectionPersistence = new DetectionPersistence(dbProvider);
-
-        var attendanceMatcher = new AttendanceMatcher(dbProvider);
-        var attendanceProcessor = new AttendanceProcessor(dbProvider, attendanceMatcher);
+        SubscriptionManager subscriptionManager = config.brokeredSubscriptions()
+                ? new BrokeredSubscriptionManager(new RabbitSubscriptionBroker(MqUtils.connect(config.mq())))
+                : new InMemorySubscriptionManager();
+        var lastKnownDetectionStore = new LastKnownDetectionStore(
+                Duration.ofSeconds(config.detectionLastKnownTtlSeconds()),
+                config.detectionLastKnownMaxPerClient(),
+                config.detectionLastKnownCheckpointFile() != null
+                        ? Paths.get(config.detectionLastKnownCheckpointFile())
+                        : null,
+                registry);
+        lastKnownDetectionStore.start();
+        var detectionThrottle = new DetectionThrottle(
+                Duration.ofMillis(config.detectionSubscriptionThrottleMillis()),
+                DetectionThrottle.parseClientIntervals(config.detectionSubscriptionClientThrottleMillis()),
+                registry);
+        var detectionSubscriber = new DetectionSubscriber(
+                dbProvider, subscriptionManager, lastKnownDetectionStore, detectionThrottle, registry,
+                Duration.ofMillis(config.detectionSubscriptionWindowMillis()), config.detectionSubscriptionMaxBatchSize(),
+                config.detectionSubscriptionReplayBatches(),
+                Duration.ofSeconds(config.detectionSubscriptionResumeRetentionSeconds()));
+        var occupancyEngine = new OccupancyEngine(subscriptionManager,
+                Duration.ofSeconds(config.occupancyDwellSeconds()), Duration.ofMillis(config.occupancyDebounceMillis()),
+                registry);
+        var zoneTransitionDetector = new ZoneTransitionDetector(dbProvider, subscriptionManager, registry,
+                config.zoneTransitionEnterDetections(), Duration.ofSeconds(config.zoneTransitionExitTimeoutSeconds()),
+                Duration.ofMillis(config.detectionSubscriptionWindowMillis()),
+                config.detectionSubscriptionMaxBatchSize());
+        var detectionPersistence = new DetectionPersistence(dbProvider, registry, new PresenceAggregator());
+        var visitStreamProcessor = new VisitStreamProcessor(dbProvider, registry);
+
+        var attendanceMatcher = new AttendanceMatcher(dbProvider, registry);
+        var attendanceProcessor = new AttendanceProcessor(dbProvider, attendanceMatcher, registry);
+        var attendanceRecomputer = new AttendanceRecomputer(dbProvider, attendanceProcessor,
+                config.detectionArchiveDir() != null ? config.detectionArchiveAfterDays() : null, registry);
+        attendanceRecomputer.start();
 
         var detectionMatcher = new DetectionMatcher(dbProvider);
         var detectionProcessor = new DetectionProcessor(config.mq(), detectionMatcher,
-                Set.of(detectionPersistence, attendanceProcessor),
-                Set.of(detectionSubscriber));
+                Set.of(detectionPersistence, visitStreamProcessor, attendanceProcessor),
+                Set.of(detectionSubscriber, occupancyEngine, zoneTransitionDetector));
 
         var visitProcessor = new VisitProcessor(dbProvider);
-        var visitScheduler = new VisitProcessingScheduler(dbProvider, visitProcessor);
+        var visitScheduler = new VisitProcessingScheduler(visitProcessor);
         visitScheduler.scheduleVisitJob();
 
+        DetectionArchive detectionArchive = null;
+        if (config.detectionArchiveDir() != null) {
+            detectionArchive = new DetectionArchive(Paths.get(config.detectionArchiveDir()));
+            var archiver = new DetectionArchiver(dbProvider, detectionArchive, config.detectionArchiveAfterDays());
+            archiver.scheduleArchiveJob();
+        }
+        var detectionHistory = new DetectionHistory(dbProvider, detectionArchive);
+        var detectionReplayer =
+                new DetectionReplayer(detectionHistory, detectionProcessor, config.detectionReplayMaxRate());
+
         var emailSenderProvider = config.smtpServer() != null
                 ? new SmtpEmailSenderProvider(config.mq())
                 : new LoggingEmailSender();
@@ -144,19 +261,28 @@ public class CoreService {
         if (!config.permissionsEnabled())
             log.warn("Permission checks are disabled");
 
-        var componentHolder = new ComponentHolder(Map.of(
-                MetricRegistry.class, registry,
-                DatabaseProvider.class, dbProvider,
-                MqConfig.class, config.mq(),
-                AccessManager.class, accessManager,
-                SubscriptionManager.class, subscriptionManager,
-                DetectionSubscriber.class, detectionSubscriber,
-                DetectionProcessor.class, detectionProcessor,
-                SessionTokenStore.class, new InMemorySessionTokenStore(864000),
-                EmailSenderProvider.class, emailSenderProvider,
-                SmsSenderProvider.class, smsSenderProvider));
-
-        startApiService(config.apiServiceListenEndpoint(), componentHolder, subscriptionManager, accessManager);
+        var componentHolder = new ComponentHolder(Map.ofEntries(
+                Map.entry(MetricRegistry.class, registry),
+                Map.entry(DatabaseProvider.class, dbProvider),
+                Map.entry(AttendanceMatcher.class, attendanceMatcher),
+                Map.entry(AttendanceRecomputer.class, attendanceRecomputer),
+                Map.entry(MqConfig.class, config.mq()),
+                Map.entry(AccessManager.class, accessManager),
+                Map.entry(StaffAccess.class, new StaffAccess(config.staffClientId())),
+                Map.entry(SubscriptionManager.class, subscriptionManager),
+                Map.entry(DetectionSubscriber.class, detectionSubscriber),
+                Map.entry(OccupancyEngine.class, occupancyEngine),
+                Map.entry(ZoneTransitionDetector.class, zoneTransitionDetector),
+                Map.entry(DetectionProcessor.class, detectionProcessor),
+                Map.entry(DetectionHistory.class, detectionHistory),
+                Map.entry(DetectionReplayer.class, detectionReplayer),
+                Map.entry(SessionTokenStore.class, new InMemorySessionTokenStore(864000)),
+                Map.entry(EmailSenderProvider.class, emailSenderProvider),
+                Map.entry(SmsSenderProvider.class, smsSenderProvider)));
+
+        var outboundLimits = new OutboundQueue.Limits(config.webSocketQueueMaxMessages(), config.webSocketQueueMaxBytes());
+        startApiService(
+                config.apiServiceListenEndpoint(), componentHolder, subscriptionManager, accessManager, outboundLimits);
         startAgentService(componentHolder, config.agentServiceListenEndpoint());
     }
 
@@ -182,7 +308,8 @@ public class CoreService {
     private static void startApiService(HostAndPort apiEndpoint,
                                         ComponentHolder componentHolder,
                                         SubscriptionManager subscriptionManager,
-                                        AccessManager<OperatorSessionData> accessManager) throws Exception {
+                                        AccessManager<OperatorSessionData> accessManager,
+                                        OutboundQueue.Limits outboundLimits) throws Exception {
         var registry = new ServiceRegistry(
                 Map.of(
                         "core", "id.unifi.service.core.services",
@@ -198,7 +325,8 @@ public class CoreService {
                         .flatMap(t -> sessionTokenStore.get(t).map(op -> new OperatorSessionData(op, t)))
                         .orElseGet(OperatorSessionData::new));
         var apiServerSocket = createUnresolved(apiEndpoint.getHost(), apiEndpoint.getPort());
-        var apiServer = new HttpServer(apiServerSocket, "/service", dispatcher, List.of(JSON, MSGPACK));
+        var apiServer = new HttpServer(apiServerSocket, "/service", dispatcher, List.of(JSON, MSGPACK),
+                outboundLimits, componentHolder.get(MetricRegistry.class));
         apiServer.start(true);
     }
 }
@@ -0,0 +1,105 @@
+package id.unifi.service.core.archive;
+
+import id.unifi.service.common.detection.Detection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Directory of archived detections, one file per client per UTC day.
+ */
+public class DetectionArchive {
+    private static final String FILE_SUFFIX = ".detections.gz";
+    private static final String STAGED_SUFFIX = ".staged";
+
+    private final Path root;
+
+    public DetectionArchive(Path root) {
+        this.root = root;
+    }
+
+    public boolean hasDay(String clientId, LocalDate day) {
+        return Files.exists(dayPath(clientId, day));
+    }
+
+    /**
+     * Reads a day of a client's detections, sorted by detectable and time.
+     */
+    public List<Detection> readDay(String clientId, LocalDate day) throws IOException {
+        var path = dayPath(clientId, day);
+        return Files.exists(path) ? DetectionArchiveFile.read(path) : List.of();
+    }
+
+    /**
+     * Writes a day's file merged with the detections under a staged name, keeping already archived detections with
+     * the same key. Readers don't see the result until it's published.
+     */
+    public synchronized void stageDay(String clientId, LocalDate day, List<Detection> detections) throws IOException {
+        if (detections.isEmpty()) return;
+
+        var path = dayPath(clientId, day);
+        Files.createDirectories(path.getParent());
+
+        var merged = new LinkedHashMap<List<Object>, Detection>();
+        for (var d : readDay(clientId, day)) merged.put(key(d), d);
+        for (var d : detections) merged.putIfAbsent(key(d), d);
+
+        DetectionArchiveFile.write(stagedPath(path), new ArrayList<>(merged.values()));
+    }
+
+    /**
+     * Replaces a day's file with its staged version, if there is one.
+     */
+    public synchronized void publishDay(String clientId, LocalDate day) throws IOException {
+        publish(dayPath(clientId, day));
+    }
+
+    /**
+     * Publishes files staged by a run that stopped before publishing them.
+     *
+     * A staged file is a superset of the published one, so publishing it is safe whether or not the rows it was
+     * staged for were deleted from {@code rfid_detection}.
+     */
+    public synchronized void publishStagedDays() throws IOException {
+        if (!Files.isDirectory(root)) return;
+        try (var clientDirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (var clientDir : clientDirs) {
+                try (var staged = Files.newDirectoryStream(clientDir, "*" + FILE_SUFFIX + STAGED_SUFFIX)) {
+                    for (var stagedPath : staged) {
+                        var name = stagedPath.getFileName().toString();
+                        publish(clientDir.resolve(name.substring(0, name.length() - STAGED_SUFFIX.length())));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void publish(Path path) throws IOException {
+        var stagedPath = stagedPath(path);
+        if (Files.exists(stagedPath)) Files.move(stagedPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private static Path stagedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + STAGED_SUFFIX);
+    }
+
+    private Path dayPath(String clientId, LocalDate day) {
+        // Client IDs are case-insensitive
+        return root.resolve(clientId.toLowerCase(Locale.ROOT)).resolve(day + FILE_SUFFIX);
+    }
+
+    /**
+     * Identity of a detection; the same detection archived and still in {@code rfid_detection} has the same key.
+     */
+    static List<Object> key(Detection d) {
+        return List.of(d.detectable, d.readerSn, d.portNumber, d.detectionTime);
+    }
+}
@@ -0,0 +1,182 @@
+package id.unifi.service.core.archive;
+
+import id.unifi.service.common.detection.DetectableType;
+import id.unifi.service.common.detection.Detection;
+import id.unifi.service.common.types.pk.DetectablePK;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.time.Instant;
+import static java.time.temporal.ChronoUnit.MICROS;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed columnar file holding one client's detections.
+ *
+ * Detections are sorted by detectable and time. Detectable and reader IDs are dictionary-encoded, times are stored
+ * as microsecond deltas from the previous detection, and every column is written as a run of varints so that
+ * similar values sit next to each other for the compressor.
+ */
+final class DetectionArchiveFile {
+    private static final int MAGIC = 0x55444152; // "UDAR"
+    private static final int VERSION = 1;
+
+    static final Comparator<Detection> ARCHIVE_ORDER = Comparator
+            .<Detection, String>comparing(d -> d.detectable.detectableId)
+            .thenComparing(d -> d.detectable.detectableType)
+            .thenComparing(d -> d.detectionTime)
+            .thenComparing(d -> d.readerSn)
+            .thenComparingInt(d -> d.portNumber);
+
+    private DetectionArchiveFile() {}
+
+    static void write(Path path, List<Detection> detections) throws IOException {
+        var sorted = new ArrayList<>(detections);
+        sorted.sort(ARCHIVE_ORDER);
+
+        var detectableIds = new HashMap<DetectablePK, Integer>();
+        var detectables = new ArrayList<DetectablePK>();
+        var readerIds = new HashMap<String, Integer>();
+        var readers = new ArrayList<String>();
+        for (var detection : sorted) {
+            if (detectableIds.putIfAbsent(detection.detectable, detectables.size()) == null)
+                detectables.add(detection.detectable);
+            if (readerIds.putIfAbsent(detection.readerSn, readers.size()) == null)
+                readers.add(detection.readerSn);
+        }
+
+        var tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tmpPath))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarint(out, sorted.size());
+
+            writeVarint(out, detectables.size());
+            for (var detectable : detectables) {
+                out.writeUTF(detectable.clientId);
+                out.writeUTF(detectable.detectableId);
+                out.writeUTF(detectable.detectableType.toString());
+            }
+            writeVarint(out, readers.size());
+            for (var reader : readers) out.writeUTF(reader);
+
+            for (var d : sorted) writeVarint(out, detectableIds.get(d.detectable));
+            for (var d : sorted) writeVarint(out, readerIds.get(d.readerSn));
+            for (var d : sorted) writeVarint(out, d.portNumber);
+
+            var previousMicros = 0L;
+            for (var d : sorted) {
+                var micros = toMicros(d.detectionTime);
+                writeVarint(out, zigZag(micros - previousMicros));
+                previousMicros = micros;
+            }
+
+            // Zero marks a missing RSSI; present values are shifted up by one
+            for (var d : sorted) {
+                writeVarint(out, d.rssi.map(r -> zigZag(r.movePointRight(2).longValueExact()) + 1).orElse(0L));
+            }
+            for (var d : sorted) writeVarint(out, d.count);
+        }
+
+        Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads all detections in archive order.
+     */
+    static List<Detection> read(Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a detection archive: " + path);
+            var version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported archive version " + version + ": " + path);
+
+            var count = (int) readVarint(in);
+
+            var detectables = new DetectablePK[(int) readVarint(in)];
+            for (int i = 0; i < detectables.length; i++) {
+                detectables[i] = new DetectablePK(in.readUTF(), in.readUTF(), DetectableType.fromString(in.readUTF()));
+            }
+            var readers = new String[(int) readVarint(in)];
+            for (int i = 0; i < readers.length; i++) readers[i] = in.readUTF();
+
+            var detectableColumn = new int[count];
+            for (int i = 0; i < count; i++) detectableColumn[i] = (int) readVarint(in);
+            var readerColumn = new int[count];
+            for (int i = 0; i < count; i++) readerColumn[i] = (int) readVarint(in);
+            var portColumn = new int[count];
+            for (int i = 0; i < count; i++) portColumn[i] = (int) readVarint(in);
+            var timeColumn = new long[count];
+            var micros = 0L;
+            for (int i = 0; i < count; i++) {
+                micros += unZigZag(readVarint(in));
+                timeColumn[i] = micros;
+            }
+            var rssiColumn = new long[count];
+            for (int i = 0; i < count; i++) rssiColumn[i] = readVarint(in);
+
+            var detections = new ArrayList<Detection>(count);
+            for (int i = 0; i < count; i++) {
+                var rssi = rssiColumn[i] == 0
+                        ? Optional.<BigDecimal>empty()
+                        : Optional.of(BigDecimal.valueOf(unZigZag(rssiColumn[i] - 1), 2));
+                detections.add(new Detection(
+                        detectables[detectableColumn[i]],
+                        readers[readerColumn[i]],
+                        portColumn[i],
+                        fromMicros(timeColumn[i]),
+                        rssi,
+                        (int) readVarint(in)));
+            }
+            return detections;
+        }
+    }
+
+    private static long toMicros(Instant time) {
+        return MICROS.between(Instant.EPOCH, time);
+    }
+
+    private static Instant fromMicros(long micros) {
+        return Instant.EPOCH.plus(micros, MICROS);
+    }
+
+    private static long zigZag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unZigZag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        var value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            var b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,98 @@
+package id.unifi.service.core.archive;
+
+import com.coreoz.wisp.Scheduler;
+import com.coreoz.wisp.schedule.FixedHourSchedule;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.RFID_DETECTION;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import org.jooq.Field;
+import static org.jooq.impl.DSL.field;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import static java.time.ZoneOffset.UTC;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Moves detections older than the configured age from {@code rfid_detection} into the archive.
+ */
+public class DetectionArchiver {
+    private static final Logger log = LoggerFactory.getLogger(DetectionArchiver.class);
+    private static final Scheduler scheduler = new Scheduler();
+    private static final String ARCHIVE_TIME = "03:00";
+
+    private static final Field<Instant> DETECTION_DAY =
+            field("date_trunc('day', {0})", Instant.class, RFID_DETECTION.DETECTION_TIME);
+
+    private final Database db;
+    private final DetectionArchive archive;
+    private final int archiveAfterDays;
+
+    public DetectionArchiver(DatabaseProvider dbProvider, DetectionArchive archive, int archiveAfterDays) {
+        this.db = dbProvider.bySchema(CORE);
+        this.archive = archive;
+        this.archiveAfterDays = archiveAfterDays;
+    }
+
+    public void scheduleArchiveJob() {
+        log.info("Initializing detection archive scheduler, archiving after {} days", archiveAfterDays);
+        scheduler.schedule(this::archiveAgedDetections, new FixedHourSchedule(ARCHIVE_TIME, UTC));
+    }
+
+    public void archiveAgedDetections() {
+        try {
+            archive.publishStagedDays();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var cutoff = LocalDate.now(UTC).minusDays(archiveAfterDays).atStartOfDay(UTC).toInstant();
+        var clientDays = db.execute(sql -> sql.selectDistinct(RFID_DETECTION.CLIENT_ID, DETECTION_DAY)
+                .from(RFID_DETECTION)
+                .where(RFID_DETECTION.DETECTION_TIME.lt(cutoff))
+                .fetch());
+
+        log.info("Archiving {} client days of detections before {}", clientDays.size(), cutoff);
+        for (var clientDay : clientDays) {
+            archiveDay(clientDay.value1(), DetectionHistory.utcDay(clientDay.value2()));
+        }
+    }
+
+    private void archiveDay(String clientId, LocalDate day) {
+        var dayStart = day.atStartOfDay(UTC).toInstant();
+        var dayEnd = day.plusDays(1).atStartOfDay(UTC).toInstant();
+
+        // The delete only commits once the day is staged, and the staged file is only published after the commit. A
+        // staged file left behind by a failure is published by the next run, which can't lose rows whether or not
+        // the delete committed: readers skip archived rows that are still live.
+        var archived = db.execute(sql -> {
+            var detections = sql.deleteFrom(RFID_DETECTION)
+                    .where(RFID_DETECTION.CLIENT_ID.eq(clientId))
+                    .and(RFID_DETECTION.DETECTION_TIME.ge(dayStart))
+                    .and(RFID_DETECTION.DETECTION_TIME.lt(dayEnd))
+                    .returning()
+                    .fetch()
+                    .stream()
+                    .map(DetectionHistory::detectionFromRecord)
+                    .collect(toList());
+            try {
+                archive.stageDay(clientId, day, detections);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return detections.size();
+        });
+
+        try {
+            archive.publishDay(clientId, day);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Archived {} detections for {} on {}", archived, clientId, day);
+    }
+}
@@ -0,0 +1,39 @@
+package id.unifi.service.core.archive;
+
+import id.unifi.service.common.detection.DetectableType;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+
+/**
+ * Selects a client's detections within a time range, optionally narrowed to a site or zone, a holder or a
+ * detectable.
+ */
+public final class DetectionFilter {
+    public final String clientId;
+    public final Instant startTime;
+    public final Instant endTime;
+    public final @Nullable String siteId;
+    public final @Nullable String zoneId;
+    public final @Nullable String clientReference;
+    public final @Nullable String detectableId;
+    public final @Nullable DetectableType detectableType;
+
+    public DetectionFilter(String clientId,
+                           Instant startTime,
+                           Instant endTime,
+                           @Nullable String siteId,
+                           @Nullable String zoneId,
+                           @Nullable String clientReference,
+                           @Nullable String detectableId,
+                           @Nullable DetectableType detectableType) {
+        this.clientId = clientId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.siteId = siteId;
+        this.zoneId = zoneId;
+        this.clientReference = clientReference;
+        this.detectableId = detectableId;
+        this.detectableType = detectableType;
+    }
+}
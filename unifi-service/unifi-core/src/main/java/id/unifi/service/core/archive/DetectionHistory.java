@@ -0,0 +1,339 @@
+package id.unifi.service.core.archive;
+
+import id.unifi.service.common.detection.DetectableType;
+import id.unifi.service.common.detection.Detection;
+import id.unifi.service.common.types.pk.DetectablePK;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.ANTENNA;
+import static id.unifi.service.core.db.Tables.ASSIGNMENT;
+import static id.unifi.service.core.db.Tables.RFID_DETECTION;
+import id.unifi.service.core.db.tables.records.RfidDetectionRecord;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static id.unifi.service.dbcommon.DatabaseUtils.CITEXT;
+import static id.unifi.service.dbcommon.DatabaseUtils.isQueryCanceled;
+import org.jooq.Condition;
+import org.jooq.SortField;
+import static org.jooq.impl.DSL.*;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.HOURS;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Reads detections across the archive and the live {@code rfid_detection} table.
+ *
+ * A detection can briefly be both archived and live while a day is being archived; the live copy is read and the
+ * archived one skipped.
+ */
+public class DetectionHistory {
+    private static final int SEARCH_FETCH_SIZE = 1_000;
+
+    // Keyset order, matching DetectionKey.ORDER
+    private static final SortField<?>[] KEY_FIELDS = {
+            RFID_DETECTION.DETECTION_TIME.asc(),
+            RFID_DETECTION.DETECTABLE_ID.asc(),
+            RFID_DETECTION.DETECTABLE_TYPE.asc(),
+            RFID_DETECTION.READER_SN.asc(),
+            RFID_DETECTION.PORT_NUMBER.asc() };
+
+    private final Database db;
+    private final @Nullable DetectionArchive archive;
+
+    public DetectionHistory(DatabaseProvider dbProvider, @Nullable DetectionArchive archive) {
+        this.db = dbProvider.bySchema(CORE);
+        this.archive = archive;
+    }
+
+    /**
+     * Passes a client's detections in the time range to the consumer in chunks, in keyset order.
+     *
+     * Live detections are read a chunk at a time by keyset, each chunk in its own transaction, and the consumer is
+     * only called in between, so a slow consumer doesn't keep a transaction open. At most one archived day and one
+     * chunk are held in memory. The consumer may throw to stop reading.
+     */
+    public void forEachChunk(String clientId,
+                             Instant startTime,
+                             Instant endTime,
+                             int chunkSize,
+                             Consumer<List<Detection>> chunkConsumer) {
+        for (var day = utcDay(startTime); day.atStartOfDay(UTC).toInstant().isBefore(endTime); day = day.plusDays(1)) {
+            var dayStart = max(startTime, day.atStartOfDay(UTC).toInstant());
+            var dayEnd = min(endTime, day.plusDays(1).atStartOfDay(UTC).toInstant());
+
+            var archived = new ArrayList<Detection>();
+            for (var d : readArchivedDay(clientId, day)) {
+                if (!d.detectionTime.isBefore(dayStart) && d.detectionTime.isBefore(dayEnd)) archived.add(d);
+            }
+            archived.sort(Comparator.comparing(DetectionKey::of, DetectionKey.ORDER));
+
+            var chunker = new Chunker(chunkSize, chunkConsumer);
+            var archivedIndex = 0;
+            DetectionKey after = null;
+            List<Detection> page;
+            do {
+                var pageAfter = after;
+                page = db.execute(sql -> sql.selectFrom(RFID_DETECTION)
+                        .where(RFID_DETECTION.CLIENT_ID.eq(clientId))
+                        .and(RFID_DETECTION.DETECTION_TIME.ge(dayStart))
+                        .and(RFID_DETECTION.DETECTION_TIME.lt(dayEnd))
+                        .and(pageAfter == null ? trueCondition() : keyAfter(pageAfter))
+                        .orderBy(KEY_FIELDS)
+                        .limit(chunkSize)
+                        .fetch(DetectionHistory::detectionFromRecord));
+
+                for (var live : page) {
+                    var liveKey = DetectionKey.of(live);
+                    while (archivedIndex < archived.size()) {
+                        var archivedKey = DetectionKey.of(archived.get(archivedIndex));
+                        var order = DetectionKey.ORDER.compare(archivedKey, liveKey);
+                        if (order > 0) break;
+                        if (order < 0) chunker.add(archived.get(archivedIndex));
+                        archivedIndex++;
+                    }
+                    chunker.add(live);
+                }
+                if (!page.isEmpty()) after = DetectionKey.of(page.get(page.size() - 1));
+            } while (page.size() == chunkSize);
+
+            while (archivedIndex < archived.size()) chunker.add(archived.get(archivedIndex++));
+            chunker.flush();
+        }
+    }
+
+    /**
+     * Passes detections matching the filter to the consumer in keyset order, starting after the given key, until
+     * the consumer returns {@code false}, the deadline passes or the time range is exhausted.
+     *
+     * Detections are read an hour at a time so that each query only sorts a bounded window of rows. The deadline is
+     * checked before each window and bounds each window's statement timeout, so sparse ranges with few or no rows
+     * can't run on unchecked.
+     *
+     * @param deadlineNanos deadline on the {@link System#nanoTime()} clock
+     * @return key to resume the search after if it stopped before the end of the time range, null otherwise
+     */
+    public @Nullable DetectionKey search(DetectionFilter filter,
+                                         @Nullable DetectionKey after,
+                                         long deadlineNanos,
+                                         Predicate<Detection> consumer) {
+        var archivedFilter = archivedRowFilter(filter, after);
+
+        // Everything up to here has been either passed to the consumer or found not to match
+        var position = new DetectionKey[] { after };
+        Predicate<Detection> positionTracking = d -> {
+            if (!consumer.test(d)) return false;
+            position[0] = DetectionKey.of(d);
+            return true;
+        };
+
+        LocalDate archivedDay = null;
+        List<Detection> archivedDayDetections = List.of();
+        var from = after == null ? filter.startTime : max(filter.startTime, after.detectionTime);
+        while (from.isBefore(filter.endTime)) {
+            var windowStart = from;
+            var windowEnd = min(filter.endTime, from.truncatedTo(HOURS).plus(1, HOURS));
+
+            var windowPosition = DetectionKey.before(windowStart);
+            if (position[0] == null || DetectionKey.ORDER.compare(windowPosition, position[0]) > 0) {
+                position[0] = windowPosition;
+            }
+            var remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) return position[0];
+
+            var day = utcDay(windowStart);
+            if (!day.equals(archivedDay)) {
+                archivedDay = day;
+                archivedDayDetections = readArchivedDay(filter.clientId, day);
+            }
+            var archived = archivedDayDetections.stream()
+                    .filter(d -> !d.detectionTime.isBefore(windowStart) && d.detectionTime.isBefore(windowEnd))
+                    .filter(archivedFilter)
+                    .sorted(Comparator.comparing(DetectionKey::of, DetectionKey.ORDER))
+                    .collect(toList());
+
+            boolean completed;
+            try {
+                completed = db.execute(sql -> {
+                    sql.query(String.format("SET LOCAL statement_timeout = '%dms'", remainingMillis)).execute();
+                    try (var cursor = sql.selectFrom(RFID_DETECTION)
+                            .where(liveRowCondition(filter, after, windowStart, windowEnd))
+                            .orderBy(KEY_FIELDS)
+                            .fetchSize(SEARCH_FETCH_SIZE)
+                            .fetchLazy()) {
+                        var archivedIndex = 0;
+                        while (cursor.hasNext()) {
+                            var live = detectionFromRecord(cursor.fetchNext());
+                            var liveKey = DetectionKey.of(live);
+                            while (archivedIndex < archived.size()) {
+                                var archivedDetection = archived.get(archivedIndex);
+                                var order = DetectionKey.ORDER.compare(DetectionKey.of(archivedDetection), liveKey);
+                                if (order > 0) break;
+                                if (order < 0 && !positionTracking.test(archivedDetection)) return false;
+                                archivedIndex++;
+                            }
+                            if (!positionTracking.test(live)) return false;
+                        }
+                        while (archivedIndex < archived.size()) {
+                            if (!positionTracking.test(archived.get(archivedIndex++))) return false;
+                        }
+                    }
+                    return true;
+                });
+            } catch (RuntimeException e) {
+                if (!isQueryCanceled(e)) throw e;
+                completed = false;
+            }
+            if (!completed) return position[0];
+
+            from = windowEnd;
+        }
+        return null;
+    }
+
+    private Condition liveRowCondition(DetectionFilter filter,
+                                       @Nullable DetectionKey after,
+                                       Instant windowStart,
+                                       Instant windowEnd) {
+        var condition = RFID_DETECTION.CLIENT_ID.eq(filter.clientId)
+                .and(RFID_DETECTION.DETECTION_TIME.ge(windowStart))
+                .and(RFID_DETECTION.DETECTION_TIME.lt(windowEnd));
+
+        if (after != null) condition = condition.and(keyAfter(after));
+
+        if (filter.detectableId != null) {
+            condition = condition.and(RFID_DETECTION.DETECTABLE_ID.eq(filter.detectableId));
+        }
+        if (filter.detectableType != null) {
+            condition = condition.and(RFID_DETECTION.DETECTABLE_TYPE.eq(filter.detectableType.toString()));
+        }
+        if (filter.siteId != null) {
+            condition = condition.andExists(selectOne().from(ANTENNA)
+                    .where(ANTENNA.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID))
+                    .and(ANTENNA.READER_SN.eq(RFID_DETECTION.READER_SN))
+                    .and(ANTENNA.PORT_NUMBER.eq(RFID_DETECTION.PORT_NUMBER))
+                    .and(ANTENNA.SITE_ID.eq(filter.siteId))
+                    .and(filter.zoneId == null ? trueCondition() : ANTENNA.ZONE_ID.eq(filter.zoneId)));
+        }
+        if (filter.clientReference != null) {
+            condition = condition.andExists(selectOne().from(ASSIGNMENT)
+                    .where(ASSIGNMENT.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID))
+                    .and(ASSIGNMENT.DETECTABLE_ID.eq(RFID_DETECTION.DETECTABLE_ID))
+                    .and(ASSIGNMENT.DETECTABLE_TYPE.eq(RFID_DETECTION.DETECTABLE_TYPE))
+                    .and(ASSIGNMENT.CLIENT_REFERENCE.eq(filter.clientReference)));
+        }
+        return condition;
+    }
+
+    private static Condition keyAfter(DetectionKey after) {
+        return row(
+                RFID_DETECTION.DETECTION_TIME,
+                RFID_DETECTION.DETECTABLE_ID,
+                RFID_DETECTION.DETECTABLE_TYPE,
+                RFID_DETECTION.READER_SN,
+                RFID_DETECTION.PORT_NUMBER).gt(row(
+                val(after.detectionTime),
+                cast(after.detectableId, CITEXT),
+                val(after.detectableType.toString()),
+                val(after.readerSn),
+                val(after.portNumber)));
+    }
+
+    private Predicate<Detection> archivedRowFilter(DetectionFilter filter, @Nullable DetectionKey after) {
+        Predicate<Detection> predicate = d -> true;
+        if (archive == null) return predicate;
+
+        if (after != null) {
+            predicate = predicate.and(d -> DetectionKey.ORDER.compare(DetectionKey.of(d), after) > 0);
+        }
+        if (filter.detectableId != null) {
+            predicate = predicate.and(d -> d.detectable.detectableId.equalsIgnoreCase(filter.detectableId));
+        }
+        if (filter.detectableType != null) {
+            predicate = predicate.and(d -> d.detectable.detectableType == filter.detectableType);
+        }
+        if (filter.siteId != null) {
+            var antennas = db.execute(sql -> sql.select(ANTENNA.READER_SN, ANTENNA.PORT_NUMBER)
+                    .from(ANTENNA)
+                    .where(ANTENNA.CLIENT_ID.eq(filter.clientId))
+                    .and(ANTENNA.SITE_ID.eq(filter.siteId))
+                    .and(filter.zoneId == null ? trueCondition() : ANTENNA.ZONE_ID.eq(filter.zoneId))
+                    .fetchSet(r -> List.of(r.value1(), r.value2())));
+            predicate = predicate.and(d -> antennas.contains(List.of(d.readerSn, d.portNumber)));
+        }
+        if (filter.clientReference != null) {
+            var detectables = db.execute(sql -> sql.selectFrom(ASSIGNMENT)
+                    .where(ASSIGNMENT.CLIENT_ID.eq(filter.clientId))
+                    .and(ASSIGNMENT.CLIENT_REFERENCE.eq(filter.clientReference))
+                    .fetchSet(r -> new DetectablePK(
+                            r.getClientId(), r.getDetectableId(), DetectableType.fromString(r.getDetectableType()))));
+            predicate = predicate.and(d -> detectables.contains(d.detectable));
+        }
+        return predicate;
+    }
+
+    public static Detection detectionFromRecord(RfidDetectionRecord r) {
+        return new Detection(
+                new DetectablePK(r.getClientId(), r.getDetectableId(), DetectableType.fromString(r.getDetectableType())),
+                r.getReaderSn(),
+                r.getPortNumber(),
+                r.getDetectionTime(),
+                Optional.ofNullable(r.getRssi()),
+                r.getCount());
+    }
+
+    static LocalDate utcDay(Instant time) {
+        return time.atOffset(UTC).toLocalDate();
+    }
+
+    private List<Detection> readArchivedDay(String clientId, LocalDate day) {
+        if (archive == null) return List.of();
+        try {
+            return archive.readDay(clientId, day);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Chunker {
+        private final int chunkSize;
+        private final Consumer<List<Detection>> chunkConsumer;
+        private List<Detection> chunk;
+
+        Chunker(int chunkSize, Consumer<List<Detection>> chunkConsumer) {
+            this.chunkSize = chunkSize;
+            this.chunkConsumer = chunkConsumer;
+            this.chunk = new ArrayList<>(chunkSize);
+        }
+
+        void add(Detection detection) {
+            chunk.add(detection);
+            if (chunk.size() >= chunkSize) flush();
+        }
+
+        void flush() {
+            if (chunk.isEmpty()) return;
+            chunkConsumer.accept(chunk);
+            chunk = new ArrayList<>(chunkSize);
+        }
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+}
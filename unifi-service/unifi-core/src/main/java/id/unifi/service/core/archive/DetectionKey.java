@@ -0,0 +1,78 @@
+package id.unifi.service.core.archive;
+
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+import id.unifi.service.common.detection.DetectableType;
+import id.unifi.service.common.detection.Detection;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.Instant;
+import static java.time.temporal.ChronoUnit.MICROS;
+import java.util.Base64;
+import java.util.Comparator;
+
+/**
+ * Position of a detection in keyset order: detection time first, then the rest of the primary key.
+ */
+public final class DetectionKey {
+    private static final String SEPARATOR = "\n";
+
+    public static final Comparator<DetectionKey> ORDER = Comparator
+            .<DetectionKey, Instant>comparing(k -> k.detectionTime)
+            .thenComparing(k -> k.detectableId, String.CASE_INSENSITIVE_ORDER) // CITEXT
+            .thenComparing(k -> k.detectableType.toString())
+            .thenComparing(k -> k.readerSn)
+            .thenComparingInt(k -> k.portNumber);
+
+    public final Instant detectionTime;
+    public final String detectableId;
+    public final DetectableType detectableType;
+    public final String readerSn;
+    public final int portNumber;
+
+    public DetectionKey(Instant detectionTime,
+                        String detectableId,
+                        DetectableType detectableType,
+                        String readerSn,
+                        int portNumber) {
+        this.detectionTime = detectionTime;
+        this.detectableId = detectableId;
+        this.detectableType = detectableType;
+        this.readerSn = readerSn;
+        this.portNumber = portNumber;
+    }
+
+    public static DetectionKey of(Detection d) {
+        return new DetectionKey(d.detectionTime, d.detectable.detectableId, d.detectable.detectableType,
+                d.readerSn, d.portNumber);
+    }
+
+    /**
+     * Key ordered before every detection at the given time and after every earlier one, to resume from that time.
+     */
+    public static DetectionKey before(Instant detectionTime) {
+        return new DetectionKey(detectionTime, "", DetectableType.values()[0], "", Integer.MIN_VALUE);
+    }
+
+    /**
+     * Opaque cursor clients pass back to resume after this detection.
+     */
+    public String encode() {
+        var plain = String.join(SEPARATOR, Long.toString(MICROS.between(Instant.EPOCH, detectionTime)),
+                detectableType.toString(), readerSn, Integer.toString(portNumber), detectableId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(UTF_8));
+    }
+
+    public static DetectionKey decode(String paramName, String cursor) {
+        try {
+            var parts = new String(Base64.getUrlDecoder().decode(cursor), UTF_8).split(SEPARATOR, 5);
+            return new DetectionKey(
+                    Instant.EPOCH.plus(Long.parseLong(parts[0]), MICROS),
+                    parts[4],
+                    DetectableType.fromString(parts[1]),
+                    parts[2],
+                    Integer.parseInt(parts[3]));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new InvalidParameterFormat(paramName, "Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package id.unifi.service.core.permissions;
+
+import id.unifi.service.common.api.errors.Unauthorized;
+import static id.unifi.service.common.api.errors.UnauthorizedReason.PERMISSION;
+import id.unifi.service.common.operator.OperatorSessionData;
+import id.unifi.service.common.types.pk.OperatorPK;
+
+import javax.annotation.Nullable;
+import java.util.Optional;
+
+/**
+ * Restricts operations to operators of the client that unifi.id staff log in as.
+ *
+ * With no staff client configured, nobody is staff.
+ */
+public class StaffAccess {
+    private final @Nullable String staffClientId;
+
+    public StaffAccess(@Nullable String staffClientId) {
+        this.staffClientId = staffClientId;
+    }
+
+    public OperatorPK ensureStaff(OperatorSessionData session) {
+        var operator = Optional.ofNullable(session.getOperator()).orElseThrow(Unauthorized::new);
+        if (staffClientId == null || !staffClientId.equals(operator.clientId)) throw new Unauthorized(PERMISSION);
+        return operator;
+    }
+}
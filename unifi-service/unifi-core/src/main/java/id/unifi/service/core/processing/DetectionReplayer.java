@@ -0,0 +1,191 @@
+package id.unifi.service.core.processing;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import static com.google.common.base.CaseFormat.LOWER_HYPHEN;
+import static com.google.common.base.CaseFormat.UPPER_UNDERSCORE;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import id.unifi.service.core.archive.DetectionHistory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Replays stored detections through the detection processor as background jobs.
+ *
+ * Each job runs on a single thread and processes chunks in detection time order, so detections from any one
+ * antenna are published in the order they were detected. A client can only have one job queued or running at a
+ * time, so one client's replays can't hold up everyone else's behind them.
+ */
+public class DetectionReplayer {
+    private static final Logger log = LoggerFactory.getLogger(DetectionReplayer.class);
+    private static final int CHUNK_SIZE = 1_000;
+    private static final int MAX_CONCURRENT_JOBS = 2;
+    private static final int MAX_JOBS_PER_CLIENT = 1;
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+
+    private final DetectionHistory detectionHistory;
+    private final DetectionProcessor detectionProcessor;
+    private final int maxDetectionsPerSecond;
+    private final ExecutorService executor;
+    private final Map<String, ReplayJob> jobs;
+
+    public DetectionReplayer(DetectionHistory detectionHistory,
+                             DetectionProcessor detectionProcessor,
+                             int maxDetectionsPerSecond) {
+        this.detectionHistory = detectionHistory;
+        this.detectionProcessor = detectionProcessor;
+        this.maxDetectionsPerSecond = maxDetectionsPerSecond;
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_JOBS,
+                new ThreadFactoryBuilder().setNameFormat("detection-replay-%d").setDaemon(true).build());
+        this.jobs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Queues a replay job.
+     *
+     * @param detectionsPerSecond requested rate, capped at the configured maximum; {@code null} for the maximum
+     * @param progressListener receives progress roughly every second and once the job has finished
+     * @return job ID, or null if the client already has as many jobs as it may have queued or running
+     */
+    public @Nullable String start(String clientId,
+                                  Instant startTime,
+                                  Instant endTime,
+                                  Integer detectionsPerSecond,
+                                  Consumer<ReplayProgress> progressListener) {
+        var rate = detectionsPerSecond == null
+                ? maxDetectionsPerSecond
+                : Math.max(1, Math.min(detectionsPerSecond, maxDetectionsPerSecond));
+        var job = new ReplayJob(UUID.randomUUID().toString(), clientId, startTime, endTime, rate, progressListener);
+        synchronized (jobs) {
+            var clientJobs = jobs.values().stream().filter(j -> j.clientId.equals(clientId)).count();
+            if (clientJobs >= MAX_JOBS_PER_CLIENT) return null;
+            jobs.put(job.jobId, job);
+        }
+        executor.execute(() -> run(job));
+        return job.jobId;
+    }
+
+    public boolean cancel(String clientId, String jobId) {
+        var job = jobs.get(jobId);
+        if (job == null || !job.clientId.equals(clientId)) return false;
+        job.cancelled = true;
+        return true;
+    }
+
+    public List<ReplayProgress> listJobs(String clientId) {
+        return jobs.values().stream()
+                .filter(job -> job.clientId.equals(clientId))
+                .map(ReplayJob::progress)
+                .collect(toList());
+    }
+
+    private void run(ReplayJob job) {
+        log.info("Starting replay {} for {} between {} and {} at {}/s",
+                job.jobId, job.clientId, job.startTime, job.endTime, job.rateLimiter.getRate());
+        job.state = ReplayState.RUNNING;
+        try {
+            detectionHistory.forEachChunk(job.clientId, job.startTime, job.endTime, CHUNK_SIZE, detections -> {
+                if (job.cancelled) throw new CancellationException();
+                job.rateLimiter.acquire(detections.size());
+                detectionProcessor.process(detections);
+
+                job.processedCount += detections.size();
+                job.processedUpTo = detections.get(detections.size() - 1).detectionTime;
+                job.reportProgress(false);
+            });
+            job.state = ReplayState.COMPLETED;
+        } catch (CancellationException e) {
+            job.state = ReplayState.CANCELLED;
+        } catch (RuntimeException e) {
+            log.error("Replay {} failed", job.jobId, e);
+            job.state = ReplayState.FAILED;
+        } finally {
+            log.info("Replay {} finished: {}, {} detections", job.jobId, job.state, job.processedCount);
+            job.reportProgress(true);
+            jobs.remove(job.jobId);
+        }
+    }
+
+    public enum ReplayState {
+        QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED;
+
+        @JsonValue
+        public String toString() {
+            return UPPER_UNDERSCORE.to(LOWER_HYPHEN, name());
+        }
+    }
+
+    public static class ReplayProgress {
+        public final String jobId;
+        public final ReplayState state;
+        public final long processedCount;
+        public final Instant processedUpTo;
+
+        ReplayProgress(String jobId, ReplayState state, long processedCount, Instant processedUpTo) {
+            this.jobId = jobId;
+            this.state = state;
+            this.processedCount = processedCount;
+            this.processedUpTo = processedUpTo;
+        }
+    }
+
+    private static class ReplayJob {
+        final String jobId;
+        final String clientId;
+        final Instant startTime;
+        final Instant endTime;
+        final RateLimiter rateLimiter;
+        final Consumer<ReplayProgress> progressListener;
+
+        volatile ReplayState state;
+        volatile boolean cancelled;
+        volatile long processedCount;
+        volatile Instant processedUpTo;
+        long lastReportNanos;
+
+        ReplayJob(String jobId,
+                  String clientId,
+                  Instant startTime,
+                  Instant endTime,
+                  int detectionsPerSecond,
+                  Consumer<ReplayProgress> progressListener) {
+            this.jobId = jobId;
+            this.clientId = clientId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.rateLimiter = RateLimiter.create(detectionsPerSecond);
+            this.progressListener = progressListener;
+            this.state = ReplayState.QUEUED;
+            this.processedUpTo = startTime;
+        }
+
+        ReplayProgress progress() {
+            return new ReplayProgress(jobId, state, processedCount, processedUpTo);
+        }
+
+        void reportProgress(boolean force) {
+            var now = System.nanoTime();
+            if (!force && now - lastReportNanos < PROGRESS_INTERVAL.toNanos()) return;
+            lastReportNanos = now;
+            try {
+                progressListener.accept(progress());
+            } catch (RuntimeException e) {
+                // The requesting session may be gone; the job carries on regardless
+                log.debug("Failed to report progress for replay {}", jobId, e);
+            }
+        }
+    }
+}
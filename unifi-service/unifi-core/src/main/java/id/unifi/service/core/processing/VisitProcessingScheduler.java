@@ -1,44 +1,25 @@
 package id.unifi.service.core.processing;
 
-import com.coreoz.wisp.schedule.FixedHourSchedule;
 import com.coreoz.wisp.Scheduler;
-
-import id.unifi.service.dbcommon.Database;
-import id.unifi.service.dbcommon.DatabaseProvider;
-
-import org.jooq.Record1;
+import com.coreoz.wisp.schedule.Schedules;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.ZoneId;
-
-import static id.unifi.service.core.db.Core.CORE;
-import static id.unifi.service.core.db.Tables.*;
-
+import java.time.Duration;
 
 public class VisitProcessingScheduler {
-    private static final Logger log = LoggerFactory.getLogger(VisitProcessor.class);
+    private static final Logger log = LoggerFactory.getLogger(VisitProcessingScheduler.class);
     private static final Scheduler scheduler = new Scheduler();
-    private static final String VISIT_CALCULATION_TIME = "05:00";
-    private final Database db;
+    private static final Duration RECONCILIATION_INTERVAL = Duration.ofMinutes(15);
     private final VisitProcessor visitProcessor;
 
-    public VisitProcessingScheduler(DatabaseProvider dbProvider, VisitProcessor visitProcessor) {
-        this.db = dbProvider.bySchema(CORE);
+    public VisitProcessingScheduler(VisitProcessor visitProcessor) {
         this.visitProcessor = visitProcessor;
     }
 
     public void scheduleVisitJob() {
-        log.info("Initializing visit scheduler");
-        var clientZoneIds = db.execute(sql ->
-                sql.selectDistinct(SITE.TIME_ZONE).from(SITE).fetch(Record1::value1));
-
-        for (var clientZone : clientZoneIds) {
-            scheduler.schedule(
-                    () -> visitProcessor.insertVisits(clientZone),
-                    new FixedHourSchedule(VISIT_CALCULATION_TIME, ZoneId.of(clientZone))
-            );
-        }
+        log.info("Initializing visit reconciliation scheduler");
+        scheduler.schedule(visitProcessor::reconcileLateDays, Schedules.fixedDelaySchedule(RECONCILIATION_INTERVAL));
     }
 }
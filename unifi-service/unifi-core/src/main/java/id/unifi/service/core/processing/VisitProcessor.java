@@ -1,15 +1,16 @@
 package id.unifi.service.core.processing;
 
-import id.unifi.service.core.CoreService;
+import id.unifi.service.common.types.pk.SitePK;
 import id.unifi.service.dbcommon.Database;
 import id.unifi.service.dbcommon.DatabaseProvider;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
 
 import static id.unifi.service.core.db.Core.CORE;
 import static id.unifi.service.core.db.Keys.ASSIGNMENT__FK_ASSIGNMENT_TO_DETECTABLE;
@@ -18,47 +19,99 @@ import static id.unifi.service.core.db.Keys.RFID_DETECTION__FK_RFID_DETECTION_TO
 import static id.unifi.service.core.db.Tables.*;
 import static org.jooq.impl.DSL.*;
 
+/**
+ * Batch visit calculation from stored detections.
+ *
+ * Visits are normally computed from the detection stream by {@code VisitStreamProcessor}; this recomputes the
+ * days that received detections after they were closed.
+ */
 public class VisitProcessor {
-    private static final Logger log = LoggerFactory.getLogger(CoreService.class);
-    private static final String VISIT_CUTOFF_TIME = "05:00";
+    private static final Logger log = LoggerFactory.getLogger(VisitProcessor.class);
+    private static final LocalTime VISIT_CUTOFF_TIME = LocalTime.parse("05:00");
+    public static final String MEASURED_DAY = "measured-day";
+
     private final Database db;
 
     public VisitProcessor(DatabaseProvider dbProvider) {
         this.db = dbProvider.bySchema(CORE);
     }
 
-    public void insertVisits(String timeZone) {
-        log.info("Visit calculation starting for {}", timeZone);
-        var now = ZonedDateTime.now(ZoneId.of(timeZone));
-        var endTime = now.with(LocalTime.parse(VISIT_CUTOFF_TIME));
-        var startTime = endTime.minusDays(1);
-
-        log.info("Period for visit calculation starts at:{} ends at:{}", startTime, endTime);
-
-        var inserted = db.execute(sql -> sql.insertInto(CORE.VISIT).
-                select(selectDistinct(RFID_DETECTION.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE,
-                        RFID_DETECTION.DETECTION_TIME.minOver()
-                                .partitionBy(
-                                        RFID_DETECTION.CLIENT_ID, READER.SITE_ID, ASSIGNMENT.CLIENT_REFERENCE),
-                        RFID_DETECTION.DETECTION_TIME.maxOver()
-                                .partitionBy(
-                                        RFID_DETECTION.CLIENT_ID, READER.SITE_ID, ASSIGNMENT.CLIENT_REFERENCE),
-                        val("measured-day"), READER.SITE_ID)
-                        .from(RFID_DETECTION)
-                        .join(READER).on(READER.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID),
-                                READER.READER_SN.eq(RFID_DETECTION.READER_SN))
-                        .join(SITE).onKey(READER__FK_READER_TO_SITE)
-                        .join(CLIENT_CONFIG).on(RFID_DETECTION.CLIENT_ID.eq(CLIENT_CONFIG.CLIENT_ID))
-                        .join(DETECTABLE).onKey(RFID_DETECTION__FK_RFID_DETECTION_TO_DETECTABLE)
-                        .join(ASSIGNMENT).onKey(ASSIGNMENT__FK_ASSIGNMENT_TO_DETECTABLE)
-                        .where(RFID_DETECTION.DETECTION_TIME
-                                .between(startTime.toInstant(), endTime.toInstant()))
-                        .and(SITE.TIME_ZONE.eq(timeZone))
-                        .and(CLIENT_CONFIG.VISIT_CALCULATION_ENABLED.isTrue())
-                        .andExists(selectOne().from(CONTACT)
-                                .where(CONTACT.CLIENT_REFERENCE.eq(ASSIGNMENT.CLIENT_REFERENCE)
-                                ))
-                ).onConflictDoNothing().execute());
-        log.info("Visit tuples inserted for {}: {}", timeZone, inserted);
+    /**
+     * Visit day a detection counts towards: visit days run from the cutoff time to the cutoff time the next day.
+     */
+    public static LocalDate visitDayOf(Instant time, ZoneId timeZone) {
+        var localTime = time.atZone(timeZone);
+        var day = localTime.toLocalDate();
+        return localTime.toLocalTime().isBefore(VISIT_CUTOFF_TIME) ? day.minusDays(1) : day;
+    }
+
+    public static Instant visitDayStart(LocalDate visitDay, ZoneId timeZone) {
+        return visitDay.atTime(VISIT_CUTOFF_TIME).atZone(timeZone).toInstant();
+    }
+
+    public void reconcileLateDays() {
+        var lateDays = db.execute(sql -> sql.select(VISIT_LATE_DAY.CLIENT_ID, VISIT_LATE_DAY.SITE_ID,
+                VISIT_LATE_DAY.VISIT_DAY, SITE.TIME_ZONE)
+                .from(VISIT_LATE_DAY)
+                .join(SITE).onKey()
+                .fetch());
+        if (lateDays.isEmpty()) return;
+
+        log.info("Reconciling visits for {} site days with late detections", lateDays.size());
+        for (var lateDay : lateDays) {
+            var site = new SitePK(lateDay.value1(), lateDay.value2());
+            recomputeVisits(site, lateDay.value3(), ZoneId.of(lateDay.value4()));
+        }
+    }
+
+    public void recomputeVisits(SitePK site, LocalDate visitDay, ZoneId timeZone) {
+        var startTime = visitDayStart(visitDay, timeZone);
+        var endTime = visitDayStart(visitDay.plusDays(1), timeZone);
+        log.debug("Recomputing visits for {} between {} and {}", site, startTime, endTime);
+
+        var inserted = db.execute(sql -> {
+            // Claimed before reading detections: a late day recorded while this runs is left for the next run
+            sql.deleteFrom(VISIT_LATE_DAY)
+                    .where(VISIT_LATE_DAY.CLIENT_ID.eq(site.clientId))
+                    .and(VISIT_LATE_DAY.SITE_ID.eq(site.siteId))
+                    .and(VISIT_LATE_DAY.VISIT_DAY.eq(visitDay))
+                    .execute();
+
+            sql.deleteFrom(VISIT)
+                    .where(VISIT.CLIENT_ID.eq(site.clientId))
+                    .and(VISIT.SITE_ID.eq(site.siteId))
+                    .and(VISIT.CALCULATION_METHOD.eq(MEASURED_DAY))
+                    .and(VISIT.START_TIME.ge(startTime))
+                    .and(VISIT.START_TIME.lt(endTime))
+                    .execute();
+
+            var rowsInserted = sql.insertInto(VISIT)
+                    .select(selectDistinct(RFID_DETECTION.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE,
+                            RFID_DETECTION.DETECTION_TIME.minOver()
+                                    .partitionBy(RFID_DETECTION.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE),
+                            RFID_DETECTION.DETECTION_TIME.maxOver()
+                                    .partitionBy(RFID_DETECTION.CLIENT_ID, ASSIGNMENT.CLIENT_REFERENCE),
+                            val(MEASURED_DAY), READER.SITE_ID)
+                            .from(RFID_DETECTION)
+                            .join(READER).on(READER.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID),
+                                    READER.READER_SN.eq(RFID_DETECTION.READER_SN))
+                            .join(SITE).onKey(READER__FK_READER_TO_SITE)
+                            .join(CLIENT_CONFIG).on(RFID_DETECTION.CLIENT_ID.eq(CLIENT_CONFIG.CLIENT_ID))
+                            .join(DETECTABLE).onKey(RFID_DETECTION__FK_RFID_DETECTION_TO_DETECTABLE)
+                            .join(ASSIGNMENT).onKey(ASSIGNMENT__FK_ASSIGNMENT_TO_DETECTABLE)
+                            .where(RFID_DETECTION.CLIENT_ID.eq(site.clientId))
+                            .and(READER.SITE_ID.eq(site.siteId))
+                            .and(RFID_DETECTION.DETECTION_TIME.ge(startTime))
+                            .and(RFID_DETECTION.DETECTION_TIME.lt(endTime))
+                            .and(CLIENT_CONFIG.VISIT_CALCULATION_ENABLED.isTrue())
+                            .andExists(selectOne().from(CONTACT)
+                                    .where(CONTACT.CLIENT_ID.eq(ASSIGNMENT.CLIENT_ID))
+                                    .and(CONTACT.CLIENT_REFERENCE.eq(ASSIGNMENT.CLIENT_REFERENCE))))
+                    .onConflictDoNothing()
+                    .execute();
+
+            return rowsInserted;
+        });
+        log.info("Visit tuples recomputed for {} on {}: {}", site, visitDay, inserted);
     }
 }
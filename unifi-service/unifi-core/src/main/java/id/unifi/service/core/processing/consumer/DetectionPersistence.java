@@ -1,10 +1,10 @@
 package id.unifi.service.core.processing.consumer;
 
-import com.google.common.collect.Iterables;
-import com.rabbitmq.client.Channel;
+import com.codahale.metrics.MetricRegistry;
 import com.rabbitmq.client.Connection;
 import id.unifi.service.common.detection.DetectionMatch;
 import id.unifi.service.common.detection.DetectionMatchMqConsumer;
+import id.unifi.service.common.mq.AckTracker;
 import id.unifi.service.common.mq.MqUtils;
 import static id.unifi.service.common.mq.MqUtils.DETECTION_MATCH_TYPE;
 import id.unifi.service.common.mq.Tagged;
@@ -29,11 +29,24 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
+import static java.time.temporal.ChronoUnit.MICROS;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes detections to {@code core.rfid_detection}, updating hourly presence from the detections each batch actually
+ * inserts in the same transaction.
+ */
 public class DetectionPersistence implements DetectionMatchMqConsumer {
     private static final Logger log = LoggerFactory.getLogger(DetectionPersistence.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
     private static final String PERSISTENCE_QUEUE_NAME = "core.detection.persistence";
+    // Presence used to be aggregated from its own queue; it'd fill up forever with nothing consuming it
+    private static final String LEGACY_PRESENCE_QUEUE_NAME = "core.detection.presence";
 
     private static final Field<String> CLIENT_ID = unqualified(RFID_DETECTION.CLIENT_ID);
     private static final Field<String> DETECTABLE_ID = unqualified(RFID_DETECTION.DETECTABLE_ID);
@@ -44,30 +57,47 @@ public class DetectionPersistence implements DetectionMatchMqConsumer {
 
     private static final int BUFFER_SIZE = 10_000;
     private static final Duration BATCH_CREATION_TIMEOUT = Duration.ofSeconds(1);
+    private static final int FLUSH_WORKERS = 4;
     private static final Duration INITIAL_RETRY_INTERVAL = Duration.ofMillis(500);
     private static final Duration MAX_RETRY_INTERVAL = Duration.ofSeconds(10);
     private static final Duration LOCK_TIMEOUT = Duration.ofMillis(2000);
 
     private final Database db;
+    private final MetricRegistry registry;
+    private final PresenceAggregator presenceAggregator;
 
-    public DetectionPersistence(DatabaseProvider dbProvider) {
+    public DetectionPersistence(DatabaseProvider dbProvider,
+                                MetricRegistry registry,
+                                PresenceAggregator presenceAggregator) {
         this.db = dbProvider.bySchema(CORE);
+        this.registry = registry;
+        this.presenceAggregator = presenceAggregator;
     }
 
     public void start(Connection connection, String exchangeName) throws IOException {
+        deleteLegacyPresenceQueue(connection);
+
         var channel = connection.createChannel();
         channel.queueDeclare(PERSISTENCE_QUEUE_NAME, true, false, false, null);
         channel.queueBind(PERSISTENCE_QUEUE_NAME, exchangeName, "");
 
-        var processingBuffer = BatchBuffer.<Tagged<DetectionMatch>>create(
-                "persistence", BUFFER_SIZE, BATCH_CREATION_TIMEOUT,
-                detections -> persist(channel, detections));
-
-        var consumer = MqUtils.unmarshallingConsumer(DETECTION_MATCH_TYPE, channel, processingBuffer::put);
+        // Rows don't depend on each other, so batches can be inserted concurrently in any order
+        var acks = new AckTracker(channel);
+        var processingBuffer = BatchBuffer.<Tagged<DetectionMatch>>builder(
+                "persistence", BUFFER_SIZE, BATCH_CREATION_TIMEOUT)
+                .flushers(FLUSH_WORKERS)
+                .failureHandler(acks::requeueAll)
+                .metrics(registry, METRIC_NAME_PREFIX)
+                .build(detections -> persist(acks, detections));
+
+        var consumer = MqUtils.unmarshallingConsumer(DETECTION_MATCH_TYPE, channel, detection -> {
+            acks.delivered(detection.deliveryTag);
+            processingBuffer.put(detection);
+        });
         channel.basicConsume(PERSISTENCE_QUEUE_NAME, consumer);
     }
 
-    private void persist(Channel channel, List<Tagged<DetectionMatch>> taggedMatches) {
+    private void persist(AckTracker acks, List<Tagged<DetectionMatch>> taggedMatches) {
         if (taggedMatches.isEmpty()) return;
 
         @SuppressWarnings("unchecked")
@@ -86,13 +116,20 @@ public class DetectionPersistence implements DetectionMatchMqConsumer {
 
         var values = values(rows).asTable("v", RFID_DETECTION_FIELD_NAMES);
 
+        var matchesByKey = new HashMap<DetectionKey, DetectionMatch>();
+        for (var tagged : taggedMatches) {
+            var d = tagged.payload.detection;
+            matchesByKey.putIfAbsent(new DetectionKey(d.detectable.clientId, d.detectable.detectableId,
+                    d.detectable.detectableType.toString(), d.readerSn, d.portNumber, d.detectionTime), tagged.payload);
+        }
+
         var success = false;
         var retryIntervalMillis = INITIAL_RETRY_INTERVAL.toMillis();
         do {
             try {
                 int rowsInserted = db.execute(sql -> {
                     sql.query(String.format("SET LOCAL lock_timeout = '%dms'", LOCK_TIMEOUT.toMillis())).execute();
-                    return sql.insertInto(RFID_DETECTION,
+                    var inserted = sql.insertInto(RFID_DETECTION,
                             RFID_DETECTION.CLIENT_ID,
                             RFID_DETECTION.DETECTABLE_ID,
                             RFID_DETECTION.DETECTABLE_TYPE,
@@ -107,7 +144,24 @@ public class DetectionPersistence implements DetectionMatchMqConsumer {
                                             .and(DETECTABLE.DETECTABLE_ID.eq(values.field(DETECTABLE_ID)))
                                             .and(DETECTABLE.DETECTABLE_TYPE.eq(values.field(DETECTABLE_TYPE)))))
                             .onConflictDoNothing()
-                            .execute();
+                            .returning(
+                                    RFID_DETECTION.CLIENT_ID,
+                                    RFID_DETECTION.DETECTABLE_ID,
+                                    RFID_DETECTION.DETECTABLE_TYPE,
+                                    RFID_DETECTION.READER_SN,
+                                    RFID_DETECTION.PORT_NUMBER,
+                                    RFID_DETECTION.DETECTION_TIME)
+                            .fetch();
+
+                    // Redelivered detections conflict with the earlier insert and mustn't be counted again
+                    var insertedMatches = new ArrayList<DetectionMatch>(inserted.size());
+                    for (var r : inserted) {
+                        var match = matchesByKey.get(new DetectionKey(r.getClientId(), r.getDetectableId(),
+                                r.getDetectableType(), r.getReaderSn(), r.getPortNumber(), r.getDetectionTime()));
+                        if (match != null) insertedMatches.add(match);
+                    }
+                    presenceAggregator.aggregate(sql, insertedMatches);
+                    return inserted.size();
                 });
                 log.debug("Persisted {} new detections", rowsInserted);
                 success = true;
@@ -123,11 +177,63 @@ public class DetectionPersistence implements DetectionMatchMqConsumer {
             }
         } while (!success);
 
-        var deliveryTag = Iterables.getLast(taggedMatches).deliveryTag;
         try {
-            channel.basicAck(deliveryTag, true);
+            acks.processed(taggedMatches.stream().mapToLong(d -> d.deliveryTag).toArray());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static void deleteLegacyPresenceQueue(Connection connection) {
+        try {
+            var channel = connection.createChannel();
+            channel.queueDelete(LEGACY_PRESENCE_QUEUE_NAME);
+            channel.close();
+        } catch (IOException | TimeoutException e) {
+            log.warn("Failed to delete legacy queue {}", LEGACY_PRESENCE_QUEUE_NAME, e);
+        }
+    }
+
+    /**
+     * Primary key of {@code core.rfid_detection}, compared the way the database compares it.
+     */
+    private static final class DetectionKey {
+        final String clientId;
+        final String detectableId;
+        final String detectableType;
+        final String readerSn;
+        final int portNumber;
+        final Instant detectionTime;
+
+        DetectionKey(String clientId,
+                     String detectableId,
+                     String detectableType,
+                     String readerSn,
+                     int portNumber,
+                     Instant detectionTime) {
+            // Case-insensitive columns, and timestamps stored to the microsecond
+            this.clientId = clientId.toLowerCase(Locale.ROOT);
+            this.detectableId = detectableId.toLowerCase(Locale.ROOT);
+            this.detectableType = detectableType;
+            this.readerSn = readerSn;
+            this.portNumber = portNumber;
+            this.detectionTime = detectionTime.truncatedTo(MICROS);
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (DetectionKey) o;
+            return portNumber == that.portNumber &&
+                    Objects.equals(clientId, that.clientId) &&
+                    Objects.equals(detectableId, that.detectableId) &&
+                    Objects.equals(detectableType, that.detectableType) &&
+                    Objects.equals(readerSn, that.readerSn) &&
+                    Objects.equals(detectionTime, that.detectionTime);
+        }
+
+        public int hashCode() {
+            return Objects.hash(clientId, detectableId, detectableType, readerSn, portNumber, detectionTime);
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package id.unifi.service.core.processing.consumer;
+
+import id.unifi.service.common.detection.DetectionMatch;
+import static id.unifi.service.core.db.Keys.PRESENCE_HOUR_PKEY;
+import static id.unifi.service.core.db.Tables.PRESENCE_HOUR;
+import static id.unifi.service.dbcommon.DatabaseUtils.CITEXT;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Row8;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import static java.time.temporal.ChronoUnit.HOURS;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+/**
+ * Maintains hourly presence aggregates per holder and zone.
+ *
+ * Hour buckets are aligned to UTC hours. Buckets are updated by {@link DetectionPersistence} in the transaction that
+ * inserts the detections, from only the detections that transaction actually inserted; a redelivered detection is
+ * already in {@code core.rfid_detection}, so it's never counted twice.
+ */
+public class PresenceAggregator {
+    private static final Logger log = LoggerFactory.getLogger(PresenceAggregator.class);
+
+    private static final String[] PRESENCE_HOUR_FIELD_NAMES =
+            PRESENCE_HOUR.fieldStream().map(Field::getName).toArray(String[]::new);
+    private static final Field<Instant> EXCLUDED_FIRST_SEEN = field(name("excluded", "first_seen"), Instant.class);
+    private static final Field<Instant> EXCLUDED_LAST_SEEN = field(name("excluded", "last_seen"), Instant.class);
+    private static final Field<Integer> EXCLUDED_DETECTION_COUNT =
+            field(name("excluded", "detection_count"), Integer.class);
+
+    // Upserting in key order keeps concurrent transactions from deadlocking on each other's rows
+    private static final Comparator<PresenceKey> KEY_ORDER = Comparator
+            .<PresenceKey, String>comparing(k -> k.clientId, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(k -> k.clientReference, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(k -> k.siteId, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(k -> k.zoneId, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(k -> k.hour);
+
+    /**
+     * @param matches matches of newly inserted detections, without duplicates
+     */
+    int aggregate(DSLContext sql, Collection<DetectionMatch> matches) {
+        var buckets = new TreeMap<PresenceKey, PresenceBucket>(KEY_ORDER);
+        for (var match : matches) {
+            if (match.clientReference.isEmpty()) continue;
+
+            var time = match.detection.detectionTime;
+            var key = new PresenceKey(match.zone.clientId, match.clientReference.get(),
+                    match.zone.siteId, match.zone.zoneId, time.truncatedTo(HOURS));
+            buckets.computeIfAbsent(key, k -> new PresenceBucket(time)).add(time);
+        }
+        if (buckets.isEmpty()) return 0;
+
+        @SuppressWarnings("unchecked")
+        Row8<String, String, String, String, Instant, Instant, Instant, Integer>[] rows = buckets.entrySet()
+                .stream()
+                .map(e -> row(
+                        cast(e.getKey().clientId, CITEXT),
+                        cast(e.getKey().clientReference, CITEXT),
+                        cast(e.getKey().siteId, CITEXT),
+                        cast(e.getKey().zoneId, CITEXT),
+                        e.getKey().hour,
+                        e.getValue().firstSeen,
+                        e.getValue().lastSeen,
+                        e.getValue().count))
+                .toArray(Row8[]::new);
+        var values = values(rows).asTable("v", PRESENCE_HOUR_FIELD_NAMES);
+
+        int rowsUpserted = sql.insertInto(PRESENCE_HOUR)
+                .select(selectFrom(values))
+                .onConflict(PRESENCE_HOUR_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(PRESENCE_HOUR.FIRST_SEEN, least(PRESENCE_HOUR.FIRST_SEEN, EXCLUDED_FIRST_SEEN))
+                .set(PRESENCE_HOUR.LAST_SEEN, greatest(PRESENCE_HOUR.LAST_SEEN, EXCLUDED_LAST_SEEN))
+                .set(PRESENCE_HOUR.DETECTION_COUNT, PRESENCE_HOUR.DETECTION_COUNT.plus(EXCLUDED_DETECTION_COUNT))
+                .execute();
+        log.debug("Upserted {} presence buckets from {} detections", rowsUpserted, matches.size());
+        return rowsUpserted;
+    }
+
+    private static final class PresenceKey {
+        final String clientId;
+        final String clientReference;
+        final String siteId;
+        final String zoneId;
+        final Instant hour;
+
+        PresenceKey(String clientId, String clientReference, String siteId, String zoneId, Instant hour) {
+            this.clientId = clientId;
+            this.clientReference = clientReference;
+            this.siteId = siteId;
+            this.zoneId = zoneId;
+            this.hour = hour;
+        }
+    }
+
+    private static final class PresenceBucket {
+        Instant firstSeen;
+        Instant lastSeen;
+        int count;
+
+        PresenceBucket(Instant time) {
+            this.firstSeen = time;
+            this.lastSeen = time;
+        }
+
+        void add(Instant time) {
+            if (time.isBefore(firstSeen)) firstSeen = time;
+            if (time.isAfter(lastSeen)) lastSeen = time;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package id.unifi.service.core.processing.consumer;
+
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import id.unifi.service.common.detection.DetectionMatch;
+import id.unifi.service.common.detection.DetectionMatchMqConsumer;
+import id.unifi.service.common.mq.MqUtils;
+import static id.unifi.service.common.mq.MqUtils.DETECTION_MATCH_TYPE;
+import id.unifi.service.common.mq.Tagged;
+import id.unifi.service.common.types.pk.SitePK;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Keys.VISIT_CHECKPOINT_PKEY;
+import static id.unifi.service.core.db.Keys.VISIT_PKEY;
+import static id.unifi.service.core.db.Tables.CLIENT_CONFIG;
+import static id.unifi.service.core.db.Tables.CONTACT;
+import static id.unifi.service.core.db.Tables.SITE;
+import static id.unifi.service.core.db.Tables.VISIT;
+import static id.unifi.service.core.db.Tables.VISIT_CHECKPOINT;
+import static id.unifi.service.core.db.Tables.VISIT_LATE_DAY;
+import static id.unifi.service.core.processing.VisitProcessor.MEASURED_DAY;
+import static id.unifi.service.core.processing.VisitProcessor.visitDayOf;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static id.unifi.service.dbcommon.DatabaseUtils.CITEXT;
+import static java.util.stream.Collectors.toUnmodifiableMap;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes visits from the detection match stream.
+ *
+ * A visit spans the first to the last detection of a holder at a site within a visit day. Open visits are kept in
+ * memory and checkpointed periodically; a visit is written to {@code core.visit} once its day is over. Detections
+ * for days that are already over are recorded as late so that the batch reconciliation can recompute those days.
+ *
+ * Visit days depend on the site's time zone. Detections for a site not loaded yet are held, and not acknowledged,
+ * until the sites are next refreshed successfully; open visits of such sites stay open.
+ */
+public class VisitStreamProcessor implements DetectionMatchMqConsumer {
+    private static final Logger log = LoggerFactory.getLogger(VisitStreamProcessor.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
+    private static final String VISIT_QUEUE_NAME = "core.detection.visits";
+    private static final Duration CHECKPOINT_INTERVAL = Duration.ofSeconds(30);
+    private static final Duration SITE_REFRESH_INTERVAL = Duration.ofMinutes(1);
+
+    private static final Field<Instant> EXCLUDED_END_TIME = field(name("excluded", "end_time"), Instant.class);
+
+    private final Database db;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<VisitKey, OpenVisit> openVisits;
+    private final Set<VisitKey> dirtyVisits;
+    private final List<ClosedVisit> closedVisits;
+    private final Set<LateDay> lateDays;
+    private final List<Tagged<DetectionMatch>> unresolvedDetections;
+    private volatile Map<SitePK, ZoneId> siteTimeZones;
+    private long lastDeliveryTag;
+    private boolean refreshRequested;
+
+    public VisitStreamProcessor(DatabaseProvider dbProvider, MetricRegistry registry) {
+        this.db = dbProvider.bySchema(CORE);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.openVisits = new HashMap<>();
+        this.dirtyVisits = new HashSet<>();
+        this.closedVisits = new ArrayList<>();
+        this.lateDays = new HashSet<>();
+        this.unresolvedDetections = new ArrayList<>();
+        this.siteTimeZones = Map.of();
+
+        registry.gauge(name(METRIC_NAME_PREFIX, "visit-stream", "open-visits"), () -> this::openVisitCount);
+    }
+
+    public void start(Connection connection, String exchangeName) throws IOException {
+        refreshSites();
+        loadCheckpoint();
+
+        var channel = connection.createChannel();
+        channel.queueDeclare(VISIT_QUEUE_NAME, true, false, false, null);
+        channel.queueBind(VISIT_QUEUE_NAME, exchangeName, "");
+
+        scheduler.scheduleWithFixedDelay(this::refreshSites,
+                SITE_REFRESH_INTERVAL.toMillis(), SITE_REFRESH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> checkpoint(channel),
+                CHECKPOINT_INTERVAL.toMillis(), CHECKPOINT_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+        var consumer = MqUtils.unmarshallingConsumer(DETECTION_MATCH_TYPE, channel, this::process);
+        channel.basicConsume(VISIT_QUEUE_NAME, consumer);
+    }
+
+    private synchronized int openVisitCount() {
+        return openVisits.size();
+    }
+
+    private synchronized void process(Tagged<DetectionMatch> tagged) {
+        lastDeliveryTag = tagged.deliveryTag;
+
+        var match = tagged.payload;
+        if (match.clientReference.isEmpty()) return;
+
+        var site = match.zone.getSite();
+        var timeZone = siteTimeZones.get(site);
+        if (timeZone == null) {
+            // Possibly a site created since the last refresh
+            unresolvedDetections.add(tagged);
+            if (!refreshRequested) {
+                refreshRequested = true;
+                scheduler.execute(this::refreshSites);
+            }
+            return;
+        }
+
+        process(match, site, timeZone);
+    }
+
+    private void process(DetectionMatch match, SitePK site, ZoneId timeZone) {
+        var time = match.detection.detectionTime;
+        var day = visitDayOf(time, timeZone);
+        if (day.isBefore(visitDayOf(Instant.now(), timeZone))) {
+            lateDays.add(new LateDay(site, day));
+            return;
+        }
+
+        var key = new VisitKey(site, match.clientReference.get());
+        var visit = openVisits.get(key);
+        if (visit != null && visit.day.isBefore(day)) {
+            closedVisits.add(new ClosedVisit(key, visit));
+            visit = null;
+        }
+
+        if (visit == null) {
+            openVisits.put(key, new OpenVisit(day, time, time));
+        } else if (visit.day.equals(day)) {
+            if (time.isBefore(visit.startTime)) visit.startTime = time;
+            if (time.isAfter(visit.endTime)) visit.endTime = time;
+        } else {
+            // Open visit is for a later day than this detection, so the detection's day has already been closed
+            lateDays.add(new LateDay(site, day));
+            return;
+        }
+        dirtyVisits.add(key);
+    }
+
+    private void checkpoint(Channel channel) {
+        try {
+            List<ClosedVisit> closed;
+            Map<VisitKey, OpenVisit> dirty;
+            Set<LateDay> late;
+            long deliveryTag;
+
+            synchronized (this) {
+                closeFinishedDays();
+                closed = List.copyOf(closedVisits);
+                dirty = new HashMap<>();
+                for (var key : dirtyVisits) dirty.put(key, openVisits.get(key).copy());
+                late = Set.copyOf(lateDays);
+                deliveryTag = unresolvedDetections.isEmpty()
+                        ? lastDeliveryTag
+                        : unresolvedDetections.get(0).deliveryTag - 1;
+
+                closedVisits.clear();
+                dirtyVisits.clear();
+                lateDays.clear();
+            }
+
+            if (!closed.isEmpty() || !dirty.isEmpty() || !late.isEmpty()) {
+                try {
+                    db.execute(sql -> {
+                        for (var visit : closed) writeVisit(sql, visit);
+                        for (var entry : dirty.entrySet()) writeCheckpoint(sql, entry.getKey(), entry.getValue());
+                        for (var lateDay : late) writeLateDay(sql, lateDay);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        closedVisits.addAll(closed);
+                        dirty.keySet().stream().filter(openVisits::containsKey).forEach(dirtyVisits::add);
+                        lateDays.addAll(late);
+                    }
+                    throw e;
+                }
+                log.debug("Checkpointed {} open visits, closed {} visits, {} late days",
+                        dirty.size(), closed.size(), late.size());
+            }
+
+            // Everything delivered so far is reflected in the checkpoint
+            if (deliveryTag > 0) channel.basicAck(deliveryTag, true);
+        } catch (Exception e) {
+            log.error("Visit checkpoint failed, retrying in {}", CHECKPOINT_INTERVAL, e);
+        }
+    }
+
+    private void closeFinishedDays() {
+        var iterator = openVisits.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            var timeZone = siteTimeZones.get(entry.getKey().site);
+            // Without the time zone there's no telling whether the day is over, e.g. after a failed refresh
+            if (timeZone == null) continue;
+
+            if (entry.getValue().day.isBefore(visitDayOf(Instant.now(), timeZone))) {
+                closedVisits.add(new ClosedVisit(entry.getKey(), entry.getValue()));
+                dirtyVisits.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void writeVisit(DSLContext sql, ClosedVisit closed) {
+        var key = closed.key;
+        sql.insertInto(VISIT,
+                VISIT.CLIENT_ID,
+                VISIT.CLIENT_REFERENCE,
+                VISIT.START_TIME,
+                VISIT.END_TIME,
+                VISIT.CALCULATION_METHOD,
+                VISIT.SITE_ID)
+                .select(select(
+                        cast(key.site.clientId, CITEXT),
+                        cast(key.clientReference, CITEXT),
+                        val(closed.visit.startTime),
+                        val(closed.visit.endTime),
+                        val(MEASURED_DAY),
+                        cast(key.site.siteId, CITEXT))
+                        .whereExists(selectOne().from(CONTACT)
+                                .where(CONTACT.CLIENT_ID.eq(key.site.clientId))
+                                .and(CONTACT.CLIENT_REFERENCE.eq(key.clientReference)))
+                        .andExists(selectOne().from(CLIENT_CONFIG)
+                                .where(CLIENT_CONFIG.CLIENT_ID.eq(key.site.clientId))
+                                .and(CLIENT_CONFIG.VISIT_CALCULATION_ENABLED.isTrue())))
+                .onConflict(VISIT_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(VISIT.END_TIME, greatest(VISIT.END_TIME, EXCLUDED_END_TIME))
+                .execute();
+
+        sql.deleteFrom(VISIT_CHECKPOINT)
+                .where(VISIT_CHECKPOINT.CLIENT_ID.eq(key.site.clientId))
+                .and(VISIT_CHECKPOINT.SITE_ID.eq(key.site.siteId))
+                .and(VISIT_CHECKPOINT.CLIENT_REFERENCE.eq(key.clientReference))
+                .and(VISIT_CHECKPOINT.VISIT_DAY.eq(closed.visit.day))
+                .execute();
+    }
+
+    private static void writeCheckpoint(DSLContext sql, VisitKey key, OpenVisit visit) {
+        sql.insertInto(VISIT_CHECKPOINT)
+                .set(VISIT_CHECKPOINT.CLIENT_ID, key.site.clientId)
+                .set(VISIT_CHECKPOINT.SITE_ID, key.site.siteId)
+                .set(VISIT_CHECKPOINT.CLIENT_REFERENCE, key.clientReference)
+                .set(VISIT_CHECKPOINT.VISIT_DAY, visit.day)
+                .set(VISIT_CHECKPOINT.START_TIME, visit.startTime)
+                .set(VISIT_CHECKPOINT.END_TIME, visit.endTime)
+                .onConflict(VISIT_CHECKPOINT_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(VISIT_CHECKPOINT.VISIT_DAY, visit.day)
+                .set(VISIT_CHECKPOINT.START_TIME, visit.startTime)
+                .set(VISIT_CHECKPOINT.END_TIME, visit.endTime)
+                .execute();
+    }
+
+    private static void writeLateDay(DSLContext sql, LateDay lateDay) {
+        sql.insertInto(VISIT_LATE_DAY,
+                VISIT_LATE_DAY.CLIENT_ID,
+                VISIT_LATE_DAY.SITE_ID,
+                VISIT_LATE_DAY.VISIT_DAY)
+                .select(select(
+                        cast(lateDay.site.clientId, CITEXT),
+                        cast(lateDay.site.siteId, CITEXT),
+                        val(lateDay.day))
+                        .whereExists(selectOne().from(SITE)
+                                .where(SITE.CLIENT_ID.eq(lateDay.site.clientId))
+                                .and(SITE.SITE_ID.eq(lateDay.site.siteId))))
+                .onConflictDoNothing()
+                .execute();
+    }
+
+    private synchronized void loadCheckpoint() {
+        db.execute(sql -> sql.selectFrom(VISIT_CHECKPOINT).fetch()).forEach(r -> openVisits.put(
+                new VisitKey(new SitePK(r.getClientId(), r.getSiteId()), r.getClientReference()),
+                new OpenVisit(r.getVisitDay(), r.getStartTime(), r.getEndTime())));
+        log.info("Restored {} open visits from checkpoint", openVisits.size());
+    }
+
+    private void refreshSites() {
+        synchronized (this) {
+            refreshRequested = false;
+        }
+
+        Map<SitePK, ZoneId> timeZones;
+        try {
+            timeZones = db.execute(sql -> sql.select(SITE.CLIENT_ID, SITE.SITE_ID, SITE.TIME_ZONE)
+                    .from(SITE)
+                    .stream()
+                    .collect(toUnmodifiableMap(
+                            r -> new SitePK(r.value1(), r.value2()),
+                            r -> ZoneId.of(r.value3()))));
+        } catch (Exception e) {
+            log.error("Failed to refresh site time zones", e);
+            return;
+        }
+
+        synchronized (this) {
+            siteTimeZones = timeZones;
+            for (var tagged : unresolvedDetections) {
+                var site = tagged.payload.zone.getSite();
+                var timeZone = timeZones.get(site);
+                if (timeZone == null) {
+                    log.trace("Skipping detection for unknown {}", site);
+                } else {
+                    process(tagged.payload, site, timeZone);
+                }
+            }
+            unresolvedDetections.clear();
+        }
+    }
+
+    private static final class VisitKey {
+        final SitePK site;
+        final String clientReference;
+
+        VisitKey(SitePK site, String clientReference) {
+            this.site = site;
+            this.clientReference = clientReference;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (VisitKey) o;
+            return Objects.equals(site, that.site) &&
+                    Objects.equals(clientReference, that.clientReference);
+        }
+
+        public int hashCode() {
+            return Objects.hash(site, clientReference);
+        }
+    }
+
+    private static final class OpenVisit {
+        final LocalDate day;
+        Instant startTime;
+        Instant endTime;
+
+        OpenVisit(LocalDate day, Instant startTime, Instant endTime) {
+            this.day = day;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        OpenVisit copy() {
+            return new OpenVisit(day, startTime, endTime);
+        }
+    }
+
+    private static final class ClosedVisit {
+        final VisitKey key;
+        final OpenVisit visit;
+
+        ClosedVisit(VisitKey key, OpenVisit visit) {
+            this.key = key;
+            this.visit = visit.copy();
+        }
+    }
+
+    private static final class LateDay {
+        final SitePK site;
+        final LocalDate day;
+
+        LateDay(SitePK site, LocalDate day) {
+            this.site = site;
+            this.day = day;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (LateDay) o;
+            return Objects.equals(site, that.site) &&
+                    Objects.equals(day, that.day);
+        }
+
+        public int hashCode() {
+            return Objects.hash(site, day);
+        }
+    }
+}
@@ -1,90 +1,102 @@
 package id.unifi.service.core.processing.listener;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.Ordering;
+import com.codahale.metrics.MetricRegistry;
 import id.unifi.service.common.api.MessageListener;
 import id.unifi.service.common.detection.DetectionMatch;
 import id.unifi.service.common.detection.DetectionMatchListener;
+import id.unifi.service.common.subscriptions.ResumableBatch;
 import id.unifi.service.common.subscriptions.SubscriptionHandler;
 import id.unifi.service.common.subscriptions.SubscriptionManager;
-import id.unifi.service.common.types.pk.DetectablePK;
+import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.subscriptions.TopicBatcher;
 import id.unifi.service.common.types.pk.SitePK;
 import id.unifi.service.common.types.pk.ZonePK;
+import id.unifi.service.core.processing.listener.FilteredDetectionTopics.CompiledFilter;
+import id.unifi.service.core.site.DetectionSubscriptionFilter;
 import id.unifi.service.core.site.ResolvedSiteDetection;
 import id.unifi.service.core.site.SiteDetectionSubscriptionType;
 import id.unifi.service.core.site.ZoneDetectionSubscriptionType;
+import id.unifi.service.dbcommon.DatabaseProvider;
 import static java.util.stream.Collectors.toUnmodifiableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
+import javax.annotation.Nullable;
+import java.time.Duration;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class DetectionSubscriber implements DetectionMatchListener {
     private static final Logger log = LoggerFactory.getLogger(DetectionSubscriber.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
 
     private static final String SUBSCRIBE_DETECTIONS_RESULT = "core.site.subscribe-detections-result";
     private static final String SUBSCRIBE_ZONE_DETECTIONS_RESULT = "core.site.subscribe-zone-detections-result";
+    private static final String SUBSCRIBE_DETECTION_STREAM_RESULT = "core.site.subscribe-detection-stream-result";
+    private static final String SUBSCRIBE_ZONE_DETECTION_STREAM_RESULT =
+            "core.site.subscribe-zone-detection-stream-result";
 
-    private final Cache<DetectablePK, Boolean> recentDetectables;
-    private final SubscriptionManager subscriptionManager;
-    private final Map<SiteAndClientReference, String> clientReferenceZones;
-    private final Map<ZonePK, Map<String, Instant>> zoneClientReferenceTimes;
+    // Detections reach us some time after they happen, so a catch-up snapshot reaches back a little further
+    private static final Duration RESUME_SNAPSHOT_SLACK = Duration.ofMinutes(1);
 
-    public DetectionSubscriber(SubscriptionManager subscriptionManager) {
+    private final DetectionThrottle throttle;
+    private final SubscriptionManager subscriptionManager;
+    private final TopicBatcher<ResolvedSiteDetection> batcher;
+    private final LastKnownDetectionStore lastKnownDetections;
+    private final FilteredDetectionTopics filteredTopics;
+
+    public DetectionSubscriber(DatabaseProvider dbProvider,
+                               SubscriptionManager subscriptionManager,
+                               LastKnownDetectionStore lastKnownDetections,
+                               DetectionThrottle throttle,
+                               MetricRegistry registry,
+                               Duration batchWindow,
+                               int maxBatchSize,
+                               int replayBatches,
+                               Duration resumeRetention) {
         this.subscriptionManager = subscriptionManager;
-        this.recentDetectables = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.SECONDS).build();
-        this.clientReferenceZones = new ConcurrentHashMap<>();
-        this.zoneClientReferenceTimes = new ConcurrentHashMap<>();
+        this.batcher = new TopicBatcher<>("detection-subscriber", subscriptionManager, batchWindow, maxBatchSize,
+                replayBatches, resumeRetention, registry, METRIC_NAME_PREFIX);
+        this.throttle = throttle;
+        this.lastKnownDetections = lastKnownDetections;
+        this.filteredTopics = new FilteredDetectionTopics(dbProvider, subscriptionManager);
     }
 
     public void accept(List<DetectionMatch> matches) {
         for (var match : matches) {
-            var detectable = match.detection.detectable;
-
-            // FIXME: Limit by detection time, not wall clock
-            if (recentDetectables.getIfPresent(detectable) != null) continue;
-            recentDetectables.put(detectable, true);
+            if (!throttle.tryEmit(match.detection.detectable, match.detection.detectionTime)) continue;
 
             match.clientReference.ifPresent(clientReference -> {
                 var resolved =
                         new ResolvedSiteDetection(match.detection.detectionTime, clientReference, match.zone.zoneId);
-                var detections = List.of(resolved);
-                subscriptionManager.distributeMessage(
-                        SiteDetectionSubscriptionType.topic(match.zone.getSite()), detections);
-                subscriptionManager.distributeMessage(
-                        ZoneDetectionSubscriptionType.topic(match.zone), detections);
+                batcher.publish(SiteDetectionSubscriptionType.topic(match.zone.getSite()), resolved);
+                batcher.publish(ZoneDetectionSubscriptionType.topic(match.zone), resolved);
+                for (var filter : filteredTopics.forSite(match.zone.getSite())) {
+                    if (filter.test(clientReference, match.zone.zoneId)) batcher.publish(filter.topic, resolved);
+                }
+                lastKnownDetections.update(match.zone, clientReference, match.detection.detectionTime);
             });
-
-            updateSnapshot(match);
         }
     }
 
     public void addListener(SitePK site,
                             MessageListener<List<ResolvedSiteDetection>> listener,
-                            boolean includeLastKnown) {
-        log.debug("Adding listener for {}, includeLastKnown: {}", site, includeLastKnown);
-        var topic = SiteDetectionSubscriptionType.topic(site);
+                            boolean includeLastKnown,
+                            @Nullable DetectionSubscriptionFilter filter) {
+        log.debug("Adding listener for {}, includeLastKnown: {}, filter: {}", site, includeLastKnown, filter);
+        var compiledFilter = filter == null ? null : filteredTopics.register(site, filter);
+        var topic = compiledFilter == null ? SiteDetectionSubscriptionType.topic(site) : compiledFilter.topic;
 
         if (includeLastKnown) {
-            var lastKnownDetections = zoneClientReferenceTimes.entrySet().stream()
-                    .filter(e -> e.getKey().getSite().equals(site))
-                    .flatMap(e -> e.getValue().entrySet().stream()
-                            .map(e2 -> new ResolvedSiteDetection(e2.getValue(), e2.getKey(), e.getKey().zoneId)))
-                    .collect(toUnmodifiableList());
-
-            if (!lastKnownDetections.isEmpty())
-                listener.accept(SUBSCRIBE_DETECTIONS_RESULT, lastKnownDetections);
+            var lastKnown = filterLastKnown(lastKnownDetections.get(site), compiledFilter);
+            if (!lastKnown.isEmpty())
+                listener.accept(SUBSCRIBE_DETECTIONS_RESULT, lastKnown);
         }
 
         subscriptionManager.addSubscription(topic,
                 new SubscriptionHandler<>(listener.getSession(), listener.getCorrelationId(),
-                        detections -> listener.accept(SUBSCRIBE_DETECTIONS_RESULT, detections)));
+                        batch -> listener.acceptShared(SUBSCRIBE_DETECTIONS_RESULT, batch.payload)));
     }
 
     public void addListener(ZonePK zone,
@@ -94,80 +106,71 @@ public class DetectionSubscriber implements DetectionMatchListener {
         var topic = ZoneDetectionSubscriptionType.topic(zone);
 
         if (includeLastKnown) {
-            var lastKnownDetections = zoneClientReferenceTimes.getOrDefault(zone, Map.of()).entrySet().stream()
-                    .map(e -> new ResolvedSiteDetection(e.getValue(), e.getKey(), zone.zoneId))
-                    .collect(toUnmodifiableList());
-
-            if (!lastKnownDetections.isEmpty())
-                listener.accept(SUBSCRIBE_ZONE_DETECTIONS_RESULT, lastKnownDetections);
+            var lastKnown = lastKnownDetections.get(zone);
+            if (!lastKnown.isEmpty())
+                listener.accept(SUBSCRIBE_ZONE_DETECTIONS_RESULT, lastKnown);
         }
 
         subscriptionManager.addSubscription(topic,
                 new SubscriptionHandler<>(listener.getSession(), listener.getCorrelationId(),
-                        detections -> listener.accept(SUBSCRIBE_ZONE_DETECTIONS_RESULT, detections)));
+                        batch -> listener.acceptShared(SUBSCRIBE_ZONE_DETECTIONS_RESULT, batch.payload)));
     }
 
-    private void updateSnapshot(DetectionMatch match) {
-        if (!match.clientReference.isPresent()) return;
-
-        var clientReference = match.clientReference.get();
-        var zoneId = match.zone.zoneId;
-        var detectionTime = match.detection.detectionTime;
-        var siteAndClientReference = new SiteAndClientReference(match.zone.getSite(), clientReference);
-        var originalZoneId = clientReferenceZones.get(siteAndClientReference);
-
-        // `clientReferenceZones` and `zoneClientReferenceTimes` are different views of reality and here we update them
-        // and keep them in sync. The latter is useful for reading, the former acts as an index for updates.
-        // There is no explicit synchronization between updates to `zoneClientReferenceTimes` and
-        // `clientReferenceZones`, which may result in concurrency anomalies. The worst case is not recording
-        // a "last known" detection due to a race only if they move very fast between zones or a GC event occurs but
-        // even this will very likely get corrected when another detection arrives for the clientReference in question.
-        if (zoneId.equals(originalZoneId)) { // Re-detected in the same zone
-            zoneClientReferenceTimes
-                    .computeIfAbsent(match.zone, z -> new ConcurrentHashMap<>())
-                    .merge(clientReference, detectionTime, Ordering.natural()::max);
-        } else {
-            var isAfterLastKnown = true;
-            if (originalZoneId != null) { // Detected in a new zone
-                var originalZone = new ZonePK(match.zone.clientId, match.zone.siteId, originalZoneId);
-                var clientReferenceDetectionTimePairsForZone =
-                        zoneClientReferenceTimes.computeIfAbsent(originalZone, z -> new ConcurrentHashMap<>());
-                var previousDetectionTime = clientReferenceDetectionTimePairsForZone.get(clientReference);
-                if (detectionTime.isAfter(previousDetectionTime)) {
-                    clientReferenceDetectionTimePairsForZone.remove(clientReference, previousDetectionTime);
-                } else {
-                    isAfterLastKnown = false;
-                }
-            }
-
-            if (isAfterLastKnown) {
-                zoneClientReferenceTimes
-                        .computeIfAbsent(match.zone, z -> new ConcurrentHashMap<>())
-                        .put(clientReference, detectionTime);
-                clientReferenceZones.put(siteAndClientReference, zoneId);
-            }
-        }
+    /**
+     * Subscribes to a site's detections, first catching up from the resume token if one's given.
+     *
+     * Batches missed since the token are replayed if still held; otherwise the listener gets a snapshot of last known
+     * detections since the token, or all of them if there's no token.
+     */
+    public void addResumableListener(SitePK site,
+                                     MessageListener<ResumableBatch<ResolvedSiteDetection>> listener,
+                                     @Nullable String resumeToken,
+                                     @Nullable DetectionSubscriptionFilter filter) {
+        log.debug("Adding resumable listener for {}, resuming: {}, filter: {}", site, resumeToken != null, filter);
+        var compiledFilter = filter == null ? null : filteredTopics.register(site, filter);
+        var topic = compiledFilter == null ? SiteDetectionSubscriptionType.topic(site) : compiledFilter.topic;
+        addResumableListener(topic, SUBSCRIBE_DETECTION_STREAM_RESULT,
+                listener, resumeToken, () -> filterLastKnown(lastKnownDetections.get(site), compiledFilter));
     }
 
-    private static class SiteAndClientReference {
-        final SitePK site;
-        final String clientReference;
+    public void addResumableListener(ZonePK zone,
+                                     MessageListener<ResumableBatch<ResolvedSiteDetection>> listener,
+                                     @Nullable String resumeToken) {
+        log.debug("Adding resumable listener for {}, resuming: {}", zone, resumeToken != null);
+        addResumableListener(ZoneDetectionSubscriptionType.topic(zone), SUBSCRIBE_ZONE_DETECTION_STREAM_RESULT,
+                listener, resumeToken, () -> lastKnownDetections.get(zone));
+    }
 
-        SiteAndClientReference(SitePK site, String clientReference) {
-            this.site = site;
-            this.clientReference = clientReference;
-        }
+    private void addResumableListener(Topic<TopicBatch<ResolvedSiteDetection>> topic,
+                                      String messageType,
+                                      MessageListener<ResumableBatch<ResolvedSiteDetection>> listener,
+                                      @Nullable String resumeToken,
+                                      Supplier<List<ResolvedSiteDetection>> lastKnown) {
+        batcher.resume(topic, resumeToken, (missed, currentToken, since) -> {
+            if (missed != null) {
+                missed.forEach(batch -> listener.acceptShared(messageType, batch.resumable()));
+            } else {
+                var snapshot = lastKnown.get();
+                if (since != null) {
+                    var cutoff = since.minus(RESUME_SNAPSHOT_SLACK);
+                    snapshot = snapshot.stream()
+                            .filter(d -> d.detectionTime.isAfter(cutoff))
+                            .collect(toUnmodifiableList());
+                }
+                listener.accept(messageType, new ResumableBatch<>(currentToken, snapshot, true));
+            }
 
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            var that = (SiteAndClientReference) o;
-            return Objects.equals(site, that.site) &&
-                    Objects.equals(clientReference, that.clientReference);
-        }
+            subscriptionManager.addSubscription(topic,
+                    new SubscriptionHandler<>(listener.getSession(), listener.getCorrelationId(),
+                            batch -> listener.acceptShared(messageType, batch.resumable())));
+        });
+    }
 
-        public int hashCode() {
-            return Objects.hash(site, clientReference);
-        }
+    private static List<ResolvedSiteDetection> filterLastKnown(List<ResolvedSiteDetection> lastKnown,
+                                                               @Nullable CompiledFilter filter) {
+        if (filter == null) return lastKnown;
+        return lastKnown.stream()
+                .filter(d -> filter.test(d.clientReference, d.zoneId))
+                .collect(toUnmodifiableList());
     }
 }
@@ -0,0 +1,154 @@
+package id.unifi.service.core.processing.listener;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import id.unifi.service.common.types.pk.DetectablePK;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets through at most one detection of each detectable per interval of detection time.
+ *
+ * Detectables are interned to small integer IDs indexing flat arrays of last emitted time and interval, so checking
+ * a detection allocates nothing. Going by detection time rather than arrival time means late and replayed batches
+ * are throttled as they happened. Detectables not let through for a while are swept out periodically and their IDs
+ * reused.
+ */
+public class DetectionThrottle {
+    private static final Logger log = LoggerFactory.getLogger(DetectionThrottle.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
+    private static final Duration SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration IDLE_AGE = Duration.ofMinutes(10);
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long defaultIntervalMicros;
+    private final Map<String, Long> intervalMicrosByClient;
+    private final Map<DetectablePK, Integer> ids;
+    private final ScheduledExecutorService sweeper;
+    private final Meter suppressed;
+
+    private DetectablePK[] keys;
+    private long[] lastEmittedMicros;
+    private long[] intervalMicros;
+    private int[] freeIds;
+    private int freeIdCount;
+    private int nextId;
+
+    public DetectionThrottle(Duration defaultInterval, Map<String, Duration> clientIntervals, MetricRegistry registry) {
+        this.defaultIntervalMicros = toMicros(defaultInterval);
+        this.intervalMicrosByClient = new HashMap<>();
+        clientIntervals.forEach((clientId, interval) -> intervalMicrosByClient.put(clientId, toMicros(interval)));
+        this.ids = new HashMap<>();
+        this.keys = new DetectablePK[INITIAL_CAPACITY];
+        this.lastEmittedMicros = new long[INITIAL_CAPACITY];
+        this.intervalMicros = new long[INITIAL_CAPACITY];
+        this.freeIds = new int[INITIAL_CAPACITY];
+
+        var metricName = name(METRIC_NAME_PREFIX, "detection-throttle");
+        this.suppressed = registry.meter(name(metricName, "suppressed"));
+        registry.gauge(name(metricName, "detectables"), () -> this::size);
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "detection-throttle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep,
+                SWEEP_INTERVAL.toMillis(), SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parses per-client intervals given as {@code clientId=millis} pairs separated by commas.
+     */
+    public static Map<String, Duration> parseClientIntervals(@Nullable String intervals) {
+        if (intervals == null || intervals.trim().isEmpty()) return Map.of();
+
+        var parsed = new HashMap<String, Duration>();
+        for (var pair : intervals.split(",")) {
+            var parts = pair.split("=");
+            if (parts.length != 2) throw new IllegalArgumentException("Malformed client throttle interval: " + pair);
+            parsed.put(parts[0].trim(), Duration.ofMillis(Long.parseLong(parts[1].trim())));
+        }
+        return parsed;
+    }
+
+    /**
+     * @return whether the detection is let through; if so, the detectable's interval starts again from it
+     */
+    public synchronized boolean tryEmit(DetectablePK detectable, Instant detectionTime) {
+        var detectionMicros = toMicros(detectionTime);
+        var id = ids.get(detectable);
+        if (id == null) {
+            id = intern(detectable);
+        } else if (detectionMicros - lastEmittedMicros[id] < intervalMicros[id]) {
+            suppressed.mark();
+            return false;
+        }
+
+        lastEmittedMicros[id] = detectionMicros;
+        return true;
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    private int intern(DetectablePK detectable) {
+        int id;
+        if (freeIdCount > 0) {
+            id = freeIds[--freeIdCount];
+        } else {
+            id = nextId++;
+            if (id == keys.length) {
+                var capacity = keys.length * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                lastEmittedMicros = Arrays.copyOf(lastEmittedMicros, capacity);
+                intervalMicros = Arrays.copyOf(intervalMicros, capacity);
+                freeIds = Arrays.copyOf(freeIds, capacity);
+            }
+        }
+
+        ids.put(detectable, id);
+        keys[id] = detectable;
+        lastEmittedMicros[id] = NEVER;
+        intervalMicros[id] = intervalMicrosByClient.getOrDefault(detectable.clientId, defaultIntervalMicros);
+        return id;
+    }
+
+    private void sweep() {
+        var cutoffMicros = toMicros(Instant.now().minus(IDLE_AGE));
+        var swept = 0;
+        synchronized (this) {
+            for (int id = 0; id < nextId; id++) {
+                var key = keys[id];
+                if (key == null || lastEmittedMicros[id] >= cutoffMicros) continue;
+
+                ids.remove(key);
+                keys[id] = null;
+                freeIds[freeIdCount++] = id;
+                swept++;
+            }
+        }
+        log.trace("Swept {} idle detectables from throttle", swept);
+    }
+
+    private static long toMicros(Instant time) {
+        return time.getEpochSecond() * 1_000_000 + time.getNano() / 1_000;
+    }
+
+    private static long toMicros(Duration duration) {
+        return duration.getSeconds() * 1_000_000 + duration.getNano() / 1_000;
+    }
+}
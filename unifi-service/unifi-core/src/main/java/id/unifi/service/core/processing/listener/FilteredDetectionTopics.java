@@ -0,0 +1,195 @@
+package id.unifi.service.core.processing.listener;
+
+import static id.unifi.service.common.api.Validation.v;
+import static id.unifi.service.common.api.Validation.validateAll;
+import id.unifi.service.common.api.errors.ValidationFailure.Issue;
+import id.unifi.service.common.subscriptions.SubscriptionManager;
+import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.types.pk.SitePK;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.ASSIGNMENT;
+import static id.unifi.service.core.db.Tables.HOLDER_METADATA;
+import id.unifi.service.core.site.DetectionSubscriptionFilter;
+import id.unifi.service.core.site.FilteredDetectionSubscriptionType;
+import id.unifi.service.core.site.ResolvedSiteDetection;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toUnmodifiableSet;
+import org.jooq.Condition;
+import static org.jooq.impl.DSL.and;
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.or;
+import static org.jooq.impl.DSL.value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiled detection subscription filters in use, by site.
+ *
+ * Filters are compiled down to a set of client references and a set of zones, so that matching a detection is two
+ * hash lookups. Detectable and metadata conditions are resolved to the client references currently assigned or
+ * matching; these are refreshed periodically, which is also when filters no longer subscribed to are dropped.
+ *
+ * Each condition of a filter is capped at {@value #MAX_FILTER_VALUES} values, which bounds both the resolving queries
+ * and the compiled sets.
+ *
+ * Filters are local to the node: only detections matched here are tested against them, and filtered topics aren't
+ * brokered to other nodes.
+ */
+class FilteredDetectionTopics {
+    private static final Logger log = LoggerFactory.getLogger(FilteredDetectionTopics.class);
+    private static final Duration REFRESH_INTERVAL = Duration.ofMinutes(1);
+    private static final int MAX_FILTER_VALUES = 1_000;
+
+    private final Database db;
+    private final SubscriptionManager subscriptionManager;
+    private final ConcurrentMap<SitePK, ConcurrentMap<DetectionSubscriptionFilter, CompiledFilter>> filtersBySite;
+    private final ScheduledExecutorService refresher;
+
+    FilteredDetectionTopics(DatabaseProvider dbProvider, SubscriptionManager subscriptionManager) {
+        this.db = dbProvider.bySchema(CORE);
+        this.subscriptionManager = subscriptionManager;
+        this.filtersBySite = new ConcurrentHashMap<>();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "filtered-detection-topics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh,
+                REFRESH_INTERVAL.toMillis(), REFRESH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compiles a filter, or finds it already compiled, for a subscriber about to subscribe to its topic.
+     */
+    CompiledFilter register(SitePK site, DetectionSubscriptionFilter filter) {
+        validateAll(
+                v("filter.clientReferences", tooManyValues(filter.clientReferences)),
+                v("filter.detectables", tooManyValues(filter.detectables)),
+                v("filter.metadata", tooManyValues(filter.metadata == null ? null : filter.metadata.keySet())),
+                v("filter.zoneIds", tooManyValues(filter.zoneIds)));
+
+        var siteFilters = filtersBySite.get(site);
+        var existing = siteFilters == null ? null : siteFilters.get(filter);
+        // Resolving queries the database, so it's done outside the maps; if the same filter is registered meanwhile,
+        // whichever gets in first is kept
+        var candidate = existing != null
+                ? existing
+                : new CompiledFilter(site, filter, resolveClientReferences(site, filter));
+        // Not idle from here on, so a refresh won't drop it; put back in case one has just done so
+        candidate.lastRegistered = Instant.now();
+
+        var registered = new CompiledFilter[1];
+        filtersBySite.compute(site, (s, filters) -> {
+            if (filters == null) filters = new ConcurrentHashMap<>();
+            var raced = filters.putIfAbsent(filter, candidate);
+            registered[0] = raced != null ? raced : candidate;
+            return filters;
+        });
+        registered[0].lastRegistered = Instant.now();
+        return registered[0];
+    }
+
+    Collection<CompiledFilter> forSite(SitePK site) {
+        var filters = filtersBySite.get(site);
+        return filters == null ? List.of() : filters.values();
+    }
+
+    private void refresh() {
+        // Give subscribers time to get from registering to subscribing before taking an idle filter away
+        var idleCutoff = Instant.now().minus(REFRESH_INTERVAL);
+        try {
+            filtersBySite.forEach((site, filters) -> {
+                filters.values().removeIf(compiled -> subscriptionManager.subscriptionCount(compiled.topic) == 0
+                        && compiled.lastRegistered.isBefore(idleCutoff));
+                filters.values().forEach(compiled ->
+                        compiled.clientReferences = resolveClientReferences(site, compiled.filter));
+            });
+            // Atomically with registration, which could otherwise add to a site's map as it's dropped
+            filtersBySite.keySet().forEach(site ->
+                    filtersBySite.computeIfPresent(site, (s, filters) -> filters.isEmpty() ? null : filters));
+        } catch (RuntimeException e) {
+            log.error("Failed to refresh detection subscription filters", e);
+        }
+    }
+
+    private @Nullable Set<String> resolveClientReferences(SitePK site, DetectionSubscriptionFilter filter) {
+        Set<String> clientReferences = filter.clientReferences == null ? null : new HashSet<>(filter.clientReferences);
+
+        if (filter.detectables != null) {
+            var assigned = filter.detectables.isEmpty() ? Set.<String>of() : db.execute(sql -> sql
+                    .selectDistinct(ASSIGNMENT.CLIENT_REFERENCE)
+                    .from(ASSIGNMENT)
+                    .where(ASSIGNMENT.CLIENT_ID.eq(site.clientId))
+                    .and(or(filter.detectables.stream()
+                            .map(d -> ASSIGNMENT.DETECTABLE_ID.eq(d.detectableId)
+                                    .and(ASSIGNMENT.DETECTABLE_TYPE.eq(d.detectableType.toString())))
+                            .collect(toList())))
+                    .fetchSet(ASSIGNMENT.CLIENT_REFERENCE));
+            clientReferences = intersect(clientReferences, assigned);
+        }
+
+        if (filter.metadata != null && !filter.metadata.isEmpty()) {
+            List<Condition> conditions = filter.metadata.entrySet().stream()
+                    .map(e -> field("{0} ->> {1}", String.class, HOLDER_METADATA.METADATA, value(e.getKey()))
+                            .eq(e.getValue()))
+                    .collect(toList());
+            var matching = db.execute(sql -> sql
+                    .select(HOLDER_METADATA.CLIENT_REFERENCE)
+                    .from(HOLDER_METADATA)
+                    .where(HOLDER_METADATA.CLIENT_ID.eq(site.clientId))
+                    .and(and(conditions))
+                    .fetchSet(HOLDER_METADATA.CLIENT_REFERENCE));
+            clientReferences = intersect(clientReferences, matching);
+        }
+
+        return clientReferences == null ? null : Set.copyOf(clientReferences);
+    }
+
+    private static @Nullable Issue tooManyValues(@Nullable Collection<?> values) {
+        return values != null && values.size() > MAX_FILTER_VALUES ? Issue.TOO_LONG : null;
+    }
+
+    private static Set<String> intersect(@Nullable Set<String> a, Set<String> b) {
+        if (a == null) return new HashSet<>(b);
+        a.retainAll(b);
+        return a;
+    }
+
+    static class CompiledFilter {
+        final DetectionSubscriptionFilter filter;
+        final Topic<TopicBatch<ResolvedSiteDetection>> topic;
+        final @Nullable Set<String> zoneIds;
+        volatile @Nullable Set<String> clientReferences;
+        volatile Instant lastRegistered;
+
+        CompiledFilter(SitePK site, DetectionSubscriptionFilter filter, @Nullable Set<String> clientReferences) {
+            this.filter = filter;
+            this.topic = FilteredDetectionSubscriptionType.topic(site, filter);
+            this.zoneIds = filter.zoneIds == null ? null : filter.zoneIds.stream().collect(toUnmodifiableSet());
+            this.clientReferences = clientReferences;
+            this.lastRegistered = Instant.now();
+        }
+
+        boolean test(String clientReference, String zoneId) {
+            var clientReferences = this.clientReferences;
+            return (zoneIds == null || zoneIds.contains(zoneId))
+                    && (clientReferences == null || clientReferences.contains(clientReference));
+        }
+    }
+}
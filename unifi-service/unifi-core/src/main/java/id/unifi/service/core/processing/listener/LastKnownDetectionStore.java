@@ -0,0 +1,334 @@
+package id.unifi.service.core.processing.listener;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import id.unifi.service.common.types.pk.SitePK;
+import id.unifi.service.common.types.pk.ZonePK;
+import id.unifi.service.core.site.ResolvedSiteDetection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Last known zone and detection time of each client reference, per site.
+ *
+ * Entries are indexed by site and by zone, so a snapshot of either costs as much as its result. Entries whose
+ * detection is older than the TTL are evicted periodically. Each client is capped at a maximum number of entries;
+ * once over it, the client's least recently updated entry is evicted, on whichever of its sites that is.
+ *
+ * If given a checkpoint file, the store is written to it every minute when changed and read back on start.
+ */
+public class LastKnownDetectionStore {
+    private static final Logger log = LoggerFactory.getLogger(LastKnownDetectionStore.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
+    private static final int MAGIC = 0x554C4B44; // "ULKD"
+    private static final int VERSION = 1;
+    private static final Duration MAX_SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration CHECKPOINT_INTERVAL = Duration.ofMinutes(1);
+
+    private final Duration ttl;
+    private final int maxEntriesPerClient;
+    private final @Nullable Path checkpointPath;
+    private final ConcurrentMap<SitePK, SiteEntries> sites;
+    private final ConcurrentMap<String, AtomicInteger> clientEntryCounts;
+    private final ConcurrentMap<String, Set<SiteEntries>> clientSites;
+    private final AtomicLong updateSequence;
+    private final AtomicBoolean dirty;
+    private final ScheduledExecutorService scheduler;
+    private final Meter evictions;
+
+    public LastKnownDetectionStore(Duration ttl,
+                                   int maxEntriesPerClient,
+                                   @Nullable Path checkpointPath,
+                                   MetricRegistry registry) {
+        this.ttl = ttl;
+        this.maxEntriesPerClient = maxEntriesPerClient;
+        this.checkpointPath = checkpointPath;
+        this.sites = new ConcurrentHashMap<>();
+        this.clientEntryCounts = new ConcurrentHashMap<>();
+        this.clientSites = new ConcurrentHashMap<>();
+        this.updateSequence = new AtomicLong();
+        this.dirty = new AtomicBoolean();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "last-known-detections");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        var metricName = name(METRIC_NAME_PREFIX, "last-known-detections");
+        this.evictions = registry.meter(name(metricName, "evictions"));
+        registry.gauge(name(metricName, "entries"),
+                () -> () -> clientEntryCounts.values().stream().mapToInt(AtomicInteger::get).sum());
+    }
+
+    public void start() {
+        if (checkpointPath != null && Files.exists(checkpointPath)) {
+            try {
+                restore(checkpointPath);
+            } catch (IOException e) {
+                log.error("Failed to restore last known detections from {}, starting empty", checkpointPath, e);
+            }
+        }
+
+        var sweepMillis = Math.min(ttl.toMillis(), MAX_SWEEP_INTERVAL.toMillis());
+        scheduler.scheduleWithFixedDelay(this::evictExpired, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        if (checkpointPath != null) {
+            var checkpointMillis = CHECKPOINT_INTERVAL.toMillis();
+            scheduler.scheduleWithFixedDelay(
+                    this::checkpoint, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void update(ZonePK zone, String clientReference, Instant detectionTime) {
+        var site = sites.computeIfAbsent(zone.getSite(), s -> {
+            var entries = new SiteEntries();
+            clientSites.computeIfAbsent(zone.clientId, c -> ConcurrentHashMap.newKeySet()).add(entries);
+            return entries;
+        });
+        var added = site.update(zone.zoneId, clientReference, detectionTime, updateSequence.incrementAndGet());
+        if (added == null) return;
+
+        dirty.set(true);
+        if (!added) return;
+
+        var clientEntryCount = clientEntryCounts.computeIfAbsent(zone.clientId, c -> new AtomicInteger());
+        if (clientEntryCount.incrementAndGet() > maxEntriesPerClient && evictLeastRecentlyUpdated(zone.clientId)) {
+            clientEntryCount.decrementAndGet();
+            evictions.mark();
+        }
+    }
+
+    public List<ResolvedSiteDetection> get(SitePK site) {
+        var entries = sites.get(site);
+        return entries == null ? List.of() : entries.snapshot();
+    }
+
+    public List<ResolvedSiteDetection> get(ZonePK zone) {
+        var entries = sites.get(zone.getSite());
+        return entries == null ? List.of() : entries.snapshot(zone.zoneId);
+    }
+
+    private boolean evictLeastRecentlyUpdated(String clientId) {
+        var candidates = clientSites.getOrDefault(clientId, Set.of());
+        while (true) {
+            SiteEntries eldestSite = null;
+            var eldestSequence = Long.MAX_VALUE;
+            for (var site : candidates) {
+                var sequence = site.eldestSequence();
+                if (sequence < eldestSequence) {
+                    eldestSite = site;
+                    eldestSequence = sequence;
+                }
+            }
+            if (eldestSite == null) return false;
+            // Retry if the entry was updated in the meantime, as another one may now be the eldest
+            if (eldestSite.evictEldest(eldestSequence)) return true;
+        }
+    }
+
+    private void evictExpired() {
+        try {
+            var cutoff = Instant.now().minus(ttl);
+            sites.forEach((site, entries) -> {
+                var evicted = entries.evictDetectedBefore(cutoff);
+                if (evicted == 0) return;
+
+                clientEntryCounts.computeIfAbsent(site.clientId, c -> new AtomicInteger()).addAndGet(-evicted);
+                evictions.mark(evicted);
+                dirty.set(true);
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to evict expired last known detections", e);
+        }
+    }
+
+    private void checkpoint() {
+        if (!dirty.getAndSet(false)) return;
+        try {
+            write(checkpointPath);
+        } catch (IOException | RuntimeException e) {
+            dirty.set(true);
+            log.error("Failed to checkpoint last known detections to {}", checkpointPath, e);
+        }
+    }
+
+    private void write(Path path) throws IOException {
+        var tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tmpPath))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (var siteEntries : sites.entrySet()) {
+                var site = siteEntries.getKey();
+                var snapshot = siteEntries.getValue().snapshot();
+                if (snapshot.isEmpty()) continue;
+
+                out.writeBoolean(true);
+                out.writeUTF(site.clientId);
+                out.writeUTF(site.siteId);
+                out.writeInt(snapshot.size());
+                for (var detection : snapshot) {
+                    out.writeUTF(detection.zoneId);
+                    out.writeUTF(detection.clientReference);
+                    out.writeLong(detection.detectionTime.getEpochSecond());
+                    out.writeInt(detection.detectionTime.getNano());
+                }
+            }
+            out.writeBoolean(false);
+        }
+
+        Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private void restore(Path path) throws IOException {
+        var cutoff = Instant.now().minus(ttl);
+        var restored = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a last known detection checkpoint: " + path);
+            var version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+
+            while (in.readBoolean()) {
+                var clientId = in.readUTF();
+                var siteId = in.readUTF();
+                var count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    var zoneId = in.readUTF();
+                    var clientReference = in.readUTF();
+                    var detectionTime = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                    if (detectionTime.isBefore(cutoff)) continue;
+
+                    update(new ZonePK(clientId, siteId, zoneId), clientReference, detectionTime);
+                    restored++;
+                }
+            }
+        }
+        dirty.set(false);
+        log.info("Restored {} last known detections from {}", restored, path);
+    }
+
+    private static class SiteEntries {
+        // Least recently updated first
+        private final LinkedHashMap<String, Entry> byClientReference = new LinkedHashMap<>();
+        private final Map<String, Map<String, Entry>> byZone = new HashMap<>();
+
+        /**
+         * @return true if a new client reference was added, false if an existing one was updated, null if the
+         * detection was older than what's already known
+         */
+        synchronized @Nullable Boolean update(String zoneId,
+                                              String clientReference,
+                                              Instant detectionTime,
+                                              long sequence) {
+            var previous = byClientReference.get(clientReference);
+            if (previous != null) {
+                if (!detectionTime.isAfter(previous.detectionTime)) return null;
+                remove(previous);
+            }
+
+            var entry = new Entry(zoneId, clientReference, detectionTime, sequence);
+            byClientReference.put(clientReference, entry);
+            byZone.computeIfAbsent(zoneId, z -> new HashMap<>()).put(clientReference, entry);
+            return previous == null;
+        }
+
+        /**
+         * @return update sequence number of the least recently updated entry, or {@link Long#MAX_VALUE} if empty
+         */
+        synchronized long eldestSequence() {
+            var iterator = byClientReference.values().iterator();
+            return iterator.hasNext() ? iterator.next().sequence : Long.MAX_VALUE;
+        }
+
+        /**
+         * Evicts the least recently updated entry, provided it's still the one with the given sequence number.
+         */
+        synchronized boolean evictEldest(long sequence) {
+            var iterator = byClientReference.values().iterator();
+            if (!iterator.hasNext()) return false;
+            var eldest = iterator.next();
+            if (eldest.sequence != sequence) return false;
+            remove(eldest);
+            return true;
+        }
+
+        synchronized int evictDetectedBefore(Instant cutoff) {
+            var expired = new ArrayList<Entry>();
+            for (var entry : byClientReference.values()) {
+                if (entry.detectionTime.isBefore(cutoff)) expired.add(entry);
+            }
+            expired.forEach(this::remove);
+            return expired.size();
+        }
+
+        synchronized List<ResolvedSiteDetection> snapshot() {
+            var detections = new ArrayList<ResolvedSiteDetection>(byClientReference.size());
+            for (var entry : byClientReference.values()) detections.add(entry.toDetection());
+            return detections;
+        }
+
+        synchronized List<ResolvedSiteDetection> snapshot(String zoneId) {
+            var zoneEntries = byZone.get(zoneId);
+            if (zoneEntries == null) return List.of();
+            var detections = new ArrayList<ResolvedSiteDetection>(zoneEntries.size());
+            for (var entry : zoneEntries.values()) detections.add(entry.toDetection());
+            return detections;
+        }
+
+        private void remove(Entry entry) {
+            byClientReference.remove(entry.clientReference);
+            var zoneEntries = byZone.get(entry.zoneId);
+            if (zoneEntries != null) {
+                zoneEntries.remove(entry.clientReference);
+                if (zoneEntries.isEmpty()) byZone.remove(entry.zoneId);
+            }
+        }
+    }
+
+    private static class Entry {
+        final String zoneId;
+        final String clientReference;
+        final Instant detectionTime;
+        final long sequence;
+
+        Entry(String zoneId, String clientReference, Instant detectionTime, long sequence) {
+            this.zoneId = zoneId;
+            this.clientReference = clientReference;
+            this.detectionTime = detectionTime;
+            this.sequence = sequence;
+        }
+
+        ResolvedSiteDetection toDetection() {
+            return new ResolvedSiteDetection(detectionTime, clientReference, zoneId);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package id.unifi.service.core.processing.listener;
+
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import id.unifi.service.common.api.MessageListener;
+import id.unifi.service.common.api.SharedPayload;
+import id.unifi.service.common.detection.DetectionMatch;
+import id.unifi.service.common.detection.DetectionMatchListener;
+import id.unifi.service.common.subscriptions.SubscriptionHandler;
+import id.unifi.service.common.subscriptions.SubscriptionManager;
+import id.unifi.service.common.types.pk.SitePK;
+import id.unifi.service.core.site.OccupancySubscriptionType;
+import id.unifi.service.core.site.SiteOccupancy;
+import id.unifi.service.core.site.SiteOccupancy.ZoneOccupancy;
+import static java.util.Comparator.comparing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks who is in which zone right now, counting a holder as present in the zone they were last detected in until
+ * they go undetected for the dwell timeout. Dwell is measured from detection times, not from when detections reach
+ * this node, so that detections delivered late don't keep holders around for longer.
+ *
+ * Each site keeps its holders in the order their latest detections arrived, so that both recording a detection and
+ * expiring holders cost constant time each. That's detection time order as long as detections arrive in order; one
+ * that arrives out of order can hold up expiring the holders behind it by as much as it's out of order. Occupancy
+ * changes are pushed to subscribers at most once per debounce interval, each message carrying the site's full
+ * occupancy.
+ *
+ * Occupancy is only known to the node that ingests the site's detections, and isn't passed between nodes: it's only
+ * complete if all of a site's agents report to the same node, and only that node's subscribers receive it.
+ */
+public class OccupancyEngine implements DetectionMatchListener {
+    private static final Logger log = LoggerFactory.getLogger(OccupancyEngine.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
+    private static final String SUBSCRIBE_OCCUPANCY_RESULT = "core.site.subscribe-occupancy-result";
+
+    private final SubscriptionManager subscriptionManager;
+    private final Duration dwellTimeout;
+    private final ConcurrentMap<SitePK, SiteState> sites;
+    private final ScheduledExecutorService ticker;
+
+    public OccupancyEngine(SubscriptionManager subscriptionManager,
+                           Duration dwellTimeout,
+                           Duration debounceInterval,
+                           MetricRegistry registry) {
+        this.subscriptionManager = subscriptionManager;
+        this.dwellTimeout = dwellTimeout;
+        this.sites = new ConcurrentHashMap<>();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "occupancy-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        registry.gauge(name(METRIC_NAME_PREFIX, "occupancy", "present"),
+                () -> () -> sites.values().stream().mapToInt(SiteState::count).sum());
+
+        ticker.scheduleWithFixedDelay(this::tick,
+                debounceInterval.toMillis(), debounceInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void accept(List<DetectionMatch> matches) {
+        var cutoff = Instant.now().minus(dwellTimeout);
+        for (var match : matches) {
+            var detectionTime = match.detection.detectionTime;
+            // Late enough that they'd already have timed out
+            if (detectionTime.isBefore(cutoff)) continue;
+
+            match.clientReference.ifPresent(clientReference ->
+                    sites.computeIfAbsent(match.zone.getSite(), s -> new SiteState(s.siteId))
+                            .update(clientReference, match.zone.zoneId, detectionTime));
+        }
+    }
+
+    public SiteOccupancy getOccupancy(SitePK site) {
+        var state = sites.get(site);
+        return state == null ? new SiteOccupancy(site.siteId, 0, List.of()) : state.snapshot();
+    }
+
+    public void addListener(SitePK site, MessageListener<SiteOccupancy> listener) {
+        log.debug("Adding occupancy listener for {}", site);
+        var topic = OccupancySubscriptionType.topic(site);
+        var handler = new SubscriptionHandler<SharedPayload<SiteOccupancy>>(
+                listener.getSession(),
+                listener.getCorrelationId(),
+                occupancy -> listener.acceptShared(SUBSCRIBE_OCCUPANCY_RESULT, occupancy));
+
+        var state = sites.computeIfAbsent(site, s -> new SiteState(s.siteId));
+        // Held still so that no change is pushed between the snapshot and subscribing
+        synchronized (state) {
+            listener.accept(SUBSCRIBE_OCCUPANCY_RESULT, state.snapshot());
+            subscriptionManager.addSubscription(topic, handler);
+        }
+    }
+
+    private void tick() {
+        var cutoff = Instant.now().minus(dwellTimeout);
+        sites.forEach((site, state) -> {
+            try {
+                synchronized (state) {
+                    state.expire(cutoff);
+                    if (!state.changed) return;
+                    state.changed = false;
+
+                    var topic = OccupancySubscriptionType.topic(site);
+                    if (subscriptionManager.subscriptionCount(topic) == 0) return;
+                    subscriptionManager.distributeMessage(topic,
+                            SharedPayload.of(state.snapshot(), topic.subscriptionType.overflowPolicy()));
+                }
+            } catch (RuntimeException e) {
+                log.error("Failed to update occupancy for {}", site, e);
+            }
+        });
+    }
+
+    private static class SiteState {
+        final String siteId;
+        // Least recently updated first
+        final LinkedHashMap<String, Presence> presences = new LinkedHashMap<>(16, 0.75f, true);
+        final Map<String, ZoneCount> zoneCounts = new HashMap<>();
+        boolean changed;
+
+        SiteState(String siteId) {
+            this.siteId = siteId;
+        }
+
+        synchronized void update(String clientReference, String zoneId, Instant detectionTime) {
+            var presence = presences.get(clientReference);
+            if (presence == null) {
+                presences.put(clientReference, new Presence(zoneId, detectionTime));
+                zoneCount(zoneId).count++;
+                changed = true;
+                return;
+            }
+
+            // Older than what we already know, so it says nothing about where they are now
+            if (detectionTime.isBefore(presence.lastSeen)) return;
+
+            presence.lastSeen = detectionTime;
+            if (!presence.zoneId.equals(zoneId)) {
+                zoneCount(presence.zoneId).count--;
+                zoneCount(zoneId).count++;
+                presence.zoneId = zoneId;
+                changed = true;
+            }
+        }
+
+        synchronized void expire(Instant cutoff) {
+            var iterator = presences.values().iterator();
+            while (iterator.hasNext()) {
+                var presence = iterator.next();
+                if (!presence.lastSeen.isBefore(cutoff)) break;
+                iterator.remove();
+                zoneCount(presence.zoneId).count--;
+                changed = true;
+            }
+        }
+
+        synchronized int count() {
+            return presences.size();
+        }
+
+        synchronized SiteOccupancy snapshot() {
+            var zones = new ArrayList<ZoneOccupancy>(zoneCounts.size());
+            zoneCounts.forEach((zoneId, zoneCount) -> zones.add(new ZoneOccupancy(zoneId, zoneCount.count)));
+            zones.sort(comparing(z -> z.zoneId));
+            return new SiteOccupancy(siteId, presences.size(), zones);
+        }
+
+        private ZoneCount zoneCount(String zoneId) {
+            return zoneCounts.computeIfAbsent(zoneId, z -> new ZoneCount());
+        }
+    }
+
+    private static class Presence {
+        String zoneId;
+        Instant lastSeen;
+
+        Presence(String zoneId, Instant lastSeen) {
+            this.zoneId = zoneId;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static class ZoneCount {
+        int count;
+    }
+}
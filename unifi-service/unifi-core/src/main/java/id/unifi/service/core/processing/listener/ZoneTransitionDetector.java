@@ -0,0 +1,356 @@
+package id.unifi.service.core.processing.listener;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import id.unifi.service.common.api.MessageListener;
+import id.unifi.service.common.detection.DetectionMatch;
+import id.unifi.service.common.detection.DetectionMatchListener;
+import id.unifi.service.common.subscriptions.SubscriptionHandler;
+import id.unifi.service.common.subscriptions.SubscriptionManager;
+import id.unifi.service.common.subscriptions.TopicBatcher;
+import id.unifi.service.common.types.pk.SitePK;
+import id.unifi.service.common.util.BatchBuffer;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Tables.HOLDER;
+import static id.unifi.service.core.db.Tables.ZONE;
+import static id.unifi.service.core.db.Tables.ZONE_TRANSITION;
+import id.unifi.service.core.site.ZoneTransition;
+import id.unifi.service.core.site.ZoneTransitionSubscriptionType;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import static id.unifi.service.dbcommon.DatabaseUtils.CITEXT;
+import static id.unifi.service.dbcommon.DatabaseUtils.unqualified;
+import org.jooq.Field;
+import org.jooq.Row6;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Turns matched detections into holders entering and leaving zones.
+ *
+ * A holder enters a zone once detected there a number of times in a row, so a stray read from a neighbouring zone
+ * doesn't move them; entering a zone means leaving the previous one. A holder not detected in their zone for the exit
+ * timeout leaves it. Transitions are published to site subscribers and written to {@code core.zone_transition} in
+ * batches, skipping transitions of holders or zones deleted in the meantime.
+ *
+ * Writing is best effort so that it never holds up detection ingest, which calls in here: transitions that don't fit
+ * the persistence buffer are dropped, and a batch is retried a few times on transient database errors and dropped
+ * after that or on any other error. Dropped transitions are counted.
+ *
+ * Each site's holders are handled under the site's lock. The transitions that produces are queued and handed on after
+ * the lock is released, by one thread at a time in queue order, so each holder's transitions are published and
+ * written in the order they happened. Holder state is only kept in memory; a holder present when the service restarts
+ * gets an enter without a preceding exit.
+ *
+ * Holder state is also per node, built from the detections this node ingests. Transitions are only right if all of a
+ * site's agents report to the same node: a holder whose detections are split between nodes is tracked separately on
+ * each, and gets transitions from each. Subscribers on other nodes do receive the transitions through the broker.
+ */
+public class ZoneTransitionDetector implements DetectionMatchListener {
+    private static final Logger log = LoggerFactory.getLogger(ZoneTransitionDetector.class);
+    private static final String METRIC_NAME_PREFIX = "id.unifi.service.core";
+    private static final String SUBSCRIBE_ZONE_TRANSITIONS_RESULT = "core.site.subscribe-zone-transitions-result";
+    private static final Duration SWEEP_INTERVAL = Duration.ofSeconds(1);
+
+    private static final int BUFFER_SIZE = 10_000;
+    private static final Duration BATCH_CREATION_TIMEOUT = Duration.ofSeconds(5);
+    private static final int FLUSH_WORKERS = 2;
+    private static final Duration INITIAL_RETRY_INTERVAL = Duration.ofMillis(500);
+    private static final Duration MAX_RETRY_INTERVAL = Duration.ofSeconds(4);
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static final Field<String> CLIENT_ID = unqualified(ZONE_TRANSITION.CLIENT_ID);
+    private static final Field<String> CLIENT_REFERENCE = unqualified(ZONE_TRANSITION.CLIENT_REFERENCE);
+    private static final Field<String> SITE_ID = unqualified(ZONE_TRANSITION.SITE_ID);
+    private static final Field<String> ZONE_ID = unqualified(ZONE_TRANSITION.ZONE_ID);
+
+    private static final String[] INSERTED_FIELD_NAMES = Stream.of(
+            ZONE_TRANSITION.CLIENT_ID,
+            ZONE_TRANSITION.CLIENT_REFERENCE,
+            ZONE_TRANSITION.SITE_ID,
+            ZONE_TRANSITION.ZONE_ID,
+            ZONE_TRANSITION.TRANSITION_TIME,
+            ZONE_TRANSITION.TRANSITION).map(Field::getName).toArray(String[]::new);
+
+    private final Database db;
+    private final SubscriptionManager subscriptionManager;
+    private final int enterDetections;
+    private final Duration exitTimeout;
+    private final ConcurrentMap<SitePK, SiteHolders> sites;
+    private final TopicBatcher<ZoneTransition> batcher;
+    private final BatchBuffer<SiteTransition> persistenceBuffer;
+    private final ScheduledExecutorService sweeper;
+    private final Meter enters;
+    private final Meter exits;
+    private final Meter dropped;
+
+    public ZoneTransitionDetector(DatabaseProvider dbProvider,
+                                  SubscriptionManager subscriptionManager,
+                                  MetricRegistry registry,
+                                  int enterDetections,
+                                  Duration exitTimeout,
+                                  Duration batchWindow,
+                                  int maxBatchSize) {
+        this.db = dbProvider.bySchema(CORE);
+        this.subscriptionManager = subscriptionManager;
+        this.enterDetections = Math.max(1, enterDetections);
+        this.exitTimeout = exitTimeout;
+        this.sites = new ConcurrentHashMap<>();
+        this.batcher = new TopicBatcher<>("zone-transitions", subscriptionManager, batchWindow, maxBatchSize,
+                0, Duration.ZERO, registry, METRIC_NAME_PREFIX);
+
+        // Keying by holder keeps each holder's transitions in order
+        this.persistenceBuffer = BatchBuffer.<SiteTransition>builder(
+                "zone-transitions", BUFFER_SIZE, BATCH_CREATION_TIMEOUT)
+                .flushers(FLUSH_WORKERS)
+                .orderingKey(t -> t.transition.clientReference)
+                .metrics(registry, METRIC_NAME_PREFIX)
+                .build(this::persist);
+
+        var metricName = name(METRIC_NAME_PREFIX, "zone-transitions");
+        this.enters = registry.meter(name(metricName, "enters"));
+        this.exits = registry.meter(name(metricName, "exits"));
+        this.dropped = registry.meter(name(metricName, "dropped"));
+        registry.gauge(name(metricName, "holders"),
+                () -> () -> sites.values().stream().mapToInt(SiteHolders::size).sum());
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "zone-transition-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep,
+                SWEEP_INTERVAL.toMillis(), SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void accept(List<DetectionMatch> matches) {
+        var cutoff = Instant.now().minus(exitTimeout);
+        for (var match : matches) {
+            // Late enough that the holder would already have timed out
+            if (match.clientReference.isEmpty() || match.detection.detectionTime.isBefore(cutoff)) continue;
+
+            var site = match.zone.getSite();
+            var holders = sites.computeIfAbsent(site, s -> new SiteHolders());
+            synchronized (holders) {
+                holders.holders
+                        .computeIfAbsent(match.clientReference.get(), ref -> new HolderState(ref, enterDetections))
+                        .detected(match.zone.zoneId, match.detection.detectionTime, holders.pending::add);
+            }
+            handOff(site, holders);
+        }
+    }
+
+    public void addListener(SitePK site, MessageListener<List<ZoneTransition>> listener) {
+        log.debug("Adding zone transition listener for {}", site);
+        subscriptionManager.addSubscription(ZoneTransitionSubscriptionType.topic(site),
+                new SubscriptionHandler<>(listener.getSession(), listener.getCorrelationId(),
+                        batch -> listener.acceptShared(SUBSCRIBE_ZONE_TRANSITIONS_RESULT, batch.payload)));
+    }
+
+    /**
+     * Publishes the site's queued transitions and passes them on for writing. Whoever gets here first hands off
+     * everything queued so far, including transitions queued by others meanwhile.
+     */
+    private void handOff(SitePK site, SiteHolders holders) {
+        synchronized (holders.handOffLock) {
+            ZoneTransition transition;
+            while ((transition = holders.pending.poll()) != null) emit(site, transition);
+        }
+    }
+
+    private void emit(SitePK site, ZoneTransition transition) {
+        (transition.type == ZoneTransition.Type.ENTER ? enters : exits).mark();
+        batcher.publish(ZoneTransitionSubscriptionType.topic(site), transition);
+        if (!persistenceBuffer.offer(new SiteTransition(site, transition))) {
+            log.debug("Persistence buffer full, dropping zone transition for {}", site);
+            dropped.mark();
+        }
+    }
+
+    private void sweep() {
+        var cutoff = Instant.now().minus(exitTimeout);
+        sites.forEach((site, holders) -> {
+            try {
+                synchronized (holders) {
+                    holders.holders.values().removeIf(holder -> holder.expire(cutoff, holders.pending::add));
+                }
+                handOff(site, holders);
+            } catch (RuntimeException e) {
+                log.error("Failed to expire zone presence for {}", site, e);
+            }
+        });
+    }
+
+    private void persist(List<SiteTransition> transitions) {
+        if (transitions.isEmpty()) return;
+
+        @SuppressWarnings("unchecked")
+        Row6<String, String, String, String, Instant, String>[] rows = transitions.stream()
+                .map(t -> row(
+                        cast(t.site.clientId, CITEXT),
+                        cast(t.transition.clientReference, CITEXT),
+                        cast(t.site.siteId, CITEXT),
+                        cast(t.transition.zoneId, CITEXT),
+                        t.transition.time,
+                        t.transition.type.toString()))
+                .toArray(Row6[]::new);
+        var values = values(rows).asTable("v", INSERTED_FIELD_NAMES);
+
+        // Retried in place rather than handed back, so the worker's later batches for the same holders stay behind it
+        var retryIntervalMillis = INITIAL_RETRY_INTERVAL.toMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                int rowsInserted = db.execute(sql -> sql.insertInto(ZONE_TRANSITION,
+                        ZONE_TRANSITION.CLIENT_ID,
+                        ZONE_TRANSITION.CLIENT_REFERENCE,
+                        ZONE_TRANSITION.SITE_ID,
+                        ZONE_TRANSITION.ZONE_ID,
+                        ZONE_TRANSITION.TRANSITION_TIME,
+                        ZONE_TRANSITION.TRANSITION)
+                        .select(selectFrom(values)
+                                .whereExists(selectOne().from(HOLDER)
+                                        .where(HOLDER.CLIENT_ID.eq(values.field(CLIENT_ID)))
+                                        .and(HOLDER.CLIENT_REFERENCE.eq(values.field(CLIENT_REFERENCE))))
+                                .andExists(selectOne().from(ZONE)
+                                        .where(ZONE.CLIENT_ID.eq(values.field(CLIENT_ID)))
+                                        .and(ZONE.SITE_ID.eq(values.field(SITE_ID)))
+                                        .and(ZONE.ZONE_ID.eq(values.field(ZONE_ID)))))
+                        .execute());
+                log.debug("Persisted {} of {} zone transitions", rowsInserted, transitions.size());
+                return;
+            } catch (TransientDataAccessException | RecoverableDataAccessException
+                    | DataAccessResourceFailureException | TransactionException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    drop(transitions, e);
+                    return;
+                }
+                log.warn("Failed to persist {} zone transitions, retrying in {} ms",
+                        transitions.size(), retryIntervalMillis, e);
+                try {
+                    Thread.sleep(retryIntervalMillis);
+                    retryIntervalMillis = Math.min(MAX_RETRY_INTERVAL.toMillis(), retryIntervalMillis * 2);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    drop(transitions, e);
+                    return;
+                }
+            } catch (DataAccessException e) {
+                // Bad data won't get any better for retrying
+                drop(transitions, e);
+                return;
+            }
+        }
+    }
+
+    private void drop(List<SiteTransition> transitions, Exception cause) {
+        log.error("Dropping {} zone transitions that couldn't be persisted", transitions.size(), cause);
+        dropped.mark(transitions.size());
+    }
+
+    interface TransitionSink {
+        void emit(ZoneTransition transition);
+    }
+
+    private static class SiteHolders {
+        final Map<String, HolderState> holders = new HashMap<>();
+        final Queue<ZoneTransition> pending = new ConcurrentLinkedQueue<>();
+        final Object handOffLock = new Object();
+
+        synchronized int size() {
+            return holders.size();
+        }
+    }
+
+    /**
+     * Where a holder is, and which zone they may be moving into. Not thread-safe; a site's holders are only touched
+     * under the site's lock.
+     */
+    static class HolderState {
+        final String clientReference;
+        final int enterDetections;
+        @Nullable Instant lastSeen;
+        @Nullable String zoneId;
+        @Nullable Instant lastSeenInZone;
+        @Nullable String candidateZoneId;
+        @Nullable Instant candidateSince;
+        int candidateCount;
+
+        HolderState(String clientReference, int enterDetections) {
+            this.clientReference = clientReference;
+            this.enterDetections = enterDetections;
+        }
+
+        void detected(String zoneId, Instant time, TransitionSink sink) {
+            // Out of order; the holder has been placed by later detections already
+            if (lastSeen != null && time.isBefore(lastSeen)) return;
+            lastSeen = time;
+
+            if (zoneId.equals(this.zoneId)) {
+                lastSeenInZone = time;
+                candidateZoneId = null;
+                return;
+            }
+
+            if (zoneId.equals(candidateZoneId)) {
+                candidateCount++;
+            } else {
+                candidateZoneId = zoneId;
+                candidateSince = time;
+                candidateCount = 1;
+            }
+            if (candidateCount < enterDetections) return;
+
+            if (this.zoneId != null) {
+                sink.emit(new ZoneTransition(clientReference, this.zoneId, ZoneTransition.Type.EXIT, lastSeenInZone));
+            }
+            sink.emit(new ZoneTransition(clientReference, zoneId, ZoneTransition.Type.ENTER, candidateSince));
+            this.zoneId = zoneId;
+            lastSeenInZone = time;
+            candidateZoneId = null;
+        }
+
+        /**
+         * @return whether there's nothing left to track for the holder
+         */
+        boolean expire(Instant cutoff, TransitionSink sink) {
+            if (zoneId != null && lastSeenInZone.isBefore(cutoff)) {
+                sink.emit(new ZoneTransition(clientReference, zoneId, ZoneTransition.Type.EXIT, lastSeenInZone));
+                zoneId = null;
+            }
+            if (candidateZoneId != null && candidateSince.isBefore(cutoff)) candidateZoneId = null;
+            return zoneId == null && candidateZoneId == null;
+        }
+    }
+
+    private static class SiteTransition {
+        final SitePK site;
+        final ZoneTransition transition;
+
+        SiteTransition(SitePK site, ZoneTransition transition) {
+            this.site = site;
+            this.transition = transition;
+        }
+    }
+}
@@ -1,64 +1,169 @@
 package id.unifi.service.core.services;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import id.unifi.service.common.api.MessageListener;
 import id.unifi.service.common.api.annotations.ApiOperation;
 import id.unifi.service.common.api.annotations.ApiService;
+import id.unifi.service.common.api.errors.AlreadyExists;
+import id.unifi.service.common.api.errors.InternalServerError;
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+import id.unifi.service.common.api.errors.NotFound;
 import id.unifi.service.common.api.errors.Unauthorized;
 import id.unifi.service.common.detection.DetectableType;
 import id.unifi.service.common.detection.Detection;
 import id.unifi.service.common.operator.OperatorSessionData;
-import id.unifi.service.common.types.pk.DetectablePK;
 import id.unifi.service.common.types.pk.OperatorPK;
-import static id.unifi.service.core.db.Core.CORE;
-import static id.unifi.service.core.db.Tables.RFID_DETECTION;
-import id.unifi.service.core.db.tables.records.RfidDetectionRecord;
-import id.unifi.service.core.processing.DetectionProcessor;
-import id.unifi.service.dbcommon.Database;
-import id.unifi.service.dbcommon.DatabaseProvider;
+import id.unifi.service.core.archive.DetectionFilter;
+import id.unifi.service.core.archive.DetectionHistory;
+import id.unifi.service.core.archive.DetectionKey;
+import id.unifi.service.core.permissions.StaffAccess;
+import id.unifi.service.core.processing.DetectionReplayer;
+import id.unifi.service.core.processing.DetectionReplayer.ReplayProgress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @ApiService("detection")
 public class DetectionService {
-    private static Logger log = LoggerFactory.getLogger(DetectionService.class);
+    private static final Logger log = LoggerFactory.getLogger(DetectionService.class);
 
-    private final Database db;
-    private final DetectionProcessor detectionProcessor;
+    private static final String REPLAY_PROGRESS_MESSAGE_TYPE = "core.detection.process-from-database-progress";
+    private static final String QUERY_RESULT_MESSAGE_TYPE = "core.detection.query-detections-result";
 
-    public DetectionService(DatabaseProvider dbProvider, DetectionProcessor detectionProcessor) {
-        this.db = dbProvider.bySchema(CORE);
-        this.detectionProcessor = detectionProcessor;
+    private static final int QUERY_CHUNK_SIZE = 1_000;
+    private static final int QUERY_MAX_ROWS = 100_000;
+    private static final Duration QUERY_TIME_BUDGET = Duration.ofSeconds(30);
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+
+    private final DetectionHistory detectionHistory;
+    private final DetectionReplayer detectionReplayer;
+    private final StaffAccess staffAccess;
+    private final ExecutorService queryExecutor;
+
+    public DetectionService(DetectionHistory detectionHistory,
+                            DetectionReplayer detectionReplayer,
+                            StaffAccess staffAccess) {
+        this.detectionHistory = detectionHistory;
+        this.detectionReplayer = detectionReplayer;
+        this.staffAccess = staffAccess;
+        this.queryExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_QUERIES,
+                new ThreadFactoryBuilder().setNameFormat("detection-query-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Streams detections in (detection time, primary key) order as chunks.
+     *
+     * A query stops after {@code maxRows} rows or the time budget, whichever comes first; the last chunk then has
+     * {@code complete} unset and a cursor to resume from. Any other failure ends the stream with an error.
+     */
+    @ApiOperation
+    public void queryDetections(OperatorSessionData session,
+                                String clientId,
+                                Instant startTime,
+                                Instant endTime,
+                                @Nullable String siteId,
+                                @Nullable String zoneId,
+                                @Nullable String clientReference,
+                                @Nullable String detectableId,
+                                @Nullable DetectableType detectableType,
+                                @Nullable String cursor,
+                                @Nullable Integer maxRows,
+                                MessageListener<DetectionQueryResult> listener) {
+        authorize(session, clientId);
+        if (zoneId != null && siteId == null) throw new InvalidParameterFormat("zoneId", "zoneId requires siteId");
+
+        var filter = new DetectionFilter(
+                clientId, startTime, endTime, siteId, zoneId, clientReference, detectableId, detectableType);
+        var after = cursor == null ? null : DetectionKey.decode("cursor", cursor);
+        var rowLimit = maxRows == null ? QUERY_MAX_ROWS : Math.max(1, Math.min(maxRows, QUERY_MAX_ROWS));
+
+        queryExecutor.execute(() -> {
+            var deadline = System.nanoTime() + QUERY_TIME_BUDGET.toNanos();
+            var chunk = new ArrayList<Detection>(QUERY_CHUNK_SIZE);
+            var rowCount = new int[] { 0 };
+            DetectionKey resumeAfter;
+            try {
+                resumeAfter = detectionHistory.search(filter, after, deadline, detection -> {
+                    if (rowCount[0] >= rowLimit || System.nanoTime() > deadline) return false;
+                    chunk.add(detection);
+                    rowCount[0]++;
+                    if (chunk.size() >= QUERY_CHUNK_SIZE) {
+                        listener.accept(QUERY_RESULT_MESSAGE_TYPE, DetectionQueryResult.partial(chunk));
+                        chunk.clear();
+                    }
+                    return true;
+                });
+            } catch (RuntimeException e) {
+                log.error("Detection query for {} failed", clientId, e);
+                listener.acceptError(new InternalServerError());
+                return;
+            }
+
+            if (resumeAfter != null) log.debug("Detection query for {} stopped early", clientId);
+            listener.accept(QUERY_RESULT_MESSAGE_TYPE, resumeAfter == null
+                    ? DetectionQueryResult.complete(chunk)
+                    : DetectionQueryResult.incomplete(chunk, resumeAfter));
+        });
     }
 
-    // TODO: This should be accessible only to unifi.id staff
     @ApiOperation
     public void processFromDatabase(OperatorSessionData session,
                                     String clientId,
                                     Instant startTime,
-                                    Instant endTime) {
-        authorize(session, clientId);
-        if (startTime.isAfter(endTime)) return;
+                                    Instant endTime,
+                                    @Nullable Integer detectionsPerSecond,
+                                    MessageListener<ReplayProgress> listener) {
+        staffAccess.ensureStaff(session);
+        if (startTime.isAfter(endTime)) endTime = startTime;
 
-        var detections = db.execute(sql -> sql.selectFrom(RFID_DETECTION)
-                .where(RFID_DETECTION.DETECTION_TIME.ge(startTime))
-                .and(RFID_DETECTION.DETECTION_TIME.lt(endTime))
-                .and(RFID_DETECTION.CLIENT_ID.eq(clientId))
-                .fetch(DetectionService::detectionFromRecord));
+        var jobId = detectionReplayer.start(clientId, startTime, endTime, detectionsPerSecond,
+                progress -> listener.accept(REPLAY_PROGRESS_MESSAGE_TYPE, progress));
+        if (jobId == null) throw new AlreadyExists("replay");
+    }
 
-        log.info("Processing {} detections from DB", detections.size());
-        detectionProcessor.process(detections);
+    @ApiOperation
+    public List<ReplayProgress> listReplays(OperatorSessionData session, String clientId) {
+        staffAccess.ensureStaff(session);
+        return detectionReplayer.listJobs(clientId);
+    }
+
+    @ApiOperation
+    public void cancelReplay(OperatorSessionData session, String clientId, String jobId) {
+        staffAccess.ensureStaff(session);
+        if (!detectionReplayer.cancel(clientId, jobId)) throw new NotFound("replay");
     }
 
-    private static Detection detectionFromRecord(RfidDetectionRecord r) {
-        return new Detection(
-                new DetectablePK(r.getClientId(), r.getDetectableId(), DetectableType.fromString(r.getDetectableType())),
-                r.getReaderSn(),
-                r.getPortNumber(),
-                r.getDetectionTime(),
-                Optional.ofNullable(r.getRssi()),
-                r.getCount());
+    public static class DetectionQueryResult {
+        public final List<Detection> detections;
+        public final boolean complete;
+        public final @Nullable String cursor;
+
+        DetectionQueryResult(List<Detection> detections, boolean complete, @Nullable String cursor) {
+            this.detections = detections;
+            this.complete = complete;
+            this.cursor = cursor;
+        }
+
+        static DetectionQueryResult partial(List<Detection> detections) {
+            return new DetectionQueryResult(
+                    List.copyOf(detections), false, DetectionKey.of(detections.get(detections.size() - 1)).encode());
+        }
+
+        static DetectionQueryResult complete(List<Detection> detections) {
+            return new DetectionQueryResult(List.copyOf(detections), true, null);
+        }
+
+        static DetectionQueryResult incomplete(List<Detection> detections, DetectionKey resumeAfter) {
+            return new DetectionQueryResult(List.copyOf(detections), false, resumeAfter.encode());
+        }
     }
 
     private static OperatorPK authorize(OperatorSessionData sessionData, String clientId) {
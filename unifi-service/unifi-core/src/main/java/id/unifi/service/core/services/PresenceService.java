@@ -0,0 +1,241 @@
+package id.unifi.service.core.services;
+
+import id.unifi.service.common.api.annotations.ApiOperation;
+import id.unifi.service.common.api.annotations.ApiService;
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
+import id.unifi.service.common.api.errors.Unauthorized;
+import id.unifi.service.common.operator.OperatorSessionData;
+import id.unifi.service.common.types.pk.OperatorPK;
+import static id.unifi.service.core.db.Core.CORE;
+import static id.unifi.service.core.db.Keys.PRESENCE_HOUR_PKEY;
+import static id.unifi.service.core.db.Tables.ANTENNA;
+import static id.unifi.service.core.db.Tables.ASSIGNMENT;
+import static id.unifi.service.core.db.Tables.PRESENCE_HOUR;
+import static id.unifi.service.core.db.Tables.RFID_DETECTION;
+import id.unifi.service.core.permissions.StaffAccess;
+import id.unifi.service.dbcommon.Database;
+import id.unifi.service.dbcommon.DatabaseProvider;
+import org.jooq.Condition;
+import org.jooq.Field;
+import static org.jooq.impl.DSL.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.HOURS;
+import java.util.List;
+import java.util.Optional;
+
+@ApiService("presence")
+public class PresenceService {
+    private static final Logger log = LoggerFactory.getLogger(PresenceService.class);
+
+    private static final Field<Instant> DETECTION_HOUR =
+            field("date_trunc('hour', {0})", Instant.class, RFID_DETECTION.DETECTION_TIME);
+    private static final Field<Instant> EXCLUDED_FIRST_SEEN = field(name("excluded", "first_seen"), Instant.class);
+    private static final Field<Instant> EXCLUDED_LAST_SEEN = field(name("excluded", "last_seen"), Instant.class);
+    private static final Field<Integer> EXCLUDED_DETECTION_COUNT =
+            field(name("excluded", "detection_count"), Integer.class);
+    private static final Duration MAX_BACKFILL_DURATION = Duration.ofDays(31);
+
+    private final Database db;
+    private final StaffAccess staffAccess;
+
+    public PresenceService(DatabaseProvider dbProvider, StaffAccess staffAccess) {
+        this.db = dbProvider.bySchema(CORE);
+        this.staffAccess = staffAccess;
+    }
+
+    @ApiOperation
+    public List<HolderPresence> listZonePresence(OperatorSessionData session,
+                                                 String clientId,
+                                                 String siteId,
+                                                 String zoneId,
+                                                 Instant startTime,
+                                                 Instant endTime) {
+        authorize(session, clientId);
+        return db.execute(sql -> sql.select(
+                PRESENCE_HOUR.CLIENT_REFERENCE,
+                min(PRESENCE_HOUR.FIRST_SEEN),
+                max(PRESENCE_HOUR.LAST_SEEN),
+                sum(PRESENCE_HOUR.DETECTION_COUNT))
+                .from(PRESENCE_HOUR)
+                .where(PRESENCE_HOUR.CLIENT_ID.eq(clientId))
+                .and(PRESENCE_HOUR.SITE_ID.eq(siteId))
+                .and(PRESENCE_HOUR.ZONE_ID.eq(zoneId))
+                .and(inRange(startTime, endTime))
+                .groupBy(PRESENCE_HOUR.CLIENT_REFERENCE)
+                .orderBy(PRESENCE_HOUR.CLIENT_REFERENCE)
+                .fetch(r -> new HolderPresence(r.value1(), r.value2(), r.value3(), r.value4().intValue())));
+    }
+
+    @ApiOperation
+    public List<ZonePresence> listHolderPresence(OperatorSessionData session,
+                                                 String clientId,
+                                                 String clientReference,
+                                                 Instant startTime,
+                                                 Instant endTime) {
+        authorize(session, clientId);
+        return db.execute(sql -> sql.selectFrom(PRESENCE_HOUR)
+                .where(PRESENCE_HOUR.CLIENT_ID.eq(clientId))
+                .and(PRESENCE_HOUR.CLIENT_REFERENCE.eq(clientReference))
+                .and(inRange(startTime, endTime))
+                .orderBy(PRESENCE_HOUR.HOUR, PRESENCE_HOUR.SITE_ID, PRESENCE_HOUR.ZONE_ID)
+                .fetch(r -> new ZonePresence(r.getSiteId(), r.getZoneId(), r.getHour(),
+                        r.getFirstSeen(), r.getLastSeen(), r.getDetectionCount())));
+    }
+
+    @ApiOperation
+    public List<ZoneHourOccupancy> getSiteHeatmap(OperatorSessionData session,
+                                                  String clientId,
+                                                  String siteId,
+                                                  Instant startTime,
+                                                  Instant endTime) {
+        authorize(session, clientId);
+        return db.execute(sql -> sql.select(
+                PRESENCE_HOUR.ZONE_ID,
+                PRESENCE_HOUR.HOUR,
+                countDistinct(PRESENCE_HOUR.CLIENT_REFERENCE),
+                sum(PRESENCE_HOUR.DETECTION_COUNT))
+                .from(PRESENCE_HOUR)
+                .where(PRESENCE_HOUR.CLIENT_ID.eq(clientId))
+                .and(PRESENCE_HOUR.SITE_ID.eq(siteId))
+                .and(PRESENCE_HOUR.HOUR.ge(startTime.truncatedTo(HOURS)))
+                .and(PRESENCE_HOUR.HOUR.lt(endTime))
+                .groupBy(PRESENCE_HOUR.ZONE_ID, PRESENCE_HOUR.HOUR)
+                .orderBy(PRESENCE_HOUR.HOUR, PRESENCE_HOUR.ZONE_ID)
+                .fetch(r -> new ZoneHourOccupancy(r.value1(), r.value2(), r.value3(), r.value4().intValue())));
+    }
+
+    @ApiOperation
+    public int backfillPresence(OperatorSessionData session, String clientId, Instant startTime, Instant endTime) {
+        staffAccess.ensureStaff(session);
+        if (startTime.isAfter(endTime)) return 0;
+        if (Duration.between(startTime, endTime).compareTo(MAX_BACKFILL_DURATION) > 0) {
+            throw new InvalidParameterFormat("endTime",
+                    "Can't backfill more than " + MAX_BACKFILL_DURATION.toDays() + " days at once");
+        }
+
+        // Widen to whole hours; the recomputed buckets replace whatever the stream has accumulated
+        var fromHour = startTime.truncatedTo(HOURS);
+        var toHour = endTime.truncatedTo(HOURS).equals(endTime) ? endTime : endTime.truncatedTo(HOURS).plus(1, HOURS);
+
+        // A day at a time, so that no single transaction scans and locks the whole range
+        var rowsUpserted = 0;
+        var dayStart = fromHour;
+        while (dayStart.isBefore(toHour)) {
+            var dayEnd = dayStart.plus(1, DAYS).isBefore(toHour) ? dayStart.plus(1, DAYS) : toHour;
+            rowsUpserted += backfillHours(clientId, dayStart, dayEnd);
+            dayStart = dayEnd;
+        }
+        log.info("Backfilled {} presence buckets for {} between {} and {}", rowsUpserted, clientId, fromHour, toHour);
+        return rowsUpserted;
+    }
+
+    private int backfillHours(String clientId, Instant fromHour, Instant toHour) {
+        return db.execute(sql -> sql.insertInto(PRESENCE_HOUR,
+                PRESENCE_HOUR.CLIENT_ID,
+                PRESENCE_HOUR.CLIENT_REFERENCE,
+                PRESENCE_HOUR.SITE_ID,
+                PRESENCE_HOUR.ZONE_ID,
+                PRESENCE_HOUR.HOUR,
+                PRESENCE_HOUR.FIRST_SEEN,
+                PRESENCE_HOUR.LAST_SEEN,
+                PRESENCE_HOUR.DETECTION_COUNT)
+                .select(select(
+                        RFID_DETECTION.CLIENT_ID,
+                        ASSIGNMENT.CLIENT_REFERENCE,
+                        ANTENNA.SITE_ID,
+                        ANTENNA.ZONE_ID,
+                        DETECTION_HOUR,
+                        min(RFID_DETECTION.DETECTION_TIME),
+                        max(RFID_DETECTION.DETECTION_TIME),
+                        count())
+                        .from(RFID_DETECTION)
+                        .join(ANTENNA).on(
+                                ANTENNA.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID),
+                                ANTENNA.READER_SN.eq(RFID_DETECTION.READER_SN),
+                                ANTENNA.PORT_NUMBER.eq(RFID_DETECTION.PORT_NUMBER))
+                        .join(ASSIGNMENT).on(
+                                ASSIGNMENT.CLIENT_ID.eq(RFID_DETECTION.CLIENT_ID),
+                                ASSIGNMENT.DETECTABLE_ID.eq(RFID_DETECTION.DETECTABLE_ID),
+                                ASSIGNMENT.DETECTABLE_TYPE.eq(RFID_DETECTION.DETECTABLE_TYPE))
+                        .where(RFID_DETECTION.CLIENT_ID.eq(clientId))
+                        .and(RFID_DETECTION.DETECTION_TIME.ge(fromHour))
+                        .and(RFID_DETECTION.DETECTION_TIME.lt(toHour))
+                        .groupBy(
+                                RFID_DETECTION.CLIENT_ID,
+                                ASSIGNMENT.CLIENT_REFERENCE,
+                                ANTENNA.SITE_ID,
+                                ANTENNA.ZONE_ID,
+                                DETECTION_HOUR))
+                .onConflict(PRESENCE_HOUR_PKEY.getFieldsArray())
+                .doUpdate()
+                .set(PRESENCE_HOUR.FIRST_SEEN, EXCLUDED_FIRST_SEEN)
+                .set(PRESENCE_HOUR.LAST_SEEN, EXCLUDED_LAST_SEEN)
+                .set(PRESENCE_HOUR.DETECTION_COUNT, EXCLUDED_DETECTION_COUNT)
+                .execute());
+    }
+
+
+    private static Condition inRange(Instant startTime, Instant endTime) {
+        return PRESENCE_HOUR.HOUR.gt(startTime.minus(1, HOURS))
+                .and(PRESENCE_HOUR.HOUR.lt(endTime))
+                .and(PRESENCE_HOUR.LAST_SEEN.ge(startTime))
+                .and(PRESENCE_HOUR.FIRST_SEEN.lt(endTime));
+    }
+
+    private static OperatorPK authorize(OperatorSessionData sessionData, String clientId) {
+        return Optional.ofNullable(sessionData.getOperator())
+                .filter(op -> op.clientId.equals(clientId))
+                .orElseThrow(Unauthorized::new);
+    }
+
+    public static class HolderPresence {
+        public final String clientReference;
+        public final Instant firstSeen;
+        public final Instant lastSeen;
+        public final int detectionCount;
+
+        HolderPresence(String clientReference, Instant firstSeen, Instant lastSeen, int detectionCount) {
+            this.clientReference = clientReference;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.detectionCount = detectionCount;
+        }
+    }
+
+    public static class ZonePresence {
+        public final String siteId;
+        public final String zoneId;
+        public final Instant hour;
+        public final Instant firstSeen;
+        public final Instant lastSeen;
+        public final int detectionCount;
+
+        ZonePresence(String siteId, String zoneId, Instant hour, Instant firstSeen, Instant lastSeen, int detectionCount) {
+            this.siteId = siteId;
+            this.zoneId = zoneId;
+            this.hour = hour;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.detectionCount = detectionCount;
+        }
+    }
+
+    public static class ZoneHourOccupancy {
+        public final String zoneId;
+        public final Instant hour;
+        public final int holderCount;
+        public final int detectionCount;
+
+        ZoneHourOccupancy(String zoneId, Instant hour, int holderCount, int detectionCount) {
+            this.zoneId = zoneId;
+            this.hour = hour;
+            this.holderCount = holderCount;
+            this.detectionCount = detectionCount;
+        }
+    }
+}
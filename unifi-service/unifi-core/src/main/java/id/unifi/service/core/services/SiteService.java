@@ -4,35 +4,57 @@ import com.google.common.net.HostAndPort;
 import id.unifi.service.common.api.MessageListener;
 import id.unifi.service.common.api.annotations.ApiOperation;
 import id.unifi.service.common.api.annotations.ApiService;
+import id.unifi.service.common.api.errors.InvalidParameterFormat;
 import id.unifi.service.common.api.errors.NotFound;
 import id.unifi.service.common.api.errors.Unauthorized;
 import id.unifi.service.common.operator.OperatorSessionData;
 import id.unifi.service.common.rfid.RfidReader;
 import id.unifi.service.common.rfid.RfidReaderStatus;
+import id.unifi.service.common.subscriptions.ResumableBatch;
 import id.unifi.service.common.types.pk.OperatorPK;
 import id.unifi.service.common.types.pk.SitePK;
 import id.unifi.service.common.types.pk.ZonePK;
 import static id.unifi.service.core.db.Core.CORE;
 import static id.unifi.service.core.db.Tables.SITE;
 import static id.unifi.service.core.db.Tables.ZONE;
+import static id.unifi.service.core.db.Tables.ZONE_TRANSITION;
 import id.unifi.service.core.processing.listener.DetectionSubscriber;
+import id.unifi.service.core.processing.listener.OccupancyEngine;
+import id.unifi.service.core.processing.listener.ZoneTransitionDetector;
+import id.unifi.service.core.site.DetectionSubscriptionFilter;
 import id.unifi.service.core.site.ResolvedSiteDetection;
+import id.unifi.service.core.site.SiteOccupancy;
+import id.unifi.service.core.site.ZoneTransition;
 import id.unifi.service.dbcommon.Database;
 import id.unifi.service.dbcommon.DatabaseProvider;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.jooq.Condition;
 
 import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 @ApiService("site")
 public class SiteService {
+    private static final int ZONE_TRANSITIONS_MAX_PAGE_SIZE = 1000;
+
     private final Database db;
     private final DetectionSubscriber detectionSubscriber;
+    private final OccupancyEngine occupancyEngine;
+    private final ZoneTransitionDetector zoneTransitionDetector;
 
-    public SiteService(DatabaseProvider dbProvider, DetectionSubscriber detectionSubscriber) {
+    public SiteService(DatabaseProvider dbProvider,
+                       DetectionSubscriber detectionSubscriber,
+                       OccupancyEngine occupancyEngine,
+                       ZoneTransitionDetector zoneTransitionDetector) {
         this.db = dbProvider.bySchema(CORE);
         this.detectionSubscriber = detectionSubscriber;
+        this.occupancyEngine = occupancyEngine;
+        this.zoneTransitionDetector = zoneTransitionDetector;
     }
 
     @ApiOperation
@@ -74,11 +96,16 @@ public class SiteService {
                 .fetch(r -> new ZoneInfo(r.getZoneId(), r.getName(), r.getDescription())));
     }
 
+    /**
+     * Sends the site's detections as they're matched. A filtered subscription only gets detections matched on the
+     * node it's connected to, as filters aren't shared between nodes.
+     */
     @ApiOperation
     public void subscribeDetections(OperatorSessionData session,
                                     String clientId,
                                     String siteId,
                                     @Nullable Boolean includeLastKnown,
+                                    @Nullable DetectionSubscriptionFilter filter,
                                     MessageListener<List<ResolvedSiteDetection>> listener) {
         authorize(session, clientId);
         var site = new SitePK(clientId, siteId);
@@ -89,7 +116,7 @@ public class SiteService {
             throw new NotFound("site");
         }
 
-        detectionSubscriber.addListener(site, listener, Boolean.TRUE.equals(includeLastKnown));
+        detectionSubscriber.addListener(site, listener, Boolean.TRUE.equals(includeLastKnown), filter);
     }
 
     @ApiOperation
@@ -113,6 +140,148 @@ public class SiteService {
         detectionSubscriber.addListener(zone, listener, Boolean.TRUE.equals(includeLastKnown));
     }
 
+    /**
+     * Like {@link #subscribeDetections}, but resumable: each batch carries a token which, passed back when
+     * resubscribing after losing the connection, catches up on just what was missed.
+     */
+    @ApiOperation
+    public void subscribeDetectionStream(OperatorSessionData session,
+                                         String clientId,
+                                         String siteId,
+                                         @Nullable String resumeToken,
+                                         @Nullable DetectionSubscriptionFilter filter,
+                                         MessageListener<ResumableBatch<ResolvedSiteDetection>> listener) {
+        authorize(session, clientId);
+        var site = new SitePK(clientId, siteId);
+
+        var siteExists = db.execute(sql ->
+                sql.fetchExists(SITE, SITE.CLIENT_ID.eq(site.clientId).and(SITE.SITE_ID.eq(site.siteId))));
+        if (!siteExists) {
+            throw new NotFound("site");
+        }
+
+        detectionSubscriber.addResumableListener(site, listener, resumeToken, filter);
+    }
+
+    @ApiOperation
+    public void subscribeZoneDetectionStream(OperatorSessionData session,
+                                             String clientId,
+                                             String siteId,
+                                             String zoneId,
+                                             @Nullable String resumeToken,
+                                             MessageListener<ResumableBatch<ResolvedSiteDetection>> listener) {
+        authorize(session, clientId);
+        var zone = new ZonePK(clientId, siteId, zoneId);
+
+        var zoneExists = db.execute(sql ->
+                sql.fetchExists(ZONE, ZONE.CLIENT_ID.eq(zone.clientId)
+                        .and(ZONE.SITE_ID.eq(zone.siteId))
+                        .and(ZONE.ZONE_ID.eq(zone.zoneId))));
+        if (!zoneExists) {
+            throw new NotFound("zone");
+        }
+
+        detectionSubscriber.addResumableListener(zone, listener, resumeToken);
+    }
+
+    @ApiOperation
+    public SiteOccupancy listOccupancy(OperatorSessionData session, String clientId, String siteId) {
+        authorize(session, clientId);
+        return occupancyEngine.getOccupancy(new SitePK(clientId, siteId));
+    }
+
+    /**
+     * Sends the site's current occupancy, then the whole of it again whenever it changes.
+     */
+    @ApiOperation
+    public void subscribeOccupancy(OperatorSessionData session,
+                                   String clientId,
+                                   String siteId,
+                                   MessageListener<SiteOccupancy> listener) {
+        authorize(session, clientId);
+        var site = new SitePK(clientId, siteId);
+
+        var siteExists = db.execute(sql ->
+                sql.fetchExists(SITE, SITE.CLIENT_ID.eq(site.clientId).and(SITE.SITE_ID.eq(site.siteId))));
+        if (!siteExists) {
+            throw new NotFound("site");
+        }
+
+        occupancyEngine.addListener(site, listener);
+    }
+
+    @ApiOperation
+    public void subscribeZoneTransitions(OperatorSessionData session,
+                                         String clientId,
+                                         String siteId,
+                                         MessageListener<List<ZoneTransition>> listener) {
+        authorize(session, clientId);
+        var site = new SitePK(clientId, siteId);
+
+        var siteExists = db.execute(sql ->
+                sql.fetchExists(SITE, SITE.CLIENT_ID.eq(site.clientId).and(SITE.SITE_ID.eq(site.siteId))));
+        if (!siteExists) {
+            throw new NotFound("site");
+        }
+
+        zoneTransitionDetector.addListener(site, listener);
+    }
+
+    /**
+     * Lists recorded zone transitions a page at a time; pass the returned cursor back for the next page. A page
+     * without a cursor is the last one.
+     *
+     * Transitions come in the order they were recorded, which is time order for each holder. An exit is only recorded
+     * once the holder has been away for the exit timeout, so it can follow other holders' later transitions; paging by
+     * record order means it still turns up on a later page rather than behind a cursor already handed out.
+     */
+    @ApiOperation
+    public ZoneTransitionPage listZoneTransitions(OperatorSessionData session,
+                                                 String clientId,
+                                                 String siteId,
+                                                 Instant startTime,
+                                                 Instant endTime,
+                                                 @Nullable String zoneId,
+                                                 @Nullable String clientReference,
+                                                 @Nullable String cursor,
+                                                 @Nullable Integer pageSize) {
+        authorize(session, clientId);
+        var limit = pageSize == null
+                ? ZONE_TRANSITIONS_MAX_PAGE_SIZE
+                : Math.max(1, Math.min(pageSize, ZONE_TRANSITIONS_MAX_PAGE_SIZE));
+
+        var conditions = new ArrayList<Condition>();
+        conditions.add(ZONE_TRANSITION.CLIENT_ID.eq(clientId));
+        conditions.add(ZONE_TRANSITION.SITE_ID.eq(siteId));
+        conditions.add(ZONE_TRANSITION.TRANSITION_TIME.between(startTime, endTime));
+        if (zoneId != null) conditions.add(ZONE_TRANSITION.ZONE_ID.eq(zoneId));
+        if (clientReference != null) conditions.add(ZONE_TRANSITION.CLIENT_REFERENCE.eq(clientReference));
+        if (cursor != null) {
+            var after = ZoneTransitionCursor.decode(cursor);
+            conditions.add(ZONE_TRANSITION.TRANSITION_ID.gt(after.transitionId));
+        }
+
+        // One extra row tells whether there's another page
+        var records = db.execute(sql -> sql.selectFrom(ZONE_TRANSITION)
+                .where(conditions)
+                .orderBy(ZONE_TRANSITION.TRANSITION_ID)
+                .limit(limit + 1)
+                .fetch());
+
+        var transitions = new ArrayList<ZoneTransition>(Math.min(records.size(), limit));
+        for (var r : records.subList(0, Math.min(records.size(), limit))) {
+            transitions.add(new ZoneTransition(r.getClientReference(), r.getZoneId(),
+                    ZoneTransition.Type.fromString(r.getTransition()), r.getTransitionTime()));
+        }
+
+        String nextCursor = null;
+        if (records.size() > limit) {
+            var last = records.get(limit - 1);
+            nextCursor = new ZoneTransitionCursor(last.getTransitionId()).encode();
+        }
+        return new ZoneTransitionPage(transitions, nextCursor);
+    }
+
     private static OperatorPK authorize(OperatorSessionData sessionData, String clientId) {
         return Optional.ofNullable(sessionData.getOperator())
                 .filter(op -> op.clientId.equals(clientId))
@@ -144,4 +313,36 @@ public class SiteService {
             this.timeZone = timeZone;
         }
     }
+
+    public static class ZoneTransitionPage {
+        public final List<ZoneTransition> transitions;
+        public final @Nullable String cursor;
+
+        ZoneTransitionPage(List<ZoneTransition> transitions, @Nullable String cursor) {
+            this.transitions = transitions;
+            this.cursor = cursor;
+        }
+    }
+
+    private static class ZoneTransitionCursor {
+        final long transitionId;
+
+        ZoneTransitionCursor(long transitionId) {
+            this.transitionId = transitionId;
+        }
+
+        String encode() {
+            var plain = Long.toString(transitionId);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(UTF_8));
+        }
+
+        static ZoneTransitionCursor decode(String cursor) {
+            try {
+                var plain = new String(Base64.getUrlDecoder().decode(cursor), UTF_8);
+                return new ZoneTransitionCursor(Long.parseLong(plain));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidParameterFormat("cursor", "Invalid cursor");
+            }
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package id.unifi.service.core.site;
+
+import id.unifi.service.common.detection.DetectableType;
+import static java.util.Comparator.comparing;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Narrows a site detection subscription. Each condition given must hold; within a condition, any of the values may
+ * match. Metadata values are compared as text.
+ *
+ * Collections are kept sorted and deduplicated so that equal filters compare, hash and serialize equally.
+ */
+public final class DetectionSubscriptionFilter {
+    public final @Nullable List<String> clientReferences;
+    public final @Nullable List<Detectable> detectables;
+    public final @Nullable Map<String, String> metadata;
+    public final @Nullable List<String> zoneIds;
+
+    public DetectionSubscriptionFilter(@Nullable Collection<String> clientReferences,
+                                       @Nullable Collection<Detectable> detectables,
+                                       @Nullable Map<String, String> metadata,
+                                       @Nullable Collection<String> zoneIds) {
+        this.clientReferences = clientReferences == null ? null : List.copyOf(new TreeSet<>(clientReferences));
+        this.detectables = detectables == null ? null : List.copyOf(new TreeSet<>(detectables));
+        this.metadata = metadata == null ? null : new TreeMap<>(metadata);
+        this.zoneIds = zoneIds == null ? null : List.copyOf(new TreeSet<>(zoneIds));
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        var that = (DetectionSubscriptionFilter) o;
+        return Objects.equals(clientReferences, that.clientReferences) &&
+                Objects.equals(detectables, that.detectables) &&
+                Objects.equals(metadata, that.metadata) &&
+                Objects.equals(zoneIds, that.zoneIds);
+    }
+
+    public int hashCode() {
+        return Objects.hash(clientReferences, detectables, metadata, zoneIds);
+    }
+
+    public String toString() {
+        return "DetectionSubscriptionFilter{" +
+                "clientReferences=" + clientReferences +
+                ", detectables=" + detectables +
+                ", metadata=" + metadata +
+                ", zoneIds=" + zoneIds +
+                '}';
+    }
+
+    public static final class Detectable implements Comparable<Detectable> {
+        private static final Comparator<Detectable> ORDER =
+                comparing((Detectable d) -> d.detectableType).thenComparing(d -> d.detectableId);
+
+        public final String detectableId;
+        public final DetectableType detectableType;
+
+        public Detectable(String detectableId, DetectableType detectableType) {
+            this.detectableId = detectableId;
+            this.detectableType = detectableType;
+        }
+
+        public int compareTo(Detectable other) {
+            return ORDER.compare(this, other);
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (Detectable) o;
+            return Objects.equals(detectableId, that.detectableId) &&
+                    detectableType == that.detectableType;
+        }
+
+        public int hashCode() {
+            return Objects.hash(detectableId, detectableType);
+        }
+
+        public String toString() {
+            return detectableType + ":" + detectableId;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package id.unifi.service.core.site;
+
+import id.unifi.service.common.subscriptions.SubscriptionType;
+import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.types.pk.SitePK;
+
+import java.util.Objects;
+
+/**
+ * Site detections passing a filter; subscribers with equal filters share a topic.
+ *
+ * Filters are only known to the node they were registered on, which only matches its own detections against them, so
+ * the topic isn't brokered: a filtered subscriber only gets detections matched on the node it's connected to.
+ */
+final public class FilteredDetectionSubscriptionType implements SubscriptionType<TopicBatch<ResolvedSiteDetection>> {
+    private static final FilteredDetectionSubscriptionType instance = new FilteredDetectionSubscriptionType();
+
+    private FilteredDetectionSubscriptionType() {}
+
+    public static Topic<TopicBatch<ResolvedSiteDetection>> topic(SitePK site, DetectionSubscriptionFilter filter) {
+        return new Topic<>(instance, new FilteredSite(site, filter));
+    }
+
+    public static final class FilteredSite {
+        public final SitePK site;
+        public final DetectionSubscriptionFilter filter;
+
+        FilteredSite(SitePK site, DetectionSubscriptionFilter filter) {
+            this.site = site;
+            this.filter = filter;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            var that = (FilteredSite) o;
+            return Objects.equals(site, that.site) &&
+                    Objects.equals(filter, that.filter);
+        }
+
+        public int hashCode() {
+            return Objects.hash(site, filter);
+        }
+
+        public String toString() {
+            return "FilteredSite{" +
+                    "site=" + site +
+                    ", filter=" + filter +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package id.unifi.service.core.site;
+
+import id.unifi.service.common.api.OverflowPolicy;
+import id.unifi.service.common.api.SharedPayload;
+import id.unifi.service.common.subscriptions.SubscriptionType;
+import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.types.pk.SitePK;
+
+final public class OccupancySubscriptionType implements SubscriptionType<SharedPayload<SiteOccupancy>> {
+    private static final OccupancySubscriptionType instance = new OccupancySubscriptionType();
+
+    private OccupancySubscriptionType() {}
+
+    // Each message has the site's full occupancy, so a slow subscriber only needs the latest
+    public OverflowPolicy overflowPolicy() {
+        return OverflowPolicy.COALESCE_LATEST;
+    }
+
+    public static Topic<SharedPayload<SiteOccupancy>> topic(SitePK site) {
+        return new Topic<>(instance, site);
+    }
+}
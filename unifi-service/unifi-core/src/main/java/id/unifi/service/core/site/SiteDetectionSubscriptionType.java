@@ -1,17 +1,26 @@
 package id.unifi.service.core.site;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import id.unifi.service.common.subscriptions.SubscriptionType;
 import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.subscriptions.TopicCodec;
 import id.unifi.service.common.types.pk.SitePK;
 
 import java.util.List;
 
-final public class SiteDetectionSubscriptionType implements SubscriptionType<List<ResolvedSiteDetection>> {
+final public class SiteDetectionSubscriptionType implements SubscriptionType<TopicBatch<ResolvedSiteDetection>> {
     private static final SiteDetectionSubscriptionType instance = new SiteDetectionSubscriptionType();
+    private static final TopicCodec<TopicBatch<ResolvedSiteDetection>> codec =
+            TopicCodec.batch(new TypeReference<List<ResolvedSiteDetection>>() {});
 
     private SiteDetectionSubscriptionType() {}
 
-    public static Topic<List<ResolvedSiteDetection>> topic(SitePK site) {
+    public TopicCodec<TopicBatch<ResolvedSiteDetection>> brokerCodec() {
+        return codec;
+    }
+
+    public static Topic<TopicBatch<ResolvedSiteDetection>> topic(SitePK site) {
         return new Topic<>(instance, site);
     }
 }
@@ -0,0 +1,25 @@
+package id.unifi.service.core.site;
+
+import java.util.List;
+
+public class SiteOccupancy {
+    public final String siteId;
+    public final int count;
+    public final List<ZoneOccupancy> zones;
+
+    public SiteOccupancy(String siteId, int count, List<ZoneOccupancy> zones) {
+        this.siteId = siteId;
+        this.count = count;
+        this.zones = zones;
+    }
+
+    public static class ZoneOccupancy {
+        public final String zoneId;
+        public final int count;
+
+        public ZoneOccupancy(String zoneId, int count) {
+            this.zoneId = zoneId;
+            this.count = count;
+        }
+    }
+}
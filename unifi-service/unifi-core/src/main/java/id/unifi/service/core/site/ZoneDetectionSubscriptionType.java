@@ -1,17 +1,26 @@
 package id.unifi.service.core.site;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import id.unifi.service.common.subscriptions.SubscriptionType;
 import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.subscriptions.TopicCodec;
 import id.unifi.service.common.types.pk.ZonePK;
 
 import java.util.List;
 
-final public class ZoneDetectionSubscriptionType implements SubscriptionType<List<ResolvedSiteDetection>> {
+final public class ZoneDetectionSubscriptionType implements SubscriptionType<TopicBatch<ResolvedSiteDetection>> {
     private static final ZoneDetectionSubscriptionType instance = new ZoneDetectionSubscriptionType();
+    private static final TopicCodec<TopicBatch<ResolvedSiteDetection>> codec =
+            TopicCodec.batch(new TypeReference<List<ResolvedSiteDetection>>() {});
 
     private ZoneDetectionSubscriptionType() {}
 
-    public static Topic<List<ResolvedSiteDetection>> topic(ZonePK zone) {
+    public TopicCodec<TopicBatch<ResolvedSiteDetection>> brokerCodec() {
+        return codec;
+    }
+
+    public static Topic<TopicBatch<ResolvedSiteDetection>> topic(ZonePK zone) {
         return new Topic<>(instance, zone);
     }
 }
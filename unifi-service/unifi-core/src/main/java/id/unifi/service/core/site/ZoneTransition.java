@@ -0,0 +1,37 @@
+package id.unifi.service.core.site;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.time.Instant;
+
+/**
+ * A holder entering or leaving a zone. An enter is timed at the first detection in the zone, an exit at the last.
+ */
+public class ZoneTransition {
+    public final String clientReference;
+    public final String zoneId;
+    public final Type type;
+    public final Instant time;
+
+    public ZoneTransition(String clientReference, String zoneId, Type type, Instant time) {
+        this.clientReference = clientReference;
+        this.zoneId = zoneId;
+        this.type = type;
+        this.time = time;
+    }
+
+    public enum Type {
+        ENTER, EXIT;
+
+        @JsonCreator
+        public static Type fromString(String type) {
+            return valueOf(type.toUpperCase());
+        }
+
+        @JsonValue
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package id.unifi.service.core.site;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import id.unifi.service.common.subscriptions.SubscriptionType;
+import id.unifi.service.common.subscriptions.Topic;
+import id.unifi.service.common.subscriptions.TopicBatch;
+import id.unifi.service.common.subscriptions.TopicCodec;
+import id.unifi.service.common.types.pk.SitePK;
+
+import java.util.List;
+
+final public class ZoneTransitionSubscriptionType implements SubscriptionType<TopicBatch<ZoneTransition>> {
+    private static final ZoneTransitionSubscriptionType instance = new ZoneTransitionSubscriptionType();
+    private static final TopicCodec<TopicBatch<ZoneTransition>> codec =
+            TopicCodec.batch(new TypeReference<List<ZoneTransition>>() {});
+
+    private ZoneTransitionSubscriptionType() {}
+
+    // Transitions are worked out on the node that ingests the site's detections; this gets them to the others
+    public TopicCodec<TopicBatch<ZoneTransition>> brokerCodec() {
+        return codec;
+    }
+
+    public static Topic<TopicBatch<ZoneTransition>> topic(SitePK site) {
+        return new Topic<>(instance, site);
+    }
+}
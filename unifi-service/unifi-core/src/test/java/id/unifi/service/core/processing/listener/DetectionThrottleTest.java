@@ -0,0 +1,87 @@
+package id.unifi.service.core.processing.listener;
+
+import com.codahale.metrics.MetricRegistry;
+import static id.unifi.service.common.detection.DetectableType.UHF_EPC;
+import id.unifi.service.common.types.pk.DetectablePK;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+public class DetectionThrottleTest {
+    private static final Instant T0 = Instant.parse("2018-10-01T09:00:00Z");
+    private static final DetectablePK TAG = new DetectablePK("acme", "e200001", UHF_EPC);
+    private static final DetectablePK OTHER_TAG = new DetectablePK("acme", "e200002", UHF_EPC);
+
+    @Test
+    public void letsThroughOneDetectionPerInterval() {
+        var throttle = new DetectionThrottle(Duration.ofSeconds(1), Map.of(), new MetricRegistry());
+
+        assertTrue(throttle.tryEmit(TAG, T0));
+        assertFalse(throttle.tryEmit(TAG, T0.plusMillis(999)));
+        assertTrue(throttle.tryEmit(TAG, T0.plusSeconds(1)));
+        assertFalse(throttle.tryEmit(TAG, T0.plusMillis(1_500)));
+    }
+
+    @Test
+    public void throttlesDetectablesIndependently() {
+        var throttle = new DetectionThrottle(Duration.ofSeconds(1), Map.of(), new MetricRegistry());
+
+        assertTrue(throttle.tryEmit(TAG, T0));
+        assertTrue(throttle.tryEmit(OTHER_TAG, T0));
+        assertFalse(throttle.tryEmit(OTHER_TAG, T0.plusMillis(10)));
+        assertEquals(2, throttle.size());
+    }
+
+    @Test
+    public void goesByDetectionTimeNotArrivalTime() {
+        var throttle = new DetectionThrottle(Duration.ofSeconds(1), Map.of(), new MetricRegistry());
+
+        // A replayed hour of detections arrives all at once but is throttled as it happened
+        var emitted = 0;
+        for (int i = 0; i < 3_600 * 4; i++) {
+            if (throttle.tryEmit(TAG, T0.plusMillis(i * 250L))) emitted++;
+        }
+        assertEquals(3_600, emitted);
+    }
+
+    @Test
+    public void usesClientInterval() {
+        var clientTag = new DetectablePK("slow", "e200001", UHF_EPC);
+        var throttle = new DetectionThrottle(
+                Duration.ofSeconds(1), Map.of("slow", Duration.ofSeconds(10)), new MetricRegistry());
+
+        assertTrue(throttle.tryEmit(clientTag, T0));
+        assertFalse(throttle.tryEmit(clientTag, T0.plusSeconds(5)));
+        assertTrue(throttle.tryEmit(clientTag, T0.plusSeconds(10)));
+        assertTrue(throttle.tryEmit(TAG, T0));
+        assertTrue(throttle.tryEmit(TAG, T0.plusSeconds(1)));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        var throttle = new DetectionThrottle(Duration.ofSeconds(1), Map.of(), new MetricRegistry());
+
+        for (int i = 0; i < 5_000; i++) {
+            assertTrue(throttle.tryEmit(new DetectablePK("acme", "tag-" + i, UHF_EPC), T0));
+        }
+        for (int i = 0; i < 5_000; i++) {
+            assertFalse(throttle.tryEmit(new DetectablePK("acme", "tag-" + i, UHF_EPC), T0.plusMillis(1)));
+        }
+        assertEquals(5_000, throttle.size());
+    }
+
+    @Test
+    public void parsesClientIntervals() {
+        assertEquals(Map.of(), DetectionThrottle.parseClientIntervals(null));
+        assertEquals(Map.of(), DetectionThrottle.parseClientIntervals(" "));
+        assertEquals(Map.of("acme", Duration.ofMillis(500), "slow", Duration.ofSeconds(10)),
+                DetectionThrottle.parseClientIntervals("acme=500, slow = 10000"));
+        assertThrows(IllegalArgumentException.class, () -> DetectionThrottle.parseClientIntervals("acme"));
+    }
+}
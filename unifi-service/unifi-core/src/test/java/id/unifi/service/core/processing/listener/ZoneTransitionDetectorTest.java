@@ -0,0 +1,98 @@
+package id.unifi.service.core.processing.listener;
+
+import id.unifi.service.core.processing.listener.ZoneTransitionDetector.HolderState;
+import id.unifi.service.core.site.ZoneTransition;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ZoneTransitionDetectorTest {
+    private static final Instant T0 = Instant.parse("2018-10-01T09:00:00Z");
+
+    private List<ZoneTransition> transitions;
+
+    @BeforeEach
+    public void setUp() {
+        transitions = new ArrayList<>();
+    }
+
+    @Test
+    public void entersZoneAfterConsecutiveDetections() {
+        var holder = new HolderState("alice", 3);
+
+        detected(holder, "a", 0);
+        detected(holder, "a", 1);
+        assertEquals(List.of(), describe(transitions));
+
+        detected(holder, "a", 2);
+        assertEquals(List.of("enter a 0"), describe(transitions));
+    }
+
+    @Test
+    public void strayDetectionDoesntMoveHolder() {
+        var holder = new HolderState("alice", 2);
+        detected(holder, "a", 0);
+        detected(holder, "a", 1);
+
+        detected(holder, "b", 2);
+        detected(holder, "a", 3);
+        assertEquals(List.of("enter a 0"), describe(transitions));
+
+        detected(holder, "b", 4);
+        detected(holder, "b", 5);
+        assertEquals(List.of("enter a 0", "exit a 3", "enter b 4"), describe(transitions));
+    }
+
+    @Test
+    public void ignoresDetectionsOlderThanLastSeen() {
+        var holder = new HolderState("alice", 1);
+
+        detected(holder, "a", 5);
+        detected(holder, "b", 3);
+
+        assertEquals(List.of("enter a 5"), describe(transitions));
+        assertFalse(holder.expire(T0.plusSeconds(4), transitions::add));
+    }
+
+    @Test
+    public void exitsAtLastDetectionOnceTimedOut() {
+        var holder = new HolderState("alice", 1);
+        detected(holder, "a", 0);
+        detected(holder, "a", 10);
+
+        assertFalse(holder.expire(T0.plusSeconds(10), transitions::add));
+        assertEquals(List.of("enter a 0"), describe(transitions));
+
+        assertTrue(holder.expire(T0.plusSeconds(11), transitions::add));
+        assertEquals(List.of("enter a 0", "exit a 10"), describe(transitions));
+    }
+
+    @Test
+    public void forgetsCandidateZoneOnceTimedOut() {
+        var holder = new HolderState("alice", 2);
+        detected(holder, "a", 0);
+
+        assertFalse(holder.expire(T0, transitions::add));
+        assertTrue(holder.expire(T0.plusSeconds(1), transitions::add));
+
+        detected(holder, "a", 2);
+        assertEquals(List.of(), describe(transitions));
+    }
+
+    private void detected(HolderState holder, String zoneId, int seconds) {
+        holder.detected(zoneId, T0.plusSeconds(seconds), transitions::add);
+    }
+
+    private static List<String> describe(List<ZoneTransition> transitions) {
+        return transitions.stream()
+                .map(t -> t.type + " " + t.zoneId + " " + (t.time.getEpochSecond() - T0.getEpochSecond()))
+                .collect(toList());
+    }
+}
@@ -13,6 +13,7 @@ import static org.jooq.impl.DSL.name;
 import static org.jooq.impl.DSL.trueCondition;
 import org.jooq.impl.DefaultDataType;
 
+import java.sql.SQLException;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Optional;
@@ -24,6 +25,8 @@ public class DatabaseUtils {
 
     public static final Field<Instant> CURRENT_INSTANT = DSL.currentTimestamp().cast(Instant.class);
 
+    private static final String QUERY_CANCELED_SQL_STATE = "57014";
+
     public static <T> Condition filterCondition(Optional<T> filter, Function<T, Condition> condition) {
         return filter.map(condition).orElse(trueCondition());
     }
@@ -43,4 +46,15 @@ public class DatabaseUtils {
     public static <R extends Record, T> Field<T> unqualified(TableField<R, T> field) {
         return field(name(field.getUnqualifiedName()), field.getType());
     }
+
+    /**
+     * Whether a statement failed because it was cancelled, e.g. on hitting {@code statement_timeout}.
+     */
+    public static boolean isQueryCanceled(Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException
+                    && QUERY_CANCELED_SQL_STATE.equals(((SQLException) cause).getSQLState())) return true;
+        }
+        return false;
+    }
 }